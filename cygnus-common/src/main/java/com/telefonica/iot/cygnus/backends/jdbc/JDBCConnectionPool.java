@@ -0,0 +1,807 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.jdbc;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author frb
+ *
+ * Bounded pool of JDBC connections, shared by the JDBC-based backends. Connections are pooled per database, and both
+ * the number of connections per database and the total number of connections are limited. When no connection is
+ * available, the caller waits up to a maximum time. Idle connections are validated and evicted in background, thus
+ * borrowing a connection does not require any roundtrip to the server.
+ *
+ * The borrowed connections must be closed once used; closing them returns them to the pool instead of closing the
+ * underlying physical connection.
+ *
+ * The statements prepared through a borrowed connection are cached per physical connection and SQL string, thus
+ * preparing again the same SQL string (e.g. the same insertion into the same table) reuses the already prepared
+ * statement, even after the connection was returned and borrowed again. Closing such a statement clears its batch and
+ * parameters instead of closing it. Apart from saving the parsing, reusing the statement object is what allows the
+ * PostgreSQL driver to switch it to a server-side prepared statement once executed prepareThreshold times (5 by
+ * default); a new statement object per insertion would never reach such a threshold.
+ */
+public class JDBCConnectionPool {
+
+    /**
+     * Interface for those classes creating physical connections.
+     */
+    public interface ConnectionFactory {
+
+        /**
+         * Creates a physical connection to the given database.
+         * @param dbName
+         * @return A physical connection to the given database
+         * @throws ClassNotFoundException
+         * @throws SQLException
+         */
+        Connection createConnection(String dbName) throws ClassNotFoundException, SQLException;
+
+    } // ConnectionFactory
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(JDBCConnectionPool.class);
+    private static final int VALIDATION_TIMEOUT = 5; // seconds
+    private static final int MAX_CACHED_STATEMENTS = 32; // per connection
+    private static final ArrayList<JDBCConnectionPool> POOLS = new ArrayList<>();
+    private final String name;
+    private final ConnectionFactory factory;
+    private final int maxConns;
+    private final int maxConnsPerDb;
+    private final long maxWait;
+    private final long idleTimeout;
+    private final HashMap<String, DbPool> dbPools;
+    private final ScheduledExecutorService validator;
+    private int numConns;
+    private boolean closed;
+    private long numWaits;
+    private long numWaitTimeouts;
+    private long numCreated;
+    private long numClosed;
+    private long statsStartTime;
+
+    /**
+     * Constructor. The pool is registered in order its statistics can be retrieved through getPools().
+     * @param name Name of the pool, used for logging and statistics purposes
+     * @param factory Factory of physical connections
+     * @param maxConns Maximum number of connections, considering all the databases
+     * @param maxConnsPerDb Maximum number of connections per database
+     * @param maxWait Maximum time (in milliseconds) to wait for a connection
+     * @param idleTimeout Time (in seconds) after which an idle connection is closed
+     * @param validationInterval Time (in seconds) between validations of the idle connections; 0 disables them
+     */
+    public JDBCConnectionPool(String name, ConnectionFactory factory, int maxConns, int maxConnsPerDb, long maxWait,
+            long idleTimeout, long validationInterval) {
+        this.name = name;
+        this.factory = factory;
+        this.maxConns = maxConns;
+        this.maxConnsPerDb = maxConnsPerDb;
+        this.maxWait = maxWait;
+        this.idleTimeout = idleTimeout * 1000;
+        this.dbPools = new HashMap<>();
+        this.numConns = 0;
+        this.closed = false;
+        this.statsStartTime = System.currentTimeMillis();
+
+        if (validationInterval > 0) {
+            validator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBCConnectionPool-" + JDBCConnectionPool.this.name);
+                    t.setDaemon(true);
+                    return t;
+                } // newThread
+            });
+            validator.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        validateIdleConnections();
+                    } catch (Exception e) {
+                        LOGGER.error("[" + JDBCConnectionPool.this.name + "] Error while validating the idle "
+                                + "connections. Details=" + e.getMessage());
+                    } // try catch
+                } // run
+            }, validationInterval, validationInterval, TimeUnit.SECONDS);
+        } else {
+            validator = null;
+        } // if else
+
+        synchronized (POOLS) {
+            POOLS.add(this);
+        } // synchronized
+
+        LOGGER.debug("[" + name + "] Connection pool created (max_conns=" + maxConns + ", max_conns_per_db="
+                + maxConnsPerDb + ", max_wait=" + maxWait + ", idle_timeout=" + idleTimeout
+                + ", validation_interval=" + validationInterval + ")");
+    } // JDBCConnectionPool
+
+    /**
+     * Gets the currently registered (i.e. not closed) pools.
+     * @return The currently registered pools
+     */
+    public static ArrayList<JDBCConnectionPool> getPools() {
+        synchronized (POOLS) {
+            return new ArrayList<>(POOLS);
+        } // synchronized
+    } // getPools
+
+    /**
+     * Gets the name of the pool.
+     * @return The name of the pool
+     */
+    public String getName() {
+        return name;
+    } // getName
+
+    /**
+     * Borrows a connection to the given database. An idle connection is reused if available; otherwise a new one is
+     * created if the limits allow it, or the caller waits for a connection to be returned.
+     * @param dbName
+     * @return A connection to the given database, to be closed once used
+     * @throws ClassNotFoundException
+     * @throws SQLException If no connection could be obtained within the maximum wait time, or it could not be
+     * created
+     */
+    public Connection getConnection(String dbName) throws ClassNotFoundException, SQLException {
+        long deadline = System.currentTimeMillis() + maxWait;
+        boolean waited = false;
+        PooledConnection evicted = null;
+        DbPool dbPool;
+
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("The connection pool '" + name + "' is closed");
+                } // if
+
+                dbPool = dbPools.get(dbName);
+
+                if (dbPool == null) {
+                    dbPool = new DbPool();
+                    dbPools.put(dbName, dbPool);
+                } // if
+
+                PooledConnection pooledCon = dbPool.idle.pollFirst();
+
+                if (pooledCon != null) {
+                    dbPool.numActive++;
+                    return lease(dbName, pooledCon);
+                } // if
+
+                if (dbPool.numActive + dbPool.numValidating < maxConnsPerDb) {
+                    if (numConns >= maxConns) {
+                        evicted = evictOldestIdle();
+                    } // if
+
+                    if (numConns < maxConns) {
+                        // reserve the connection, it is created out of the lock
+                        numConns++;
+                        dbPool.numActive++;
+                        break;
+                    } // if
+                } // if
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    numWaitTimeouts++;
+                    throw new SQLTransientConnectionException("Timeout while waiting for a connection to '" + dbName
+                            + "' (pool=" + name + ", max_wait=" + maxWait + ")");
+                } // if
+
+                if (!waited) {
+                    numWaits++;
+                    waited = true;
+                } // if
+
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a connection to '" + dbName + "'");
+                } // try catch
+            } // while
+        } // synchronized
+
+        closeQuietly(evicted);
+
+        try {
+            Connection con = factory.createConnection(dbName);
+
+            synchronized (this) {
+                numCreated++;
+            } // synchronized
+
+            LOGGER.debug("[" + name + "] New connection created (dbName=" + dbName + ")");
+            return lease(dbName, new PooledConnection(con));
+        } catch (ClassNotFoundException | SQLException | RuntimeException e) {
+            synchronized (this) {
+                numConns--;
+                dbPool.numActive--;
+                notifyAll();
+            } // synchronized
+
+            throw e;
+        } // try catch
+    } // getConnection
+
+    /**
+     * Closes the pool, and all the idle connections. Borrowed connections are closed once returned.
+     */
+    public void close() {
+        ArrayList<PooledConnection> toClose = new ArrayList<>();
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            } // if
+
+            closed = true;
+
+            for (DbPool dbPool : dbPools.values()) {
+                toClose.addAll(dbPool.idle);
+                numConns -= dbPool.idle.size();
+                numClosed += dbPool.idle.size();
+                dbPool.idle.clear();
+            } // for
+
+            notifyAll();
+        } // synchronized
+
+        if (validator != null) {
+            validator.shutdownNow();
+        } // if
+
+        for (PooledConnection pooledCon : toClose) {
+            closeQuietly(pooledCon);
+        } // for
+
+        synchronized (POOLS) {
+            POOLS.remove(this);
+        } // synchronized
+
+        LOGGER.debug("[" + name + "] Connection pool closed");
+    } // close
+
+    /**
+     * Gets the number of borrowed connections.
+     * @return The number of borrowed connections
+     */
+    public synchronized int getNumActive() {
+        int numActive = 0;
+
+        for (DbPool dbPool : dbPools.values()) {
+            numActive += dbPool.numActive;
+        } // for
+
+        return numActive;
+    } // getNumActive
+
+    /**
+     * Gets the number of idle connections.
+     * @return The number of idle connections
+     */
+    public synchronized int getNumIdle() {
+        int numIdle = 0;
+
+        for (DbPool dbPool : dbPools.values()) {
+            numIdle += dbPool.idle.size();
+        } // for
+
+        return numIdle;
+    } // getNumIdle
+
+    /**
+     * Gets the number of databases having connections (either borrowed or idle).
+     * @return The number of databases having connections
+     */
+    public synchronized int getNumDbs() {
+        return dbPools.size();
+    } // getNumDbs
+
+    /**
+     * Gets if there are connections (either borrowed or idle) to the given database.
+     * @param dbName
+     * @return True if there are connections to the given database, false otherwise
+     */
+    public synchronized boolean isDbPooled(String dbName) {
+        return dbPools.containsKey(dbName);
+    } // isDbPooled
+
+    /**
+     * Gets the number of times a caller had to wait for a connection, since the last statistics reset.
+     * @return The number of times a caller had to wait for a connection
+     */
+    public synchronized long getNumWaits() {
+        return numWaits;
+    } // getNumWaits
+
+    /**
+     * Gets the number of times a caller could not get a connection within the maximum wait time, since the last
+     * statistics reset.
+     * @return The number of times a caller could not get a connection within the maximum wait time
+     */
+    public synchronized long getNumWaitTimeouts() {
+        return numWaitTimeouts;
+    } // getNumWaitTimeouts
+
+    /**
+     * Gets the number of physical connections created since the last statistics reset.
+     * @return The number of physical connections created
+     */
+    public synchronized long getNumCreated() {
+        return numCreated;
+    } // getNumCreated
+
+    /**
+     * Gets the number of physical connections closed since the last statistics reset.
+     * @return The number of physical connections closed
+     */
+    public synchronized long getNumClosed() {
+        return numClosed;
+    } // getNumClosed
+
+    /**
+     * Gets the rate of physical connections creation (connections per minute) since the last statistics reset.
+     * @return The rate of physical connections creation
+     */
+    public synchronized double getCreationRate() {
+        long elapsed = System.currentTimeMillis() - statsStartTime;
+        return elapsed <= 0 ? 0 : (numCreated * 60000.0) / elapsed;
+    } // getCreationRate
+
+    /**
+     * Resets the accumulated statistics (waits, wait timeouts, created and closed connections).
+     */
+    public synchronized void resetStats() {
+        numWaits = 0;
+        numWaitTimeouts = 0;
+        numCreated = 0;
+        numClosed = 0;
+        statsStartTime = System.currentTimeMillis();
+    } // resetStats
+
+    /**
+     * Validates the idle connections. Those idle for more than the idle timeout, and those not valid, are closed.
+     * It is protected since it is only used by the validator thread and the tests.
+     */
+    protected void validateIdleConnections() {
+        ArrayList<PooledConnection> toClose = new ArrayList<>();
+        ArrayList<PooledConnection> toValidate = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            for (DbPool dbPool : dbPools.values()) {
+                while (!dbPool.idle.isEmpty()) {
+                    PooledConnection pooledCon = dbPool.idle.pollFirst();
+
+                    if (now - pooledCon.lastUsed > idleTimeout) {
+                        numConns--;
+                        numClosed++;
+                        toClose.add(pooledCon);
+                    } else {
+                        dbPool.numValidating++;
+                        toValidate.add(pooledCon);
+                    } // if else
+                } // while
+            } // for
+        } // synchronized
+
+        for (PooledConnection pooledCon : toValidate) {
+            boolean valid;
+
+            try {
+                valid = pooledCon.con.isValid(VALIDATION_TIMEOUT);
+            } catch (SQLException e) {
+                valid = false;
+            } // try catch
+
+            synchronized (this) {
+                DbPool dbPool = dbPools.get(pooledCon.dbName);
+                dbPool.numValidating--;
+
+                if (valid && !closed) {
+                    dbPool.idle.addLast(pooledCon);
+                } else {
+                    numConns--;
+                    numClosed++;
+                    toClose.add(pooledCon);
+                } // if else
+
+                notifyAll();
+            } // synchronized
+        } // for
+
+        synchronized (this) {
+            Iterator<DbPool> it = dbPools.values().iterator();
+
+            while (it.hasNext()) {
+                DbPool dbPool = it.next();
+
+                if (dbPool.idle.isEmpty() && dbPool.numActive == 0 && dbPool.numValidating == 0) {
+                    it.remove();
+                } // if
+            } // while
+        } // synchronized
+
+        for (PooledConnection pooledCon : toClose) {
+            closeQuietly(pooledCon);
+        } // for
+
+        if (!toClose.isEmpty()) {
+            LOGGER.debug("[" + name + "] " + toClose.size() + " idle connections closed after validation");
+        } // if
+    } // validateIdleConnections
+
+    /**
+     * Removes the least recently used idle connection, considering all the databases. Must be called within a
+     * synchronized block.
+     * @return The removed connection (to be closed out of the lock), or null if there was no idle connection
+     */
+    private PooledConnection evictOldestIdle() {
+        DbPool oldestDbPool = null;
+
+        for (DbPool dbPool : dbPools.values()) {
+            PooledConnection last = dbPool.idle.peekLast();
+
+            if (last != null && (oldestDbPool == null || last.lastUsed < oldestDbPool.idle.peekLast().lastUsed)) {
+                oldestDbPool = dbPool;
+            } // if
+        } // for
+
+        if (oldestDbPool == null) {
+            return null;
+        } // if
+
+        numConns--;
+        numClosed++;
+        return oldestDbPool.idle.pollLast();
+    } // evictOldestIdle
+
+    /**
+     * Returns a borrowed connection to the pool.
+     * @param dbName
+     * @param pooledCon
+     */
+    private void release(String dbName, PooledConnection pooledCon) {
+        boolean broken;
+
+        try {
+            broken = pooledCon.con.isClosed();
+        } catch (SQLException e) {
+            broken = true;
+        } // try catch
+
+        boolean discard;
+
+        synchronized (this) {
+            DbPool dbPool = dbPools.get(dbName);
+            dbPool.numActive--;
+            discard = broken || closed;
+
+            if (discard) {
+                numConns--;
+                numClosed++;
+            } else {
+                pooledCon.lastUsed = System.currentTimeMillis();
+                dbPool.idle.addFirst(pooledCon);
+            } // if else
+
+            notifyAll();
+        } // synchronized
+
+        if (discard) {
+            closeQuietly(pooledCon);
+        } // if
+    } // release
+
+    private Connection lease(String dbName, PooledConnection pooledCon) {
+        pooledCon.dbName = dbName;
+        return (Connection) Proxy.newProxyInstance(JDBCConnectionPool.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new LeasedConnectionHandler(dbName, pooledCon));
+    } // lease
+
+    private void closeQuietly(PooledConnection pooledCon) {
+        if (pooledCon == null) {
+            return;
+        } // if
+
+        try {
+            pooledCon.con.close();
+        } catch (SQLException e) {
+            LOGGER.debug("[" + name + "] Error while closing a connection. Details=" + e.getMessage());
+        } // try catch
+    } // closeQuietly
+
+    private void closeQuietly(CachedStatement cachedStmt) {
+        try {
+            cachedStmt.stmt.close();
+        } catch (SQLException e) {
+            LOGGER.debug("[" + name + "] Error while closing a statement. Details=" + e.getMessage());
+        } // try catch
+    } // closeQuietly
+
+    /**
+     * Connections regarding a single database.
+     */
+    private class DbPool {
+
+        // most recently used connections first
+        private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+        private int numActive = 0;
+        private int numValidating = 0;
+
+    } // DbPool
+
+    /**
+     * Physical connection, together with its pooling related data. The cached statements are only accessed by the
+     * thread the connection is borrowed by.
+     */
+    private class PooledConnection {
+
+        private final Connection con;
+        private final LinkedHashMap<String, CachedStatement> statements;
+        private String dbName;
+        private long lastUsed;
+
+        /**
+         * Constructor.
+         * @param con
+         */
+        PooledConnection(Connection con) {
+            this.con = con;
+            this.lastUsed = System.currentTimeMillis();
+
+            // least recently used statements first
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Entry<String, CachedStatement> eldest) {
+                    if (size() <= MAX_CACHED_STATEMENTS) {
+                        return false;
+                    } // if
+
+                    CachedStatement cachedStmt = eldest.getValue();
+                    cachedStmt.evicted = true;
+
+                    if (!cachedStmt.leased) {
+                        closeQuietly(cachedStmt);
+                    } // if
+
+                    return true;
+                } // removeEldestEntry
+            };
+        } // PooledConnection
+
+        /**
+         * Prepares a statement for the given SQL string, reusing the cached one if not already in use.
+         * @param sql
+         * @return A prepared statement, to be closed once used
+         * @throws SQLException
+         */
+        PreparedStatement prepareStatement(String sql) throws SQLException {
+            CachedStatement cachedStmt = statements.get(sql);
+
+            if (cachedStmt != null && cachedStmt.leased) {
+                // the same SQL string is being used twice at the same time, the second statement is not cached
+                return con.prepareStatement(sql);
+            } // if
+
+            if (cachedStmt == null) {
+                cachedStmt = new CachedStatement(sql, con.prepareStatement(sql));
+                statements.put(sql, cachedStmt);
+            } // if
+
+            cachedStmt.leased = true;
+            return (PreparedStatement) Proxy.newProxyInstance(JDBCConnectionPool.class.getClassLoader(),
+                    new Class<?>[] {PreparedStatement.class}, new LeasedStatementHandler(this, cachedStmt));
+        } // prepareStatement
+
+        /**
+         * Returns a cached statement once used. Statements that failed are discarded, since they may be left in an
+         * unknown state.
+         * @param cachedStmt
+         * @param failed
+         */
+        void release(CachedStatement cachedStmt, boolean failed) {
+            cachedStmt.leased = false;
+
+            if (!cachedStmt.evicted && !failed) {
+                try {
+                    cachedStmt.stmt.clearBatch();
+                    cachedStmt.stmt.clearParameters();
+                    return;
+                } catch (SQLException e) {
+                    LOGGER.debug("[" + name + "] Error while clearing a statement. Details=" + e.getMessage());
+                } // try catch
+            } // if
+
+            if (!cachedStmt.evicted) {
+                statements.remove(cachedStmt.sql);
+            } // if
+
+            closeQuietly(cachedStmt);
+        } // release
+
+    } // PooledConnection
+
+    /**
+     * Prepared statement cached by a physical connection.
+     */
+    private static class CachedStatement {
+
+        private final String sql;
+        private final PreparedStatement stmt;
+        private boolean leased;
+        private boolean evicted;
+
+        /**
+         * Constructor.
+         * @param sql
+         * @param stmt
+         */
+        CachedStatement(String sql, PreparedStatement stmt) {
+            this.sql = sql;
+            this.stmt = stmt;
+            this.leased = false;
+            this.evicted = false;
+        } // CachedStatement
+
+    } // CachedStatement
+
+    /**
+     * Handler of the cached statements given to the callers. All the methods are delegated to the prepared statement,
+     * except for close(), which returns the statement to the cache of its connection.
+     */
+    private class LeasedStatementHandler implements InvocationHandler {
+
+        private final PooledConnection pooledCon;
+        private final CachedStatement cachedStmt;
+        private boolean released;
+        private boolean failed;
+
+        /**
+         * Constructor.
+         * @param pooledCon
+         * @param cachedStmt
+         */
+        LeasedStatementHandler(PooledConnection pooledCon, CachedStatement cachedStmt) {
+            this.pooledCon = pooledCon;
+            this.cachedStmt = cachedStmt;
+            this.released = false;
+            this.failed = false;
+        } // LeasedStatementHandler
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        pooledCon.release(cachedStmt, failed);
+                    } // if
+
+                    return null;
+                case "isClosed":
+                    return released || cachedStmt.stmt.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached" + cachedStmt.stmt.toString();
+                default:
+                    if (released) {
+                        throw new SQLException("The statement was already closed");
+                    } // if
+
+                    try {
+                        return method.invoke(cachedStmt.stmt, args);
+                    } catch (InvocationTargetException e) {
+                        if (e.getTargetException() instanceof SQLException) {
+                            failed = true;
+                        } // if
+
+                        throw e.getTargetException();
+                    } // try catch
+            } // switch
+        } // invoke
+
+    } // LeasedStatementHandler
+
+    /**
+     * Handler of the connections given to the callers. All the methods are delegated to the physical connection,
+     * except for close(), which returns the connection to the pool.
+     */
+    private class LeasedConnectionHandler implements InvocationHandler {
+
+        private final String dbName;
+        private final PooledConnection pooledCon;
+        private boolean released;
+
+        /**
+         * Constructor.
+         * @param dbName
+         * @param pooledCon
+         */
+        LeasedConnectionHandler(String dbName, PooledConnection pooledCon) {
+            this.dbName = dbName;
+            this.pooledCon = pooledCon;
+            this.released = false;
+        } // LeasedConnectionHandler
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+
+            switch (methodName) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        release(dbName, pooledCon);
+                    } // if
+
+                    return null;
+                case "isClosed":
+                    return released || pooledCon.con.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooledCon.con.toString();
+                default:
+                    if (released) {
+                        throw new SQLException("The connection was already returned to the pool");
+                    } // if
+
+                    if (methodName.equals("prepareStatement") && args.length == 1) {
+                        return pooledCon.prepareStatement((String) args[0]);
+                    } // if
+
+                    try {
+                        return method.invoke(pooledCon.con, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getTargetException();
+                    } // try catch
+            } // switch
+        } // invoke
+
+    } // LeasedConnectionHandler
+
+} // JDBCConnectionPool
@@ -17,7 +17,9 @@
  */
 package com.telefonica.iot.cygnus.backends.kafka;
 
+import java.util.concurrent.Future;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 /**
  * Interface for those backends implementing the persistence in Kafka.
@@ -48,5 +50,17 @@ public interface KafkaBackend {
      */
     void send(ProducerRecord<String, String> record);
     
+    /**
+     * Send a record, without waiting for its acknowledgement.
+     * @param record
+     * @return A future for the acknowledgement of the record
+     */
+    Future<RecordMetadata> sendAsync(ProducerRecord<String, String> record);
+    
+    /**
+     * Closes the backend, releasing the producer and the Zookeeper client.
+     */
+    void close();
+    
 } // KafkaBackend
 
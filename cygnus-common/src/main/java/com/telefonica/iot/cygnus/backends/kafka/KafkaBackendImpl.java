@@ -18,13 +18,18 @@
 package com.telefonica.iot.cygnus.backends.kafka;
 
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import kafka.admin.AdminUtils;
 import kafka.utils.ZKStringSerializer$;
 import org.I0Itec.zkclient.ZkClient;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.serialization.StringSerializer;
 
 /**
@@ -34,9 +39,15 @@ import org.apache.kafka.common.serialization.StringSerializer;
 
 public class KafkaBackendImpl implements KafkaBackend {
     
+    private static final int DEFAULT_LINGER_MS = 0;
+    private static final int DEFAULT_BATCH_SIZE = 16384;
+    private static final String DEFAULT_COMPRESSION_TYPE = "none";
+    private static final String DEFAULT_ACKS = "1";
     private KafkaProducer<String, String> kafkaProducer;
     private static final CygnusLogger LOGGER = new CygnusLogger(KafkaBackendImpl.class);
     private final String zkEndpoint;
+    private ZkClient zookeeperClient;
+    private final Set<String> knownTopics;
     
     /**
      * Constructor.
@@ -44,26 +55,70 @@ public class KafkaBackendImpl implements KafkaBackend {
      * @param zookeperEndpoint
      */
     public KafkaBackendImpl(String brokerList, String zookeperEndpoint) {
+        this(brokerList, zookeperEndpoint, DEFAULT_LINGER_MS, DEFAULT_BATCH_SIZE, DEFAULT_COMPRESSION_TYPE,
+                DEFAULT_ACKS);
+    } // KafkaBackendImpl
+    
+    /**
+     * Constructor.
+     * @param brokerList
+     * @param zookeperEndpoint
+     * @param lingerMs Time (in milliseconds) the producer waits for more records before sending a request
+     * @param batchSize Maximum size (in bytes) of the per partition batches of records
+     * @param compressionType Compression applied to the batches of records (none, gzip, snappy or lz4)
+     * @param acks Number of acknowledgements required for considering a record sent (0, 1, all or -1)
+     */
+    public KafkaBackendImpl(String brokerList, String zookeperEndpoint, int lingerMs, int batchSize,
+            String compressionType, String acks) {
         LOGGER.debug("Creating persistence backend.");
         zkEndpoint = zookeperEndpoint;
+        zookeeperClient = null;
+        knownTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         Properties properties = new Properties();
         properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokerList);
         properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.LINGER_MS_CONFIG, Integer.toString(lingerMs));
+        properties.put(ProducerConfig.BATCH_SIZE_CONFIG, Integer.toString(batchSize));
+        properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, compressionType);
+        properties.put(ProducerConfig.ACKS_CONFIG, acks);
         kafkaProducer = new KafkaProducer<String, String>(properties);
     } // KafkaBackendImpl
+    
+    /**
+     * Gets the Zookeeper client, creating it if not yet created. The same client is used for all the topic
+     * operations.
+     * @return The Zookeeper client
+     */
+    private synchronized ZkClient getZookeeperClient() {
+        if (zookeeperClient == null) {
+            zookeeperClient = new ZkClient(zkEndpoint, 10000, 10000, ZKStringSerializer$.MODULE$);
+        } // if
+        
+        return zookeeperClient;
+    } // getZookeeperClient
 
     @Override
     public boolean topicExists(String topic) throws Exception {
+        if (knownTopics.contains(topic)) {
+            LOGGER.debug("Topic '" + topic + "' is cached, thus it exists.");
+            return true;
+        } // if
+        
         LOGGER.debug("Checking if topic '" + topic + "' already exists.");
-        ZkClient zookeeperClient = new ZkClient(zkEndpoint, 10000, 10000, ZKStringSerializer$.MODULE$);
-        return AdminUtils.topicExists(zookeeperClient, topic);
+        boolean exists = AdminUtils.topicExists(getZookeeperClient(), topic);
+        
+        if (exists) {
+            knownTopics.add(topic);
+        } // if
+        
+        return exists;
     } // topicExists
 
     @Override
     public void createTopic(String topic, int partitions, int replicationFactor) {
-        ZkClient zookeeperClient = new ZkClient(zkEndpoint, 10000, 10000, ZKStringSerializer$.MODULE$);
-        AdminUtils.createTopic(zookeeperClient, topic, partitions, replicationFactor, new Properties());
+        AdminUtils.createTopic(getZookeeperClient(), topic, partitions, replicationFactor, new Properties());
+        knownTopics.add(topic);
         LOGGER.debug("Creating topic: " + topic + " , partitions: " + partitions
                 + " , " + "replication factor: " + replicationFactor + ".");
     } // createTopic
@@ -71,9 +126,26 @@ public class KafkaBackendImpl implements KafkaBackend {
     @Override
     public void send(ProducerRecord<String, String> record) {
         kafkaProducer.send(record);
-        LOGGER.debug("Record: '" + record + "' sent to Kafka.");
+        LOGGER.debug("Record: '{}' sent to Kafka.", record);
     } // send
     
+    @Override
+    public Future<RecordMetadata> sendAsync(ProducerRecord<String, String> record) {
+        Future<RecordMetadata> future = kafkaProducer.send(record);
+        LOGGER.debug("Record: '{}' sent to Kafka, acknowledgement pending.", record);
+        return future;
+    } // sendAsync
+    
+    @Override
+    public synchronized void close() {
+        kafkaProducer.close();
+        
+        if (zookeeperClient != null) {
+            zookeeperClient.close();
+            zookeeperClient = null;
+        } // if
+    } // close
+    
     /**
      * Sets the Kafka producer.
      * @param producer
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.backends.mongo;
+
+import java.util.HashMap;
+
+/**
+ * Sample to be inserted in an aggregated collection. It may be numeric (max, min, sum, sum2 and number of samples)
+ * or string-based (occurrences of each value).
+ *
+ * @author frb
+ */
+public class AggregatedSample {
+
+    private final long recvTimeTs;
+    private final String entityId;
+    private final String entityType;
+    private final String attrName;
+    private final String attrType;
+    private final boolean isANumber;
+    private final double max;
+    private final double min;
+    private final double sum;
+    private final double sum2;
+    private final int numSamples;
+    private final HashMap<String, Integer> counts;
+
+    /**
+     * Constructor for numeric samples.
+     * @param recvTimeTs
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param max
+     * @param min
+     * @param sum
+     * @param sum2
+     * @param numSamples
+     */
+    public AggregatedSample(long recvTimeTs, String entityId, String entityType, String attrName, String attrType,
+            double max, double min, double sum, double sum2, int numSamples) {
+        this.recvTimeTs = recvTimeTs;
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.attrName = attrName;
+        this.attrType = attrType;
+        this.isANumber = true;
+        this.max = max;
+        this.min = min;
+        this.sum = sum;
+        this.sum2 = sum2;
+        this.numSamples = numSamples;
+        this.counts = null;
+    } // AggregatedSample
+
+    /**
+     * Constructor for string-based samples.
+     * @param recvTimeTs
+     * @param entityId
+     * @param entityType
+     * @param attrName
+     * @param attrType
+     * @param counts
+     */
+    public AggregatedSample(long recvTimeTs, String entityId, String entityType, String attrName, String attrType,
+            HashMap<String, Integer> counts) {
+        this.recvTimeTs = recvTimeTs;
+        this.entityId = entityId;
+        this.entityType = entityType;
+        this.attrName = attrName;
+        this.attrType = attrType;
+        this.isANumber = false;
+        this.max = 0;
+        this.min = 0;
+        this.sum = 0;
+        this.sum2 = 0;
+        this.counts = counts;
+        int n = 0;
+
+        for (Integer count : counts.values()) {
+            n += count;
+        } // for
+
+        this.numSamples = n;
+    } // AggregatedSample
+
+    public long getRecvTimeTs() {
+        return recvTimeTs;
+    } // getRecvTimeTs
+
+    public String getEntityId() {
+        return entityId;
+    } // getEntityId
+
+    public String getEntityType() {
+        return entityType;
+    } // getEntityType
+
+    public String getAttrName() {
+        return attrName;
+    } // getAttrName
+
+    public String getAttrType() {
+        return attrType;
+    } // getAttrType
+
+    public boolean isANumber() {
+        return isANumber;
+    } // isANumber
+
+    public double getMax() {
+        return max;
+    } // getMax
+
+    public double getMin() {
+        return min;
+    } // getMin
+
+    public double getSum() {
+        return sum;
+    } // getSum
+
+    public double getSum2() {
+        return sum2;
+    } // getSum2
+
+    public int getNumSamples() {
+        return numSamples;
+    } // getNumSamples
+
+    public HashMap<String, Integer> getCounts() {
+        return counts;
+    } // getCounts
+
+    @Override
+    public String toString() {
+        if (isANumber) {
+            return recvTimeTs + "," + entityId + "," + entityType + "," + attrName + "," + attrType + ",[" + max
+                    + "," + min + "," + sum + "," + sum2 + "," + numSamples + "]";
+        } else {
+            return recvTimeTs + "," + entityId + "," + entityType + "," + attrName + "," + attrType + ",["
+                    + counts.toString() + "," + numSamples + "]";
+        } // if else
+    } // toString
+
+} // AggregatedSample
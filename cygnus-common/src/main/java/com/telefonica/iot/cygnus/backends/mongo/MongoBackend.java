@@ -107,5 +107,19 @@ public interface MongoBackend {
             String entityType, String attrName, String attrType, HashMap<String, Integer> counts,
             boolean[] resolutions)
         throws Exception;
+    
+    /**
+     * Inserts a list of pre-aggregated samples, either numeric or string-based, in the related aggregated collection
+     * for the resolutions given. Those samples regarding the same aggregated document and offset are merged before
+     * writing, and all the writes are done in bulk.
+     * @param dbName
+     * @param collectionName
+     * @param samples
+     * @param resolutions
+     * @throws Exception
+     */
+    void insertContextDataAggregated(String dbName, String collectionName, ArrayList<AggregatedSample> samples,
+            boolean[] resolutions)
+        throws Exception;
 
 } // MongoBackend
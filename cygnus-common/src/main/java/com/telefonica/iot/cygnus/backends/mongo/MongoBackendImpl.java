@@ -24,9 +24,12 @@ import com.mongodb.MongoCredential;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.CreateCollectionOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.sinks.Enums.DataModel;
@@ -38,8 +41,11 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 import org.bson.Document;
@@ -56,6 +62,166 @@ public class MongoBackendImpl implements MongoBackend {
      */
     public enum Resolution { SECOND, MINUTE, HOUR, DAY, MONTH }
 
+    /**
+     * Aggregated document, containing the merged points to be updated. It is protected for testing purposes.
+     */
+    protected static class AggregatedDocument {
+
+        private final BasicDBObject prepopulateQuery;
+        private final Resolution resolution;
+        private final boolean isANumber;
+        private String attrType;
+        private final LinkedHashMap<Integer, AggregatedPoint> numericPoints;
+        private final LinkedHashMap<Integer, AggregatedPoint> stringPoints;
+
+        /**
+         * Constructor.
+         * @param prepopulateQuery
+         * @param resolution
+         * @param attrType
+         * @param isANumber
+         */
+        public AggregatedDocument(BasicDBObject prepopulateQuery, Resolution resolution, String attrType,
+                boolean isANumber) {
+            this.prepopulateQuery = prepopulateQuery;
+            this.resolution = resolution;
+            this.attrType = attrType;
+            this.isANumber = isANumber;
+            this.numericPoints = new LinkedHashMap<>();
+            this.stringPoints = new LinkedHashMap<>();
+        } // AggregatedDocument
+
+        /**
+         * Merges a sample within the point given by the offset.
+         * @param query
+         * @param calendar
+         * @param offset
+         * @param sample
+         */
+        public void merge(BasicDBObject query, GregorianCalendar calendar, int offset, AggregatedSample sample) {
+            LinkedHashMap<Integer, AggregatedPoint> points = sample.isANumber() ? numericPoints : stringPoints;
+            AggregatedPoint point = points.get(offset);
+
+            if (point == null) {
+                point = new AggregatedPoint(query, calendar);
+                points.put(offset, point);
+            } // if
+
+            point.merge(sample);
+            attrType = sample.getAttrType();
+        } // merge
+
+        public BasicDBObject getPrepopulateQuery() {
+            return prepopulateQuery;
+        } // getPrepopulateQuery
+
+        public Resolution getResolution() {
+            return resolution;
+        } // getResolution
+
+        public boolean isANumber() {
+            return isANumber;
+        } // isANumber
+
+        public String getAttrType() {
+            return attrType;
+        } // getAttrType
+
+        public LinkedHashMap<Integer, AggregatedPoint> getNumericPoints() {
+            return numericPoints;
+        } // getNumericPoints
+
+        public LinkedHashMap<Integer, AggregatedPoint> getStringPoints() {
+            return stringPoints;
+        } // getStringPoints
+
+    } // AggregatedDocument
+
+    /**
+     * Aggregated point, i.e. the merge of all the samples regarding the same offset within an aggregated document. It
+     * is protected for testing purposes.
+     */
+    protected static class AggregatedPoint {
+
+        private final BasicDBObject query;
+        private final GregorianCalendar calendar;
+        private double max;
+        private double min;
+        private double sum;
+        private double sum2;
+        private int numSamples;
+        private final HashMap<String, Integer> counts;
+
+        /**
+         * Constructor.
+         * @param query
+         * @param calendar
+         */
+        public AggregatedPoint(BasicDBObject query, GregorianCalendar calendar) {
+            this.query = query;
+            this.calendar = calendar;
+            this.max = Double.NEGATIVE_INFINITY;
+            this.min = Double.POSITIVE_INFINITY;
+            this.sum = 0;
+            this.sum2 = 0;
+            this.numSamples = 0;
+            this.counts = new HashMap<>();
+        } // AggregatedPoint
+
+        /**
+         * Merges a sample within this point.
+         * @param sample
+         */
+        public void merge(AggregatedSample sample) {
+            if (sample.isANumber()) {
+                max = Math.max(max, sample.getMax());
+                min = Math.min(min, sample.getMin());
+                sum += sample.getSum();
+                sum2 += sample.getSum2();
+            } else {
+                for (Entry<String, Integer> entry : sample.getCounts().entrySet()) {
+                    Integer count = counts.get(entry.getKey());
+                    counts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+                } // for
+            } // if else
+
+            numSamples += sample.getNumSamples();
+        } // merge
+
+        public BasicDBObject getQuery() {
+            return query;
+        } // getQuery
+
+        public GregorianCalendar getCalendar() {
+            return calendar;
+        } // getCalendar
+
+        public double getMax() {
+            return max;
+        } // getMax
+
+        public double getMin() {
+            return min;
+        } // getMin
+
+        public double getSum() {
+            return sum;
+        } // getSum
+
+        public double getSum2() {
+            return sum2;
+        } // getSum2
+
+        public int getNumSamples() {
+            return numSamples;
+        } // getNumSamples
+
+        public HashMap<String, Integer> getCounts() {
+            return counts;
+        } // getCounts
+
+    } // AggregatedPoint
+
     private MongoClient client;
     private final String mongoHosts;
     private final String mongoUsername;
@@ -261,6 +427,91 @@ public class MongoBackendImpl implements MongoBackend {
         } // if
     } // insertContextDataAggregated
     
+    @Override
+    public void insertContextDataAggregated(String dbName, String collectionName, ArrayList<AggregatedSample> samples,
+            boolean[] resolutions) throws Exception {
+        // Merge the samples regarding the same aggregated document and offset
+        Collection<AggregatedDocument> documents = mergeAggregatedSamples(samples, resolutions);
+
+        if (documents.isEmpty()) {
+            return;
+        } // if
+
+        // Build the prepopulations and the updates
+        List<WriteModel<Document>> prepopulations = new ArrayList<>();
+        List<WriteModel<Document>> updates = new ArrayList<>();
+
+        for (AggregatedDocument document : documents) {
+            prepopulations.add(new UpdateOneModel<Document>(document.getPrepopulateQuery(),
+                    buildInsertForPrepopulate(document.getAttrType(), document.getResolution(),
+                            document.isANumber()), new UpdateOptions().upsert(true)));
+
+            for (AggregatedPoint point : document.getNumericPoints().values()) {
+                updates.add(new UpdateOneModel<Document>(point.getQuery(), buildUpdateForUpdate(
+                        document.getAttrType(), point.getCalendar(), point.getMax(), point.getMin(), point.getSum(),
+                        point.getSum2(), point.getNumSamples())));
+            } // for
+
+            for (AggregatedPoint point : document.getStringPoints().values()) {
+                updates.add(new UpdateOneModel<Document>(point.getQuery(), buildUpdateForUpdate(
+                        document.getAttrType(), document.getResolution(), point.getCalendar(), point.getCounts())));
+            } // for
+        } // for
+
+        // Get database and collection
+        MongoDatabase db = getDatabase(dbName);
+        MongoCollection<Document> collection = db.getCollection(collectionName);
+
+        // Prepopulate if needed, and then do the updates; within each bulk write the order does not matter, but all
+        // the prepopulations must be done before the updates
+        LOGGER.debug("Prepopulating data, database=" + dbName + ", collection=" + collectionName
+                + ", prepopulations=" + prepopulations.size());
+        collection.bulkWrite(prepopulations, new BulkWriteOptions().ordered(false));
+        LOGGER.debug("Updating data, database=" + dbName + ", collection=" + collectionName
+                + ", updates=" + updates.size());
+        collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    } // insertContextDataAggregated
+
+    /**
+     * Merges the given samples by aggregated document and offset, for each one of the resolutions given. It is
+     * protected for testing purposes.
+     * @param samples
+     * @param resolutions
+     * @return The aggregated documents
+     */
+    protected Collection<AggregatedDocument> mergeAggregatedSamples(ArrayList<AggregatedSample> samples,
+            boolean[] resolutions) {
+        LinkedHashMap<String, AggregatedDocument> documents = new LinkedHashMap<>();
+        Resolution[] resolutionValues = Resolution.values();
+
+        for (AggregatedSample sample : samples) {
+            GregorianCalendar calendar = new GregorianCalendar();
+            calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(sample.getRecvTimeTs());
+
+            for (int i = 0; i < resolutionValues.length; i++) {
+                if (!resolutions[i]) {
+                    continue;
+                } // if
+
+                Resolution resolution = resolutionValues[i];
+                BasicDBObject query = buildQueryForInsertAggregated(calendar, sample.getEntityId(),
+                        sample.getEntityType(), sample.getAttrName(), resolution);
+                String key = query.get("_id").toString();
+                AggregatedDocument document = documents.get(key);
+
+                if (document == null) {
+                    document = new AggregatedDocument(query, resolution, sample.getAttrType(), sample.isANumber());
+                    documents.put(key, document);
+                } // if
+
+                document.merge(query, calendar, getOffset(calendar, resolution), sample);
+            } // for
+        } // for
+
+        return documents.values();
+    } // mergeAggregatedSamples
+    
     private void insertContextDataAggregatedForResoultion(String dbName, String collectionName,
             GregorianCalendar calendar, String entityId, String entityType, String attrName, String attrType,
             double max, double min, double sum, double sum2, int numSamples, Resolution resolution) {
@@ -448,6 +699,36 @@ public class MongoBackendImpl implements MongoBackend {
         return update;
     } // buildUpdateForUpdate
 
+    /**
+     * Builds the Json to be used as update for a string-based point, incrementing at once the occurrences of all the
+     * given values. It is protected for testing purposes.
+     * @param attrType
+     * @param resolution
+     * @param calendar
+     * @param counts
+     * @return
+     */
+    protected BasicDBObject buildUpdateForUpdate(String attrType, Resolution resolution, GregorianCalendar calendar,
+            HashMap<String, Integer> counts) {
+        BasicDBObject update = new BasicDBObject();
+        int offset = getOffset(calendar, resolution);
+        int modifiedOffset = offset - (resolution == Resolution.DAY || resolution == Resolution.MONTH ? 1 : 0);
+        int numSamples = 0;
+
+        for (Integer count : counts.values()) {
+            numSamples += count;
+        } // for
+
+        BasicDBObject inc = new BasicDBObject("points." + modifiedOffset + ".samples", numSamples);
+
+        for (Entry<String, Integer> entry : counts.entrySet()) {
+            inc.append("points." + modifiedOffset + ".occur." + entry.getKey(), entry.getValue());
+        } // for
+
+        update.append("$set", new BasicDBObject("attrType", attrType)).append("$inc", inc);
+        return update;
+    } // buildUpdateForUpdate
+
     /**
      * Gets a Mongo database.
      * @param dbName
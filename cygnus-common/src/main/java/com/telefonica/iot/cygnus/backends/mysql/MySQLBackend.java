@@ -21,6 +21,7 @@ package com.telefonica.iot.cygnus.backends.mysql;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import java.util.ArrayList;
 
 /**
  * Interface for those backends implementing the persistence in MySQL.
@@ -61,6 +62,20 @@ public interface MySQLBackend {
     void insertContextData(String dbName, String tableName, String fieldNames, String fieldValues)
         throws CygnusBadContextData, CygnusRuntimeError, CygnusPersistenceError;
     
+    /**
+     * Insert already processed context data into the given table within the given database, by means of a batched
+     * prepared statement.
+     * @param dbName
+     * @param tableName
+     * @param fieldNames
+     * @param rows
+     * @throws com.telefonica.iot.cygnus.errors.CygnusBadContextData
+     * @throws com.telefonica.iot.cygnus.errors.CygnusRuntimeError
+     * @throws com.telefonica.iot.cygnus.errors.CygnusPersistenceError
+     */
+    void insertContextDataPrepared(String dbName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws CygnusBadContextData, CygnusRuntimeError, CygnusPersistenceError;
+    
     /**
      * Caps records from the given table within the given database according to the given maximum number.
      * @param dbName
@@ -79,4 +94,44 @@ public interface MySQLBackend {
      */
     void expirateRecordsCache(long expirationTime) throws CygnusRuntimeError, CygnusPersistenceError;
     
+    /**
+     * Gets the cached tables.
+     * @return The cached tables, as pairs of database and table names
+     */
+    ArrayList<String[]> getCachedTables();
+    
+    /**
+     * Estimates the number of records within the given table within the given database, without counting them.
+     * @param dbName
+     * @param tableName
+     * @return The estimated number of records, or -1 if unknown
+     * @throws com.telefonica.iot.cygnus.errors.CygnusRuntimeError
+     * @throws com.telefonica.iot.cygnus.errors.CygnusPersistenceError
+     */
+    long estimateNumRecords(String dbName, String tableName) throws CygnusRuntimeError, CygnusPersistenceError;
+    
+    /**
+     * Gets the reception time of the oldest record within the given table within the given database.
+     * @param dbName
+     * @param tableName
+     * @return The reception time of the oldest record, or null if the table is empty
+     * @throws com.telefonica.iot.cygnus.errors.CygnusRuntimeError
+     * @throws com.telefonica.iot.cygnus.errors.CygnusPersistenceError
+     */
+    String getOldestRecvTime(String dbName, String tableName) throws CygnusRuntimeError, CygnusPersistenceError;
+    
+    /**
+     * Expirates, at most, the given number of records received before the given reception time within the given
+     * table within the given database.
+     * @param dbName
+     * @param tableName
+     * @param recvTime
+     * @param maxRecords
+     * @return The number of expirated records
+     * @throws com.telefonica.iot.cygnus.errors.CygnusRuntimeError
+     * @throws com.telefonica.iot.cygnus.errors.CygnusPersistenceError
+     */
+    long expirateRecords(String dbName, String tableName, String recvTime, long maxRecords)
+        throws CygnusRuntimeError, CygnusPersistenceError;
+    
 } // MySQLBackend
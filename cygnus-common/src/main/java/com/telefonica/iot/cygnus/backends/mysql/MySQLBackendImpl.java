@@ -18,22 +18,25 @@
 
 package com.telefonica.iot.cygnus.backends.mysql;
 
-import com.sun.rowset.CachedRowSetImpl;
+import com.telefonica.iot.cygnus.backends.jdbc.JDBCConnectionPool;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.metrics.CygnusMetrics;
 import com.telefonica.iot.cygnus.utils.CommonUtils;
 import java.sql.Statement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLTimeoutException;
-import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import javax.sql.rowset.CachedRowSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -46,8 +49,22 @@ public class MySQLBackendImpl implements MySQLBackend {
     
     private static final CygnusLogger LOGGER = new CygnusLogger(MySQLBackendImpl.class);
     private static final String DRIVER_NAME = "com.mysql.jdbc.Driver";
+    private static final int DEFAULT_MAX_CONNS = 50;
+    private static final int DEFAULT_MAX_CONNS_PER_DB = 10;
+    private static final long DEFAULT_MAX_WAIT = 10000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 300;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 30;
+    private static final int DEFAULT_DELETE_CHUNK_SIZE = 1000;
+    private static final String RECV_TIME_INDEX = "cygnus_recvTime_idx";
+    private static final int RECV_TIME_INDEX_PREFIX = 32;
+    private static final int ER_DUP_KEYNAME = 1061;
+    private static final int ER_BLOB_KEY_WITHOUT_LENGTH = 1170;
     private MySQLDriver driver;
     private final MySQLCache cache;
+    private final int deleteChunkSize;
+    private final boolean createRecvTimeIndex;
+    private final Set<String> indexedTables;
+    private CygnusMetrics deletionMetrics;
             
     /**
      * Constructor.
@@ -57,8 +74,34 @@ public class MySQLBackendImpl implements MySQLBackend {
      * @param mysqlPassword
      */
     public MySQLBackendImpl(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword) {
-        driver = new MySQLDriver(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword);
+        this(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, DEFAULT_MAX_CONNS, DEFAULT_MAX_CONNS_PER_DB,
+                DEFAULT_MAX_WAIT, DEFAULT_IDLE_TIMEOUT, DEFAULT_VALIDATION_INTERVAL, DEFAULT_DELETE_CHUNK_SIZE, false);
+    } // MySQLBackendImpl
+    
+    /**
+     * Constructor.
+     * @param mysqlHost
+     * @param mysqlPort
+     * @param mysqlUsername
+     * @param mysqlPassword
+     * @param maxConns Maximum number of pooled connections, considering all the databases
+     * @param maxConnsPerDb Maximum number of pooled connections per database
+     * @param maxWait Maximum time (in milliseconds) to wait for a pooled connection
+     * @param idleTimeout Time (in seconds) after which an idle pooled connection is closed
+     * @param validationInterval Time (in seconds) between validations of the idle pooled connections
+     * @param deleteChunkSize Maximum number of records deleted at once when capping or expirating
+     * @param createRecvTimeIndex True if an index on the reception time must be created when capping or expirating
+     */
+    public MySQLBackendImpl(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword,
+            int maxConns, int maxConnsPerDb, long maxWait, long idleTimeout, long validationInterval,
+            int deleteChunkSize, boolean createRecvTimeIndex) {
+        driver = new MySQLDriver(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword, maxConns, maxConnsPerDb,
+                maxWait, idleTimeout, validationInterval);
         cache = new MySQLCache();
+        this.deleteChunkSize = deleteChunkSize;
+        this.createRecvTimeIndex = createRecvTimeIndex;
+        indexedTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        deletionMetrics = new CygnusMetrics();
     } // MySQLBackendImpl
     
     /**
@@ -73,6 +116,13 @@ public class MySQLBackendImpl implements MySQLBackend {
         return driver;
     } // getDriver
     
+    /**
+     * Closes the backend, closing all the pooled connections.
+     */
+    public void close() {
+        driver.close();
+    } // close
+    
     @Override
     public void createDatabase(String dbName) throws CygnusRuntimeError, CygnusPersistenceError {
         if (cache.isCachedDb(dbName)) {
@@ -88,6 +138,7 @@ public class MySQLBackendImpl implements MySQLBackend {
         try {
             stmt = con.createStatement();
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
@@ -97,9 +148,9 @@ public class MySQLBackendImpl implements MySQLBackend {
             stmt.executeUpdate(query);
         } catch (SQLException e) {
             throw new CygnusPersistenceError("SQLException, " + e.getMessage());
-        } // try catch
-        
-        closeMySQLObjects(con, stmt);
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
         
         LOGGER.debug("Trying to add '" + dbName + "' to the cache after database creation");
         cache.addDb(dbName);
@@ -121,6 +172,7 @@ public class MySQLBackendImpl implements MySQLBackend {
         try {
             stmt = con.createStatement();
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
@@ -130,9 +182,9 @@ public class MySQLBackendImpl implements MySQLBackend {
             stmt.executeUpdate(query);
         } catch (SQLException e) {
             throw new CygnusPersistenceError("SQLException, " + e.getMessage());
-        } // try catch
-        
-        closeMySQLObjects(con, stmt);
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
         
         LOGGER.debug("Trying to add '" + tableName + "' to the cache after table creation");
         cache.addTable(dbName, tableName);
@@ -149,6 +201,7 @@ public class MySQLBackendImpl implements MySQLBackend {
         try {
             stmt = con.createStatement();
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
@@ -160,17 +213,85 @@ public class MySQLBackendImpl implements MySQLBackend {
             throw new CygnusPersistenceError("SQLTimeoutException, " + e.getMessage());
         } catch (SQLException e) {
             throw new CygnusBadContextData("SQLException, " + e.getMessage());
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
+        
+        LOGGER.debug("Trying to add '" + dbName + "' and '" + tableName + "' to the cache after insertion");
+        cache.addDb(dbName);
+        cache.addTable(dbName, tableName);
+    } // insertContextData
+    
+    @Override
+    public void insertContextDataPrepared(String dbName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws CygnusBadContextData, CygnusRuntimeError, CygnusPersistenceError {
+        if (rows.isEmpty()) {
+            LOGGER.debug("No rows to be inserted");
+            return;
+        } // if
+        
+        PreparedStatement stmt = null;
+        
+        // get a connection to the given database
+        Connection con = driver.getConnection(dbName);
+        String query = "insert into `" + tableName + "` " + fieldNames + " values "
+                + getPlaceholders(rows.get(0).size());
+        
+        try {
+            stmt = con.prepareStatement(query);
+        } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
+            throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
-        closeMySQLObjects(con, stmt);
+        try {
+            for (ArrayList<String> row : rows) {
+                for (int i = 0; i < row.size(); i++) {
+                    stmt.setString(i + 1, row.get(i));
+                } // for
+                
+                stmt.addBatch();
+            } // for
+            
+            LOGGER.debug("Executing MySQL batched query '" + query + "' (rows=" + rows.size() + ")");
+            stmt.executeBatch();
+        } catch (SQLTimeoutException e) {
+            throw new CygnusPersistenceError("SQLTimeoutException, " + e.getMessage());
+        } catch (SQLException e) {
+            throw new CygnusBadContextData("SQLException, " + e.getMessage());
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
         
         LOGGER.debug("Trying to add '" + dbName + "' and '" + tableName + "' to the cache after insertion");
         cache.addDb(dbName);
         cache.addTable(dbName, tableName);
-    } // insertContextData
+    } // insertContextDataPrepared
     
-    private CachedRowSet select(String dbName, String tableName, String selection)
-        throws CygnusRuntimeError, CygnusPersistenceError {
+    /**
+     * Gets the placeholders for a prepared insertion of a row with the given number of fields, i.e. "(?,?,...,?)".
+     * @param numFields
+     * @return The placeholders for a prepared insertion
+     */
+    private String getPlaceholders(int numFields) {
+        StringBuilder placeholders = new StringBuilder("(");
+        
+        for (int i = 0; i < numFields; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        } // for
+        
+        return placeholders.append(")").toString();
+    } // getPlaceholders
+    
+    /**
+     * Counts the records within the given table.
+     * @param dbName
+     * @param tableName
+     * @return The number of records within the given table
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private long count(String dbName, String tableName) throws CygnusRuntimeError, CygnusPersistenceError {
         Statement stmt = null;
         
         // get a connection to the given database
@@ -179,195 +300,320 @@ public class MySQLBackendImpl implements MySQLBackend {
         try {
             stmt = con.createStatement();
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
         try {
-            // to-do: refactor after implementing https://github.com/telefonicaid/fiware-cygnus/issues/1371
-            String query = "select " + selection + " from `" + tableName + "` order by recvTime";
+            String query = "select count(*) from `" + tableName + "`";
             LOGGER.debug("Executing MySQL query '" + query + "'");
             ResultSet rs = stmt.executeQuery(query);
-            // A CachedRowSet is "disconnected" from the source, thus can be used once the statement is closed
-            CachedRowSet crs = new CachedRowSetImpl();
-            crs.populate(rs);
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new CygnusPersistenceError("SQLException, " + e.getMessage());
+        } finally {
             closeMySQLObjects(con, stmt);
-            return crs;
+        } // try catch finally
+    } // count
+    
+    /**
+     * Gets the reception time of the record at the given position within the given table, once ordered by reception
+     * time.
+     * @param dbName
+     * @param tableName
+     * @param offset
+     * @return The reception time of the record at the given position, or null if there is no such a record
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private String selectRecvTime(String dbName, String tableName, long offset)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        PreparedStatement stmt = null;
+        
+        // get a connection to the given database
+        Connection con = driver.getConnection(dbName);
+        String query = "select recvTime from `" + tableName + "` order by recvTime limit 1 offset ?";
+            
+        try {
+            stmt = con.prepareStatement(query);
         } catch (SQLException e) {
             closeMySQLObjects(con, stmt);
-            throw new CygnusPersistenceError("SQLException, " + e.getMessage());
+            throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
-    } // select
+        
+        try {
+            stmt.setLong(1, offset);
+            LOGGER.debug("Executing MySQL query '" + query + "' (offset=" + offset + ")");
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } catch (SQLException e) {
+            throw new CygnusPersistenceError("SQLException, " + e.getMessage());
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
+    } // selectRecvTime
     
-    private void delete(String dbName, String tableName, String filters)
+    /**
+     * Deletes the records received before the given reception time within the given table. The deletion is done in
+     * chunks of limited size, each one in its own transaction, thus the table is never locked for a long time.
+     * @param dbName
+     * @param tableName
+     * @param recvTime
+     * @param capping True if capping, false if expirating
+     * @param maxRecords Maximum number of records to be deleted
+     * @return The number of deleted records
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private long delete(String dbName, String tableName, String recvTime, boolean capping, long maxRecords)
         throws CygnusRuntimeError, CygnusPersistenceError {
-        Statement stmt = null;
+        createRecvTimeIndex(dbName, tableName);
+        PreparedStatement stmt = null;
         
         // get a connection to the given database
         Connection con = driver.getConnection(dbName);
+        String query = "delete from `" + tableName + "` where recvTime < ? limit ?";
             
         try {
-            stmt = con.createStatement();
+            stmt = con.prepareStatement(query);
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
+        long startTime = System.currentTimeMillis();
+        long numDeleted = 0;
+        long numChunks = 0;
+        
         try {
-            String query = "delete from `" + tableName + "` where " + filters;
-            LOGGER.debug("Executing MySQL query '" + query + "'");
-            stmt.executeUpdate(query);
+            stmt.setString(1, recvTime);
+            int limit;
+            int numChunkDeleted;
+            
+            do {
+                limit = (int) Math.min(deleteChunkSize, maxRecords - numDeleted);
+                stmt.setInt(2, limit);
+                LOGGER.debug("Executing MySQL query '" + query + "' (recvTime=" + recvTime + ", limit=" + limit
+                        + ")");
+                numChunkDeleted = stmt.executeUpdate();
+                numDeleted += numChunkDeleted;
+                numChunks++;
+            } while (numChunkDeleted == limit && numDeleted < maxRecords);
         } catch (SQLException e) {
             throw new CygnusPersistenceError("SQLException, " + e.getMessage());
-        } // try catch
+        } finally {
+            closeMySQLObjects(con, stmt);
+            addDeletionMetrics(dbName, tableName, capping ? numDeleted : 0, capping ? 0 : numDeleted, numChunks,
+                    System.currentTimeMillis() - startTime);
+        } // try catch finally
         
-        closeMySQLObjects(con, stmt);
+        LOGGER.debug("Records deleted (dbName=" + dbName + ", tableName=" + tableName + ", records=" + numDeleted
+                + ", chunks=" + numChunks + ")");
+        return numDeleted;
     } // delete
     
-    @Override
-    public void capRecords(String dbName, String tableName, long maxRecords)
+    /**
+     * Creates an index on the reception time of the given table, if configured and not already created. The full
+     * column is indexed, thus the index serves both the deletions by reception time and the ordering by reception
+     * time (the oldest record) without a filesort. Tables created by former versions have a text recvTime column,
+     * which cannot be fully indexed; then, a prefix index is created, which serves the deletions but not the ordering
+     * (the column should be converted, e.g. 'alter table ... modify recvTime varchar(32)'). The table is remembered
+     * only once the index exists, thus the creation is retried if failed. Not being able to create the index is not
+     * an error, since the deletions work anyway (just slower).
+     * @param dbName
+     * @param tableName
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private void createRecvTimeIndex(String dbName, String tableName)
         throws CygnusRuntimeError, CygnusPersistenceError {
-        // Get the records within the table
-        CachedRowSet records = select(dbName, tableName, "*");
+        if (!createRecvTimeIndex || indexedTables.contains(dbName + "." + tableName)) {
+            return;
+        } // if
         
-        // Get the number of records
-        int numRecords = 0;
+        Statement stmt = null;
+        
+        // get a connection to the given database
+        Connection con = driver.getConnection(dbName);
         
         try {
-            if (records.last()) {
-                numRecords = records.getRow();
-                records.beforeFirst();
-            } // if
+            stmt = con.createStatement();
         } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
             throw new CygnusRuntimeError("SQLException, " + e.getMessage());
         } // try catch
         
-        // Get the reception times (they work as IDs) for future deletion
-        // to-do: refactor after implementing https://github.com/telefonicaid/fiware-cygnus/issues/1371
-        String filters = "";
+        String query = "create index `" + RECV_TIME_INDEX + "` on `" + tableName + "` (recvTime)";
         
         try {
-            if (numRecords > maxRecords) {
-                for (int i = 0; i < (numRecords - maxRecords); i++) {
-                    records.next();
-                    String recvTime = records.getString("recvTime");
-
-                    if (filters.isEmpty()) {
-                        filters += "recvTime='" + recvTime + "'";
-                    } else {
-                        filters += " or recvTime='" + recvTime + "'";
-                    } // if else
-                } // for
-            } // if
-            
-            records.close();
+            LOGGER.debug("Executing MySQL query '" + query + "'");
+            stmt.executeUpdate(query);
+            indexedTables.add(dbName + "." + tableName);
         } catch (SQLException e) {
-            throw new CygnusRuntimeError("SQLException, " + e.getMessage());
-        } // try catch
+            if (e.getErrorCode() == ER_DUP_KEYNAME) {
+                LOGGER.debug("'" + RECV_TIME_INDEX + "' already exists in '" + tableName + "'");
+                indexedTables.add(dbName + "." + tableName);
+            } else if (e.getErrorCode() == ER_BLOB_KEY_WITHOUT_LENGTH) {
+                // recvTime is a text column (table created by a former version), thus a prefix length is required
+                try {
+                    query = "create index `" + RECV_TIME_INDEX + "` on `" + tableName + "` (recvTime("
+                            + RECV_TIME_INDEX_PREFIX + "))";
+                    LOGGER.debug("Executing MySQL query '" + query + "'");
+                    stmt.executeUpdate(query);
+                    indexedTables.add(dbName + "." + tableName);
+                    LOGGER.warn("'" + RECV_TIME_INDEX + "' created in '" + tableName + "' on a prefix of recvTime, "
+                            + "since it is a text column; getting the oldest record will require a filesort");
+                } catch (SQLException e2) {
+                    LOGGER.warn("'" + RECV_TIME_INDEX + "' could not be created in '" + tableName + "'. Details="
+                            + e2.getMessage());
+                } // try catch
+            } else {
+                LOGGER.warn("'" + RECV_TIME_INDEX + "' could not be created in '" + tableName + "'. Details="
+                        + e.getMessage());
+            } // if else
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
+    } // createRecvTimeIndex
+    
+    private synchronized void addDeletionMetrics(String dbName, String tableName, long cappedRecords,
+            long expiredRecords, long deletions, long deletionTime) {
+        deletionMetrics.addTableMetrics(dbName + "." + tableName, cappedRecords, expiredRecords, deletions,
+                deletionTime);
+    } // addDeletionMetrics
+    
+    /**
+     * Moves the capping and expiration metrics accumulated since the last call into the given metrics.
+     * @param metrics
+     */
+    public synchronized void drainDeletionMetrics(CygnusMetrics metrics) {
+        metrics.merge(deletionMetrics);
+        deletionMetrics = new CygnusMetrics();
+    } // drainDeletionMetrics
+    
+    @Override
+    public void capRecords(String dbName, String tableName, long maxRecords)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        // Get the number of records
+        long numRecords = count(dbName, tableName);
+        
+        if (numRecords <= maxRecords) {
+            LOGGER.debug("No records to be deleted");
+            return;
+        } // if
+        
+        // Get the reception time of the oldest record to be kept; all the records received before it are deleted.
+        // Records sharing such a reception time are kept, thus never more than the exceeding records are deleted
+        String recvTime = selectRecvTime(dbName, tableName, numRecords - maxRecords);
         
-        if (filters.isEmpty()) {
+        if (recvTime == null) {
             LOGGER.debug("No records to be deleted");
         } else {
             LOGGER.debug("Records must be deleted (dbName=" + dbName + ",tableName=" + tableName
-                    + ", filters=" + filters + ")");
-            delete(dbName, tableName, filters);
+                    + ", recvTime<" + recvTime + ")");
+            delete(dbName, tableName, recvTime, true, Long.MAX_VALUE);
         } // if else
     } // capRecords
     
     @Override
     public void expirateRecordsCache(long expirationTime) throws CygnusRuntimeError, CygnusPersistenceError {
-        // Iterate on the cached resource IDs
-        cache.startDbIterator();
+        // Get the expiration reception time, truncated to seconds: reception times have a variable number of
+        // millisecond digits, thus they are only comparable as strings when differing in the seconds
+        long expirationTs = ((new Date().getTime() - (expirationTime * 1000)) / 1000) * 1000;
+        String recvTime = CommonUtils.getHumanReadable(expirationTs, true);
+        
+        // Iterate on a copy of the cached tables, since tables may be added while persisting
+        for (String[] table : cache.getTables()) {
+            String dbName = table[0];
+            String tableName = table[1];
+            LOGGER.debug("Records must be deleted (dbName=" + dbName + ",tableName=" + tableName
+                    + ", recvTime<" + recvTime + ")");
+            delete(dbName, tableName, recvTime, false, Long.MAX_VALUE);
+        } // for
+    } // expirateRecordsCache
+    
+    @Override
+    public ArrayList<String[]> getCachedTables() {
+        return cache.getTables();
+    } // getCachedTables
+    
+    @Override
+    public long estimateNumRecords(String dbName, String tableName)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        PreparedStatement stmt = null;
         
-        while (cache.hasNextDb()) {
-            String dbName = cache.nextDb();
-            cache.startTableIterator(dbName);
+        // get a connection to the given database
+        Connection con = driver.getConnection(dbName);
+        String query = "select table_rows from information_schema.tables where table_schema = ? and table_name = ?";
             
-            while (cache.hasNextTable(dbName)) {
-                String tableName = cache.nextTable(dbName);
-                
-                // Get the records within the table
-                CachedRowSet records = select(dbName, tableName, "*");
-                
-                // Get the number of records
-                int numRecords = 0;
-
-                try {
-                    if (records.last()) {
-                        numRecords = records.getRow();
-                        records.beforeFirst();
-                    } // if
-                } catch (SQLException e) {
-                    throw new CygnusRuntimeError("SQLException, " + e.getMessage());
-                } // try catch
-
-                // Get the reception times (they work as IDs) for future deletion
-                // to-do: refactor after implementing https://github.com/telefonicaid/fiware-cygnus/issues/1371
-                String filters = "";
-                
-                try {
-                    for (int i = 0; i < numRecords; i++) {
-                        records.next();
-                        String recvTime = records.getString("recvTime");
-                        long recordTime = CommonUtils.getMilliseconds(recvTime);
-                        long currentTime = new Date().getTime();
-
-                        if (recordTime < (currentTime - (expirationTime * 1000))) {
-                            if (filters.isEmpty()) {
-                                filters += "recvTime='" + recvTime + "'";
-                            } else {
-                                filters += " or recvTime='" + recvTime + "'";
-                            } // if else
-                        } else {
-                            break;
-                        } // if else
-                    } // for
-                } catch (SQLException e) {
-                    throw new CygnusRuntimeError("SQLException, " + e.getMessage());
-                } catch (ParseException e) {
-                    throw new CygnusRuntimeError("ParseException, " + e.getMessage());
-                } // try catch
-
-                if (filters.isEmpty()) {
-                    LOGGER.debug("No records to be deleted");
-                } else {
-                    LOGGER.debug("Records must be deleted (dbName=" + dbName + ",tableName=" + tableName
-                            + ", filters=" + filters + ")");
-                    delete(dbName, tableName, filters);
-                } // if else
-            } // while
-        } // while
-    } // expirateRecordsCache
+        try {
+            stmt = con.prepareStatement(query);
+        } catch (SQLException e) {
+            closeMySQLObjects(con, stmt);
+            throw new CygnusRuntimeError("SQLException, " + e.getMessage());
+        } // try catch
+        
+        try {
+            stmt.setString(1, dbName);
+            stmt.setString(2, tableName);
+            LOGGER.debug("Executing MySQL query '" + query + "' (dbName=" + dbName + ", tableName=" + tableName
+                    + ")");
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : -1;
+        } catch (SQLException e) {
+            throw new CygnusPersistenceError("SQLException, " + e.getMessage());
+        } finally {
+            closeMySQLObjects(con, stmt);
+        } // try catch finally
+    } // estimateNumRecords
+    
+    @Override
+    public String getOldestRecvTime(String dbName, String tableName)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        createRecvTimeIndex(dbName, tableName);
+        return selectRecvTime(dbName, tableName, 0);
+    } // getOldestRecvTime
+    
+    @Override
+    public long expirateRecords(String dbName, String tableName, String recvTime, long maxRecords)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        LOGGER.debug("Records must be deleted (dbName=" + dbName + ",tableName=" + tableName + ", recvTime<"
+                + recvTime + ", maxRecords=" + maxRecords + ")");
+        return delete(dbName, tableName, recvTime, false, maxRecords);
+    } // expirateRecords
     
     /**
-     * Close all the MySQL objects previously opened by doCreateTable and doQuery.
+     * Close all the MySQL objects previously opened by doCreateTable and doQuery. The statement is closed before the
+     * connection, since closing the connection returns it to the pool.
      * @param con
      * @param stmt
      * @return True if the MySQL objects have been closed, false otherwise.
      */
     private void closeMySQLObjects(Connection con, Statement stmt) throws CygnusRuntimeError {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("SQLException, " + e.getMessage());
-            } // try catch
-        } // if
-
-        if (stmt != null) {
-            try {
+        try {
+            if (stmt != null) {
                 stmt.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("SQLException, " + e.getMessage());
-            } // try catch
-        } // if
+            } // if
+        } catch (SQLException e) {
+            throw new CygnusRuntimeError("SQLException, " + e.getMessage());
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Error while returning a connection to the pool. Details=" + e.getMessage());
+                } // try catch
+            } // if
+        } // try catch finally
     } // closeMySQLObjects
     
     /**
      * This code has been extracted from MySQLBackendImpl.getConnection() for testing purposes. By extracting it into a
      * class then it can be mocked.
      */
-    protected class MySQLDriver {
+    protected class MySQLDriver implements JDBCConnectionPool.ConnectionFactory {
         
-        private final HashMap<String, Connection> connections;
+        private final JDBCConnectionPool pool;
         private final String mysqlHost;
         private final String mysqlPort;
         private final String mysqlUsername;
@@ -379,37 +625,32 @@ public class MySQLBackendImpl implements MySQLBackend {
          * @param mysqlPort
          * @param mysqlUsername
          * @param mysqlPassword
+         * @param maxConns
+         * @param maxConnsPerDb
+         * @param maxWait
+         * @param idleTimeout
+         * @param validationInterval
          */
-        public MySQLDriver(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword) {
-            connections = new HashMap<>();
+        public MySQLDriver(String mysqlHost, String mysqlPort, String mysqlUsername, String mysqlPassword,
+                int maxConns, int maxConnsPerDb, long maxWait, long idleTimeout, long validationInterval) {
             this.mysqlHost = mysqlHost;
             this.mysqlPort = mysqlPort;
             this.mysqlUsername = mysqlUsername;
             this.mysqlPassword = mysqlPassword;
+            pool = new JDBCConnectionPool("mysql://" + mysqlHost + ":" + mysqlPort, this, maxConns, maxConnsPerDb,
+                    maxWait, idleTimeout, validationInterval);
         } // MySQLDriver
         
         /**
-         * Gets a connection to the MySQL server.
+         * Gets a pooled connection to the MySQL server. It must be closed once used in order to return it to the
+         * pool.
          * @param dbName
          * @return
          * @throws CygnusPersistenceError
          */
         public Connection getConnection(String dbName) throws CygnusRuntimeError, CygnusPersistenceError {
             try {
-                // FIXME: the number of cached connections should be limited to a certain number; with such a limit
-                //        number, if a new connection is needed, the oldest one is closed
-                Connection con = connections.get(dbName);
-
-                if (con == null || !con.isValid(0)) {
-                    if (con != null) {
-                        con.close();
-                    } // if
-
-                    con = createConnection(dbName);
-                    connections.put(dbName, con);
-                } // if
-
-                return con;
+                return pool.getConnection(dbName);
             } catch (ClassNotFoundException e) {
                 throw new CygnusRuntimeError("ClassNotFoundException, " + e.getMessage());
             } catch (SQLException e) {
@@ -423,39 +664,45 @@ public class MySQLBackendImpl implements MySQLBackend {
          * @return True if the connection exists, false other wise
          */
         protected boolean isConnectionCreated(String dbName) {
-            return connections.containsKey(dbName);
+            return pool.isDbPooled(dbName);
         } // isConnectionCreated
         
         /**
-         * Gets the number of connections created.
-         * @return The number of connections created
+         * Gets the number of databases with pooled connections.
+         * @return The number of databases with pooled connections
          */
         protected int numConnectionsCreated() {
-            return connections.size();
+            return pool.getNumDbs();
         } // numConnectionsCreated
         
+        /**
+         * Closes the pool of connections.
+         */
+        public void close() {
+            pool.close();
+        } // close
+        
         /**
          * Creates a MySQL connection.
-         * @param host
-         * @param port
          * @param dbName
-         * @param user
-         * @param password
          * @return A MySQL connection
          * @throws ClassNotFoundException
          * @throws SQLException
          */
-        private Connection createConnection(String dbName) throws ClassNotFoundException, SQLException {
+        @Override
+        public Connection createConnection(String dbName) throws ClassNotFoundException, SQLException {
             // dynamically load the MySQL JDBC driver
             Class.forName(DRIVER_NAME);
 
-            // return a connection based on the MySQL JDBC driver
+            // return a connection based on the MySQL JDBC driver; prepared statements are cached per connection, and
+            // batches of prepared insertions are rewritten as a single multi-row insertion
             LOGGER.debug("Connecting to jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName + "?user="
                     + mysqlUsername + "&password=XXXXXXXXXX");
             return DriverManager.getConnection("jdbc:mysql://" + mysqlHost + ":" + mysqlPort + "/" + dbName
-                    + "?useUnicode=true&characterEncoding=UTF-8", mysqlUsername, mysqlPassword);
+                    + "?useUnicode=true&characterEncoding=UTF-8&cachePrepStmts=true&rewriteBatchedStatements=true",
+                    mysqlUsername, mysqlPassword);
         } // createConnection
         
     } // MySQLDriver
     
-} // MySQLBackendImpl
\ No newline at end of file
+} // MySQLBackendImpl
@@ -24,6 +24,11 @@ import java.util.Iterator;
 import java.util.Map.Entry;
 
 /**
+ * Cache of the databases and tables known to exist.
+ *
+ * Databases and tables are added by the threads persisting sub-batches while listed by the capping and expiration
+ * threads, thus all the methods are synchronized. The iterator methods share a single iteration, thus threads
+ * listing the tables must use getTables instead.
  *
  * @author frb
  */
@@ -50,7 +55,7 @@ public class MySQLCache {
      * @param dbName
      * @return True if the db is added, false otherwise. 
      */
-    public boolean addDb(String dbName) {
+    public synchronized boolean addDb(String dbName) {
         if (hierarchy.containsKey(dbName)) {
             LOGGER.debug("'" + dbName + "' not added to the cache, since already existing");
             return false;
@@ -67,7 +72,7 @@ public class MySQLCache {
      * @param tableName
      * @return True if the table is added, false otherwise
      */
-    public boolean addTable(String dbName, String tableName) {
+    public synchronized boolean addTable(String dbName, String tableName) {
         ArrayList<String> tables = hierarchy.get(dbName);
         
         if (tables != null) {
@@ -90,7 +95,7 @@ public class MySQLCache {
      * @param dbName
      * @return True if the db name is cached, false otherwise.
      */
-    public boolean isCachedDb(String dbName) {
+    public synchronized boolean isCachedDb(String dbName) {
         return hierarchy.containsKey(dbName);
     } // isCachedDb
     
@@ -100,7 +105,7 @@ public class MySQLCache {
      * @param tableName
      * @return True if the table name is cached, false otherwise.
      */
-    public boolean isCachedTable(String dbName, String tableName) {
+    public synchronized boolean isCachedTable(String dbName, String tableName) {
         ArrayList<String> tables = hierarchy.get(dbName);
         
         if (tables == null) {
@@ -113,7 +118,7 @@ public class MySQLCache {
     /**
      * Starts an interator for all the databases.
      */
-    public void startDbIterator() {
+    public synchronized void startDbIterator() {
         dbEntries = hierarchy.entrySet().iterator();
     } // startDbIterator
     
@@ -121,7 +126,7 @@ public class MySQLCache {
      * Checks if there is a next database for iteration.
      * @return True if there is a next database for iteration, false otherwise.
      */
-    public boolean hasNextDb() {
+    public synchronized boolean hasNextDb() {
         if (dbEntries.hasNext()) {
             nextDbEntry = (Entry) dbEntries.next();
             return true;
@@ -134,7 +139,7 @@ public class MySQLCache {
      * Gets the next database for iteration.
      * @return The next database for iteration.
      */
-    public String nextDb() {
+    public synchronized String nextDb() {
         return (String) nextDbEntry.getKey();
     } // nextDb
     
@@ -142,7 +147,7 @@ public class MySQLCache {
      * Starts an iterator for all the tables within the given database.
      * @param dbName
      */
-    public void startTableIterator(String dbName) {
+    public synchronized void startTableIterator(String dbName) {
         tableEntries.put(dbName, hierarchy.get(dbName).iterator());
     } // startTableIterator
     
@@ -151,7 +156,7 @@ public class MySQLCache {
      * @param dbName
      * @return True if there is a next table for iteration, false otherwise.
      */
-    public boolean hasNextTable(String dbName) {
+    public synchronized boolean hasNextTable(String dbName) {
         Iterator it = tableEntries.get(dbName);
         
         if (it.hasNext()) {
@@ -167,8 +172,24 @@ public class MySQLCache {
      * @param dbName
      * @return The next table for iteration.
      */
-    public String nextTable(String dbName) {
+    public synchronized String nextTable(String dbName) {
         return (String) nextTableEntry.get(dbName);
     } // nextTable
     
+    /**
+     * Gets a copy of all the cached tables, thus it can be iterated while tables are added.
+     * @return A list of [dbName, tableName] pairs
+     */
+    public synchronized ArrayList<String[]> getTables() {
+        ArrayList<String[]> tables = new ArrayList<>();
+        
+        for (Entry<String, ArrayList<String>> entry : hierarchy.entrySet()) {
+            for (String tableName : entry.getValue()) {
+                tables.add(new String[] {entry.getKey(), tableName});
+            } // for
+        } // for
+        
+        return tables;
+    } // getTables
+    
 } // MySQLCache
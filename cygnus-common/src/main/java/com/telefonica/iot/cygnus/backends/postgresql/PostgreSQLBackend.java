@@ -18,6 +18,8 @@
 
 package com.telefonica.iot.cygnus.backends.postgresql;
 
+import java.util.ArrayList;
+
 /**
  * Interface for those backends implementing the persistence in PostgreSQL.
  *
@@ -50,5 +52,29 @@ public interface PostgreSQLBackend {
      * @throws Exception
      */
     void insertContextData(String schemaName, String tableName, String fieldNames, String fieldValues) throws Exception;
+    
+    /**
+     * Insert already processed context data into the given table within the given database, by means of a batched
+     * prepared statement.
+     * @param schemaName
+     * @param tableName
+     * @param fieldNames
+     * @param rows
+     * @throws Exception
+     */
+    void insertContextDataPrepared(String schemaName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws Exception;
+    
+    /**
+     * Insert already processed context data into the given table within the given database, by means of a
+     * COPY FROM STDIN bulk load.
+     * @param schemaName
+     * @param tableName
+     * @param fieldNames
+     * @param rows
+     * @throws Exception
+     */
+    void insertContextDataCopy(String schemaName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws Exception;
 
 } // PostgreSQLBackend
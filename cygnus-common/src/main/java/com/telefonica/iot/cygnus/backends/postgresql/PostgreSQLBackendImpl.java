@@ -18,17 +18,22 @@
 
 package com.telefonica.iot.cygnus.backends.postgresql;
 
+import com.telefonica.iot.cygnus.backends.jdbc.JDBCConnectionPool;
 import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.nio.charset.StandardCharsets;
 import java.sql.Statement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.SQLTimeoutException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.Properties;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 
 /**
  *
@@ -40,6 +45,11 @@ import java.util.Properties;
 public class PostgreSQLBackendImpl implements PostgreSQLBackend {
 
     private static final String DRIVER_NAME = "org.postgresql.Driver";
+    private static final int DEFAULT_MAX_CONNS = 50;
+    private static final int DEFAULT_MAX_CONNS_PER_DB = 10;
+    private static final long DEFAULT_MAX_WAIT = 10000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 300;
+    private static final long DEFAULT_VALIDATION_INTERVAL = 30;
     private PostgreSQLDriver driver;
     private static final CygnusLogger LOGGER = new CygnusLogger(PostgreSQLBackendImpl.class);
     private PostgreSQLCache cache = null;
@@ -55,13 +65,35 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
      */
     public PostgreSQLBackendImpl(String postgresqlHost, String postgresqlPort, String postgresqlDatabase,
             String postgresqlUsername, String postgresqlPassword, boolean enableCache) {
+        this(postgresqlHost, postgresqlPort, postgresqlDatabase, postgresqlUsername, postgresqlPassword, enableCache,
+                DEFAULT_MAX_CONNS, DEFAULT_MAX_CONNS_PER_DB, DEFAULT_MAX_WAIT, DEFAULT_IDLE_TIMEOUT,
+                DEFAULT_VALIDATION_INTERVAL);
+    } // PostgreSQLBackendImpl
+
+    /**
+     * Constructor.
+     * @param postgresqlHost
+     * @param postgresqlPort
+     * @param postgresqlDatabase
+     * @param postgresqlUsername
+     * @param postgresqlPassword
+     * @param enableCache
+     * @param maxConns Maximum number of pooled connections, considering all the schemas
+     * @param maxConnsPerDb Maximum number of pooled connections per schema
+     * @param maxWait Maximum time (in milliseconds) to wait for a pooled connection
+     * @param idleTimeout Time (in seconds) after which an idle pooled connection is closed
+     * @param validationInterval Time (in seconds) between validations of the idle pooled connections
+     */
+    public PostgreSQLBackendImpl(String postgresqlHost, String postgresqlPort, String postgresqlDatabase,
+            String postgresqlUsername, String postgresqlPassword, boolean enableCache, int maxConns,
+            int maxConnsPerDb, long maxWait, long idleTimeout, long validationInterval) {
         if (enableCache) {
             cache = new PostgreSQLCache();
             LOGGER.info("PostgreSQL cache created succesfully");
         } // if
         
         driver = new PostgreSQLDriver(postgresqlHost, postgresqlPort, postgresqlDatabase, postgresqlUsername,
-                postgresqlPassword);
+                postgresqlPassword, maxConns, maxConnsPerDb, maxWait, idleTimeout, validationInterval);
     } // PostgreSQLBackendImpl
 
     /**
@@ -76,6 +108,13 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
         return driver;
     } // getDriver
 
+    /**
+     * Closes the backend, closing all the pooled connections.
+     */
+    public void close() {
+        driver.close();
+    } // close
+
     /**
      * Creates a schema given its name, if not exists.
      * @param schemaName
@@ -83,33 +122,46 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
      */
     @Override
     public void createSchema(String schemaName) throws Exception {
-        boolean schemaCached = cache.isSchemaInCache(schemaName);     
+        if (!cache.isSchemaInCache(schemaName)) {
+            doCreateSchema(schemaName);
+        } // if
+    } // createSchema
+    
+    /**
+     * Creates a schema, unless created by another thread in the meantime. Creations are serialized, since concurrent
+     * "IF NOT EXISTS" creations of the same schema may fail in PostgreSQL.
+     * @param schemaName
+     * @throws Exception
+     */
+    private synchronized void doCreateSchema(String schemaName) throws Exception {
+        if (cache.isSchemaInCache(schemaName)) {
+            return;
+        } // if
         
-        if (!schemaCached) {
-            Statement stmt = null;
-
-            // get a connection to an empty database
-            Connection con = driver.getConnection("");
+        Statement stmt = null;
 
-            try {
-                stmt = con.createStatement();
-            } catch (Exception e) {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // try catch
+        // get a connection to an empty database
+        Connection con = driver.getConnection("");
 
-            try {
-                String query = "CREATE SCHEMA IF NOT EXISTS " + schemaName;
-                LOGGER.debug("Executing SQL query '" + query + "'");
-                stmt.executeUpdate(query);
-            } catch (Exception e) {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // try catch
+        try {
+            stmt = con.createStatement();
+        } catch (Exception e) {
+            closePostgreSQLObjects(con, stmt);
+            throw new CygnusRuntimeError(e.getMessage());
+        } // try catch
 
+        try {
+            String query = "CREATE SCHEMA IF NOT EXISTS " + schemaName;
+            LOGGER.debug("Executing SQL query '" + query + "'");
+            stmt.executeUpdate(query);
+        } catch (Exception e) {
+            throw new CygnusRuntimeError(e.getMessage());
+        } finally {
             closePostgreSQLObjects(con, stmt);
-            cache.persistSchemaInCache(schemaName);
-        } // if
-        
-    } // createSchema
+        } // try catch finally
+
+        cache.persistSchemaInCache(schemaName);
+    } // doCreateSchema
 
     /**
      * Creates a table, given its name, if not exists in the given schema.
@@ -120,33 +172,49 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
      */
     @Override
     public void createTable(String schemaName, String tableName, String typedFieldNames) throws Exception {
-        boolean tableInSchema = cache.isTableInCachedSchema(schemaName, tableName);
+        if (!cache.isTableInCachedSchema(schemaName, tableName)) {
+            doCreateTable(schemaName, tableName, typedFieldNames);
+        } // if
+    } // createTable
+    
+    /**
+     * Creates a table, unless created by another thread in the meantime. Creations are serialized, since concurrent
+     * "IF NOT EXISTS" creations of the same table may fail in PostgreSQL.
+     * @param schemaName
+     * @param tableName
+     * @param typedFieldNames
+     * @throws Exception
+     */
+    private synchronized void doCreateTable(String schemaName, String tableName, String typedFieldNames)
+        throws Exception {
+        if (cache.isTableInCachedSchema(schemaName, tableName)) {
+            return;
+        } // if
         
-        if (!tableInSchema) {
-            Statement stmt = null;
-
-            // get a connection to the given schema
-            Connection con = driver.getConnection(schemaName);
+        Statement stmt = null;
 
-            try {
-                stmt = con.createStatement();
-            } catch (Exception e) {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // try catch
+        // get a connection to the given schema
+        Connection con = driver.getConnection(schemaName);
 
-            try {
-                String query = "CREATE TABLE IF NOT EXISTS " + schemaName + "." + tableName + " " + typedFieldNames;
-                LOGGER.debug("Executing SQL query '" + query + "'");
-                stmt.executeUpdate(query);
-            } catch (Exception e) {
-                throw new CygnusRuntimeError(e.getMessage());
-            } // try catch
+        try {
+            stmt = con.createStatement();
+        } catch (Exception e) {
+            closePostgreSQLObjects(con, stmt);
+            throw new CygnusRuntimeError(e.getMessage());
+        } // try catch
 
+        try {
+            String query = "CREATE TABLE IF NOT EXISTS " + schemaName + "." + tableName + " " + typedFieldNames;
+            LOGGER.debug("Executing SQL query '" + query + "'");
+            stmt.executeUpdate(query);
+        } catch (Exception e) {
+            throw new CygnusRuntimeError(e.getMessage());
+        } finally {
             closePostgreSQLObjects(con, stmt);
-            cache.persistTableInCache(schemaName, tableName);
-        } // if
-        
-    } // createTable
+        } // try catch finally
+
+        cache.persistTableInCache(schemaName, tableName);
+    } // doCreateTable
 
     @Override
     public void insertContextData(String schemaName, String tableName, String fieldNames, String fieldValues)
@@ -159,6 +227,7 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
         try {
             stmt = con.createStatement();
         } catch (Exception e) {
+            closePostgreSQLObjects(con, stmt);
             throw new CygnusRuntimeError(e.getMessage());
         } // try catch
 
@@ -170,41 +239,163 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
             throw new CygnusPersistenceError(e.getMessage());
         } catch (SQLException e) {
             throw new CygnusBadContextData(e.getMessage());
-        } // try catch
+        } finally {
+            closePostgreSQLObjects(con, stmt);
+        } // try catch finally
     } // insertContextData
+    
+    @Override
+    public void insertContextDataPrepared(String schemaName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws Exception {
+        if (rows.isEmpty()) {
+            LOGGER.debug("No rows to be inserted");
+            return;
+        } // if
+        
+        PreparedStatement stmt = null;
+        
+        // get a connection to the given database
+        Connection con = driver.getConnection(schemaName);
+        String query = "INSERT INTO " + schemaName + "." + tableName + " " + fieldNames + " VALUES "
+                + getPlaceholders(rows.get(0).size());
+        
+        try {
+            stmt = con.prepareStatement(query);
+        } catch (Exception e) {
+            closePostgreSQLObjects(con, stmt);
+            throw new CygnusRuntimeError(e.getMessage());
+        } // try catch
+        
+        try {
+            for (ArrayList<String> row : rows) {
+                for (int i = 0; i < row.size(); i++) {
+                    stmt.setString(i + 1, row.get(i));
+                } // for
+                
+                stmt.addBatch();
+            } // for
+            
+            LOGGER.debug("Executing SQL batched query '" + query + "' (rows=" + rows.size() + ")");
+            stmt.executeBatch();
+        } catch (SQLTimeoutException e) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } catch (SQLException e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } finally {
+            closePostgreSQLObjects(con, stmt);
+        } // try catch finally
+    } // insertContextDataPrepared
+    
+    @Override
+    public void insertContextDataCopy(String schemaName, String tableName, String fieldNames,
+            ArrayList<ArrayList<String>> rows) throws Exception {
+        if (rows.isEmpty()) {
+            LOGGER.debug("No rows to be inserted");
+            return;
+        } // if
+        
+        CopyIn copyIn = null;
+        
+        // get a connection to the given database
+        Connection con = driver.getConnection(schemaName);
+        String query = "COPY " + schemaName + "." + tableName + " " + fieldNames + " FROM STDIN WITH CSV";
+        
+        try {
+            LOGGER.debug("Executing SQL copy '" + query + "' (rows=" + rows.size() + ")");
+            copyIn = con.unwrap(PGConnection.class).getCopyAPI().copyIn(query);
+            
+            // the rows are streamed one by one, the driver takes care of buffering them
+            for (ArrayList<String> row : rows) {
+                byte[] line = getCSVLine(row).getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(line, 0, line.length);
+            } // for
+            
+            copyIn.endCopy();
+        } catch (SQLTimeoutException e) {
+            throw new CygnusPersistenceError(e.getMessage());
+        } catch (SQLException e) {
+            throw new CygnusBadContextData(e.getMessage());
+        } finally {
+            if (copyIn != null && copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                } catch (SQLException e) {
+                    LOGGER.debug("Error while cancelling a copy. Details=" + e.getMessage());
+                } // try catch
+            } // if
+            
+            closePostgreSQLObjects(con, null);
+        } // try catch finally
+    } // insertContextDataCopy
+    
+    /**
+     * Gets a CSV line, ending with a line break, for the given row. All the fields are quoted, thus empty values are
+     * loaded as empty strings instead of nulls, as when inserting literals. It is protected since it is only used by
+     * the tests.
+     * @param row
+     * @return A CSV line for the given row
+     */
+    protected String getCSVLine(ArrayList<String> row) {
+        StringBuilder line = new StringBuilder();
+        
+        for (int i = 0; i < row.size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            } // if
+            
+            line.append('"').append(String.valueOf(row.get(i)).replace("\"", "\"\"")).append('"');
+        } // for
+        
+        return line.append('\n').toString();
+    } // getCSVLine
+    
+    /**
+     * Gets the placeholders for a prepared insertion of a row with the given number of fields, i.e. "(?,?,...,?)".
+     * @param numFields
+     * @return The placeholders for a prepared insertion
+     */
+    private String getPlaceholders(int numFields) {
+        StringBuilder placeholders = new StringBuilder("(");
+        
+        for (int i = 0; i < numFields; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        } // for
+        
+        return placeholders.append(")").toString();
+    } // getPlaceholders
 
     /**
-     * Close all the PostgreSQL objects previously opened by createSchema and createTable.
+     * Close all the PostgreSQL objects previously opened by createSchema, createTable and insertContextData. The
+     * statement is closed before the connection, since closing the connection returns it to the pool.
      * @param con
      * @param stmt
      * @return True if the PostgreSQL objects have been closed, false otherwise.
      */
-    private void closePostgreSQLObjects(Connection con, Statement stmt) throws Exception {
-        if (con != null) {
-            try {
-                con.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive connection could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
-
-        if (stmt != null) {
-            try {
+    private void closePostgreSQLObjects(Connection con, Statement stmt) throws CygnusRuntimeError {
+        try {
+            if (stmt != null) {
                 stmt.close();
-            } catch (SQLException e) {
-                throw new CygnusRuntimeError("The Hive statement could not be closed. Details="
-                        + e.getMessage());
-            } // try catch
-        } // if
+            } // if
+        } catch (SQLException e) {
+            throw new CygnusRuntimeError("The PostgreSQL statement could not be closed. Details="
+                    + e.getMessage());
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Error while returning a connection to the pool. Details=" + e.getMessage());
+                } // try catch
+            } // if
+        } // try catch finally
     } // closePostgreSQLObjects
 
     /**
      * Driver class.
      */
-    protected class PostgreSQLDriver {
+    protected class PostgreSQLDriver implements JDBCConnectionPool.ConnectionFactory {
 
-        private final HashMap<String, Connection> connections;
+        private final JDBCConnectionPool pool;
         private final String postgresqlHost;
         private final String postgresqlPort;
         private final String postgresqlDatabase;
@@ -218,39 +409,34 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
          * @param postgresqlDatabase
          * @param postgresqlUsername
          * @param postgresqlPassword
+         * @param maxConns
+         * @param maxConnsPerDb
+         * @param maxWait
+         * @param idleTimeout
+         * @param validationInterval
          */
-        public PostgreSQLDriver(String postgresqlHost, String postgresqlPort, String postgresqlDatabase, 
-                String postgresqlUsername, String postgresqlPassword) {
-            connections = new HashMap<String, Connection>();
+        public PostgreSQLDriver(String postgresqlHost, String postgresqlPort, String postgresqlDatabase,
+                String postgresqlUsername, String postgresqlPassword, int maxConns, int maxConnsPerDb, long maxWait,
+                long idleTimeout, long validationInterval) {
             this.postgresqlHost = postgresqlHost;
             this.postgresqlPort = postgresqlPort;
             this.postgresqlDatabase = postgresqlDatabase;
             this.postgresqlUsername = postgresqlUsername;
             this.postgresqlPassword = postgresqlPassword;
+            pool = new JDBCConnectionPool("postgresql://" + postgresqlHost + ":" + postgresqlPort + "/"
+                    + postgresqlDatabase, this, maxConns, maxConnsPerDb, maxWait, idleTimeout, validationInterval);
         } // PostgreSQLDriver
 
         /**
-         * Gets a connection to the PostgreSQL server.
+         * Gets a pooled connection to the PostgreSQL server. It must be closed once used in order to return it to the
+         * pool.
          * @param schemaName
          * @return
          * @throws Exception
          */
         public Connection getConnection(String schemaName) throws Exception {
             try {
-                // FIXME: the number of cached connections should be limited to a certain number; with such a limit
-                //        number, if a new connection is needed, the oldest one is closed
-                Connection con = connections.get(schemaName);
-
-                if (con == null || !con.isValid(0)) {
-                    if (con != null) {
-                        con.close();
-                    } // if
-
-                    con = createConnection(schemaName);
-                    connections.put(schemaName, con);
-                } // if
-
-                return con;
+                return pool.getConnection(schemaName);
             } catch (ClassNotFoundException e) {
                 throw new CygnusPersistenceError(e.getMessage());
             } catch (SQLException e) {
@@ -264,25 +450,33 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
          * @return True if the connection exists, false otherwise
          */
         protected boolean isConnectionCreated(String schemaName) {
-            return connections.containsKey(schemaName);
+            return pool.isDbPooled(schemaName);
         } // isConnectionCreated
 
         /**
-         * Gets the number of connections created.
-         * @return The number of connections created
+         * Gets the number of schemas with pooled connections.
+         * @return The number of schemas with pooled connections
          */
         protected int numConnectionsCreated() {
-            return connections.size();
+            return pool.getNumDbs();
         } // numConnectionsCreated
 
+        /**
+         * Closes the pool of connections.
+         */
+        public void close() {
+            pool.close();
+        } // close
+
         /**
          * Creates a PostgreSQL connection.
          * @param schemaName
          * @return A PostgreSQL connection
-         * @throws Exception
+         * @throws ClassNotFoundException
+         * @throws SQLException
          */
-        private Connection createConnection(String schemaName)
-            throws Exception {
+        @Override
+        public Connection createConnection(String schemaName) throws ClassNotFoundException, SQLException {
             // dynamically load the PostgreSQL JDBC driver
             Class.forName(DRIVER_NAME);
 
@@ -294,6 +488,10 @@ public class PostgreSQLBackendImpl implements PostgreSQLBackend {
             props.setProperty("password", this.postgresqlPassword);
             props.setProperty("sslmode", "disable");
             props.setProperty("charSet", "UTF-8");
+            
+            // prepared statements bind all the values as strings, thus let the server infer their actual types, as
+            // it does with the literals of the non prepared insertions
+            props.setProperty("stringtype", "unspecified");
 
             LOGGER.debug("Connecting to " + url);
             return DriverManager.getConnection(url, props);
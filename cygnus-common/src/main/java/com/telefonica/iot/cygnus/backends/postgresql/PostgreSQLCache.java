@@ -23,6 +23,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
+ * Cache of the schemas and tables known to exist.
+ *
+ * Schemas and tables are added by the threads persisting sub-batches at the same time, thus all the methods are
+ * synchronized.
  *
  * @author pcoello25
  */
@@ -31,11 +35,11 @@ public class PostgreSQLCache {
     private static final CygnusLogger LOGGER = new CygnusLogger(PostgreSQLCache.class);
     private HashMap<String, ArrayList<String>> cache = new HashMap<String, ArrayList<String>>();
     
-    public HashMap<String, ArrayList<String>> getCache() {
+    public synchronized HashMap<String, ArrayList<String>> getCache() {
         return cache;
     } // getCache
     
-    public void setCache(HashMap<String, ArrayList<String>> cache) {
+    public synchronized void setCache(HashMap<String, ArrayList<String>> cache) {
         this.cache = cache;
     } // setCache
     
@@ -44,7 +48,7 @@ public class PostgreSQLCache {
      * @param schemaName
      * @return True if the schema is in the cache, otherwise false
      */
-    public boolean isSchemaInCache(String schemaName) {
+    public synchronized boolean isSchemaInCache(String schemaName) {
         LOGGER.debug("Checking if the schema (" + schemaName + ") exists");
         if (!cache.isEmpty()) {
             for (String schema : cache.keySet()) {
@@ -69,7 +73,7 @@ public class PostgreSQLCache {
      * @param tableName
      * @return True if the table within the shema is in the cache, otherwise false
      */
-    public boolean isTableInCachedSchema(String schemaName, String tableName) {
+    public synchronized boolean isTableInCachedSchema(String schemaName, String tableName) {
         if (!cache.isEmpty()) {
             
             for (String schema : cache.keySet()) {
@@ -102,7 +106,12 @@ public class PostgreSQLCache {
      * Adds a schema to the cache.
      * @param schemaName
      */
-    public void persistSchemaInCache(String schemaName) {
+    public synchronized void persistSchemaInCache(String schemaName) {
+        // another thread may have already added the schema and its tables
+        if (cache.containsKey(schemaName)) {
+            return;
+        } // if
+        
         cache.put(schemaName, new ArrayList<String>());
         LOGGER.debug("Schema (" + schemaName + ") added to cache");
     } // persistSchemaInCache
@@ -112,10 +121,16 @@ public class PostgreSQLCache {
      * @param schemaName
      * @param tableName
      */
-    public void persistTableInCache(String schemaName, String tableName) {
+    public synchronized void persistTableInCache(String schemaName, String tableName) {
         for (String schema : cache.keySet()) {
             if (schema.equals(schemaName)) {
                 ArrayList<String> tableNames = cache.get(schemaName);
+                
+                // another thread may have already added the table
+                if (tableNames.contains(tableName)) {
+                    return;
+                } // if
+                
                 tableNames.add(tableName);
                 cache.put(schemaName, tableNames);
                 LOGGER.debug("Table (" + tableName + ") added to schema (" + schemaName + ") in cache");
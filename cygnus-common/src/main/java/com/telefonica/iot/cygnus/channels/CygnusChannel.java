@@ -37,6 +37,12 @@ public interface CygnusChannel {
      */
     long getNumEvents();
     
+    /**
+     * Gets the maximum number of events the channel can hold.
+     * @return The maximum number of events the channel can hold
+     */
+    long getCapacity();
+    
     /**
      * Gets the number of put operations on the channel that went OK.
      * @return The number of put operations on the channel that went OK
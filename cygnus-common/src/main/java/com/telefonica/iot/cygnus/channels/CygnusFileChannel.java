@@ -70,6 +70,11 @@ public class CygnusFileChannel extends FileChannel implements CygnusChannel {
         return channelCounterRef.getChannelSize();
     } // getNumEvents
     
+    @Override
+    public long getCapacity() {
+        return channelCounterRef.getChannelCapacity();
+    } // getCapacity
+    
     @Override
     public long getNumPutsOK() {
         return channelCounterRef.getEventPutSuccessCount()
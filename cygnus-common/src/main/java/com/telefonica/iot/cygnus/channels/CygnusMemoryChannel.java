@@ -20,12 +20,13 @@ package com.telefonica.iot.cygnus.channels;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
 import java.lang.reflect.Field;
 import java.util.Date;
+import org.apache.flume.Transaction;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.instrumentation.ChannelCounter;
 
 /**
  * CygnusMemoryChannel is an extension of Flume's MemoryChannel. Basically, it is the same channel but having methods
- * for sizing control.
+ * for sizing control, and raising a signal each time new events are committed in order to wake up the waiting sinks.
  * 
  * @author frb
  */
@@ -38,6 +39,46 @@ public class CygnusMemoryChannel extends MemoryChannel implements CygnusChannel
     private long accPutsFail;
     private long accTakesOK;
     private long accTakesFail;
+    private final EventSignal eventSignal = new EventSignal();
+    
+    /**
+     * Transaction wrapping the one created by MemoryChannel, raising the event signal once committed if new events
+     * were put.
+     */
+    private class SignalingTransaction implements Transaction {
+        
+        private final Transaction transaction;
+        
+        SignalingTransaction(Transaction transaction) {
+            this.transaction = transaction;
+        } // SignalingTransaction
+        
+        @Override
+        public void begin() {
+            transaction.begin();
+        } // begin
+        
+        @Override
+        public void commit() {
+            long numPuts = channelCounterRef == null ? -1 : channelCounterRef.getEventPutSuccessCount();
+            transaction.commit();
+            
+            if (channelCounterRef == null || channelCounterRef.getEventPutSuccessCount() != numPuts) {
+                eventSignal.signal();
+            } // if
+        } // commit
+        
+        @Override
+        public void rollback() {
+            transaction.rollback();
+        } // rollback
+        
+        @Override
+        public void close() {
+            transaction.close();
+        } // close
+        
+    } // SignalingTransaction
     
     @Override
     protected void initialize() {
@@ -63,6 +104,19 @@ public class CygnusMemoryChannel extends MemoryChannel implements CygnusChannel
         accTakesOK = 0;
         accTakesFail = 0;
     } // initialize
+    
+    @Override
+    public Transaction getTransaction() {
+        return new SignalingTransaction(super.getTransaction());
+    } // getTransaction
+    
+    /**
+     * Gets the signal raised each time new events are committed.
+     * @return The signal raised each time new events are committed
+     */
+    public EventSignal getEventSignal() {
+        return eventSignal;
+    } // getEventSignal
 
     @Override
     public long getSetupTime() {
@@ -74,6 +128,11 @@ public class CygnusMemoryChannel extends MemoryChannel implements CygnusChannel
         return channelCounterRef.getChannelSize();
     } // getNumEvents
     
+    @Override
+    public long getCapacity() {
+        return channelCounterRef.getChannelCapacity();
+    } // getCapacity
+    
     @Override
     public long getNumPutsOK() {
         return channelCounterRef.getEventPutSuccessCount()
@@ -0,0 +1,77 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channels;
+
+/**
+ * Signal raised by a channel each time new events are committed, waking up the sinks waiting for them instead of
+ * backing off.
+ *
+ * Signals are counted, thus a sink gets the number of signals before taking events from the channel and, if none is
+ * available, waits for a signal after that number; this way, events committed between the take and the wait are not
+ * missed.
+ *
+ * @author frb
+ */
+public class EventSignal {
+
+    private long numSignals;
+
+    /**
+     * Constructor.
+     */
+    public EventSignal() {
+        numSignals = 0;
+    } // EventSignal
+
+    /**
+     * Signals new events are available, waking up all the waiting sinks.
+     */
+    public synchronized void signal() {
+        numSignals++;
+        notifyAll();
+    } // signal
+
+    /**
+     * Gets the number of signals raised so far.
+     * @return The number of signals raised so far
+     */
+    public synchronized long getNumSignals() {
+        return numSignals;
+    } // getNumSignals
+
+    /**
+     * Waits until a signal is raised after the given number of signals, or the given time has elapsed.
+     * @param numSignalsSeen Number of signals seen by the caller
+     * @param maxWait Maximum time to wait, in milliseconds
+     * @return True if a signal was raised after the given number of signals, false otherwise
+     * @throws InterruptedException
+     */
+    public synchronized boolean await(long numSignalsSeen, long maxWait) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + maxWait;
+        long remaining = maxWait;
+
+        while (numSignals == numSignalsSeen && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        } // while
+
+        return numSignals != numSignalsSeen;
+    } // await
+
+} // EventSignal
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.handlers;
+
+import com.telefonica.iot.cygnus.channels.CygnusChannel;
+import com.telefonica.iot.cygnus.nodes.CygnusApplication;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.flume.Channel;
+
+/**
+ * Decides if incoming requests must be admitted or shed, depending on the fill level of the channels the requests
+ * are put into. Requests start being shed when the fill level of any channel reaches a high watermark, and they are
+ * admitted again once the fill level of all the channels is below a low watermark (hysteresis), avoiding flapping
+ * around a single threshold.
+ *
+ * The saturation state is checked for every incoming request, thus it is not computed each time: the channels are
+ * scanned at most once every REFRESH_INTERVAL milliseconds, by a single request, and the rest of requests just read
+ * the last computed state, without locking.
+ *
+ * @author frb
+ */
+public class BackpressureController {
+
+    private static final long SAMPLING_INTERVAL = 1000;
+    private static final long REFRESH_INTERVAL = 100;
+    private final List<String> channelNames;
+    private final double highWatermark;
+    private final double lowWatermark;
+    private final int maxRetryAfter;
+    private final AtomicBoolean refreshing;
+    private volatile boolean saturated;
+    private volatile long excessEvents;
+    private volatile double drainRate;
+    private volatile long nextRefreshTime;
+    private long lastSampleTime;
+    private long lastNumTakes;
+
+    /**
+     * Constructor.
+     * @param channelNames Names of the channels to be checked, all the Cygnus channels of the agent if empty
+     * @param highWatermark Fill level (0-1) from which requests are shed
+     * @param lowWatermark Fill level (0-1) below which requests are admitted again
+     * @param maxRetryAfter Maximum number of seconds the clients are asked to wait before retrying
+     */
+    public BackpressureController(List<String> channelNames, double highWatermark, double lowWatermark,
+            int maxRetryAfter) {
+        this.channelNames = channelNames;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxRetryAfter = maxRetryAfter;
+        this.refreshing = new AtomicBoolean(false);
+        this.saturated = false;
+        this.excessEvents = 0;
+        this.drainRate = -1;
+        this.nextRefreshTime = 0;
+        this.lastSampleTime = 0;
+        this.lastNumTakes = 0;
+    } // BackpressureController
+
+    /**
+     * Checks if the channels are saturated, i.e. if incoming requests must be shed. The saturation state is refreshed
+     * if it is older than REFRESH_INTERVAL milliseconds and no other thread is refreshing it; otherwise, the last
+     * computed state is returned.
+     * @param now Current time in milliseconds
+     * @return True if the channels are saturated, false otherwise
+     */
+    public boolean isSaturated(long now) {
+        if (now >= nextRefreshTime && refreshing.compareAndSet(false, true)) {
+            try {
+                refresh(now);
+                nextRefreshTime = now + REFRESH_INTERVAL;
+            } finally {
+                refreshing.set(false);
+            } // try finally
+        } // if
+
+        return saturated;
+    } // isSaturated
+
+    /**
+     * Gets the number of seconds the clients should wait before retrying, computed as the time the channels need for
+     * draining down to the low watermark given the current drain rate.
+     * @return The number of seconds the clients should wait before retrying
+     */
+    public int getRetryAfter() {
+        double rate = drainRate;
+
+        if (rate <= 0) {
+            return maxRetryAfter;
+        } // if
+
+        long retryAfter = (long) Math.ceil(excessEvents / rate);
+        return (int) Math.max(1, Math.min(maxRetryAfter, retryAfter));
+    } // getRetryAfter
+
+    /**
+     * Gets the rate (events per second) the channels are drained at. It is protected since it is only used by the
+     * tests.
+     * @return The rate the channels are drained at, -1 if not known yet
+     */
+    protected double getDrainRate() {
+        return drainRate;
+    } // getDrainRate
+
+    /**
+     * Refreshes the saturation state, the number of events above the low watermark and the drain rate by scanning the
+     * channels. It is only run by a single thread at a time.
+     * @param now Current time in milliseconds
+     */
+    private void refresh(long now) {
+        List<CygnusChannel> channels = getChannels();
+        double maxFill = 0;
+        long numTakes = 0;
+        long excess = 0;
+
+        for (CygnusChannel channel : channels) {
+            long numEvents = channel.getNumEvents();
+            long capacity = channel.getCapacity();
+            numTakes += channel.getNumTakesOK();
+
+            if (capacity <= 0) {
+                continue;
+            } // if
+
+            maxFill = Math.max(maxFill, (double) numEvents / capacity);
+            excess += Math.max(0, numEvents - (long) (lowWatermark * capacity));
+        } // for
+
+        excessEvents = excess;
+        updateDrainRate(now, numTakes);
+
+        if (saturated && maxFill <= lowWatermark) {
+            saturated = false;
+        } else if (!saturated && maxFill >= highWatermark) {
+            saturated = true;
+        } // if else
+    } // refresh
+
+    /**
+     * Gets the channels to be checked. It is protected since it is overridden by the tests.
+     * @return The channels to be checked
+     */
+    protected List<CygnusChannel> getChannels() {
+        ArrayList<CygnusChannel> res = new ArrayList<>();
+        Map<String, Channel> channels = CygnusApplication.getChannels();
+
+        if (channels == null) {
+            return res;
+        } // if
+
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            if (entry.getValue() instanceof CygnusChannel
+                    && (channelNames.isEmpty() || channelNames.contains(entry.getKey()))) {
+                res.add((CygnusChannel) entry.getValue());
+            } // if
+        } // for
+
+        return res;
+    } // getChannels
+
+    private void updateDrainRate(long now, long numTakes) {
+        if (lastSampleTime == 0) {
+            lastSampleTime = now;
+            lastNumTakes = numTakes;
+            return;
+        } // if
+
+        if (now - lastSampleTime < SAMPLING_INTERVAL) {
+            return;
+        } // if
+
+        long delta = numTakes - lastNumTakes;
+
+        // the take counters may have been reset through the management interface, then the sample is discarded
+        if (delta >= 0) {
+            double rate = delta * 1000.0 / (now - lastSampleTime);
+            drainRate = drainRate < 0 ? rate : (drainRate + rate) / 2;
+        } // if
+
+        lastSampleTime = now;
+        lastNumTakes = numTakes;
+    } // updateDrainRate
+
+} // BackpressureController
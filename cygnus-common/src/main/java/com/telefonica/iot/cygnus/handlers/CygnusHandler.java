@@ -30,6 +30,7 @@ public abstract class CygnusHandler {
     protected static long numReceivedEvents = 0;
     protected static long numProcessedEvents = 0;
     protected CygnusMetrics serviceMetrics = new CygnusMetrics();
+    protected RateLimiter rateLimiter = null;
     
     /**
      * Gets the number of received events.
@@ -87,4 +88,12 @@ public abstract class CygnusHandler {
         this.serviceMetrics = serviceMetrics;
     } // setServiceMetrics
     
+    /**
+     * Gets the rate limiter.
+     * @return The rate limiter, null if the handler does not limit the rate of the requests
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    } // getRateLimiter
+    
 } // CygnusHandler
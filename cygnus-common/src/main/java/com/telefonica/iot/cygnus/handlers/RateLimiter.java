@@ -0,0 +1,287 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.handlers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per service and per service path rate limiter. Each service (and each service path within a service) owns a token
+ * bucket, given by a rate (requests per second) and a burst (maximum number of requests admitted at once), thus a
+ * service sending bursts of requests does not starve the rest of services.
+ *
+ * Default limits apply to any service and service path, and specific limits may be set (and removed) at runtime.
+ * The buckets are implemented as a single atomic timestamp (Generic Cell Rate Algorithm), thus admitting a request
+ * does not require any lock.
+ *
+ * @author frb
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final String SEPARATOR = " ";
+    private volatile Limits defaultServiceLimits;
+    private volatile Limits defaultServicePathLimits;
+    private final ConcurrentHashMap<String, Limits> serviceLimits;
+    private final ConcurrentHashMap<String, Limits> servicePathLimits;
+    private final ConcurrentHashMap<String, TokenBucket> serviceBuckets;
+    private final ConcurrentHashMap<String, TokenBucket> servicePathBuckets;
+
+    /**
+     * Rate limits, given by a rate (requests per second) and a burst. A rate equals to 0 means no limits.
+     */
+    public static class Limits {
+
+        private final int rate;
+        private final int burst;
+
+        /**
+         * Constructor.
+         * @param rate Requests per second, 0 means no limits
+         * @param burst Maximum number of requests admitted at once, 0 means the same than the rate
+         */
+        public Limits(int rate, int burst) {
+            this.rate = rate;
+            this.burst = burst > 0 ? burst : rate;
+        } // Limits
+
+        public int getRate() {
+            return rate;
+        } // getRate
+
+        public int getBurst() {
+            return burst;
+        } // getBurst
+
+        /**
+         * Gets if these limits really limit something.
+         * @return True if the rate is greater than 0, false otherwise
+         */
+        public boolean isLimited() {
+            return rate > 0;
+        } // isLimited
+
+        /**
+         * Gets a Json representation of the limits.
+         * @return A Json representation of the limits
+         */
+        public String toJsonString() {
+            return "\"rate\":" + rate + ",\"burst\":" + burst;
+        } // toJsonString
+
+    } // Limits
+
+    /**
+     * Token bucket implemented as the theoretical arrival time of the next request (Generic Cell Rate Algorithm).
+     * A request is admitted if, once the interval between requests has been added to such a time, the result is not
+     * further in the future than the burst allows.
+     */
+    private static class TokenBucket {
+
+        private final AtomicLong theoreticalArrivalTime;
+        private final long interval;
+        private final long tolerance;
+
+        TokenBucket(Limits limits, long now) {
+            this.interval = NANOS_PER_SECOND / limits.getRate();
+            this.tolerance = interval * limits.getBurst();
+            this.theoreticalArrivalTime = new AtomicLong(now);
+        } // TokenBucket
+
+        /**
+         * Tries to acquire a token.
+         * @param now Current time in nanoseconds
+         * @return 0 if the token was acquired, otherwise the nanoseconds to wait until a token is available
+         */
+        long tryAcquire(long now) {
+            while (true) {
+                long tat = theoreticalArrivalTime.get();
+                long newTat = Math.max(tat, now) + interval;
+                long wait = newTat - now - tolerance;
+
+                if (wait > 0) {
+                    return wait;
+                } // if
+
+                if (theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                    return 0;
+                } // if
+            } // while
+        } // tryAcquire
+
+    } // TokenBucket
+
+    /**
+     * Constructor.
+     * @param defaultServiceLimits Limits applying to any service
+     * @param defaultServicePathLimits Limits applying to any service path
+     */
+    public RateLimiter(Limits defaultServiceLimits, Limits defaultServicePathLimits) {
+        this.defaultServiceLimits = defaultServiceLimits;
+        this.defaultServicePathLimits = defaultServicePathLimits;
+        this.serviceLimits = new ConcurrentHashMap<>();
+        this.servicePathLimits = new ConcurrentHashMap<>();
+        this.serviceBuckets = new ConcurrentHashMap<>();
+        this.servicePathBuckets = new ConcurrentHashMap<>();
+    } // RateLimiter
+
+    /**
+     * Tries to admit a request regarding the given service and service paths. A token is acquired from the bucket of
+     * the service and from the bucket of each service path.
+     * @param service
+     * @param servicePaths
+     * @param now Current time in nanoseconds
+     * @return 0 if the request is admitted, otherwise the nanoseconds to wait until it could be admitted
+     */
+    public long tryAcquire(String service, String[] servicePaths, long now) {
+        long wait = tryAcquire(serviceBuckets, service, getServiceLimits(service), now);
+
+        if (wait > 0) {
+            return wait;
+        } // if
+
+        for (String servicePath : servicePaths) {
+            String key = service + SEPARATOR + servicePath;
+            wait = tryAcquire(servicePathBuckets, key, getServicePathLimits(service, servicePath), now);
+
+            if (wait > 0) {
+                return wait;
+            } // if
+        } // for
+
+        return 0;
+    } // tryAcquire
+
+    /**
+     * Sets the limits for the given service and service path, or for the given service if the service path is null.
+     * The bucket of such a service or service path is restarted.
+     * @param service
+     * @param servicePath
+     * @param limits
+     */
+    public void setLimits(String service, String servicePath, Limits limits) {
+        if (servicePath == null) {
+            serviceLimits.put(service, limits);
+            serviceBuckets.remove(service);
+        } else {
+            servicePathLimits.put(service + SEPARATOR + servicePath, limits);
+            servicePathBuckets.remove(service + SEPARATOR + servicePath);
+        } // if else
+    } // setLimits
+
+    /**
+     * Removes the limits for the given service and service path, or for the given service if the service path is
+     * null, thus the default ones apply again.
+     * @param service
+     * @param servicePath
+     * @return True if there were specific limits for the given service and service path, false otherwise
+     */
+    public boolean removeLimits(String service, String servicePath) {
+        Limits removed;
+
+        if (servicePath == null) {
+            removed = serviceLimits.remove(service);
+            serviceBuckets.remove(service);
+        } else {
+            removed = servicePathLimits.remove(service + SEPARATOR + servicePath);
+            servicePathBuckets.remove(service + SEPARATOR + servicePath);
+        } // if else
+
+        return removed != null;
+    } // removeLimits
+
+    /**
+     * Sets the default limits. All the buckets are restarted.
+     * @param defaultServiceLimits
+     * @param defaultServicePathLimits
+     */
+    public void setDefaultLimits(Limits defaultServiceLimits, Limits defaultServicePathLimits) {
+        this.defaultServiceLimits = defaultServiceLimits;
+        this.defaultServicePathLimits = defaultServicePathLimits;
+        serviceBuckets.clear();
+        servicePathBuckets.clear();
+    } // setDefaultLimits
+
+    /**
+     * Gets the limits applying to the given service.
+     * @param service
+     * @return The limits applying to the given service
+     */
+    public Limits getServiceLimits(String service) {
+        Limits limits = serviceLimits.get(service);
+        return limits == null ? defaultServiceLimits : limits;
+    } // getServiceLimits
+
+    /**
+     * Gets the limits applying to the given service path.
+     * @param service
+     * @param servicePath
+     * @return The limits applying to the given service path
+     */
+    public Limits getServicePathLimits(String service, String servicePath) {
+        Limits limits = servicePathLimits.get(service + SEPARATOR + servicePath);
+        return limits == null ? defaultServicePathLimits : limits;
+    } // getServicePathLimits
+
+    /**
+     * Gets a Json representation of the default and the specific limits.
+     * @return A Json representation of the default and the specific limits
+     */
+    public String toJsonString() {
+        String jsonStr = "{\"defaults\":{\"service\":{" + defaultServiceLimits.toJsonString() + "},"
+                + "\"servicePath\":{" + defaultServicePathLimits.toJsonString() + "}},\"limits\":[";
+        boolean first = true;
+
+        for (Map.Entry<String, Limits> entry : serviceLimits.entrySet()) {
+            jsonStr += (first ? "" : ",") + "{\"service\":\"" + entry.getKey() + "\","
+                    + entry.getValue().toJsonString() + "}";
+            first = false;
+        } // for
+
+        for (Map.Entry<String, Limits> entry : servicePathLimits.entrySet()) {
+            String[] split = entry.getKey().split(SEPARATOR, 2);
+            jsonStr += (first ? "" : ",") + "{\"service\":\"" + split[0] + "\",\"servicePath\":\"" + split[1]
+                    + "\"," + entry.getValue().toJsonString() + "}";
+            first = false;
+        } // for
+
+        return jsonStr + "]}";
+    } // toJsonString
+
+    private long tryAcquire(ConcurrentHashMap<String, TokenBucket> buckets, String key, Limits limits, long now) {
+        if (!limits.isLimited()) {
+            return 0;
+        } // if
+
+        TokenBucket bucket = buckets.get(key);
+
+        if (bucket == null) {
+            TokenBucket newBucket = new TokenBucket(limits, now);
+            bucket = buckets.putIfAbsent(key, newBucket);
+
+            if (bucket == null) {
+                bucket = newBucket;
+            } // if
+        } // if
+
+        return bucket.tryAcquire(now);
+    } // tryAcquire
+
+} // RateLimiter
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.log;
+
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.RollingFileAppender;
+
+/**
+ * Asynchronous rolling file appender, i.e. the logging threads only queue the traces, which are written into the
+ * rolling file by a dedicated thread. log4j's AsyncAppender cannot be configured through a log4j.properties file
+ * since it wraps other appenders, thus this appender wraps its own RollingFileAppender, configured through the usual
+ * File, MaxFileSize, MaxBackupIndex and layout properties. BufferSize, Blocking and LocationInfo properties are
+ * inherited from AsyncAppender.
+ *
+ * @author frb
+ */
+public class AsyncRollingFileAppender extends AsyncAppender {
+
+    private final RollingFileAppender fileAppender;
+
+    /**
+     * Constructor.
+     */
+    public AsyncRollingFileAppender() {
+        super();
+        fileAppender = new RollingFileAppender();
+    } // AsyncRollingFileAppender
+
+    public void setFile(String file) {
+        fileAppender.setFile(file);
+    } // setFile
+
+    public String getFile() {
+        return fileAppender.getFile();
+    } // getFile
+
+    public void setMaxFileSize(String maxFileSize) {
+        fileAppender.setMaxFileSize(maxFileSize);
+    } // setMaxFileSize
+
+    public void setMaxBackupIndex(int maxBackupIndex) {
+        fileAppender.setMaxBackupIndex(maxBackupIndex);
+    } // setMaxBackupIndex
+
+    public int getMaxBackupIndex() {
+        return fileAppender.getMaxBackupIndex();
+    } // getMaxBackupIndex
+
+    /**
+     * The layout is not used by this appender but by the wrapped one; nevertheless, it must be required in order
+     * log4j's PropertyConfigurator reads it.
+     * @return True
+     */
+    @Override
+    public boolean requiresLayout() {
+        return true;
+    } // requiresLayout
+
+    @Override
+    public void activateOptions() {
+        super.activateOptions();
+        fileAppender.setName(getName() + "-file");
+        fileAppender.setLayout(getLayout());
+        fileAppender.activateOptions();
+        addAppender(fileAppender);
+    } // activateOptions
+
+} // AsyncRollingFileAppender
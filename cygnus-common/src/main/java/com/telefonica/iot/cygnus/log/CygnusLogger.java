@@ -25,11 +25,15 @@ import org.apache.log4j.Logger;
  * https://books.google.es/books?id=hZBimlxiyAcC&lpg=PA162&ots=QgJm9Y3WZ9&dq=log4j%20decorator
  *    &hl=es&pg=PA163#v=onepage&q=log4j%20decorator&f=false
  * 
+ * Parameterized messages (e.g. "Received data ({})") are only formatted if the level is enabled, thus they should be
+ * preferred in the hot paths over messages built by concatenation.
+ * 
  * @author frb
  */
 public class CygnusLogger {
     
     private static String fqcn = CygnusLogger.class.getName();
+    private static final String PLACEHOLDER = "{}";
     private Logger logger;
     
     /**
@@ -84,6 +88,15 @@ public class CygnusLogger {
         } // try catch
     } // debug
     
+    /**
+     * Traces a parameterized message with DEBUG level. The message is only formatted if DEBUG level is enabled.
+     * @param format Message where each "{}" is replaced by the next argument
+     * @param args
+     */
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    } // debug
+    
     /**
      * Traces a message with INFO level.
      * @param msg
@@ -96,6 +109,15 @@ public class CygnusLogger {
         } // try catch
     } // info
     
+    /**
+     * Traces a parameterized message with INFO level. The message is only formatted if INFO level is enabled.
+     * @param format Message where each "{}" is replaced by the next argument
+     * @param args
+     */
+    public void info(String format, Object... args) {
+        log(Level.INFO, format, args);
+    } // info
+    
     /**
      * Traces a message with WARN level.
      * @param msg
@@ -108,6 +130,61 @@ public class CygnusLogger {
         } // try catch
     } // warn
     
+    /**
+     * Gets if DEBUG level is enabled. It should guard the computation of values only required for debugging.
+     * @return True if DEBUG level is enabled, false otherwise
+     */
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    } // isDebugEnabled
+    
+    /**
+     * Gets if INFO level is enabled.
+     * @return True if INFO level is enabled, false otherwise
+     */
+    public boolean isInfoEnabled() {
+        return logger.isInfoEnabled();
+    } // isInfoEnabled
+    
+    /**
+     * Formats a parameterized message, replacing each "{}" by the next argument. Remaining placeholders are kept as
+     * they are, and remaining arguments are ignored.
+     * @param format
+     * @param args
+     * @return The formatted message
+     */
+    public static String format(String format, Object... args) {
+        if (format == null || args == null || args.length == 0) {
+            return format;
+        } // if
+        
+        StringBuilder sb = new StringBuilder(format.length() + 16 * args.length);
+        int from = 0;
+        
+        for (Object arg : args) {
+            int index = format.indexOf(PLACEHOLDER, from);
+            
+            if (index == -1) {
+                break;
+            } // if
+            
+            sb.append(format, from, index).append(arg);
+            from = index + PLACEHOLDER.length();
+        } // for
+        
+        return sb.append(format, from, format.length()).toString();
+    } // format
+    
+    private void log(Level level, String format, Object... args) {
+        try {
+            if (logger.isEnabledFor(level)) {
+                logger.log(fqcn, level, format(format, args), null);
+            } // if
+        } catch (Exception e) {
+            traceAndExit(e);
+        } // try catch
+    } // log
+    
     private void traceAndExit(Exception e) {
         System.err.println("A problem with the logging system was found... shutting down Cygnus right now!"
                 + " Details=" + e.getMessage());
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which payloads (notified data, persisted aggregations...) are logged, and truncates them. It is meant to be
+ * used as an argument of the CygnusLogger parameterized messages, e.g.:
+ *
+ *    LOGGER.info("Received data ({})", payloadLogSampler.sample(data));
+ *
+ * The returned object is only converted into a string if the message is finally logged, thus payloads neither
+ * sampled nor logged because of the log level are never serialized.
+ *
+ * @author frb
+ */
+public class PayloadLogSampler {
+
+    private final int sampling;
+    private final int maxLength;
+    private final AtomicLong counter;
+
+    /**
+     * Not sampled payload, logged as its length if it is a string.
+     */
+    private static class NotSampled {
+
+        private final Object payload;
+
+        NotSampled(Object payload) {
+            this.payload = payload;
+        } // NotSampled
+
+        @Override
+        public String toString() {
+            if (payload instanceof CharSequence) {
+                return "not sampled, " + ((CharSequence) payload).length() + " chars";
+            } else {
+                return "not sampled";
+            } // if else
+        } // toString
+
+    } // NotSampled
+
+    /**
+     * Sampled payload, truncated when converted into a string.
+     */
+    private static class Truncated {
+
+        private final Object payload;
+        private final int maxLength;
+
+        Truncated(Object payload, int maxLength) {
+            this.payload = payload;
+            this.maxLength = maxLength;
+        } // Truncated
+
+        @Override
+        public String toString() {
+            String str = String.valueOf(payload);
+
+            if (str.length() <= maxLength) {
+                return str;
+            } // if
+
+            return str.substring(0, maxLength) + "... (" + (str.length() - maxLength) + " more chars)";
+        } // toString
+
+    } // Truncated
+
+    /**
+     * Constructor.
+     * @param sampling One out of this number of payloads is logged, 1 means all of them and 0 means none
+     * @param maxLength Maximum number of logged characters per payload, -1 means no truncation
+     */
+    public PayloadLogSampler(int sampling, int maxLength) {
+        this.sampling = sampling;
+        this.maxLength = maxLength;
+        this.counter = new AtomicLong();
+    } // PayloadLogSampler
+
+    public int getSampling() {
+        return sampling;
+    } // getSampling
+
+    public int getMaxLength() {
+        return maxLength;
+    } // getMaxLength
+
+    /**
+     * Gets if the next payload is sampled.
+     * @return True if the next payload is sampled, false otherwise
+     */
+    public boolean isSampled() {
+        if (sampling <= 0) {
+            return false;
+        } else if (sampling == 1) {
+            return true;
+        } else {
+            return counter.getAndIncrement() % sampling == 0;
+        } // if else
+    } // isSampled
+
+    /**
+     * Samples the given payload.
+     * @param payload
+     * @return An object whose string version is the (truncated) payload if sampled, or a short note otherwise
+     */
+    public Object sample(Object payload) {
+        if (!isSampled()) {
+            return new NotSampled(payload);
+        } else if (maxLength < 0 || payload == null) {
+            return payload;
+        } else {
+            return new Truncated(payload, maxLength);
+        } // if else
+    } // sample
+
+} // PayloadLogSampler
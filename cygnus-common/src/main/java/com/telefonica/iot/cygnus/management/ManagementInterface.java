@@ -124,6 +124,8 @@ public class ManagementInterface extends AbstractHandler {
                         LogHandlers.getAppenders(request, response, configurationPath);
                     } else if (uri.startsWith("/v1/admin/metrics") || uri.startsWith("/admin/metrics")) {
                         MetricsHandlers.get(request, response, sources, sinks);
+                    } else if (uri.equals("/v1/admin/ratelimits")) {
+                        RateLimitsHandlers.get(response, sources);
                     } else {
                         response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
                         response.getWriter().println(method + " " + uri + " not implemented");
@@ -172,6 +174,8 @@ public class ManagementInterface extends AbstractHandler {
                         LogHandlers.putLoggers(request, response, configurationPath);
                     } else if (uri.startsWith("/v1/admin/log/appenders")) {
                         LogHandlers.putAppenders(request, response, configurationPath);
+                    } else if (uri.equals("/v1/admin/ratelimits")) {
+                        RateLimitsHandlers.put(request, response, sources);
                     } else {
                         response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
                         response.getWriter().println(method + " " + uri + " not implemented");
@@ -197,6 +201,8 @@ public class ManagementInterface extends AbstractHandler {
                         LogHandlers.deleteAppenders(request, response, configurationPath);
                     } else if (uri.startsWith("/v1/admin/metrics") || uri.startsWith("/admin/metrics")) {
                         MetricsHandlers.delete(response, sources, sinks);
+                    } else if (uri.equals("/v1/admin/ratelimits")) {
+                        RateLimitsHandlers.delete(request, response, sources);
                     } else {
                         response.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
                         response.getWriter().println(method + " " + uri + " not implemented");
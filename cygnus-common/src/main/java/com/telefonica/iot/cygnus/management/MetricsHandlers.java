@@ -18,6 +18,7 @@
 package com.telefonica.iot.cygnus.management;
 
 import com.google.common.collect.ImmutableMap;
+import com.telefonica.iot.cygnus.backends.jdbc.JDBCConnectionPool;
 import com.telefonica.iot.cygnus.handlers.CygnusHandler;
 import com.telefonica.iot.cygnus.metrics.CygnusMetrics;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
@@ -153,6 +154,11 @@ public final class MetricsHandlers {
                 } // if
             } // for
         } // if
+        
+        for (JDBCConnectionPool pool : JDBCConnectionPool.getPools()) {
+            mergedMetrics.addPoolMetrics(pool.getName(), pool.getNumActive(), pool.getNumIdle(), pool.getNumWaits(),
+                    pool.getNumWaitTimeouts(), pool.getNumCreated(), pool.getNumClosed(), pool.getCreationRate());
+        } // for
 
         return mergedMetrics;
     } // mergeMetrics
@@ -210,6 +216,10 @@ public final class MetricsHandlers {
                 } // if
             } // for
         } // if
+        
+        for (JDBCConnectionPool pool : JDBCConnectionPool.getPools()) {
+            pool.resetStats();
+        } // for
     } // deleteMetrics
     
 } // MetricsHandlers
@@ -0,0 +1,208 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.management;
+
+import com.google.common.collect.ImmutableMap;
+import com.telefonica.iot.cygnus.handlers.CygnusHandler;
+import com.telefonica.iot.cygnus.handlers.RateLimiter;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.flume.Source;
+import org.apache.flume.SourceRunner;
+import org.apache.flume.source.http.HTTPSourceHandler;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ *
+ * @author frb
+ */
+public final class RateLimitsHandlers {
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(RateLimitsHandlers.class);
+
+    /**
+     * Constructor. Utility classes should not have a public or default constructor.
+     */
+    private RateLimitsHandlers() {
+    } // RateLimitsHandlers
+
+    /**
+     * Handles GET /v1/admin/ratelimits.
+     * @param response
+     * @param sources
+     * @throws IOException
+     */
+    public static void get(HttpServletResponse response, ImmutableMap<String, SourceRunner> sources)
+        throws IOException {
+        response.setContentType("application/json; charset=utf-8");
+        String jsonStr = "";
+
+        for (Map.Entry<String, RateLimiter> entry : getRateLimiters(sources).entrySet()) {
+            jsonStr += (jsonStr.isEmpty() ? "" : ",") + "\"" + entry.getKey() + "\":"
+                    + entry.getValue().toJsonString();
+        } // for
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println("{\"success\":\"true\",\"ratelimits\":{" + jsonStr + "}}");
+    } // get
+
+    /**
+     * Handles PUT /v1/admin/ratelimits. The limits are set in all the sources limiting the rate of the requests.
+     * @param request
+     * @param response
+     * @param sources
+     * @throws IOException
+     */
+    public static void put(HttpServletRequest request, HttpServletResponse response,
+            ImmutableMap<String, SourceRunner> sources) throws IOException {
+        response.setContentType("application/json; charset=utf-8");
+        String limitsStr = "";
+
+        try (BufferedReader reader = request.getReader()) {
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                limitsStr += line;
+            } // while
+        } // try
+
+        JSONObject limits;
+
+        try {
+            limits = (JSONObject) new JSONParser().parse(limitsStr);
+        } catch (ParseException | ClassCastException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("{\"success\":\"false\","
+                    + "\"error\":\"Parse error, invalid Json syntax. Details: " + e.getMessage() + "\"}");
+            LOGGER.error("Parse error, invalid Json syntax. Details: " + e.getMessage());
+            return;
+        } // try catch
+
+        Object service = limits.get("service");
+        Object servicePath = limits.get("servicePath");
+        Object rate = limits.get("rate");
+        Object burst = limits.get("burst");
+
+        if (!(service instanceof String) || ((String) service).isEmpty()
+                || (servicePath != null && (!(servicePath instanceof String)
+                        || !((String) servicePath).startsWith("/")))
+                || !(rate instanceof Long) || (Long) rate < 0
+                || (burst != null && (!(burst instanceof Long) || (Long) burst < 0))) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("{\"success\":\"false\",\"error\":\"Invalid rate limits, 'service' and "
+                    + "'rate' are mandatory, 'servicePath' must start with '/' and 'rate' and 'burst' must be "
+                    + "integers greater than or equal to 0\"}");
+            LOGGER.warn("Invalid rate limits: " + limitsStr);
+            return;
+        } // if
+
+        RateLimiter.Limits newLimits = new RateLimiter.Limits(((Long) rate).intValue(),
+                burst == null ? 0 : ((Long) burst).intValue());
+
+        for (RateLimiter rateLimiter : getRateLimiters(sources).values()) {
+            rateLimiter.setLimits((String) service, (String) servicePath, newLimits);
+        } // for
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().println("{\"success\":\"true\"}");
+        LOGGER.info("Rate limits set: " + limitsStr);
+    } // put
+
+    /**
+     * Handles DELETE /v1/admin/ratelimits. The limits are removed from all the sources limiting the rate of the
+     * requests, thus the default ones apply again.
+     * @param request
+     * @param response
+     * @param sources
+     * @throws IOException
+     */
+    public static void delete(HttpServletRequest request, HttpServletResponse response,
+            ImmutableMap<String, SourceRunner> sources) throws IOException {
+        response.setContentType("application/json; charset=utf-8");
+        String service = request.getParameter("service");
+        String servicePath = request.getParameter("servicePath");
+
+        if (service == null || service.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.getWriter().println("{\"success\":\"false\",\"error\":\"Missing 'service' parameter\"}");
+            LOGGER.warn("Missing 'service' parameter");
+            return;
+        } // if
+
+        boolean removed = false;
+
+        for (RateLimiter rateLimiter : getRateLimiters(sources).values()) {
+            removed |= rateLimiter.removeLimits(service, servicePath);
+        } // for
+
+        if (removed) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().println("{\"success\":\"true\"}");
+            LOGGER.info("Rate limits removed (service=" + service + ", servicePath=" + servicePath + ")");
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().println("{\"success\":\"false\",\"error\":\"Rate limits not found\"}");
+            LOGGER.warn("Rate limits not found (service=" + service + ", servicePath=" + servicePath + ")");
+        } // if else
+    } // delete
+
+    /**
+     * Gets the rate limiters of the given sources, by source name.
+     * @param sources
+     * @return The rate limiters of the given sources, by source name
+     */
+    private static LinkedHashMap<String, RateLimiter> getRateLimiters(ImmutableMap<String, SourceRunner> sources) {
+        LinkedHashMap<String, RateLimiter> rateLimiters = new LinkedHashMap<>();
+
+        if (sources == null) {
+            return rateLimiters;
+        } // if
+
+        for (String key : sources.keySet()) {
+            Source source;
+            HTTPSourceHandler handler;
+
+            try {
+                SourceRunner sr = sources.get(key);
+                source = sr.getSource();
+                Field f = source.getClass().getDeclaredField("handler");
+                f.setAccessible(true);
+                handler = (HTTPSourceHandler) f.get(source);
+            } catch (IllegalArgumentException | IllegalAccessException | NoSuchFieldException
+                    | SecurityException e) {
+                LOGGER.error("There was a problem when getting a source. Details: " + e.getMessage());
+                continue;
+            } // try catch
+
+            if (handler instanceof CygnusHandler && ((CygnusHandler) handler).getRateLimiter() != null) {
+                rateLimiters.put(key, ((CygnusHandler) handler).getRateLimiter());
+            } // if
+        } // for
+
+        return rateLimiters;
+    } // getRateLimiters
+
+} // RateLimitsHandlers
@@ -161,7 +161,37 @@ public final class StatsHandlers {
                 CygnusSink cs = (CygnusSink) sink;
                 jsonStr += "\"setup_time\":\"" + CommonUtils.getHumanReadable(cs.getSetupTime(), true) + "\","
                         + "\"num_processed_events\":" + cs.getNumProcessedEvents() + ","
-                        + "\"num_persisted_events\":" + cs.getNumPersistedEvents() + "}";
+                        + "\"num_persisted_events\":" + cs.getNumPersistedEvents();
+                
+                long oldestAccumulatedEventAge = cs.getOldestAccumulatedEventAge();
+                
+                if (oldestAccumulatedEventAge >= 0) {
+                    jsonStr += ",\"oldest_accumulated_event_age\":" + oldestAccumulatedEventAge;
+                } // if
+                
+                long accumulatedBytes = cs.getAccumulatedBytes();
+                
+                if (accumulatedBytes >= 0) {
+                    jsonStr += ",\"accumulated_bytes\":" + accumulatedBytes;
+                } // if
+                
+                if (cs.getHeapGuard() != null) {
+                    jsonStr += ",\"heap_guard\":" + cs.getHeapGuard().toJsonString(cs.getName());
+                } // if
+                
+                if (cs.getAdaptiveBatchSizer() != null) {
+                    jsonStr += ",\"adaptive_batching\":" + cs.getAdaptiveBatchSizer().toJsonString();
+                } // if
+                
+                if (cs.getCircuitBreakers() != null) {
+                    jsonStr += ",\"circuit_breakers\":" + cs.getCircuitBreakers().toJsonString();
+                } // if
+                
+                if (cs.getExpirationRegistration() != null) {
+                    jsonStr += ",\"expiration\":" + cs.getExpirationRegistration().toJsonString();
+                } // if
+                
+                jsonStr += "}";
             } else {
                 jsonStr += "\"setup_time\":\"unknown\","
                         + "\"num_processed_events\":-1,"
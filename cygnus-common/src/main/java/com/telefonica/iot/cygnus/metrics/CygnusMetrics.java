@@ -17,6 +17,7 @@
  */
 package com.telefonica.iot.cygnus.metrics;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 
 /**
@@ -29,6 +30,9 @@ public class CygnusMetrics {
     private final HashMap<String, Metrics> perServiceAggrMetrics;
     private final HashMap<String, Metrics> perSubserviceAggrMetrics;
     private final Metrics allAggrMetrics;
+    private final HashMap<String, PoolMetrics> perPoolMetrics;
+    private final HashMap<String, TableMetrics> perTableMetrics;
+    private final HashMap<String, RollbackMetrics> perSinkRollbackMetrics;
     
     /**
      * Constructor.
@@ -38,6 +42,9 @@ public class CygnusMetrics {
         perServiceAggrMetrics = new HashMap<>();
         perSubserviceAggrMetrics = new HashMap<>();
         allAggrMetrics = new Metrics();
+        perPoolMetrics = new HashMap<>();
+        perTableMetrics = new HashMap<>();
+        perSinkRollbackMetrics = new HashMap<>();
     } // CygnusMetrics
     
     /**
@@ -131,6 +138,199 @@ public class CygnusMetrics {
         allAggrMetrics.addOutgoingTransactionErrors(outgoingTransactionErrors);
     } // add
     
+    /**
+     * Adds the decoded size of compressed incoming transaction requests to the given service path within the given
+     * service. The size of such requests as received (i.e. compressed) is added as incoming transaction request size.
+     * @param service
+     * @param subservice
+     * @param incomingTransactionDecodedSize
+     */
+    public void addIncomingTransactionDecodedSize(String service, String subservice,
+            long incomingTransactionDecodedSize) {
+        for (Metrics metrics : getMetricsToUpdate(service, subservice)) {
+            metrics.addIncomingTransactionDecodedSize(incomingTransactionDecodedSize);
+        } // for
+    } // addIncomingTransactionDecodedSize
+    
+    /**
+     * Adds incoming transactions shed (i.e. rejected because of backpressure) to the given service path within the
+     * given service.
+     * @param service
+     * @param subservice
+     * @param incomingTransactionsShed
+     */
+    public void addIncomingTransactionsShed(String service, String subservice, long incomingTransactionsShed) {
+        for (Metrics metrics : getMetricsToUpdate(service, subservice)) {
+            metrics.addIncomingTransactionsShed(incomingTransactionsShed);
+        } // for
+    } // addIncomingTransactionsShed
+    
+    /**
+     * Adds incoming transactions throttled (i.e. rejected because of rate limiting) to the given service path within
+     * the given service.
+     * @param service
+     * @param subservice
+     * @param incomingTransactionsThrottled
+     */
+    public void addIncomingTransactionsThrottled(String service, String subservice,
+            long incomingTransactionsThrottled) {
+        for (Metrics metrics : getMetricsToUpdate(service, subservice)) {
+            metrics.addIncomingTransactionsThrottled(incomingTransactionsThrottled);
+        } // for
+    } // addIncomingTransactionsThrottled
+    
+    /**
+     * Gets the metrics to be updated when adding metrics to the given service path within the given service, i.e.
+     * the per-service and per-subservice metrics, the aggregated ones, and the global ones. Metrics are created if
+     * not existing.
+     * @param service
+     * @param subservice
+     * @return The metrics to be updated
+     */
+    private ArrayList<Metrics> getMetricsToUpdate(String service, String subservice) {
+        ArrayList<Metrics> res = new ArrayList<>(4);
+        
+        // Per-service metrics
+        HashMap<String, Metrics> subserviceMetrics = perServiceSubserviceMetrics.get(service);
+        
+        if (subserviceMetrics == null) {
+            subserviceMetrics = new HashMap<>();
+            perServiceSubserviceMetrics.put(service, subserviceMetrics);
+        } // if
+        
+        Metrics metrics = subserviceMetrics.get(subservice);
+        
+        if (metrics == null) {
+            metrics = new Metrics();
+            subserviceMetrics.put(subservice, metrics);
+        } // if
+        
+        res.add(metrics);
+        
+        // Per-service aggregated metrics
+        Metrics allsubserviceMetrics = perServiceAggrMetrics.get(service);
+        
+        if (allsubserviceMetrics == null) {
+            allsubserviceMetrics = new Metrics();
+            perServiceAggrMetrics.put(service, allsubserviceMetrics);
+        } // if
+        
+        res.add(allsubserviceMetrics);
+        
+        // Per-subservice metrics
+        Metrics subsvcMetrics = perSubserviceAggrMetrics.get(subservice);
+        
+        if (subsvcMetrics == null) {
+            subsvcMetrics = new Metrics();
+            perSubserviceAggrMetrics.put(subservice, subsvcMetrics);
+        } // if
+        
+        res.add(subsvcMetrics);
+        
+        // Per-subservice aggregated metrics
+        res.add(allAggrMetrics);
+        return res;
+    } // getMetricsToUpdate
+    
+    /**
+     * Adds metrics to the given connection pool.
+     * @param pool
+     * @param activeConnections
+     * @param idleConnections
+     * @param waits
+     * @param waitTimeouts
+     * @param createdConnections
+     * @param closedConnections
+     * @param creationRate
+     */
+    public void addPoolMetrics(String pool, long activeConnections, long idleConnections, long waits,
+            long waitTimeouts, long createdConnections, long closedConnections, double creationRate) {
+        PoolMetrics metrics = perPoolMetrics.get(pool);
+        
+        if (metrics == null) {
+            metrics = new PoolMetrics();
+            perPoolMetrics.put(pool, metrics);
+        } // if
+        
+        metrics.activeConnections += activeConnections;
+        metrics.idleConnections += idleConnections;
+        metrics.waits += waits;
+        metrics.waitTimeouts += waitTimeouts;
+        metrics.createdConnections += createdConnections;
+        metrics.closedConnections += closedConnections;
+        metrics.creationRate += creationRate;
+    } // addPoolMetrics
+    
+    /**
+     * Gets metrics related to given connection pool.
+     * @param pool
+     * @return Metrics related to given connection pool
+     */
+    public PoolMetrics getPoolMetrics(String pool) {
+        return perPoolMetrics.get(pool);
+    } // getPoolMetrics
+    
+    /**
+     * Adds capping and expiration metrics to the given table.
+     * @param table
+     * @param cappedRecords
+     * @param expiredRecords
+     * @param deletions
+     * @param deletionTime
+     */
+    public void addTableMetrics(String table, long cappedRecords, long expiredRecords, long deletions,
+            long deletionTime) {
+        TableMetrics metrics = perTableMetrics.get(table);
+        
+        if (metrics == null) {
+            metrics = new TableMetrics();
+            perTableMetrics.put(table, metrics);
+        } // if
+        
+        metrics.cappedRecords += cappedRecords;
+        metrics.expiredRecords += expiredRecords;
+        metrics.deletions += deletions;
+        metrics.deletionTime += deletionTime;
+    } // addTableMetrics
+    
+    /**
+     * Gets capping and expiration metrics related to given table.
+     * @param table
+     * @return Capping and expiration metrics related to given table
+     */
+    public TableMetrics getTableMetrics(String table) {
+        return perTableMetrics.get(table);
+    } // getTableMetrics
+    
+    /**
+     * Adds rollback metrics to the given sink.
+     * @param sink
+     * @param pendingBatches
+     * @param queuedBytes
+     * @param oldestPendingAge
+     */
+    public void addRollbackMetrics(String sink, long pendingBatches, long queuedBytes, long oldestPendingAge) {
+        RollbackMetrics metrics = perSinkRollbackMetrics.get(sink);
+        
+        if (metrics == null) {
+            metrics = new RollbackMetrics();
+            perSinkRollbackMetrics.put(sink, metrics);
+        } // if
+        
+        metrics.pendingBatches += pendingBatches;
+        metrics.queuedBytes += queuedBytes;
+        metrics.oldestPendingAge = Math.max(metrics.oldestPendingAge, oldestPendingAge);
+    } // addRollbackMetrics
+    
+    /**
+     * Gets rollback metrics related to given sink.
+     * @param sink
+     * @return Rollback metrics related to given sink
+     */
+    public RollbackMetrics getRollbackMetrics(String sink) {
+        return perSinkRollbackMetrics.get(sink);
+    } // getRollbackMetrics
+    
     /**
      * Gets metrics related to given service and service path.
      * @param service
@@ -226,6 +426,25 @@ public class CygnusMetrics {
         } // for
         
         this.allAggrMetrics.merge(other.allAggrMetrics);
+        
+        for (String pool : other.perPoolMetrics.keySet()) {
+            PoolMetrics otherMetrics = other.perPoolMetrics.get(pool);
+            addPoolMetrics(pool, otherMetrics.activeConnections, otherMetrics.idleConnections, otherMetrics.waits,
+                    otherMetrics.waitTimeouts, otherMetrics.createdConnections, otherMetrics.closedConnections,
+                    otherMetrics.creationRate);
+        } // for
+        
+        for (String table : other.perTableMetrics.keySet()) {
+            TableMetrics otherMetrics = other.perTableMetrics.get(table);
+            addTableMetrics(table, otherMetrics.cappedRecords, otherMetrics.expiredRecords, otherMetrics.deletions,
+                    otherMetrics.deletionTime);
+        } // for
+        
+        for (String sink : other.perSinkRollbackMetrics.keySet()) {
+            RollbackMetrics otherMetrics = other.perSinkRollbackMetrics.get(sink);
+            addRollbackMetrics(sink, otherMetrics.pendingBatches, otherMetrics.queuedBytes,
+                    otherMetrics.oldestPendingAge);
+        } // for
     } // merge
     
     /**
@@ -281,6 +500,54 @@ public class CygnusMetrics {
             json += "},\"sum\":" + allAggrMetrics.toJsonString() + "}}";
         } // if else
         
+        if (!perPoolMetrics.isEmpty()) {
+            json = json.substring(0, json.length() - 1) + ",\"pools\":{";
+            boolean firstPool = true;
+            
+            for (String pool : perPoolMetrics.keySet()) {
+                if (firstPool) {
+                    json += "\"" + pool + "\":" + perPoolMetrics.get(pool).toJsonString();
+                    firstPool = false;
+                } else {
+                    json += ",\"" + pool + "\":" + perPoolMetrics.get(pool).toJsonString();
+                } // if else
+            } // for
+            
+            json += "}}";
+        } // if
+        
+        if (!perTableMetrics.isEmpty()) {
+            json = json.substring(0, json.length() - 1) + ",\"tables\":{";
+            boolean firstTable = true;
+            
+            for (String table : perTableMetrics.keySet()) {
+                if (firstTable) {
+                    json += "\"" + table + "\":" + perTableMetrics.get(table).toJsonString();
+                    firstTable = false;
+                } else {
+                    json += ",\"" + table + "\":" + perTableMetrics.get(table).toJsonString();
+                } // if else
+            } // for
+            
+            json += "}}";
+        } // if
+        
+        if (!perSinkRollbackMetrics.isEmpty()) {
+            json = json.substring(0, json.length() - 1) + ",\"rollbacks\":{";
+            boolean firstSink = true;
+            
+            for (String sink : perSinkRollbackMetrics.keySet()) {
+                if (firstSink) {
+                    json += "\"" + sink + "\":" + perSinkRollbackMetrics.get(sink).toJsonString();
+                    firstSink = false;
+                } else {
+                    json += ",\"" + sink + "\":" + perSinkRollbackMetrics.get(sink).toJsonString();
+                } // if else
+            } // for
+            
+            json += "}}";
+        } // if
+        
         return json;
     } // toJsonString
 
@@ -291,8 +558,11 @@ public class CygnusMetrics {
         
         private long incomingTransactions;
         private long incomingTransactionRequestSize;
+        private long incomingTransactionDecodedSize;
         private long incomingTransactionResponseSize;
         private long incomingTransactionErrors;
+        private long incomingTransactionsShed;
+        private long incomingTransactionsThrottled;
         private double serviceTime;
         private long outgoingTransactions;
         private long outgoingTransactionRequestSize;
@@ -306,8 +576,11 @@ public class CygnusMetrics {
         public Metrics() {
             incomingTransactions = 0;
             incomingTransactionRequestSize = 0;
+            incomingTransactionDecodedSize = 0;
             incomingTransactionResponseSize = 0;
             incomingTransactionErrors = 0;
+            incomingTransactionsShed = 0;
+            incomingTransactionsThrottled = 0;
             serviceTime = 0;
             outgoingTransactions = 0;
             outgoingTransactionRequestSize = 0;
@@ -323,6 +596,10 @@ public class CygnusMetrics {
             return incomingTransactionRequestSize;
         } // getIncomingTransactionRequestSize
 
+        public long getIncomingTransactionDecodedSize() {
+            return incomingTransactionDecodedSize;
+        } // getIncomingTransactionDecodedSize
+
         public long getIncomingTransactionResponseSize() {
             return incomingTransactionResponseSize;
         } // getIncomingTransactionResponseSize
@@ -330,6 +607,14 @@ public class CygnusMetrics {
         public long getIncomingTransactionErrors() {
             return incomingTransactionErrors;
         } // getIncomingTransactionErrors
+
+        public long getIncomingTransactionsShed() {
+            return incomingTransactionsShed;
+        } // getIncomingTransactionsShed
+
+        public long getIncomingTransactionsThrottled() {
+            return incomingTransactionsThrottled;
+        } // getIncomingTransactionsThrottled
         
         public double getServiceTime() {
             return serviceTime;
@@ -367,6 +652,14 @@ public class CygnusMetrics {
             this.incomingTransactionRequestSize += incomingTransactionRequestSize;
         } // addIncomingTransactionRequestSize
 
+        /**
+         * Adds as many decoded bytes for compressed incoming transaction requests as given.
+         * @param incomingTransactionDecodedSize
+         */
+        public void addIncomingTransactionDecodedSize(long incomingTransactionDecodedSize) {
+            this.incomingTransactionDecodedSize += incomingTransactionDecodedSize;
+        } // addIncomingTransactionDecodedSize
+
         /**
          * Adds as many bytes for incoming transaction responses as given.
          * @param incomingTransactionResponseSize
@@ -382,6 +675,22 @@ public class CygnusMetrics {
         public void addIncomingTransactionErrors(long incomingTransactionErrors) {
             this.incomingTransactionErrors += incomingTransactionErrors;
         } // addIncomingTransactionErrors
+
+        /**
+         * Adds as many incoming transactions shed because of backpressure as given.
+         * @param incomingTransactionsShed
+         */
+        public void addIncomingTransactionsShed(long incomingTransactionsShed) {
+            this.incomingTransactionsShed += incomingTransactionsShed;
+        } // addIncomingTransactionsShed
+
+        /**
+         * Adds as many incoming transactions throttled because of rate limiting as given.
+         * @param incomingTransactionsThrottled
+         */
+        public void addIncomingTransactionsThrottled(long incomingTransactionsThrottled) {
+            this.incomingTransactionsThrottled += incomingTransactionsThrottled;
+        } // addIncomingTransactionsThrottled
         
         /**
          * Adds as many service milliseconds as given.
@@ -430,8 +739,11 @@ public class CygnusMetrics {
         public void merge(Metrics metrics) {
             incomingTransactions += metrics.incomingTransactions;
             incomingTransactionRequestSize += metrics.incomingTransactionRequestSize;
+            incomingTransactionDecodedSize += metrics.incomingTransactionDecodedSize;
             incomingTransactionResponseSize += metrics.incomingTransactionResponseSize;
             incomingTransactionErrors += metrics.incomingTransactionErrors;
+            incomingTransactionsShed += metrics.incomingTransactionsShed;
+            incomingTransactionsThrottled += metrics.incomingTransactionsThrottled;
             serviceTime += metrics.serviceTime;
             outgoingTransactions += metrics.outgoingTransactions;
             outgoingTransactionRequestSize += metrics.outgoingTransactionRequestSize;
@@ -448,8 +760,17 @@ public class CygnusMetrics {
             
             return "{\"incomingTransactions\":" + incomingTransactions + ","
                     + "\"incomingTransactionRequestSize\":" + incomingTransactionRequestSize + ","
+                    // only shown when compressed requests have been received, for backwards compatibility
+                    + (incomingTransactionDecodedSize == 0 ? ""
+                            : "\"incomingTransactionDecodedSize\":" + incomingTransactionDecodedSize + ",")
                     + "\"incomingTransactionResponseSize\":" + incomingTransactionResponseSize + ","
                     + "\"incomingTransactionErrors\":" + incomingTransactionErrors + ","
+                    // only shown when requests have been shed, for backwards compatibility
+                    + (incomingTransactionsShed == 0 ? ""
+                            : "\"incomingTransactionsShed\":" + incomingTransactionsShed + ",")
+                    // only shown when requests have been throttled, for backwards compatibility
+                    + (incomingTransactionsThrottled == 0 ? ""
+                            : "\"incomingTransactionsThrottled\":" + incomingTransactionsThrottled + ",")
                     + "\"serviceTime\":" + avg + ","
                     + "\"outgoingTransactions\":" + outgoingTransactions + ","
                     + "\"outgoingTransactionRequestSize\":" + outgoingTransactionRequestSize + ","
@@ -459,4 +780,165 @@ public class CygnusMetrics {
         
     } // Metrics
     
+    /**
+     * Connection pool metrics class.
+     */
+    public class PoolMetrics {
+        
+        private long activeConnections;
+        private long idleConnections;
+        private long waits;
+        private long waitTimeouts;
+        private long createdConnections;
+        private long closedConnections;
+        private double creationRate;
+        
+        /**
+         * Constructor.
+         */
+        public PoolMetrics() {
+            activeConnections = 0;
+            idleConnections = 0;
+            waits = 0;
+            waitTimeouts = 0;
+            createdConnections = 0;
+            closedConnections = 0;
+            creationRate = 0;
+        } // PoolMetrics
+        
+        public long getActiveConnections() {
+            return activeConnections;
+        } // getActiveConnections
+        
+        public long getIdleConnections() {
+            return idleConnections;
+        } // getIdleConnections
+        
+        public long getWaits() {
+            return waits;
+        } // getWaits
+        
+        public long getWaitTimeouts() {
+            return waitTimeouts;
+        } // getWaitTimeouts
+        
+        public long getCreatedConnections() {
+            return createdConnections;
+        } // getCreatedConnections
+        
+        public long getClosedConnections() {
+            return closedConnections;
+        } // getClosedConnections
+        
+        public double getCreationRate() {
+            return creationRate;
+        } // getCreationRate
+        
+        /**
+         * Gets the Json string for this metrics.
+         * @return The Json string for this metrics
+         */
+        public String toJsonString() {
+            return "{\"activeConnections\":" + activeConnections + ","
+                    + "\"idleConnections\":" + idleConnections + ","
+                    + "\"waits\":" + waits + ","
+                    + "\"waitTimeouts\":" + waitTimeouts + ","
+                    + "\"createdConnections\":" + createdConnections + ","
+                    + "\"closedConnections\":" + closedConnections + ","
+                    + "\"creationRate\":" + creationRate + "}";
+        } // toJsonString
+        
+    } // PoolMetrics
+    
+    /**
+     * Table capping and expiration metrics class.
+     */
+    public class TableMetrics {
+        
+        private long cappedRecords;
+        private long expiredRecords;
+        private long deletions;
+        private long deletionTime;
+        
+        /**
+         * Constructor.
+         */
+        public TableMetrics() {
+            cappedRecords = 0;
+            expiredRecords = 0;
+            deletions = 0;
+            deletionTime = 0;
+        } // TableMetrics
+        
+        public long getCappedRecords() {
+            return cappedRecords;
+        } // getCappedRecords
+        
+        public long getExpiredRecords() {
+            return expiredRecords;
+        } // getExpiredRecords
+        
+        public long getDeletions() {
+            return deletions;
+        } // getDeletions
+        
+        public long getDeletionTime() {
+            return deletionTime;
+        } // getDeletionTime
+        
+        /**
+         * Gets the Json string for this metrics.
+         * @return The Json string for this metrics
+         */
+        public String toJsonString() {
+            return "{\"cappedRecords\":" + cappedRecords + ","
+                    + "\"expiredRecords\":" + expiredRecords + ","
+                    + "\"deletions\":" + deletions + ","
+                    + "\"deletionTime\":" + deletionTime + "}";
+        } // toJsonString
+        
+    } // TableMetrics
+    
+    /**
+     * Rollback queue metrics class.
+     */
+    public class RollbackMetrics {
+        
+        private long pendingBatches;
+        private long queuedBytes;
+        private long oldestPendingAge;
+        
+        /**
+         * Constructor.
+         */
+        public RollbackMetrics() {
+            pendingBatches = 0;
+            queuedBytes = 0;
+            oldestPendingAge = 0;
+        } // RollbackMetrics
+        
+        public long getPendingBatches() {
+            return pendingBatches;
+        } // getPendingBatches
+        
+        public long getQueuedBytes() {
+            return queuedBytes;
+        } // getQueuedBytes
+        
+        public long getOldestPendingAge() {
+            return oldestPendingAge;
+        } // getOldestPendingAge
+        
+        /**
+         * Gets the Json string for this metrics.
+         * @return The Json string for this metrics
+         */
+        public String toJsonString() {
+            return "{\"pendingBatches\":" + pendingBatches + ","
+                    + "\"queuedBytes\":" + queuedBytes + ","
+                    + "\"oldestPendingAge\":" + oldestPendingAge + "}";
+        } // toJsonString
+        
+    } // RollbackMetrics
+    
 } // CygnusMetrics
@@ -109,6 +109,15 @@ public class CygnusApplication extends Application {
         } // try catch
     } // CygnusApplication
     
+    /**
+     * Gets the channels of the agent. It is used by those components needing to know the state of the channels, such
+     * as the HTTP handlers when applying backpressure.
+     * @return The channels of the agent, null if the agent has not been configured yet
+     */
+    public static ImmutableMap<String, Channel> getChannels() {
+        return channelsRef;
+    } // getChannels
+    
     /**
      * Gets a reference to the private variable "supervisor" within the super class "Application". This is achieved by
      * using Java Reflection.
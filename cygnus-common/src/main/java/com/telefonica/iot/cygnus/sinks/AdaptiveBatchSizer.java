@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+/**
+ * Adapts the batch size and the number of concurrently persisted sub-batches of a sink to the observed persistence
+ * latency and errors, within the configured bounds:
+ *
+ *  - If the persistence fails, both the batch size and the concurrency are halved.
+ *  - If the persistence takes longer than the target latency, the batch size is shrunk proportionally to the excess
+ *    of latency, and the concurrency is decreased by one.
+ *  - If a full batch is persisted within the target latency, the batch size grows a 10%, and the concurrency is
+ *    increased by one.
+ *  - If a not full batch (i.e. accumulated until the batch timeout) is persisted within the target latency, the
+ *    batch size is shrunk halfway towards the number of accumulated events, thus low rates of events are not delayed
+ *    until the batch timeout.
+ *
+ * The observed latency and error rate are exponentially weighted moving averages, only used for reporting purposes.
+ * Only the sink runner thread notifies batches, thus the values are volatile instead of locked; GET /v1/stats may
+ * report the batch size of an adaptation and the concurrency of the next one, which is harmless.
+ *
+ * @author frb
+ */
+public class AdaptiveBatchSizer {
+
+    private static final double GROWTH_FACTOR = 0.1;
+    private static final double EWMA_WEIGHT = 0.2;
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatency;
+    private final int maxConcurrency;
+    private volatile int batchSize;
+    private volatile int concurrency;
+    private volatile double observedLatency;
+    private volatile double observedErrorRate;
+    private volatile long numBatches;
+
+    /**
+     * Constructor.
+     * @param initialBatchSize
+     * @param minBatchSize
+     * @param maxBatchSize
+     * @param targetLatency Target persistence latency per batch, in milliseconds
+     * @param maxConcurrency Maximum number of concurrently persisted sub-batches
+     */
+    public AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize, long targetLatency,
+            int maxConcurrency) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.targetLatency = targetLatency;
+        this.maxConcurrency = maxConcurrency;
+        this.batchSize = clamp(initialBatchSize, minBatchSize, maxBatchSize);
+        this.concurrency = maxConcurrency;
+        this.observedLatency = 0;
+        this.observedErrorRate = 0;
+        this.numBatches = 0;
+    } // AdaptiveBatchSizer
+
+    /**
+     * Gets the current target batch size.
+     * @return The current target batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    } // getBatchSize
+
+    /**
+     * Gets the current maximum number of concurrently persisted sub-batches.
+     * @return The current maximum number of concurrently persisted sub-batches
+     */
+    public int getConcurrency() {
+        return concurrency;
+    } // getConcurrency
+
+    /**
+     * Gets the observed persistence latency per batch, in milliseconds.
+     * @return The observed persistence latency per batch, in milliseconds
+     */
+    public double getObservedLatency() {
+        return observedLatency;
+    } // getObservedLatency
+
+    /**
+     * Gets the observed ratio of failed batches.
+     * @return The observed ratio of failed batches
+     */
+    public double getObservedErrorRate() {
+        return observedErrorRate;
+    } // getObservedErrorRate
+
+    /**
+     * Notifies a batch has been persisted, or it has failed, adapting the batch size and the concurrency.
+     * @param numEvents Number of events within the batch
+     * @param latency Time spent persisting the batch, in milliseconds
+     * @param failed True if the batch could not be persisted because of the persistence backend
+     */
+    public void onBatchPersisted(int numEvents, long latency, boolean failed) {
+        double weight = numBatches == 0 ? 1 : EWMA_WEIGHT;
+        observedLatency = (1 - weight) * observedLatency + weight * latency;
+        observedErrorRate = (1 - weight) * observedErrorRate + weight * (failed ? 1 : 0);
+        numBatches++;
+        int newBatchSize;
+        int newConcurrency;
+
+        if (failed) {
+            newBatchSize = batchSize / 2;
+            newConcurrency = concurrency / 2;
+        } else if (latency > targetLatency) {
+            newBatchSize = Math.max((int) (batchSize * ((double) targetLatency / latency)), batchSize / 2);
+            newConcurrency = concurrency - 1;
+        } else if (numEvents >= batchSize) {
+            newBatchSize = batchSize + Math.max(1, (int) (batchSize * GROWTH_FACTOR));
+            newConcurrency = concurrency + 1;
+        } else {
+            newBatchSize = (batchSize + numEvents) / 2;
+            newConcurrency = concurrency;
+        } // if else
+
+        batchSize = clamp(newBatchSize, minBatchSize, maxBatchSize);
+        concurrency = clamp(newConcurrency, 1, maxConcurrency);
+    } // onBatchPersisted
+
+    /**
+     * Gets a Json representation of the current values.
+     * @return A Json representation of the current values
+     */
+    public String toJsonString() {
+        return "{\"batch_size\":" + batchSize + ","
+                + "\"min_batch_size\":" + minBatchSize + ","
+                + "\"max_batch_size\":" + maxBatchSize + ","
+                + "\"concurrency\":" + concurrency + ","
+                + "\"target_latency\":" + targetLatency + ","
+                + "\"observed_latency\":" + Math.round(observedLatency) + ","
+                + "\"observed_error_rate\":" + (Math.round(observedErrorRate * 1000) / 1000.0) + "}";
+    } // toJsonString
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    } // clamp
+
+} // AdaptiveBatchSizer
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.utils.CommonUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import org.json.simple.JSONObject;
+
+/**
+ * Circuit breakers per destination of a sink:
+ *
+ *  - A closed breaker allows writing into its destination. It opens after a given number of consecutive failures.
+ *  - An open breaker short-circuits the writes into its destination. Once the open time is elapsed, it is half-opened
+ *    in order to probe the destination.
+ *  - A half-open breaker allows a probe write into its destination. It closes if the probe succeeds, otherwise it
+ *    opens again.
+ *
+ * Only the destinations having failed are tracked; a destination is forgotten once written with success.
+ *
+ * Even if the sub-batches are persisted concurrently, the outcomes are collected, and the breakers updated, by the
+ * sink runner thread alone; the only concurrent access is GET /v1/stats serializing the breakers from a management
+ * interface thread, which is why the methods are synchronized.
+ *
+ * @author frb
+ */
+public class CircuitBreakers {
+
+    /**
+     * Available circuit breaker states.
+     */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openTime;
+    private final HashMap<String, CircuitBreaker> breakers;
+
+    /**
+     * Circuit breaker of a single destination.
+     */
+    private static class CircuitBreaker {
+
+        private State state;
+        private int consecutiveFailures;
+        private long openedAt;
+        private long nextProbe;
+        private int numParkedEvents;
+
+        CircuitBreaker() {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+            openedAt = 0;
+            nextProbe = 0;
+            numParkedEvents = 0;
+        } // CircuitBreaker
+
+    } // CircuitBreaker
+
+    /**
+     * Constructor.
+     * @param failureThreshold Number of consecutive failures opening a breaker
+     * @param openTime Time a breaker is open before being half-opened, in milliseconds
+     */
+    public CircuitBreakers(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.breakers = new HashMap<>();
+    } // CircuitBreakers
+
+    /**
+     * Gets the state of the breaker of the given destination.
+     * @param destination
+     * @return The state of the breaker of the given destination
+     */
+    public synchronized State getState(String destination) {
+        CircuitBreaker breaker = breakers.get(destination);
+        return breaker == null ? State.CLOSED : breaker.state;
+    } // getState
+
+    /**
+     * Gets if the given destination can be written, i.e. if its breaker is not open.
+     * @param destination
+     * @return True if the given destination can be written, false otherwise
+     */
+    public synchronized boolean allowsWrites(String destination) {
+        CircuitBreaker breaker = breakers.get(destination);
+        return breaker == null || breaker.state != State.OPEN;
+    } // allowsWrites
+
+    /**
+     * Half-opens the open breakers whose open time has elapsed.
+     * @param now Current time, in milliseconds
+     * @return The destinations whose breakers have been half-opened
+     */
+    public synchronized ArrayList<String> halfOpen(long now) {
+        ArrayList<String> destinations = new ArrayList<>();
+
+        for (Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            CircuitBreaker breaker = entry.getValue();
+
+            if (breaker.state == State.OPEN && breaker.nextProbe <= now) {
+                breaker.state = State.HALF_OPEN;
+                destinations.add(entry.getKey());
+            } // if
+        } // for
+
+        return destinations;
+    } // halfOpen
+
+    /**
+     * Notifies the given destination has been successfully written, closing its breaker.
+     * @param destination
+     */
+    public synchronized void onSuccess(String destination) {
+        CircuitBreaker breaker = breakers.get(destination);
+
+        if (breaker != null && breaker.numParkedEvents == 0) {
+            breakers.remove(destination);
+        } else if (breaker != null) {
+            breaker.state = State.CLOSED;
+            breaker.consecutiveFailures = 0;
+        } // if else
+    } // onSuccess
+
+    /**
+     * Notifies the given destination could not be written, opening its breaker if the failure threshold is reached or
+     * if it was half-open.
+     * @param destination
+     * @param now Current time, in milliseconds
+     * @return True if the breaker is open, false otherwise
+     */
+    public synchronized boolean onFailure(String destination, long now) {
+        CircuitBreaker breaker = breakers.get(destination);
+
+        if (breaker == null) {
+            breaker = new CircuitBreaker();
+            breakers.put(destination, breaker);
+        } // if
+
+        breaker.consecutiveFailures++;
+
+        if (breaker.state == State.HALF_OPEN || breaker.consecutiveFailures >= failureThreshold) {
+            if (breaker.state == State.CLOSED) {
+                breaker.openedAt = now;
+            } // if
+
+            breaker.state = State.OPEN;
+            breaker.nextProbe = now + openTime;
+        } // if
+
+        return breaker.state == State.OPEN;
+    } // onFailure
+
+    /**
+     * Sets the number of events parked for the given destination while its breaker is not closed.
+     * @param destination
+     * @param numParkedEvents
+     */
+    public synchronized void setNumParkedEvents(String destination, int numParkedEvents) {
+        CircuitBreaker breaker = breakers.get(destination);
+
+        if (breaker != null) {
+            breaker.numParkedEvents = numParkedEvents;
+
+            if (numParkedEvents == 0 && breaker.state == State.CLOSED) {
+                breakers.remove(destination);
+            } // if
+        } // if
+    } // setNumParkedEvents
+
+    /**
+     * Gets the number of not closed breakers.
+     * @return The number of not closed breakers
+     */
+    public synchronized int getNumNotClosed() {
+        int num = 0;
+
+        for (CircuitBreaker breaker : breakers.values()) {
+            if (breaker.state != State.CLOSED) {
+                num++;
+            } // if
+        } // for
+
+        return num;
+    } // getNumNotClosed
+
+    /**
+     * Gets a Json representation of the not closed breakers.
+     * @return A Json representation of the not closed breakers
+     */
+    public synchronized String toJsonString() {
+        String jsonStr = "[";
+        boolean first = true;
+
+        for (Entry<String, CircuitBreaker> entry : breakers.entrySet()) {
+            CircuitBreaker breaker = entry.getValue();
+
+            if (breaker.state == State.CLOSED) {
+                continue;
+            } // if
+
+            if (first) {
+                first = false;
+            } else {
+                jsonStr += ",";
+            } // if else
+
+            jsonStr += "{\"destination\":\"" + JSONObject.escape(entry.getKey()) + "\","
+                    + "\"state\":\"" + breaker.state + "\","
+                    + "\"consecutive_failures\":" + breaker.consecutiveFailures + ","
+                    + "\"opened_at\":\"" + CommonUtils.getHumanReadable(breaker.openedAt, true) + "\","
+                    + "\"next_probe\":\"" + CommonUtils.getHumanReadable(breaker.nextProbe, true) + "\","
+                    + "\"num_parked_events\":" + breaker.numParkedEvents + "}";
+        } // for
+
+        return jsonStr + "]";
+    } // toJsonString
+
+} // CircuitBreakers
@@ -33,6 +33,18 @@ public abstract class CygnusSink extends AbstractSink {
     protected long numPersistedEvents = 0;
     protected CygnusMetrics serviceMetrics = new CygnusMetrics();
     
+    // adaptive batching, null if not enabled
+    protected AdaptiveBatchSizer adaptiveBatchSizer = null;
+    
+    // circuit breakers per destination, null if not enabled
+    protected CircuitBreakers circuitBreakers = null;
+    
+    // heap budget shared by all the sinks, null if not enabled
+    protected HeapGuard heapGuard = null;
+    
+    // registration within the shared expiration scheduler, null if time-based expiration is not enabled
+    protected ExpirationScheduler.Registration expirationRegistration = null;
+    
     /**
      * Gets the setup time.
      * @return The setup time (in miliseconds)
@@ -89,4 +101,56 @@ public abstract class CygnusSink extends AbstractSink {
         this.serviceMetrics = serviceMetrics;
     } // setServiceMetrics
     
+    /**
+     * Gets the age of the oldest event accumulated but not yet persisted. It is meant to be overridden by the sinks
+     * accumulating events.
+     * @return The age of the oldest accumulated event (in miliseconds), 0 if there are no accumulated events, or -1
+     * if this sink does not accumulate events
+     */
+    public long getOldestAccumulatedEventAge() {
+        return -1;
+    } // getOldestAccumulatedEventAge
+    
+    /**
+     * Gets the number of event bytes accumulated but not yet persisted. It is meant to be overridden by the sinks
+     * accumulating events.
+     * @return The number of accumulated event bytes, or -1 if this sink does not accumulate events
+     */
+    public long getAccumulatedBytes() {
+        return -1;
+    } // getAccumulatedBytes
+    
+    /**
+     * Gets the heap budget shared by all the sinks.
+     * @return The heap budget shared by all the sinks, or null if not enabled for this sink
+     */
+    public HeapGuard getHeapGuard() {
+        return heapGuard;
+    } // getHeapGuard
+    
+    /**
+     * Gets the adaptive batch sizer.
+     * @return The adaptive batch sizer, or null if adaptive batching is not enabled
+     */
+    public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+        return adaptiveBatchSizer;
+    } // getAdaptiveBatchSizer
+    
+    /**
+     * Gets the circuit breakers per destination.
+     * @return The circuit breakers per destination, or null if circuit breakers are not enabled
+     */
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    } // getCircuitBreakers
+    
+    /**
+     * Gets the registration within the shared expiration scheduler.
+     * @return The registration within the shared expiration scheduler, or null if time-based expiration is not
+     * enabled
+     */
+    public ExpirationScheduler.Registration getExpirationRegistration() {
+        return expirationRegistration;
+    } // getExpirationRegistration
+    
 } // CygnusSink
@@ -0,0 +1,587 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.errors.CygnusExpiratingError;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.utils.CommonUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONObject;
+
+/**
+ * Time-based expiration scheduler shared by all the sinks:
+ *
+ *  - Each sink registers an expirator, able to list its destinations (e.g. tables) and to expirate a bounded number
+ *    of records from a single destination.
+ *  - Every checking time, the destinations of a sink are listed and queued, the most behind the expiration horizon
+ *    first, and the largest first when equally behind.
+ *  - The queued destinations are expirated by a bounded pool of worker threads, shared by all the sinks, a bounded
+ *    number of records at a time and paced according to a deletes-per-second budget per sink.
+ *  - A cycle not finished within the checking time is not restarted, but resumed where it left off; destinations are
+ *    listed again once all the queued ones have been expirated.
+ *
+ * The lag of each destination (how far behind the expiration horizon its oldest record was when listed) is kept
+ * until the destination is fully expirated, in order to be reported.
+ *
+ * @author frb
+ */
+public final class ExpirationScheduler {
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(ExpirationScheduler.class);
+    private static final long TICK_INTERVAL = 1000;
+    private static ExpirationScheduler instance = null;
+    private final ScheduledExecutorService ticker;
+    private final ThreadPoolExecutor workers;
+    private final CopyOnWriteArrayList<Registration> registrations;
+
+    /**
+     * Interface for those sinks able to expirate records.
+     */
+    public interface Expirator {
+
+        /**
+         * Gets the destinations whose records may be expirated.
+         * @return The destinations whose records may be expirated
+         * @throws CygnusExpiratingError
+         */
+        ArrayList<Destination> getExpirationDestinations() throws CygnusExpiratingError;
+
+        /**
+         * Expirates, at most, the given number of records received before the given horizon from the given
+         * destination.
+         * @param destination
+         * @param horizon Expiration horizon, in milliseconds
+         * @param maxRecords Maximum number of records to be expirated
+         * @return The number of expirated records
+         * @throws CygnusExpiratingError
+         */
+        long expirate(String destination, long horizon, long maxRecords) throws CygnusExpiratingError;
+
+    } // Expirator
+
+    /**
+     * Destination whose records may be expirated.
+     */
+    public static class Destination {
+
+        private final String name;
+        private final long numRecords;
+        private final long oldestRecordTime;
+
+        /**
+         * Constructor.
+         * @param name
+         * @param numRecords Approximate number of records, or -1 if unknown
+         * @param oldestRecordTime Reception time of the oldest record (in milliseconds), 0 if there are no records,
+         * or -1 if unknown
+         */
+        public Destination(String name, long numRecords, long oldestRecordTime) {
+            this.name = name;
+            this.numRecords = numRecords;
+            this.oldestRecordTime = oldestRecordTime;
+        } // Destination
+
+        public String getName() {
+            return name;
+        } // getName
+
+        public long getNumRecords() {
+            return numRecords;
+        } // getNumRecords
+
+        public long getOldestRecordTime() {
+            return oldestRecordTime;
+        } // getOldestRecordTime
+
+    } // Destination
+
+    /**
+     * Orders the destinations by oldest record time (unknown ones last), and then by number of records (largest
+     * first).
+     */
+    private static final Comparator<Destination> PRIORITY = new Comparator<Destination>() {
+
+        @Override
+        public int compare(Destination d1, Destination d2) {
+            long t1 = d1.oldestRecordTime < 0 ? Long.MAX_VALUE : d1.oldestRecordTime;
+            long t2 = d2.oldestRecordTime < 0 ? Long.MAX_VALUE : d2.oldestRecordTime;
+
+            if (t1 != t2) {
+                return t1 < t2 ? -1 : 1;
+            } else if (d1.numRecords != d2.numRecords) {
+                return d1.numRecords > d2.numRecords ? -1 : 1;
+            } else {
+                return 0;
+            } // if else
+        } // compare
+
+    };
+
+    /**
+     * Expiration state of a registered sink. The ticker thread dispatches the destinations, several worker threads
+     * expirate them concurrently and GET /v1/stats reports the lags, thus the methods are synchronized on the
+     * registration; this way, a sink with a slow backend does not block the dispatching of the rest of sinks.
+     */
+    public static class Registration {
+
+        private final String name;
+        private final Expirator expirator;
+        private final long expirationTime;
+        private final long checkingTime;
+        private final long deletesPerSecond;
+        private final int maxThreads;
+        private final PriorityQueue<Destination> pending;
+        private final HashMap<String, Long> lags;
+        private long horizon;
+        private long nextCycle;
+        private long nextDeletion;
+        private long numExpiratedRecords;
+        private int numActive;
+        private boolean cancelled;
+
+        /**
+         * Constructor.
+         * @param name Name of the registered sink
+         * @param expirator
+         * @param expirationTime Time after which a record expires, in milliseconds
+         * @param checkingTime Time between cycles, in milliseconds
+         * @param deletesPerSecond Maximum number of expirated records per second, or 0 if unlimited
+         * @param maxThreads Maximum number of destinations concurrently expirated
+         */
+        public Registration(String name, Expirator expirator, long expirationTime, long checkingTime,
+                long deletesPerSecond, int maxThreads) {
+            this.name = name;
+            this.expirator = expirator;
+            this.expirationTime = expirationTime;
+            this.checkingTime = checkingTime;
+            this.deletesPerSecond = deletesPerSecond;
+            this.maxThreads = maxThreads;
+            this.pending = new PriorityQueue<>(11, PRIORITY);
+            this.lags = new HashMap<>();
+            this.horizon = 0;
+            this.nextCycle = 0;
+            this.nextDeletion = 0;
+            this.numExpiratedRecords = 0;
+            this.numActive = 0;
+            this.cancelled = false;
+        } // Registration
+
+        public String getName() {
+            return name;
+        } // getName
+
+        /**
+         * Starts listing the destinations for a new cycle, if the checking time has elapsed and the previous cycle is
+         * finished; the listing counts as an active expiration until the cycle is started.
+         * @param now Current time, in milliseconds
+         * @return True if the destinations must be listed, false otherwise
+         */
+        synchronized boolean startListing(long now) {
+            if (cancelled || !pending.isEmpty() || numActive > 0 || now < nextCycle) {
+                return false;
+            } // if
+
+            numActive++;
+            return true;
+        } // startListing
+
+        /**
+         * Starts a new cycle, queuing the given destinations having records received before the expiration horizon.
+         * @param destinations
+         * @param now Current time, in milliseconds
+         */
+        synchronized void startCycle(ArrayList<Destination> destinations, long now) {
+            numActive--;
+
+            if (cancelled) {
+                return;
+            } // if
+
+            // The horizon is truncated to seconds: reception times have a variable number of millisecond digits, thus
+            // they are only comparable as strings when differing in the seconds
+            horizon = ((now - expirationTime) / 1000) * 1000;
+            nextCycle = now + checkingTime;
+            lags.clear();
+
+            for (Destination destination : destinations) {
+                if (destination.numRecords == 0 || destination.oldestRecordTime == 0
+                        || destination.oldestRecordTime >= horizon) {
+                    continue;
+                } // if
+
+                pending.add(destination);
+
+                if (destination.oldestRecordTime > 0) {
+                    lags.put(destination.name, horizon - destination.oldestRecordTime);
+                } // if
+            } // for
+        } // startCycle
+
+        /**
+         * Takes the next destination to be expirated, if the maximum number of concurrently expirated destinations
+         * has not been reached.
+         * @return The next destination to be expirated, or null if none
+         */
+        synchronized Destination takeDestination() {
+            if (cancelled || numActive >= maxThreads || pending.isEmpty()) {
+                return null;
+            } // if
+
+            numActive++;
+            return pending.poll();
+        } // takeDestination
+
+        /**
+         * Gets the expiration horizon of the current cycle.
+         * @return The expiration horizon of the current cycle, in milliseconds
+         */
+        synchronized long getHorizon() {
+            return horizon;
+        } // getHorizon
+
+        /**
+         * Gets the maximum number of records to be expirated at a time from a single destination.
+         * @return The maximum number of records to be expirated at a time
+         */
+        long getMaxRecordsPerStep() {
+            return deletesPerSecond <= 0 ? Long.MAX_VALUE : Math.max(1, deletesPerSecond / maxThreads);
+        } // getMaxRecordsPerStep
+
+        /**
+         * Gets the time to wait before expirating more records, according to the deletes-per-second budget.
+         * @param now Current time, in milliseconds
+         * @return The time to wait, in milliseconds
+         */
+        synchronized long getBudgetDelay(long now) {
+            return Math.max(0, nextDeletion - now);
+        } // getBudgetDelay
+
+        /**
+         * Notifies the given destination has been expirated. If the maximum number of records was expirated, there
+         * may be more, thus the destination is queued again; otherwise, it is not behind the horizon anymore.
+         * @param destination
+         * @param numRecords Number of expirated records, or -1 if the expiration failed
+         * @param maxRecords Maximum number of records that were to be expirated
+         * @param now Current time, in milliseconds
+         */
+        synchronized void onExpirated(Destination destination, long numRecords, long maxRecords, long now) {
+            numActive--;
+
+            if (numRecords > 0) {
+                numExpiratedRecords += numRecords;
+
+                if (deletesPerSecond > 0) {
+                    nextDeletion = Math.max(nextDeletion, now) + (numRecords * 1000) / deletesPerSecond;
+                } // if
+            } // if
+
+            if (cancelled) {
+                return;
+            } // if
+
+            if (numRecords >= maxRecords) {
+                pending.add(destination);
+            } else if (numRecords >= 0) {
+                lags.remove(destination.name);
+            } // if else
+        } // onExpirated
+
+        /**
+         * Cancels this registration, discarding the queued destinations.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            pending.clear();
+        } // cancel
+
+        /**
+         * Gets the number of destinations queued for expiration.
+         * @return The number of destinations queued for expiration
+         */
+        public synchronized int getNumPendingDestinations() {
+            return pending.size();
+        } // getNumPendingDestinations
+
+        /**
+         * Gets the lag of the given destination.
+         * @param destination
+         * @return How far behind the expiration horizon the given destination is (in milliseconds), or 0 if it is
+         * not behind or unknown
+         */
+        public synchronized long getLag(String destination) {
+            Long lag = lags.get(destination);
+            return lag == null ? 0 : lag;
+        } // getLag
+
+        /**
+         * Gets the total number of expirated records.
+         * @return The total number of expirated records
+         */
+        public synchronized long getNumExpiratedRecords() {
+            return numExpiratedRecords;
+        } // getNumExpiratedRecords
+
+        /**
+         * Gets a Json representation of the expiration state, including the destinations behind the expiration
+         * horizon, the most behind first.
+         * @return A Json representation of the expiration state
+         */
+        public synchronized String toJsonString() {
+            ArrayList<Entry<String, Long>> sortedLags = new ArrayList<>(lags.entrySet());
+            Collections.sort(sortedLags, new Comparator<Entry<String, Long>>() {
+
+                @Override
+                public int compare(Entry<String, Long> e1, Entry<String, Long> e2) {
+                    return e2.getValue().compareTo(e1.getValue());
+                } // compare
+
+            });
+
+            String jsonStr = "{\"horizon\":\""
+                    + (horizon == 0 ? "unknown" : CommonUtils.getHumanReadable(horizon, true))
+                    + "\",\"num_pending_destinations\":" + pending.size()
+                    + ",\"num_expirated_records\":" + numExpiratedRecords
+                    + ",\"lagging_destinations\":[";
+
+            for (int i = 0; i < sortedLags.size(); i++) {
+                if (i > 0) {
+                    jsonStr += ",";
+                } // if
+
+                jsonStr += "{\"destination\":\"" + JSONObject.escape(sortedLags.get(i).getKey()) + "\","
+                        + "\"lag\":" + sortedLags.get(i).getValue() + "}";
+            } // for
+
+            return jsonStr + "]}";
+        } // toJsonString
+
+    } // Registration
+
+    /**
+     * Constructor. It is private since the scheduler is shared by all the sinks.
+     */
+    private ExpirationScheduler() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ExpirationScheduler");
+                thread.setDaemon(true);
+                return thread;
+            } // newThread
+
+        };
+
+        ticker = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        workers = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                threadFactory);
+        registrations = new CopyOnWriteArrayList<>();
+        ticker.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Registration registration : registrations) {
+                    dispatch(registration);
+                } // for
+            } // run
+
+        }, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    } // ExpirationScheduler
+
+    /**
+     * Gets the expiration scheduler shared by all the sinks, creating it if not yet created.
+     * @return The expiration scheduler shared by all the sinks
+     */
+    public static synchronized ExpirationScheduler getInstance() {
+        if (instance == null) {
+            instance = new ExpirationScheduler();
+        } // if
+
+        return instance;
+    } // getInstance
+
+    /**
+     * Registers a sink for expiration. The worker pool is grown, if required, in order to have as many threads as
+     * the maximum number of destinations concurrently expirated by any registered sink.
+     * @param registration
+     */
+    public synchronized void register(Registration registration) {
+        registrations.add(registration);
+        resizeWorkers();
+        LOGGER.debug("[" + registration.name + "] Registered for expiration (expiration_time="
+                + registration.expirationTime + ", checking_time=" + registration.checkingTime
+                + ", deletes_per_second=" + registration.deletesPerSecond + ", threads=" + registration.maxThreads
+                + ")");
+    } // register
+
+    /**
+     * Unregisters a sink for expiration. The destinations being expirated are not interrupted. The worker pool is
+     * shrunk, if possible, according to the remaining registered sinks.
+     * @param registration
+     */
+    public synchronized void unregister(Registration registration) {
+        registration.cancel();
+        registrations.remove(registration);
+        resizeWorkers();
+        LOGGER.debug("[" + registration.name + "] Unregistered for expiration");
+    } // unregister
+
+    /**
+     * Gets the number of threads of the worker pool.
+     * @return The number of threads of the worker pool
+     */
+    synchronized int getNumWorkers() {
+        return workers.getMaximumPoolSize();
+    } // getNumWorkers
+
+    /**
+     * Sizes the worker pool in order to have as many threads as the maximum number of destinations concurrently
+     * expirated by any registered sink, and one at least.
+     */
+    private void resizeWorkers() {
+        int numWorkers = 1;
+
+        for (Registration registration : registrations) {
+            numWorkers = Math.max(numWorkers, registration.maxThreads);
+        } // for
+
+        // The core size cannot be greater than the maximum size, thus the order depends on growing or shrinking
+        if (numWorkers > workers.getMaximumPoolSize()) {
+            workers.setMaximumPoolSize(numWorkers);
+            workers.setCorePoolSize(numWorkers);
+        } else if (numWorkers < workers.getMaximumPoolSize()) {
+            workers.setCorePoolSize(numWorkers);
+            workers.setMaximumPoolSize(numWorkers);
+        } // if else
+    } // resizeWorkers
+
+    /**
+     * Starts a new cycle for the given registration, if due, or hands its queued destinations to the workers.
+     * @param registration
+     */
+    private void dispatch(final Registration registration) {
+        if (registration.startListing(System.currentTimeMillis())) {
+            // Listing the destinations may be slow, thus it is not done by the ticker thread
+            workers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    ArrayList<Destination> destinations = new ArrayList<>();
+
+                    try {
+                        destinations = registration.expirator.getExpirationDestinations();
+                    } catch (Exception e) {
+                        LOGGER.error("[" + registration.name + "] Error while listing the destinations to be "
+                                + "expirated. Details: " + e.getMessage());
+                    } // try catch
+
+                    registration.startCycle(destinations, System.currentTimeMillis());
+                    LOGGER.debug("[" + registration.name + "] Expiration cycle started (destinations="
+                            + registration.getNumPendingDestinations() + ")");
+                    dispatch(registration);
+                } // run
+
+            });
+
+            return;
+        } // if
+
+        Destination destination;
+
+        while ((destination = registration.takeDestination()) != null) {
+            workers.execute(new ExpirationTask(registration, destination));
+        } // while
+    } // dispatch
+
+    /**
+     * Expirates a destination taken by a registration, once the deletes-per-second budget of the registration allows
+     * it. If the budget is exhausted, the task does not wait for it within a worker thread, which would stall the
+     * expirations of the rest of sinks; instead, the ticker thread hands it to the workers again once the budget
+     * allows it.
+     */
+    private class ExpirationTask implements Runnable {
+
+        private final Registration registration;
+        private final Destination destination;
+
+        /**
+         * Constructor.
+         * @param registration
+         * @param destination
+         */
+        ExpirationTask(Registration registration, Destination destination) {
+            this.registration = registration;
+            this.destination = destination;
+        } // ExpirationTask
+
+        @Override
+        public void run() {
+            long delay = registration.getBudgetDelay(System.currentTimeMillis());
+
+            if (delay > 0) {
+                ticker.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        workers.execute(ExpirationTask.this);
+                    } // run
+
+                }, delay, TimeUnit.MILLISECONDS);
+                return;
+            } // if
+
+            expirate(registration, destination);
+            dispatch(registration);
+        } // run
+
+    } // ExpirationTask
+
+    /**
+     * Expirates a bounded number of records from the given destination of the given registration.
+     * @param registration
+     * @param destination
+     */
+    private void expirate(Registration registration, Destination destination) {
+        long maxRecords = registration.getMaxRecordsPerStep();
+        long numRecords;
+
+        try {
+            numRecords = registration.expirator.expirate(destination.name, registration.getHorizon(), maxRecords);
+        } catch (Exception e) {
+            LOGGER.error("[" + registration.name + "] Error while expirating records (destination="
+                    + destination.name + "). Details: " + e.getMessage());
+            numRecords = -1;
+        } // try catch
+
+        registration.onExpirated(destination, numRecords, maxRecords, System.currentTimeMillis());
+    } // expirate
+
+} // ExpirationScheduler
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import java.util.HashMap;
+
+/**
+ * Heap budget shared by all the sinks. Each sink periodically notifies the number of event bytes it holds in memory
+ * (accumulated, rollbacked, etc.), and the sinks stop taking events from their channels while the total number of
+ * held bytes exceeds the budget.
+ *
+ * The budget is configured per sink, but it is a global one; if the sinks configure different budgets, the smallest
+ * one applies.
+ *
+ * Contrary to the per sink helpers, the heap guard is written by all the sink runner threads, each one notifying its
+ * held bytes once per processing loop; thus, its lock is shared by all the sinks, and the synchronized methods only
+ * update a map entry and a running total, never iterating the sinks.
+ *
+ * @author frb
+ */
+public class HeapGuard {
+
+    private static HeapGuard instance = null;
+    private long maxBytes;
+    private long totalBytes;
+    private final HashMap<String, Long> heldBytes;
+
+    /**
+     * Constructor. It is not public since the heap guard is shared by all the sinks.
+     */
+    HeapGuard() {
+        this.maxBytes = -1;
+        this.totalBytes = 0;
+        this.heldBytes = new HashMap<>();
+    } // HeapGuard
+
+    /**
+     * Gets the heap guard shared by all the sinks, creating it if not yet created.
+     * @return The heap guard shared by all the sinks
+     */
+    public static synchronized HeapGuard getInstance() {
+        if (instance == null) {
+            instance = new HeapGuard();
+        } // if
+
+        return instance;
+    } // getInstance
+
+    /**
+     * Sets the maximum number of bytes held by all the sinks, unless a smaller one was already set.
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        if (maxBytes > 0 && (this.maxBytes == -1 || maxBytes < this.maxBytes)) {
+            this.maxBytes = maxBytes;
+        } // if
+    } // setMaxBytes
+
+    /**
+     * Sets the number of bytes held by the given sink.
+     * @param sinkName
+     * @param bytes
+     */
+    public synchronized void setHeldBytes(String sinkName, long bytes) {
+        Long previous = heldBytes.put(sinkName, bytes);
+        totalBytes += bytes - (previous == null ? 0 : previous);
+    } // setHeldBytes
+
+    /**
+     * Removes the given sink, releasing the bytes it held.
+     * @param sinkName
+     */
+    public synchronized void remove(String sinkName) {
+        Long previous = heldBytes.remove(sinkName);
+        totalBytes -= previous == null ? 0 : previous;
+    } // remove
+
+    /**
+     * Gets if the total number of held bytes exceeds the maximum one.
+     * @return True if the total number of held bytes exceeds the maximum one, false otherwise
+     */
+    public synchronized boolean isExceeded() {
+        return maxBytes > 0 && totalBytes > maxBytes;
+    } // isExceeded
+
+    /**
+     * Gets the number of bytes held by the given sink.
+     * @param sinkName
+     * @return The number of bytes held by the given sink
+     */
+    public synchronized long getHeldBytes(String sinkName) {
+        Long bytes = heldBytes.get(sinkName);
+        return bytes == null ? 0 : bytes;
+    } // getHeldBytes
+
+    /**
+     * Gets the total number of bytes held by all the sinks.
+     * @return The total number of bytes held by all the sinks
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    } // getTotalBytes
+
+    /**
+     * Gets the maximum number of bytes held by all the sinks.
+     * @return The maximum number of bytes held by all the sinks, or -1 if there is no maximum
+     */
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    } // getMaxBytes
+
+    /**
+     * Gets a Json representation of the heap guard, as seen by the given sink.
+     * @param sinkName
+     * @return A Json representation of the heap guard
+     */
+    public synchronized String toJsonString(String sinkName) {
+        return "{\"held_bytes\":" + getHeldBytes(sinkName) + ","
+                + "\"total_bytes\":" + totalBytes + ","
+                + "\"max_bytes\":" + maxBytes + ","
+                + "\"exceeded\":" + isExceeded() + "}";
+    } // toJsonString
+
+} // HeapGuard
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Approximate number of records per destination, maintained in memory from the number of persisted records, in order
+ * to decide when a destination must be capped:
+ *
+ *  - The number of records of a destination not seen before is unknown, thus it is capped the first time it is
+ *    persisted.
+ *  - Once capped, a destination is supposed to have the maximum number of records, and it is not capped again until
+ *    such a number is exceeded by more than the given slack.
+ *  - A destination being capped is not capped again until its capping finishes.
+ *  - A destination not persisted for more than the given maximum idle time is forgotten, i.e. its number of records
+ *    is unknown again; this way, the counters do not grow with every destination ever seen.
+ *
+ * Persisted records are notified by the sink thread, while cappings finish in other threads, thus all the methods
+ * are synchronized.
+ *
+ * @author frb
+ */
+public class RecordCounters {
+
+    private final long maxRecords;
+    private final long slack;
+    private final long maxIdle;
+    private final LinkedHashMap<String, Counter> counters;
+    private final HashSet<String> pendingCappings;
+
+    /**
+     * Number of records of a single destination.
+     */
+    private static class Counter {
+
+        private long numRecords;
+        private final long lastPersisted;
+
+        Counter(long numRecords, long lastPersisted) {
+            this.numRecords = numRecords;
+            this.lastPersisted = lastPersisted;
+        } // Counter
+
+    } // Counter
+
+    /**
+     * Constructor.
+     * @param maxRecords Maximum number of records per destination
+     * @param slack Number of records a destination may exceed the maximum before being capped
+     * @param maxIdle Time (in milliseconds) after which a not persisted destination is forgotten
+     */
+    public RecordCounters(long maxRecords, long slack, long maxIdle) {
+        this.maxRecords = maxRecords;
+        this.slack = slack;
+        this.maxIdle = maxIdle;
+        this.counters = new LinkedHashMap<>();
+        this.pendingCappings = new HashSet<>();
+    } // RecordCounters
+
+    /**
+     * Notifies the given number of records have been persisted into the given destination. The destinations idle for
+     * more than the maximum idle time are forgotten as well.
+     * @param destination
+     * @param numRecords
+     * @param now Current time, in milliseconds
+     * @return True if the destination must be capped, false otherwise; if true, the capping is pending until
+     * notified as finished
+     */
+    public synchronized boolean onPersisted(String destination, long numRecords, long now) {
+        // the counter is moved to the end, thus the counters are kept from the least to the most recently persisted
+        Counter counter = counters.remove(destination);
+
+        if (counter != null) {
+            counter = new Counter(counter.numRecords + numRecords, now);
+            counters.put(destination, counter);
+        } // if
+
+        evictIdle(now);
+
+        if (pendingCappings.contains(destination)) {
+            return false;
+        } else if (counter == null || counter.numRecords > maxRecords + slack) {
+            pendingCappings.add(destination);
+            return true;
+        } else {
+            return false;
+        } // if else
+    } // onPersisted
+
+    /**
+     * Notifies the capping of the given destination has finished.
+     * @param destination
+     * @param success True if the destination was capped, false otherwise
+     * @param now Current time, in milliseconds
+     */
+    public synchronized void onCapped(String destination, boolean success, long now) {
+        pendingCappings.remove(destination);
+
+        if (!success) {
+            return;
+        } // if
+
+        Counter counter = counters.get(destination);
+
+        if (counter == null) {
+            counters.put(destination, new Counter(maxRecords, now));
+        } else {
+            counter.numRecords = maxRecords;
+        } // if else
+    } // onCapped
+
+    private void evictIdle(long now) {
+        Iterator<Counter> it = counters.values().iterator();
+
+        while (it.hasNext()) {
+            if (now - it.next().lastPersisted <= maxIdle) {
+                break;
+            } // if
+
+            it.remove();
+        } // while
+    } // evictIdle
+
+    /**
+     * Gets the approximate number of records of the given destination.
+     * @param destination
+     * @return The approximate number of records of the given destination, or -1 if unknown
+     */
+    public synchronized long getNumRecords(String destination) {
+        Counter counter = counters.get(destination);
+        return counter == null ? -1 : counter.numRecords;
+    } // getNumRecords
+
+    /**
+     * Gets the number of destinations whose number of records is known.
+     * @return The number of destinations whose number of records is known
+     */
+    public synchronized int getNumDestinations() {
+        return counters.size();
+    } // getNumDestinations
+
+    /**
+     * Gets the number of destinations whose capping is pending.
+     * @return The number of destinations whose capping is pending
+     */
+    public synchronized int getNumPendingCappings() {
+        return pendingCappings.size();
+    } // getNumPendingCappings
+
+} // RecordCounters
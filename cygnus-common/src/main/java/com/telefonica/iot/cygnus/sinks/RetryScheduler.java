@@ -0,0 +1,279 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Schedules the retries of rollbacked batches (or any other item), keeping them in a priority queue ordered by the
+ * next attempt time; thus, getting the next item to be retried does not require scanning all the pending items.
+ *
+ * The interval between attempts is either taken from a fixed list of intervals (the last one being repeated), or
+ * exponentially grown from the first interval of the list up to a maximum interval. In both cases, a random jitter
+ * may be applied to the interval, in order the retries of the items rollbacked at the same time (e.g. during an outage
+ * of the persistence backend) are spread.
+ *
+ * Items are retried in rounds. Within a round, at most a given number of items per key (e.g. per destination of the
+ * rollbacked batch) are returned; once the next item to be retried regards to a key having reached such a limit, the
+ * round ends, i.e. no more items are returned until a new round is started.
+ *
+ * Items are scheduled and polled by the sink runner thread. The methods are synchronized because the rollback
+ * metrics (GET /v1/metrics) are computed from a management interface thread, iterating the copy returned by
+ * getItems instead of the queue itself.
+ *
+ * @param <T> Type of the scheduled items
+ * @author frb
+ */
+public class RetryScheduler<T> {
+
+    private final int[] intervals;
+    private final boolean exponential;
+    private final long maxInterval;
+    private final int jitter;
+    private final int maxPerKey;
+    private final PriorityQueue<ScheduledRetry<T>> queue;
+    private final IdentityHashMap<T, ScheduledRetry<T>> scheduled;
+    private final HashMap<String, Integer> roundCounts;
+    private long sequence;
+
+    /**
+     * Scheduled retry of an item.
+     * @param <T>
+     */
+    private static class ScheduledRetry<T> implements Comparable<ScheduledRetry<T>> {
+
+        private final T item;
+        private final Collection<String> keys;
+        private final long nextAttempt;
+        private final long sequence;
+        private boolean cancelled;
+
+        ScheduledRetry(T item, Collection<String> keys, long nextAttempt, long sequence) {
+            this.item = item;
+            this.keys = keys;
+            this.nextAttempt = nextAttempt;
+            this.sequence = sequence;
+            this.cancelled = false;
+        } // ScheduledRetry
+
+        @Override
+        public int compareTo(ScheduledRetry<T> other) {
+            if (nextAttempt != other.nextAttempt) {
+                return nextAttempt < other.nextAttempt ? -1 : 1;
+            } else if (sequence != other.sequence) {
+                return sequence < other.sequence ? -1 : 1;
+            } else {
+                return 0;
+            } // if else
+        } // compareTo
+
+    } // ScheduledRetry
+
+    /**
+     * Constructor.
+     * @param intervals Retry intervals, in milliseconds; if exponential, only the first one is used
+     * @param exponential True if the retry interval is exponentially grown, false if the intervals are fixed
+     * @param maxInterval Maximum retry interval, in milliseconds, when exponentially grown
+     * @param jitter Maximum percentage of the retry interval randomly added or subtracted, between 0 and 100
+     * @param maxPerKey Maximum number of items per key returned within a retry round
+     */
+    public RetryScheduler(int[] intervals, boolean exponential, long maxInterval, int jitter, int maxPerKey) {
+        this.intervals = intervals;
+        this.exponential = exponential;
+        this.maxInterval = maxInterval;
+        this.jitter = jitter;
+        this.maxPerKey = maxPerKey;
+        this.queue = new PriorityQueue<>();
+        this.scheduled = new IdentityHashMap<>();
+        this.roundCounts = new HashMap<>();
+        this.sequence = 0;
+    } // RetryScheduler
+
+    /**
+     * Gets the interval before the given retry, without jitter.
+     * @param retry Number of the retry, starting by 0
+     * @return The interval before the given retry, in milliseconds
+     */
+    public long getInterval(int retry) {
+        if (intervals.length == 0) {
+            return 0;
+        } else if (!exponential) {
+            return intervals[Math.min(Math.max(retry, 0), intervals.length - 1)];
+        } // if else
+
+        long interval = intervals[0];
+
+        for (int i = 0; i < retry && interval < maxInterval; i++) {
+            interval *= 2;
+        } // for
+
+        return Math.min(interval, maxInterval);
+    } // getInterval
+
+    /**
+     * Schedules (or reschedules, if already scheduled) the given item.
+     * @param item
+     * @param keys Keys the item regards to, e.g. the destinations of a batch
+     * @param lastAttempt Time of the last attempt, in milliseconds
+     * @param retry Number of the next retry, starting by 0
+     * @return The time of the next attempt, in milliseconds
+     */
+    public synchronized long schedule(T item, Collection<String> keys, long lastAttempt, int retry) {
+        long interval = getInterval(retry);
+
+        if (jitter > 0 && interval > 0) {
+            double factor = 1 + (jitter / 100.0) * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+            interval = (long) (interval * factor);
+        } // if
+
+        long nextAttempt = lastAttempt + Math.max(interval, 0);
+        ScheduledRetry<T> previous = scheduled.put(item, new ScheduledRetry<>(item,
+                keys == null ? Collections.<String>emptyList() : keys, nextAttempt, sequence++));
+
+        if (previous != null) {
+            previous.cancelled = true;
+        } // if
+
+        queue.add(scheduled.get(item));
+        return nextAttempt;
+    } // schedule
+
+    /**
+     * Removes the given item, if scheduled.
+     * @param item
+     * @return True if the item was scheduled, false otherwise
+     */
+    public synchronized boolean remove(T item) {
+        ScheduledRetry<T> retry = scheduled.remove(item);
+
+        if (retry == null) {
+            return false;
+        } // if
+
+        retry.cancelled = true;
+        return true;
+    } // remove
+
+    /**
+     * Starts a new retry round.
+     */
+    public synchronized void startRound() {
+        roundCounts.clear();
+    } // startRound
+
+    /**
+     * Gets and unschedules the next item to be retried, if its next attempt time has been reached and the maximum
+     * number of items per key has not been reached for its keys within the current round.
+     * @param now Current time, in milliseconds
+     * @return The next item to be retried, or null if there is no item to be retried within the current round
+     */
+    public synchronized T poll(long now) {
+        ScheduledRetry<T> head = queue.peek();
+
+        while (head != null && head.cancelled) {
+            queue.poll();
+            head = queue.peek();
+        } // while
+
+        if (head == null || head.nextAttempt > now) {
+            return null;
+        } // if
+
+        for (String key : head.keys) {
+            Integer count = roundCounts.get(key);
+
+            if (count != null && count >= maxPerKey) {
+                return null;
+            } // if
+        } // for
+
+        for (String key : head.keys) {
+            Integer count = roundCounts.get(key);
+            roundCounts.put(key, count == null ? 1 : count + 1);
+        } // for
+
+        queue.poll();
+        scheduled.remove(head.item);
+        return head.item;
+    } // poll
+
+    /**
+     * Gets the time of the next attempt of the next item to be retried.
+     * @return The time of the next attempt of the next item to be retried, in milliseconds, or -1 if there are no
+     * scheduled items
+     */
+    public synchronized long getNextAttempt() {
+        ScheduledRetry<T> head = queue.peek();
+
+        while (head != null && head.cancelled) {
+            queue.poll();
+            head = queue.peek();
+        } // while
+
+        return head == null ? -1 : head.nextAttempt;
+    } // getNextAttempt
+
+    /**
+     * Gets the number of scheduled items.
+     * @return The number of scheduled items
+     */
+    public synchronized int size() {
+        return scheduled.size();
+    } // size
+
+    /**
+     * Gets if there are no scheduled items.
+     * @return True if there are no scheduled items, false otherwise
+     */
+    public synchronized boolean isEmpty() {
+        return scheduled.isEmpty();
+    } // isEmpty
+
+    /**
+     * Gets a copy of the scheduled items, ordered by next attempt time.
+     * @return A copy of the scheduled items, ordered by next attempt time
+     */
+    public synchronized ArrayList<T> getItems() {
+        ArrayList<ScheduledRetry<T>> retries = new ArrayList<>(scheduled.values());
+        Collections.sort(retries);
+        ArrayList<T> items = new ArrayList<>(retries.size());
+
+        for (ScheduledRetry<T> retry : retries) {
+            items.add(retry.item);
+        } // for
+
+        return items;
+    } // getItems
+
+    /**
+     * Removes all the scheduled items.
+     */
+    public synchronized void clear() {
+        queue.clear();
+        scheduled.clear();
+        roundCounts.clear();
+    } // clear
+
+} // RetryScheduler
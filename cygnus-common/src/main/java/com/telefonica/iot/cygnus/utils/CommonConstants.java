@@ -34,7 +34,8 @@ public final class CommonConstants {
     public static final String NA = "N/A";
     
     // Http header names
-    public static final String HTTP_HEADER_CONTENT_TYPE = "content-type";
+    public static final String HTTP_HEADER_CONTENT_TYPE     = "content-type";
+    public static final String HTTP_HEADER_CONTENT_ENCODING = "content-encoding";
     
     // Http headers probably used by Flume events as well... TBD: should not be here!!
     public static final String HEADER_FIWARE_SERVICE      = "fiware-service";
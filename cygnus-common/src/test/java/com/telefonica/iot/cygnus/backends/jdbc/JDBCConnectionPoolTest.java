@@ -0,0 +1,268 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.backends.jdbc;
+
+import com.telefonica.iot.cygnus.backends.jdbc.JDBCConnectionPool.ConnectionFactory;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLTransientConnectionException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import static org.mockito.Mockito.when;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ *
+ * @author frb
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class JDBCConnectionPoolTest {
+
+    // mocks
+    @Mock
+    private ConnectionFactory mockFactory;
+    @Mock
+    private Connection mockConnection1;
+    @Mock
+    private Connection mockConnection2;
+    @Mock
+    private Connection mockConnection3;
+
+    /**
+     * Sets up tests by defining the behaviour of the mocked classes.
+     *
+     * @throws Exception
+     */
+    @Before
+    public void setUp() throws Exception {
+        when(mockFactory.createConnection(Mockito.anyString())).thenReturn(mockConnection1, mockConnection2,
+                mockConnection3);
+        when(mockConnection1.isValid(Mockito.anyInt())).thenReturn(true);
+        when(mockConnection2.isValid(Mockito.anyInt())).thenReturn(true);
+        when(mockConnection3.isValid(Mockito.anyInt())).thenReturn(true);
+    } // setUp
+
+    /**
+     * [JDBCConnectionPool.getConnection] -------- A returned connection is reused instead of creating a new one.
+     */
+    @Test
+    public void testGetConnectionReusesReturnedConnection() {
+        System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                + "-------- A returned connection is reused instead of creating a new one");
+        JDBCConnectionPool pool = new JDBCConnectionPool("somePool", mockFactory, 10, 5, 100, 300, 0);
+
+        try {
+            Connection con = pool.getConnection("someDb");
+            con.close();
+            con = pool.getConnection("someDb");
+            con.close();
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - There was some problem when getting a connection");
+            throw new AssertionError(e.getMessage());
+        } finally {
+            pool.close();
+        } // try catch finally
+
+        try {
+            assertEquals(1, pool.getNumCreated());
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "-  OK  - A single physical connection was created");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - " + pool.getNumCreated() + " physical connections were created");
+            throw e;
+        } // try catch
+    } // testGetConnectionReusesReturnedConnection
+
+    /**
+     * [JDBCConnectionPool.getConnection] -------- When the maximum number of connections per database is reached, the
+     * caller waits up to the maximum wait time.
+     */
+    @Test
+    public void testGetConnectionMaxWait() {
+        System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                + "-------- When the maximum number of connections per database is reached, the caller waits up to "
+                + "the maximum wait time");
+        JDBCConnectionPool pool = new JDBCConnectionPool("somePool", mockFactory, 10, 2, 100, 300, 0);
+        boolean timeout = false;
+
+        try {
+            pool.getConnection("someDb");
+            pool.getConnection("someDb");
+            pool.getConnection("someDb");
+        } catch (SQLTransientConnectionException e) {
+            timeout = true;
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - There was some problem when getting a connection");
+            throw new AssertionError(e.getMessage());
+        } finally {
+            pool.close();
+        } // try catch finally
+
+        try {
+            assertTrue(timeout);
+            assertEquals(1, pool.getNumWaits());
+            assertEquals(1, pool.getNumWaitTimeouts());
+            assertEquals(2, pool.getNumCreated());
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "-  OK  - The third connection was not got after waiting for it");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - The third connection was got, or there was no wait for it");
+            throw e;
+        } // try catch
+    } // testGetConnectionMaxWait
+
+    /**
+     * [JDBCConnectionPool.getConnection] -------- When the maximum number of connections is reached, the least
+     * recently used idle connection of another database is closed.
+     */
+    @Test
+    public void testGetConnectionEvictsIdleConnection() {
+        System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                + "-------- When the maximum number of connections is reached, the least recently used idle "
+                + "connection of another database is closed");
+        JDBCConnectionPool pool = new JDBCConnectionPool("somePool", mockFactory, 2, 2, 100, 300, 0);
+
+        try {
+            Connection con = pool.getConnection("someDb1");
+            pool.getConnection("someDb2");
+            con.close();
+            pool.getConnection("someDb3");
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - There was some problem when getting a connection");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            Mockito.verify(mockConnection1).close();
+            assertEquals(2, pool.getNumActive());
+            assertEquals(0, pool.getNumIdle());
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "-  OK  - The idle connection was closed in favour of the new one");
+        } catch (Exception | AssertionError e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - The idle connection was not closed in favour of the new one");
+            throw new AssertionError(e.getMessage());
+        } finally {
+            pool.close();
+        } // try catch finally
+    } // testGetConnectionEvictsIdleConnection
+
+    /**
+     * [JDBCConnectionPool.validateIdleConnections] -------- Not valid idle connections are closed, valid ones are kept.
+     */
+    @Test
+    public void testValidateIdleConnections() {
+        System.out.println(getTestTraceHead("[JDBCConnectionPool.validateIdleConnections]")
+                + "-------- Not valid idle connections are closed, valid ones are kept");
+        JDBCConnectionPool pool = new JDBCConnectionPool("somePool", mockFactory, 10, 5, 100, 300, 0);
+
+        try {
+            when(mockConnection2.isValid(Mockito.anyInt())).thenReturn(false);
+            Connection con1 = pool.getConnection("someDb");
+            Connection con2 = pool.getConnection("someDb");
+            con1.close();
+            con2.close();
+            pool.validateIdleConnections();
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.validateIdleConnections]")
+                    + "- FAIL - There was some problem when getting a connection");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            Mockito.verify(mockConnection2).close();
+            assertEquals(1, pool.getNumIdle());
+            assertEquals(1, pool.getNumClosed());
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.validateIdleConnections]")
+                    + "-  OK  - The not valid connection was closed, the valid one was kept");
+        } catch (Exception | AssertionError e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.validateIdleConnections]")
+                    + "- FAIL - The not valid connection was not closed, or the valid one was not kept");
+            throw new AssertionError(e.getMessage());
+        } finally {
+            pool.close();
+        } // try catch finally
+    } // testValidateIdleConnections
+
+    /**
+     * [JDBCConnectionPool.getConnection] -------- A statement prepared through a borrowed connection is reused when
+     * preparing again the same SQL string, even after the connection was returned and borrowed again, unless the
+     * statement failed.
+     */
+    @Test
+    public void testPrepareStatementCached() throws Exception {
+        System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                + "-------- A statement prepared through a borrowed connection is reused when preparing again the same "
+                + "SQL string, even after the connection was returned and borrowed again, unless the statement "
+                + "failed");
+        String sql = "INSERT INTO someDb.someTable (a,b) VALUES (?,?)";
+        PreparedStatement mockStatement1 = Mockito.mock(PreparedStatement.class);
+        PreparedStatement mockStatement2 = Mockito.mock(PreparedStatement.class);
+        when(mockConnection1.prepareStatement(sql)).thenReturn(mockStatement1, mockStatement2);
+        when(mockStatement1.executeBatch()).thenReturn(new int[] {1}).thenThrow(
+                new BatchUpdateException("Duplicate entry", new int[0]));
+        JDBCConnectionPool pool = new JDBCConnectionPool("somePool", mockFactory, 10, 5, 100, 300, 0);
+
+        try {
+            for (int i = 0; i < 3; i++) {
+                Connection con = pool.getConnection("someDb");
+                PreparedStatement stmt = con.prepareStatement(sql);
+
+                try {
+                    stmt.addBatch();
+                    stmt.executeBatch();
+                } catch (BatchUpdateException e) {
+                    // the second execution fails on purpose
+                } finally {
+                    stmt.close();
+                    con.close();
+                } // try catch finally
+            } // for
+        } finally {
+            pool.close();
+        } // try finally
+
+        try {
+            Mockito.verify(mockConnection1, Mockito.times(2)).prepareStatement(sql);
+            Mockito.verify(mockStatement1, Mockito.times(2)).executeBatch();
+            Mockito.verify(mockStatement1).clearBatch();
+            Mockito.verify(mockStatement1).close();
+            Mockito.verify(mockStatement2).executeBatch();
+            Mockito.verify(mockStatement2, Mockito.never()).close();
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "-  OK  - The statement was reused until failing, and then prepared again");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[JDBCConnectionPool.getConnection]")
+                    + "- FAIL - The statement was not reused, or it was reused after failing");
+            throw e;
+        } // try catch
+    } // testPrepareStatementCached
+
+} // JDBCConnectionPoolTest
@@ -19,6 +19,8 @@ package com.telefonica.iot.cygnus.backends.mongo;
 
 import com.telefonica.iot.cygnus.sinks.Enums.DataModel;
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.GregorianCalendar;
 import java.util.TimeZone;
 import org.apache.log4j.Level;
@@ -564,4 +566,53 @@ public class MongoBackendImplTest {
         } // try catch
     } // testBuildUpdateForUpdateString
     
+    /**
+     * [MongoBackendImpl.mergeAggregatedSamples] -------- Samples regarding the same aggregated document and offset are
+     * merged.
+     */
+    @Test
+    public void testMergeAggregatedSamples() {
+        System.out.println(getTestTraceHead("[MongoBackendImpl.mergeAggregatedSamples]")
+                + "-------- Samples regarding the same aggregated document and offset are merged");
+        MongoBackendImpl backend = new MongoBackendImpl(null, null, null, DataModel.DMBYENTITY);
+        GregorianCalendar calendar = new GregorianCalendar(2017, 4, 5, 11, 46, 13);
+        calendar.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long ts = calendar.getTimeInMillis();
+        ArrayList<AggregatedSample> samples = new ArrayList<>();
+        samples.add(new AggregatedSample(ts, "someId", "someType", "someName", "someType", 1, 1, 1, 1, 1));
+        samples.add(new AggregatedSample(ts + 500, "someId", "someType", "someName", "someType", 3, 3, 3, 9, 1));
+        samples.add(new AggregatedSample(ts + 5000, "someId", "someType", "someName", "someType", 2, 2, 2, 4, 1));
+        boolean[] resolutions = {true, true, false, false, false};
+        Collection<MongoBackendImpl.AggregatedDocument> documents = backend.mergeAggregatedSamples(samples,
+                resolutions);
+        
+        try {
+            assertEquals(2, documents.size());
+            System.out.println(getTestTraceHead("[MongoBackendImpl.mergeAggregatedSamples]")
+                    + "-  OK  - 2 aggregated documents were built, one per resolution");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[MongoBackendImpl.mergeAggregatedSamples]")
+                    + "- FAIL - " + documents.size() + " aggregated documents were built instead of 2");
+            throw e;
+        } // try catch
+        
+        MongoBackendImpl.AggregatedDocument seconds = documents.iterator().next();
+        MongoBackendImpl.AggregatedPoint point = seconds.getNumericPoints().get(13);
+        
+        try {
+            assertEquals(2, seconds.getNumericPoints().size());
+            assertEquals(2, point.getNumSamples());
+            assertEquals(3, point.getMax(), 0);
+            assertEquals(1, point.getMin(), 0);
+            assertEquals(4, point.getSum(), 0);
+            assertEquals(10, point.getSum2(), 0);
+            System.out.println(getTestTraceHead("[MongoBackendImpl.mergeAggregatedSamples]")
+                    + "-  OK  - The samples within the same second were merged in a single point");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[MongoBackendImpl.mergeAggregatedSamples]")
+                    + "- FAIL - The samples within the same second were not merged in a single point");
+            throw e;
+        } // try catch
+    } // testMergeAggregatedSamples
+    
 } // MongoBackendImplTest
@@ -19,8 +19,13 @@
 package com.telefonica.iot.cygnus.backends.mysql;
 
 import com.telefonica.iot.cygnus.backends.mysql.MySQLBackendImpl.MySQLDriver;
+import com.telefonica.iot.cygnus.metrics.CygnusMetrics;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
@@ -50,6 +55,20 @@ public class MySQLBackendImplTest {
     private Connection mockConnection;
     @Mock
     private Statement mockStatement;
+    @Mock
+    private MySQLDriver mockDriverCapping;
+    @Mock
+    private Connection mockConnectionCapping;
+    @Mock
+    private Statement mockStatementCount;
+    @Mock
+    private PreparedStatement mockStatementSelect;
+    @Mock
+    private PreparedStatement mockStatementDelete;
+    @Mock
+    private ResultSet mockResultSetCount;
+    @Mock
+    private ResultSet mockResultSetSelect;
     
     // constants
     private final String host = "localhost";
@@ -82,6 +101,19 @@ public class MySQLBackendImplTest {
         when(mockDriverTableCreate.isConnectionCreated(Mockito.anyString())).thenReturn(true, true, true, true, true);
         when(mockConnection.createStatement()).thenReturn(mockStatement);
         when(mockStatement.executeUpdate(Mockito.anyString())).thenReturn(1);
+        when(mockDriverCapping.getConnection(Mockito.anyString())).thenReturn(mockConnectionCapping);
+        when(mockConnectionCapping.createStatement()).thenReturn(mockStatementCount);
+        when(mockStatementCount.executeQuery(Mockito.anyString())).thenReturn(mockResultSetCount);
+        when(mockResultSetCount.next()).thenReturn(true);
+        when(mockResultSetCount.getLong(1)).thenReturn(2500L);
+        when(mockConnectionCapping.prepareStatement(Mockito.startsWith("select")))
+                .thenReturn(mockStatementSelect);
+        when(mockStatementSelect.executeQuery()).thenReturn(mockResultSetSelect);
+        when(mockResultSetSelect.next()).thenReturn(true);
+        when(mockResultSetSelect.getString(1)).thenReturn("2017-01-01T00:00:00.0Z");
+        when(mockConnectionCapping.prepareStatement(Mockito.startsWith("delete")))
+                .thenReturn(mockStatementDelete);
+        when(mockStatementDelete.executeUpdate()).thenReturn(1000, 500);
     } // setUp
     
     /**
@@ -156,5 +188,72 @@ public class MySQLBackendImplTest {
     public void testInsertContextData() {
         System.out.println("Testing MySQLBackend.insertContextData");
     } // testInsertContextData
+    
+    /**
+     * Test of capRecords method, of class MySQLBackendImpl.
+     */
+    @Test
+    public void testCapRecords() {
+        System.out.println("Testing MySQLBackend.capRecords (deletion in chunks)");
+        
+        try {
+            backend.setDriver(mockDriverCapping);
+            backend.capRecords(dbName1, tableName1, 1000);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        try {
+            // 1500 exceeding records are deleted in chunks of 1000 records, counting and selecting in the server
+            Mockito.verify(mockStatementSelect).setLong(1, 1500);
+            Mockito.verify(mockStatementDelete).setString(1, "2017-01-01T00:00:00.0Z");
+            Mockito.verify(mockStatementDelete, Mockito.times(2)).executeUpdate();
+            CygnusMetrics metrics = new CygnusMetrics();
+            backend.drainDeletionMetrics(metrics);
+            assertEquals(1500, metrics.getTableMetrics(dbName1 + "." + tableName1).getCappedRecords());
+            assertEquals(2, metrics.getTableMetrics(dbName1 + "." + tableName1).getDeletions());
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testCapRecords
+    
+    /**
+     * Test of capRecords method, of class MySQLBackendImpl, regarding the creation of the reception time index.
+     */
+    @Test
+    public void testCapRecordsRecvTimeIndex() {
+        System.out.println("Testing MySQLBackend.capRecords (full recvTime index, prefix one for text columns, "
+                + "retried until created)");
+        String fullIndexQuery = "create index `cygnus_recvTime_idx` on `" + tableName1 + "` (recvTime)";
+        String prefixIndexQuery = "create index `cygnus_recvTime_idx` on `" + tableName1 + "` (recvTime(32))";
+        
+        try {
+            MySQLBackendImpl indexingBackend = new MySQLBackendImpl(host, port, user, password, 10, 10, 1000, 60, 30,
+                    1000, true);
+            indexingBackend.setDriver(mockDriverCapping);
+            
+            // A text recvTime column cannot be fully indexed; the first prefix index creation fails, the second one
+            // succeeds
+            when(mockStatementCount.executeUpdate(fullIndexQuery))
+                    .thenThrow(new SQLException("BLOB/TEXT column used in key specification without a key length",
+                            "42000", 1170));
+            when(mockStatementCount.executeUpdate(prefixIndexQuery))
+                    .thenThrow(new SQLException("Lock wait timeout exceeded", "HY000", 1205))
+                    .thenReturn(0);
+            indexingBackend.capRecords(dbName1, tableName1, 1000);
+            indexingBackend.capRecords(dbName1, tableName1, 1000);
+            indexingBackend.capRecords(dbName1, tableName1, 1000);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+        
+        try {
+            // The index is tried again after failing, but not once created
+            Mockito.verify(mockStatementCount, Mockito.times(2)).executeUpdate(fullIndexQuery);
+            Mockito.verify(mockStatementCount, Mockito.times(2)).executeUpdate(prefixIndexQuery);
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } // try catch
+    } // testCapRecordsRecvTimeIndex
 
 } // MySQLBackendImplTest
@@ -18,6 +18,7 @@
 package com.telefonica.iot.cygnus.backends.mysql;
 
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import static org.junit.Assert.assertEquals;
@@ -319,4 +320,38 @@ public class MySQLCacheTest {
         } // try catch
     } // testTableIterationMethods
     
+    /**
+     * [MySQLCache.getTables] -------- The cached tables are got as a copy, thus tables can be added while iterating
+     * on them.
+     */
+    @Test
+    public void testGetTables() {
+        System.out.println(getTestTraceHead("[MySQLCache.getTables]")
+                + "-------- The cached tables are got as a copy, thus tables can be added while iterating on them");
+        MySQLCache cache = new MySQLCache();
+        cache.addDb("db1");
+        cache.addTable("db1", "table1");
+        cache.addTable("db1", "table2");
+        cache.addDb("db2");
+        cache.addTable("db2", "table3");
+        ArrayList<String[]> tables = cache.getTables();
+        int numIterated = 0;
+        
+        for (String[] table : tables) {
+            cache.addTable(table[0], table[1] + "_new");
+            numIterated++;
+        } // for
+        
+        try {
+            assertEquals(3, numIterated);
+            assertEquals(6, cache.getTables().size());
+            System.out.println(getTestTraceHead("[MySQLCache.getTables]")
+                    + "-  OK  - The cached tables were got as a copy");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[MySQLCache.getTables]")
+                    + "- FAIL - The cached tables were not got as a copy");
+            throw e;
+        } // try catch
+    } // testGetTables
+    
 } // MySQLCacheTest
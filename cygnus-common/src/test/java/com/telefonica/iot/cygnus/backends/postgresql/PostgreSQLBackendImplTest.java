@@ -19,8 +19,14 @@
 package com.telefonica.iot.cygnus.backends.postgresql;
 
 import com.telefonica.iot.cygnus.backends.postgresql.PostgreSQLBackendImpl.PostgreSQLDriver;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
@@ -29,7 +35,12 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
 
 /**
  *
@@ -154,4 +165,74 @@ public class PostgreSQLBackendImplTest {
     public void testInsertContextData() {
         System.out.println("Testing PostgreSQLBackend.insertContextData");
     } // testInsertContextData
+    
+    /**
+     * [PostgreSQLBackendImpl.getCSVLine] -------- All the fields are quoted, quotes are escaped by doubling them, and
+     * commas and line breaks are kept within the quoted fields.
+     */
+    @Test
+    public void testGetCSVLine() {
+        System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.getCSVLine]")
+                + "-------- All the fields are quoted, quotes are escaped by doubling them, and commas and line "
+                + "breaks are kept within the quoted fields");
+        ArrayList<String> row = new ArrayList<>(Arrays.asList("plain", "", "say \"hi\"", "a,b", "line1\nline2",
+                "\"\""));
+        String line = backend.getCSVLine(row);
+        
+        try {
+            assertEquals("\"plain\",\"\",\"say \"\"hi\"\"\",\"a,b\",\"line1\nline2\",\"\"\"\"\"\"\n", line);
+            System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.getCSVLine]")
+                    + "-  OK  - The CSV line was properly quoted and escaped");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.getCSVLine]")
+                    + "- FAIL - The CSV line was not properly quoted and escaped (" + line + ")");
+            throw e;
+        } // try catch
+    } // testGetCSVLine
+    
+    /**
+     * [PostgreSQLBackendImpl.insertContextDataCopy] -------- A CSV line per row is streamed to the copy, which is
+     * ended, and the connection is returned to the pool.
+     */
+    @Test
+    public void testInsertContextDataCopy() throws Exception {
+        System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.insertContextDataCopy]")
+                + "-------- A CSV line per row is streamed to the copy, which is ended, and the connection is "
+                + "returned to the pool");
+        final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+        CopyIn copyIn = Mockito.mock(CopyIn.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                copied.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                return null;
+            } // answer
+        }).when(copyIn).writeToCopy(Mockito.any(byte[].class), Mockito.anyInt(), Mockito.anyInt());
+        CopyManager copyManager = Mockito.mock(CopyManager.class);
+        when(copyManager.copyIn(Mockito.anyString())).thenReturn(copyIn);
+        PGConnection pgConnection = Mockito.mock(PGConnection.class);
+        when(pgConnection.getCopyAPI()).thenReturn(copyManager);
+        when(mockConnection.unwrap(PGConnection.class)).thenReturn(pgConnection);
+        backend.setDriver(mockDriverTableCreate);
+        ArrayList<ArrayList<String>> rows = new ArrayList<>();
+        rows.add(new ArrayList<>(Arrays.asList("1461136795801", "a,\"b\"")));
+        rows.add(new ArrayList<>(Arrays.asList("1461136795802", "c\nd")));
+        backend.insertContextDataCopy(schemaName1, tableName1, "(recvTimeTs,attrValue)", rows);
+        
+        try {
+            Mockito.verify(copyManager).copyIn("COPY " + schemaName1 + "." + tableName1
+                    + " (recvTimeTs,attrValue) FROM STDIN WITH CSV");
+            assertEquals("\"1461136795801\",\"a,\"\"b\"\"\"\n\"1461136795802\",\"c\nd\"\n",
+                    new String(copied.toByteArray(), StandardCharsets.UTF_8));
+            Mockito.verify(copyIn).endCopy();
+            Mockito.verify(mockConnection).close();
+            System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.insertContextDataCopy]")
+                    + "-  OK  - The rows were streamed as CSV lines and the copy was ended");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[PostgreSQLBackendImpl.insertContextDataCopy]")
+                    + "- FAIL - The rows were not streamed as CSV lines or the copy was not ended");
+            throw e;
+        } // try catch
+    } // testInsertContextDataCopy
 } // PostgreSQLBackendImplTest
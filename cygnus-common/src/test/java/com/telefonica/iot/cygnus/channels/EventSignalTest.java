@@ -0,0 +1,96 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.channels;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class EventSignalTest {
+
+    /**
+     * [EventSignal.await] -------- A signal raised after the number of signals seen by the caller is not missed, even
+     * if raised before waiting.
+     */
+    @Test
+    public void testAwaitNotMissed() throws InterruptedException {
+        System.out.println(getTestTraceHead("[EventSignal.await]")
+                + "-------- A signal raised after the number of signals seen by the caller is not missed, even if "
+                + "raised before waiting");
+        EventSignal signal = new EventSignal();
+        long numSignals = signal.getNumSignals();
+        boolean beforeSignal = signal.await(numSignals, 10);
+        signal.signal();
+        boolean afterSignal = signal.await(numSignals, 60000);
+
+        try {
+            assertFalse(beforeSignal);
+            assertTrue(afterSignal);
+            System.out.println(getTestTraceHead("[EventSignal.await]")
+                    + "-  OK  - The signal was not missed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[EventSignal.await]")
+                    + "- FAIL - The signal was missed");
+            throw e;
+        } // try catch
+    } // testAwaitNotMissed
+
+    /**
+     * [EventSignal.await] -------- A waiting thread is woken up once a signal is raised.
+     */
+    @Test
+    public void testAwaitWokenUp() throws InterruptedException {
+        System.out.println(getTestTraceHead("[EventSignal.await]")
+                + "-------- A waiting thread is woken up once a signal is raised");
+        final EventSignal signal = new EventSignal();
+        Thread signaler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                } // try catch
+
+                signal.signal();
+            } // run
+        });
+        signaler.start();
+        long start = System.currentTimeMillis();
+        boolean signaled = signal.await(0, 60000);
+        long elapsed = System.currentTimeMillis() - start;
+        signaler.join();
+
+        try {
+            assertTrue(signaled);
+            assertTrue(elapsed < 30000);
+            System.out.println(getTestTraceHead("[EventSignal.await]")
+                    + "-  OK  - The waiting thread was woken up after " + elapsed + " ms");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[EventSignal.await]")
+                    + "- FAIL - The waiting thread was not woken up (" + elapsed + " ms)");
+            throw e;
+        } // try catch
+    } // testAwaitWokenUp
+
+} // EventSignalTest
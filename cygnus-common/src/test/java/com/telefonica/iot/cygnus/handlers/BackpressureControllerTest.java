@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.handlers;
+
+import com.telefonica.iot.cygnus.channels.CygnusChannel;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ *
+ * @author frb
+ */
+public class BackpressureControllerTest {
+
+    /**
+     * Constructor.
+     */
+    public BackpressureControllerTest() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // BackpressureControllerTest
+
+    /**
+     * Controller checking mocked channels, for testing purposes.
+     */
+    private class BackpressureControllerImpl extends BackpressureController {
+
+        private final List<CygnusChannel> channels;
+
+        BackpressureControllerImpl(List<CygnusChannel> channels) {
+            super(new ArrayList<String>(), 0.9, 0.7, 60);
+            this.channels = channels;
+        } // BackpressureControllerImpl
+
+        @Override
+        protected List<CygnusChannel> getChannels() {
+            return channels;
+        } // getChannels
+
+    } // BackpressureControllerImpl
+
+    /**
+     * [BackpressureController.isSaturated] -------- Requests are shed above the high watermark and admitted again
+     * below the low watermark.
+     */
+    @Test
+    public void testIsSaturatedHysteresis() {
+        System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                + "-------- Requests are shed above the high watermark and admitted again below the low watermark");
+        CygnusChannel channel = mock(CygnusChannel.class);
+        when(channel.getCapacity()).thenReturn(1000L);
+        ArrayList<CygnusChannel> channels = new ArrayList<>();
+        channels.add(channel);
+        BackpressureControllerImpl controller = new BackpressureControllerImpl(channels);
+
+        when(channel.getNumEvents()).thenReturn(800L);
+        boolean belowHigh = controller.isSaturated(1000);
+        when(channel.getNumEvents()).thenReturn(950L);
+        boolean aboveHigh = controller.isSaturated(2000);
+        when(channel.getNumEvents()).thenReturn(800L);
+        boolean betweenWatermarks = controller.isSaturated(3000);
+        when(channel.getNumEvents()).thenReturn(500L);
+        boolean belowLow = controller.isSaturated(4000);
+
+        try {
+            assertFalse(belowHigh);
+            assertTrue(aboveHigh);
+            assertTrue(betweenWatermarks);
+            assertFalse(belowLow);
+            System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                    + "-  OK  - The saturation state changed only when crossing the watermarks");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                    + "- FAIL - The saturation state did not follow the watermarks");
+            throw e;
+        } // try catch
+    } // testIsSaturatedHysteresis
+
+    /**
+     * [BackpressureController.isSaturated] -------- The channels are not scanned for every request, but the last
+     * saturation state is returned until it is refreshed.
+     */
+    @Test
+    public void testIsSaturatedRefresh() {
+        System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                + "-------- The channels are not scanned for every request, but the last saturation state is returned "
+                + "until it is refreshed");
+        CygnusChannel channel = mock(CygnusChannel.class);
+        when(channel.getCapacity()).thenReturn(1000L);
+        ArrayList<CygnusChannel> channels = new ArrayList<>();
+        channels.add(channel);
+        BackpressureControllerImpl controller = new BackpressureControllerImpl(channels);
+
+        when(channel.getNumEvents()).thenReturn(950L);
+        boolean saturated = controller.isSaturated(1000);
+        when(channel.getNumEvents()).thenReturn(500L);
+        boolean cached = controller.isSaturated(1050);
+        boolean refreshed = controller.isSaturated(1100);
+
+        try {
+            assertTrue(saturated);
+            assertTrue(cached);
+            assertFalse(refreshed);
+            verify(channel, times(2)).getNumEvents();
+            System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                    + "-  OK  - The channels were scanned only when the saturation state was refreshed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[BackpressureController.isSaturated]")
+                    + "- FAIL - The channels were scanned for every request");
+            throw e;
+        } // try catch
+    } // testIsSaturatedRefresh
+
+    /**
+     * [BackpressureController.getRetryAfter] -------- The Retry-After value is the time needed for draining the
+     * channels down to the low watermark.
+     */
+    @Test
+    public void testGetRetryAfter() {
+        System.out.println(getTestTraceHead("[BackpressureController.getRetryAfter]")
+                + "-------- The Retry-After value is the time needed for draining the channels down to the low "
+                + "watermark");
+        CygnusChannel channel = mock(CygnusChannel.class);
+        when(channel.getCapacity()).thenReturn(1000L);
+        when(channel.getNumEvents()).thenReturn(950L);
+        ArrayList<CygnusChannel> channels = new ArrayList<>();
+        channels.add(channel);
+        BackpressureControllerImpl controller = new BackpressureControllerImpl(channels);
+
+        when(channel.getNumTakesOK()).thenReturn(0L);
+        controller.isSaturated(1000);
+        int unknownRate = controller.getRetryAfter();
+        when(channel.getNumTakesOK()).thenReturn(50L);
+        controller.isSaturated(3000);
+        int knownRate = controller.getRetryAfter();
+
+        try {
+            assertEquals(60, unknownRate);
+            assertEquals(25, controller.getDrainRate(), 0.001);
+            assertEquals(10, knownRate);
+            System.out.println(getTestTraceHead("[BackpressureController.getRetryAfter]")
+                    + "-  OK  - The Retry-After value was the maximum one, and then " + knownRate + " seconds");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[BackpressureController.getRetryAfter]")
+                    + "- FAIL - The Retry-After values were " + unknownRate + " and " + knownRate + " seconds");
+            throw e;
+        } // try catch
+    } // testGetRetryAfter
+
+} // BackpressureControllerTest
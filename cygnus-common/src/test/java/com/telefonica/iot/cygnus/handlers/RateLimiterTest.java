@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.handlers;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class RateLimiterTest {
+
+    private static final long SECOND = 1000000000L;
+    private final String[] servicePaths = {"/somePath"};
+
+    /**
+     * Constructor.
+     */
+    public RateLimiterTest() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // RateLimiterTest
+
+    /**
+     * [RateLimiter.tryAcquire] -------- A burst of requests is admitted, then requests are admitted at the configured
+     * rate, and a service exceeding its limits does not affect other services.
+     */
+    @Test
+    public void testTryAcquireServiceLimits() {
+        System.out.println(getTestTraceHead("[RateLimiter.tryAcquire]")
+                + "-------- A burst of requests is admitted, then requests are admitted at the configured rate, and a "
+                + "service exceeding its limits does not affect other services");
+        RateLimiter rateLimiter = new RateLimiter(new RateLimiter.Limits(10, 20), new RateLimiter.Limits(0, 0));
+        long now = 100 * SECOND;
+        int admitted = 0;
+
+        for (int i = 0; i < 30; i++) {
+            if (rateLimiter.tryAcquire("someService", servicePaths, now) == 0) {
+                admitted++;
+            } // if
+        } // for
+
+        long wait = rateLimiter.tryAcquire("someService", servicePaths, now);
+        long otherService = rateLimiter.tryAcquire("otherService", servicePaths, now);
+        long afterWaiting = rateLimiter.tryAcquire("someService", servicePaths, now + wait);
+
+        try {
+            assertEquals(20, admitted);
+            assertEquals(SECOND / 10, wait);
+            assertEquals(0, otherService);
+            assertEquals(0, afterWaiting);
+            System.out.println(getTestTraceHead("[RateLimiter.tryAcquire]")
+                    + "-  OK  - The burst was admitted, and the next request was admitted after " + wait + " ns");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RateLimiter.tryAcquire]")
+                    + "- FAIL - " + admitted + " requests were admitted, and the wait was " + wait + " ns");
+            throw e;
+        } // try catch
+    } // testTryAcquireServiceLimits
+
+    /**
+     * [RateLimiter.setLimits] -------- Specific service path limits apply instead of the default ones, until they are
+     * removed.
+     */
+    @Test
+    public void testSetLimitsServicePath() {
+        System.out.println(getTestTraceHead("[RateLimiter.setLimits]")
+                + "-------- Specific service path limits apply instead of the default ones, until they are removed");
+        RateLimiter rateLimiter = new RateLimiter(new RateLimiter.Limits(0, 0), new RateLimiter.Limits(0, 0));
+        long now = 100 * SECOND;
+        rateLimiter.setLimits("someService", "/somePath", new RateLimiter.Limits(1, 1));
+        long first = rateLimiter.tryAcquire("someService", servicePaths, now);
+        long limited = rateLimiter.tryAcquire("someService", servicePaths, now);
+        long otherPath = rateLimiter.tryAcquire("someService", new String[] {"/otherPath"}, now);
+        boolean removed = rateLimiter.removeLimits("someService", "/somePath");
+        long unlimited = rateLimiter.tryAcquire("someService", servicePaths, now);
+
+        try {
+            assertEquals(0, first);
+            assertTrue(limited > 0);
+            assertEquals(0, otherPath);
+            assertTrue(removed);
+            assertEquals(0, unlimited);
+            System.out.println(getTestTraceHead("[RateLimiter.setLimits]")
+                    + "-  OK  - The specific limits applied until they were removed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RateLimiter.setLimits]")
+                    + "- FAIL - The specific limits did not apply as expected");
+            throw e;
+        } // try catch
+    } // testSetLimitsServicePath
+
+} // RateLimiterTest
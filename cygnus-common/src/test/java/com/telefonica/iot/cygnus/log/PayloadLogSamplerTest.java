@@ -0,0 +1,82 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.log;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class PayloadLogSamplerTest {
+
+    private final String payload = "{\"id\":\"Room1\",\"type\":\"Room\"}";
+
+    /**
+     * [PayloadLogSampler.sample] -------- One out of the configured number of payloads is sampled, and sampled
+     * payloads are truncated.
+     */
+    @Test
+    public void testSample() {
+        System.out.println(getTestTraceHead("[PayloadLogSampler.sample]")
+                + "-------- One out of the configured number of payloads is sampled, and sampled payloads are "
+                + "truncated");
+        PayloadLogSampler sampler = new PayloadLogSampler(3, 10);
+        String first = sampler.sample(payload).toString();
+        String second = sampler.sample(payload).toString();
+        String third = sampler.sample(payload).toString();
+        String fourth = sampler.sample(payload).toString();
+
+        try {
+            assertEquals("{\"id\":\"Roo... (18 more chars)", first);
+            assertEquals("not sampled, 28 chars", second);
+            assertEquals("not sampled, 28 chars", third);
+            assertEquals(first, fourth);
+            System.out.println(getTestTraceHead("[PayloadLogSampler.sample]")
+                    + "-  OK  - The first and the fourth payloads were sampled and truncated");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[PayloadLogSampler.sample]")
+                    + "- FAIL - The payloads were not sampled as expected (" + first + ", " + second + ", " + third
+                    + ", " + fourth + ")");
+            throw e;
+        } // try catch
+    } // testSample
+
+    /**
+     * [CygnusLogger.format] -------- Placeholders are replaced by the arguments in order.
+     */
+    @Test
+    public void testFormat() {
+        System.out.println(getTestTraceHead("[CygnusLogger.format]")
+                + "-------- Placeholders are replaced by the arguments in order");
+        String formatted = CygnusLogger.format("Received data ({}), service={}, {}", payload, "someService");
+
+        try {
+            assertEquals("Received data (" + payload + "), service=someService, {}", formatted);
+            System.out.println(getTestTraceHead("[CygnusLogger.format]")
+                    + "-  OK  - The placeholders were replaced");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[CygnusLogger.format]")
+                    + "- FAIL - The placeholders were not replaced (" + formatted + ")");
+            throw e;
+        } // try catch
+    } // testFormat
+
+} // PayloadLogSamplerTest
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class AdaptiveBatchSizerTest {
+
+    /**
+     * [AdaptiveBatchSizer.onBatchPersisted] -------- The batch size grows when full batches are persisted within the
+     * target latency, and shrinks when the latency exceeds the target or the persistence fails.
+     */
+    @Test
+    public void testOnBatchPersisted() {
+        System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                + "-------- The batch size grows when full batches are persisted within the target latency, and "
+                + "shrinks when the latency exceeds the target or the persistence fails");
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 10, 1000, 1000, 4);
+        sizer.onBatchPersisted(100, 200, false);
+        int afterFast = sizer.getBatchSize();
+        sizer.onBatchPersisted(110, 2000, false);
+        int afterSlow = sizer.getBatchSize();
+        int concurrencyAfterSlow = sizer.getConcurrency();
+        sizer.onBatchPersisted(55, 100, true);
+        int afterFailure = sizer.getBatchSize();
+        int concurrencyAfterFailure = sizer.getConcurrency();
+
+        try {
+            assertEquals(110, afterFast);
+            assertEquals(55, afterSlow);
+            assertEquals(3, concurrencyAfterSlow);
+            assertEquals(27, afterFailure);
+            assertEquals(1, concurrencyAfterFailure);
+            System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                    + "-  OK  - The batch size was adapted (100 -> " + afterFast + " -> " + afterSlow + " -> "
+                    + afterFailure + ")");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                    + "- FAIL - The batch size was not adapted as expected (100 -> " + afterFast + " -> " + afterSlow
+                    + " -> " + afterFailure + ")");
+            throw e;
+        } // try catch
+    } // testOnBatchPersisted
+
+    /**
+     * [AdaptiveBatchSizer.onBatchPersisted] -------- The batch size never exceeds the configured bounds.
+     */
+    @Test
+    public void testOnBatchPersistedBounds() {
+        System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                + "-------- The batch size never exceeds the configured bounds");
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 10, 1000, 1000, 4);
+
+        for (int i = 0; i < 100; i++) {
+            sizer.onBatchPersisted(sizer.getBatchSize(), 10, false);
+        } // for
+
+        int max = sizer.getBatchSize();
+
+        for (int i = 0; i < 100; i++) {
+            sizer.onBatchPersisted(1, 10, false);
+        } // for
+
+        int min = sizer.getBatchSize();
+
+        try {
+            assertEquals(1000, max);
+            assertEquals(10, min);
+            System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                    + "-  OK  - The batch size was kept between " + min + " and " + max);
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[AdaptiveBatchSizer.onBatchPersisted]")
+                    + "- FAIL - The batch size exceeded the bounds (" + min + ", " + max + ")");
+            throw e;
+        } // try catch
+    } // testOnBatchPersistedBounds
+
+} // AdaptiveBatchSizerTest
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.sinks.CircuitBreakers.State;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class CircuitBreakersTest {
+
+    /**
+     * [CircuitBreakers.onFailure] -------- A circuit breaker opens after the configured number of consecutive
+     * failures, only for the failing destination.
+     */
+    @Test
+    public void testOnFailure() {
+        System.out.println(getTestTraceHead("[CircuitBreakers.onFailure]")
+                + "-------- A circuit breaker opens after the configured number of consecutive failures, only for the "
+                + "failing destination");
+        CircuitBreakers breakers = new CircuitBreakers(3, 1000);
+        boolean openAfterTwo = breakers.onFailure("broken", 0) | breakers.onFailure("broken", 0);
+        boolean openAfterThree = breakers.onFailure("broken", 0);
+
+        try {
+            assertFalse(openAfterTwo);
+            assertTrue(openAfterThree);
+            assertFalse(breakers.allowsWrites("broken"));
+            assertTrue(breakers.allowsWrites("healthy"));
+            assertEquals(1, breakers.getNumNotClosed());
+            System.out.println(getTestTraceHead("[CircuitBreakers.onFailure]")
+                    + "-  OK  - The circuit breaker opened after 3 consecutive failures");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[CircuitBreakers.onFailure]")
+                    + "- FAIL - The circuit breaker did not open as expected");
+            throw e;
+        } // try catch
+    } // testOnFailure
+
+    /**
+     * [CircuitBreakers.halfOpen] -------- An open circuit breaker is half-opened once the open time is elapsed; then,
+     * it closes if the probe succeeds, otherwise it opens again.
+     */
+    @Test
+    public void testHalfOpen() {
+        System.out.println(getTestTraceHead("[CircuitBreakers.halfOpen]")
+                + "-------- An open circuit breaker is half-opened once the open time is elapsed; then, it closes if "
+                + "the probe succeeds, otherwise it opens again");
+        CircuitBreakers breakers = new CircuitBreakers(1, 1000);
+        breakers.onFailure("a", 0);
+        breakers.onFailure("b", 0);
+        ArrayList<String> tooEarly = breakers.halfOpen(500);
+        ArrayList<String> halfOpened = breakers.halfOpen(1000);
+        breakers.onSuccess("a");
+        breakers.onFailure("b", 1000);
+
+        try {
+            assertEquals(0, tooEarly.size());
+            assertEquals(2, halfOpened.size());
+            assertEquals(State.CLOSED, breakers.getState("a"));
+            assertEquals(State.OPEN, breakers.getState("b"));
+            assertEquals(0, breakers.halfOpen(1500).size());
+            assertEquals(1, breakers.halfOpen(2000).size());
+            System.out.println(getTestTraceHead("[CircuitBreakers.halfOpen]")
+                    + "-  OK  - The circuit breakers were half-opened, closed and opened again as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[CircuitBreakers.halfOpen]")
+                    + "- FAIL - The circuit breakers were not half-opened, closed or opened again as expected");
+            throw e;
+        } // try catch
+    } // testHalfOpen
+
+} // CircuitBreakersTest
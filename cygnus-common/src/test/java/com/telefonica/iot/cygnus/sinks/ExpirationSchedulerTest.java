@@ -0,0 +1,223 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.sinks.ExpirationScheduler.Destination;
+import com.telefonica.iot.cygnus.sinks.ExpirationScheduler.Expirator;
+import com.telefonica.iot.cygnus.sinks.ExpirationScheduler.Registration;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class ExpirationSchedulerTest {
+
+    private static final long NOW = 1000000;
+
+    /**
+     * [ExpirationScheduler.Registration.startCycle] -------- Destinations behind the expiration horizon are queued,
+     * the most behind first and the largest first when equally behind, and their lag is reported.
+     */
+    @Test
+    public void testStartCycle() {
+        System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.startCycle]")
+                + "-------- Destinations behind the expiration horizon are queued, the most behind first and the "
+                + "largest first when equally behind, and their lag is reported");
+        Registration registration = new Registration("sink", null, 100000, 3600000, 0, 10);
+        ArrayList<Destination> destinations = new ArrayList<>();
+        destinations.add(new Destination("small", 10, 500000));
+        destinations.add(new Destination("unknown", -1, -1));
+        destinations.add(new Destination("large", 1000, 500000));
+        destinations.add(new Destination("oldest", 1, 100000));
+        destinations.add(new Destination("recent", 1000, 950000));
+        destinations.add(new Destination("empty", 0, 0));
+        registration.startListing(NOW);
+        registration.startCycle(destinations, NOW);
+        String first = registration.takeDestination().getName();
+        String second = registration.takeDestination().getName();
+        String third = registration.takeDestination().getName();
+        String fourth = registration.takeDestination().getName();
+
+        try {
+            assertEquals("oldest", first);
+            assertEquals("large", second);
+            assertEquals("small", third);
+            assertEquals("unknown", fourth);
+            assertNull(registration.takeDestination());
+            assertEquals(800000, registration.getLag("oldest"));
+            assertEquals(0, registration.getLag("recent"));
+            System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.startCycle]")
+                    + "-  OK  - The destinations were queued in the expected order");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.startCycle]")
+                    + "- FAIL - The destinations were not queued in the expected order (" + first + ", " + second
+                    + ", " + third + ", " + fourth + ")");
+            throw e;
+        } // try catch
+    } // testStartCycle
+
+    /**
+     * [ExpirationScheduler.Registration.onExpirated] -------- A destination expirated up to the maximum number of
+     * records is queued again, and no new cycle is started until all the queued destinations are expirated.
+     */
+    @Test
+    public void testOnExpirated() {
+        System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.onExpirated]")
+                + "-------- A destination expirated up to the maximum number of records is queued again, and no new "
+                + "cycle is started until all the queued destinations are expirated");
+        Registration registration = new Registration("sink", null, 100000, 1000, 100, 1);
+        ArrayList<Destination> destinations = new ArrayList<>();
+        destinations.add(new Destination("a", 1000, 100000));
+        destinations.add(new Destination("b", 1000, 200000));
+        registration.startListing(NOW);
+        registration.startCycle(destinations, NOW);
+        long maxRecords = registration.getMaxRecordsPerStep();
+        Destination first = registration.takeDestination();
+        Destination whileActive = registration.takeDestination(); // a single thread is allowed
+        registration.onExpirated(first, maxRecords, maxRecords, NOW);
+        long delay = registration.getBudgetDelay(NOW);
+        boolean cycleWhilePending = registration.startListing(NOW + 5000);
+        Destination again = registration.takeDestination();
+        registration.onExpirated(again, 10, maxRecords, NOW);
+
+        try {
+            assertEquals(100, maxRecords);
+            assertNull(whileActive);
+            assertEquals("a", again.getName());
+            assertEquals(1000, delay);
+            assertEquals(false, cycleWhilePending);
+            assertEquals(0, registration.getLag("a"));
+            assertEquals(700000, registration.getLag("b"));
+            assertEquals(110, registration.getNumExpiratedRecords());
+            assertEquals(1, registration.getNumPendingDestinations());
+            System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.onExpirated]")
+                    + "-  OK  - The destinations were expirated and paced as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ExpirationScheduler.Registration.onExpirated]")
+                    + "- FAIL - The destinations were not expirated or paced as expected");
+            throw e;
+        } // try catch
+    } // testOnExpirated
+
+    /**
+     * [ExpirationScheduler.unregister] -------- The worker pool is sized according to the registered sinks, growing
+     * when registering and shrinking when unregistering.
+     */
+    @Test
+    public void testUnregister() {
+        System.out.println(getTestTraceHead("[ExpirationScheduler.unregister]")
+                + "-------- The worker pool is sized according to the registered sinks, growing when registering and "
+                + "shrinking when unregistering");
+        ExpirationScheduler scheduler = ExpirationScheduler.getInstance();
+        Registration large = new Registration("large", createExpirator(null, null), 100000, 3600000, 0, 4);
+        Registration small = new Registration("small", createExpirator(null, null), 100000, 3600000, 0, 2);
+        scheduler.register(large);
+        scheduler.register(small);
+        int numWorkersRegistered = scheduler.getNumWorkers();
+        scheduler.unregister(large);
+        int numWorkersLargeUnregistered = scheduler.getNumWorkers();
+        scheduler.unregister(small);
+        int numWorkersUnregistered = scheduler.getNumWorkers();
+
+        try {
+            assertEquals(4, numWorkersRegistered);
+            assertEquals(2, numWorkersLargeUnregistered);
+            assertEquals(1, numWorkersUnregistered);
+            System.out.println(getTestTraceHead("[ExpirationScheduler.unregister]")
+                    + "-  OK  - The worker pool was grown and shrunk as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ExpirationScheduler.unregister]")
+                    + "- FAIL - The worker pool was not grown or shrunk as expected");
+            throw e;
+        } // try catch
+    } // testUnregister
+
+    /**
+     * [ExpirationScheduler.register] -------- A sink whose deletes-per-second budget is exhausted does not stall the
+     * expirations of the rest of sinks.
+     */
+    @Test
+    public void testRegisterBudgetDoesNotStall() throws Exception {
+        System.out.println(getTestTraceHead("[ExpirationScheduler.register]")
+                + "-------- A sink whose deletes-per-second budget is exhausted does not stall the expirations of the "
+                + "rest of sinks");
+        ExpirationScheduler scheduler = ExpirationScheduler.getInstance();
+        CountDownLatch limitedExpirated = new CountDownLatch(1);
+        CountDownLatch unlimitedExpirated = new CountDownLatch(1);
+        // Each step expirates 60 records, thus the budget of 1 delete per second is exhausted for a minute
+        Registration limited = new Registration("limited", createExpirator(limitedExpirated, 60L), 100000, 3600000, 1,
+                1);
+        Registration unlimited = new Registration("unlimited", createExpirator(unlimitedExpirated, 1L), 100000,
+                3600000, 0, 1);
+        boolean limitedWasExpirated;
+        boolean unlimitedWasExpirated;
+
+        try {
+            scheduler.register(limited);
+            limitedWasExpirated = limitedExpirated.await(10, TimeUnit.SECONDS);
+            scheduler.register(unlimited);
+            unlimitedWasExpirated = unlimitedExpirated.await(10, TimeUnit.SECONDS);
+        } finally {
+            scheduler.unregister(limited);
+            scheduler.unregister(unlimited);
+        } // try finally
+
+        try {
+            assertTrue(limitedWasExpirated);
+            assertTrue(unlimitedWasExpirated);
+            System.out.println(getTestTraceHead("[ExpirationScheduler.register]")
+                    + "-  OK  - The unlimited sink was expirated while the limited one was waiting for its budget");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ExpirationScheduler.register]")
+                    + "- FAIL - The unlimited sink was not expirated while the limited one was waiting for its "
+                    + "budget");
+            throw e;
+        } // try catch
+    } // testRegisterBudgetDoesNotStall
+
+    private Expirator createExpirator(final CountDownLatch expirated, final Long numRecords) {
+        return new Expirator() {
+
+            @Override
+            public ArrayList<Destination> getExpirationDestinations() {
+                ArrayList<Destination> destinations = new ArrayList<>();
+                destinations.add(new Destination("destination", 1000, 1000));
+                return destinations;
+            } // getExpirationDestinations
+
+            @Override
+            public long expirate(String destination, long horizon, long maxRecords) {
+                if (expirated != null) {
+                    expirated.countDown();
+                } // if
+
+                return numRecords == null ? 0 : numRecords;
+            } // expirate
+
+        };
+    } // createExpirator
+
+} // ExpirationSchedulerTest
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class HeapGuardTest {
+
+    /**
+     * [HeapGuard.isExceeded] -------- The budget is exceeded once the bytes held by all the sinks exceed the
+     * smallest configured maximum, and it is not anymore once released.
+     */
+    @Test
+    public void testIsExceeded() {
+        System.out.println(getTestTraceHead("[HeapGuard.isExceeded]")
+                + "-------- The budget is exceeded once the bytes held by all the sinks exceed the smallest configured "
+                + "maximum, and it is not anymore once released");
+        HeapGuard guard = new HeapGuard();
+        boolean withoutMax = guard.isExceeded();
+        guard.setMaxBytes(2000);
+        guard.setMaxBytes(1000);
+        guard.setMaxBytes(-1);
+        guard.setHeldBytes("sink1", 600);
+        guard.setHeldBytes("sink2", 300);
+        boolean below = guard.isExceeded();
+        guard.setHeldBytes("sink2", 500);
+        boolean above = guard.isExceeded();
+        guard.remove("sink1");
+        boolean released = guard.isExceeded();
+
+        try {
+            assertFalse(withoutMax);
+            assertFalse(below);
+            assertTrue(above);
+            assertFalse(released);
+            assertEquals(1000, guard.getMaxBytes());
+            assertEquals(500, guard.getTotalBytes());
+            assertEquals(0, guard.getHeldBytes("sink1"));
+            System.out.println(getTestTraceHead("[HeapGuard.isExceeded]")
+                    + "-  OK  - The budget was exceeded as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[HeapGuard.isExceeded]")
+                    + "- FAIL - The budget was not exceeded as expected (" + withoutMax + ", " + below + ", " + above
+                    + ", " + released + ")");
+            throw e;
+        } // try catch
+    } // testIsExceeded
+
+} // HeapGuardTest
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class RecordCountersTest {
+
+    /**
+     * [RecordCounters.onPersisted] -------- A destination is capped the first time it is persisted, and then only
+     * once the maximum number of records is exceeded by more than the slack.
+     */
+    @Test
+    public void testOnPersisted() {
+        System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                + "-------- A destination is capped the first time it is persisted, and then only once the maximum "
+                + "number of records is exceeded by more than the slack");
+        RecordCounters counters = new RecordCounters(100, 10, 60000);
+        boolean first = counters.onPersisted("dest", 5, 0);
+        boolean whilePending = counters.onPersisted("dest", 500, 0);
+        counters.onCapped("dest", true, 0);
+        boolean withinSlack = counters.onPersisted("dest", 10, 0);
+        boolean beyondSlack = counters.onPersisted("dest", 1, 0);
+
+        try {
+            assertTrue(first);
+            assertFalse(whilePending);
+            assertFalse(withinSlack);
+            assertTrue(beyondSlack);
+            assertEquals(111, counters.getNumRecords("dest"));
+            assertEquals(1, counters.getNumPendingCappings());
+            System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                    + "-  OK  - The cappings were requested as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                    + "- FAIL - The cappings were not requested as expected (" + first + ", " + whilePending + ", "
+                    + withinSlack + ", " + beyondSlack + ")");
+            throw e;
+        } // try catch
+    } // testOnPersisted
+
+    /**
+     * [RecordCounters.onCapped] -------- A failed capping is requested again once new records are persisted.
+     */
+    @Test
+    public void testOnCappedFailed() {
+        System.out.println(getTestTraceHead("[RecordCounters.onCapped]")
+                + "-------- A failed capping is requested again once new records are persisted");
+        RecordCounters counters = new RecordCounters(100, 10, 60000);
+        counters.onPersisted("dest", 5, 0);
+        counters.onCapped("dest", false, 0);
+        boolean again = counters.onPersisted("dest", 1, 0);
+
+        try {
+            assertTrue(again);
+            assertEquals(-1, counters.getNumRecords("dest"));
+            System.out.println(getTestTraceHead("[RecordCounters.onCapped]")
+                    + "-  OK  - The capping was requested again");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RecordCounters.onCapped]")
+                    + "- FAIL - The capping was not requested again");
+            throw e;
+        } // try catch
+    } // testOnCappedFailed
+
+    /**
+     * [RecordCounters.onPersisted] -------- Destinations not persisted for more than the maximum idle time are
+     * forgotten, and capped again once persisted.
+     */
+    @Test
+    public void testOnPersistedEvictsIdle() {
+        System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                + "-------- Destinations not persisted for more than the maximum idle time are forgotten, and capped "
+                + "again once persisted");
+        RecordCounters counters = new RecordCounters(100, 10, 60000);
+        counters.onPersisted("idle", 5, 0);
+        counters.onCapped("idle", true, 0);
+        counters.onPersisted("busy", 5, 0);
+        counters.onCapped("busy", true, 0);
+        counters.onPersisted("busy", 1, 50000);
+        counters.onPersisted("other", 1, 70000);
+
+        try {
+            assertEquals(-1, counters.getNumRecords("idle"));
+            assertEquals(101, counters.getNumRecords("busy"));
+            assertEquals(1, counters.getNumDestinations());
+            assertTrue(counters.onPersisted("idle", 1, 70000));
+            System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                    + "-  OK  - The idle destination was forgotten and capped again");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RecordCounters.onPersisted]")
+                    + "- FAIL - The idle destination was not forgotten");
+            throw e;
+        } // try catch
+    } // testOnPersistedEvictsIdle
+
+} // RecordCountersTest
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class RetrySchedulerTest {
+
+    /**
+     * [RetryScheduler.getInterval] -------- Fixed intervals repeat the last one, and exponential intervals are doubled
+     * up to the maximum interval.
+     */
+    @Test
+    public void testGetInterval() {
+        System.out.println(getTestTraceHead("[RetryScheduler.getInterval]")
+                + "-------- Fixed intervals repeat the last one, and exponential intervals are doubled up to the "
+                + "maximum interval");
+        RetryScheduler<String> fixed = new RetryScheduler<>(new int[] {1000, 2000}, false, 60000, 0, 1);
+        RetryScheduler<String> exponential = new RetryScheduler<>(new int[] {1000, 2000}, true, 60000, 0, 1);
+
+        try {
+            assertEquals(1000, fixed.getInterval(0));
+            assertEquals(2000, fixed.getInterval(1));
+            assertEquals(2000, fixed.getInterval(5));
+            assertEquals(1000, exponential.getInterval(0));
+            assertEquals(8000, exponential.getInterval(3));
+            assertEquals(60000, exponential.getInterval(100));
+            System.out.println(getTestTraceHead("[RetryScheduler.getInterval]")
+                    + "-  OK  - The intervals were the expected ones");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RetryScheduler.getInterval]")
+                    + "- FAIL - The intervals were not the expected ones");
+            throw e;
+        } // try catch
+    } // testGetInterval
+
+    /**
+     * [RetryScheduler.schedule] -------- The jitter keeps the next attempt within the configured percentage of the
+     * interval.
+     */
+    @Test
+    public void testScheduleJitter() {
+        System.out.println(getTestTraceHead("[RetryScheduler.schedule]")
+                + "-------- The jitter keeps the next attempt within the configured percentage of the interval");
+        RetryScheduler<String> scheduler = new RetryScheduler<>(new int[] {1000}, false, 60000, 20, 1);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int i = 0; i < 100; i++) {
+            long nextAttempt = scheduler.schedule("item" + i, null, 0, 0);
+            min = Math.min(min, nextAttempt);
+            max = Math.max(max, nextAttempt);
+        } // for
+
+        try {
+            assertTrue(min >= 800);
+            assertTrue(max <= 1200);
+            assertEquals(100, scheduler.size());
+            System.out.println(getTestTraceHead("[RetryScheduler.schedule]")
+                    + "-  OK  - The next attempts were between " + min + " and " + max);
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RetryScheduler.schedule]")
+                    + "- FAIL - The next attempts exceeded the jitter (" + min + ", " + max + ")");
+            throw e;
+        } // try catch
+    } // testScheduleJitter
+
+    /**
+     * [RetryScheduler.poll] -------- Items are polled by next attempt time, only if such a time has been reached and
+     * the maximum number of items per key has not been reached within the round.
+     */
+    @Test
+    public void testPoll() {
+        System.out.println(getTestTraceHead("[RetryScheduler.poll]")
+                + "-------- Items are polled by next attempt time, only if such a time has been reached and the "
+                + "maximum number of items per key has not been reached within the round");
+        RetryScheduler<String> scheduler = new RetryScheduler<>(new int[] {1000}, false, 60000, 0, 1);
+        scheduler.schedule("a2", Arrays.asList("destA"), 200, 0);
+        scheduler.schedule("b1", Arrays.asList("destB"), 100, 0);
+        scheduler.schedule("a1", Arrays.asList("destA"), 0, 0);
+        scheduler.schedule("c1", Arrays.asList("destC"), 5000, 0);
+        scheduler.startRound();
+        String first = scheduler.poll(2000);
+        String second = scheduler.poll(2000);
+        String third = scheduler.poll(2000); // a2 regards to destA, already retried within this round
+        scheduler.startRound();
+        String fourth = scheduler.poll(2000);
+        String fifth = scheduler.poll(2000); // c1 is not ready yet
+
+        try {
+            assertEquals("a1", first);
+            assertEquals("b1", second);
+            assertEquals(null, third);
+            assertEquals("a2", fourth);
+            assertEquals(null, fifth);
+            assertEquals(1, scheduler.size());
+            System.out.println(getTestTraceHead("[RetryScheduler.poll]")
+                    + "-  OK  - The items were polled in the expected order");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[RetryScheduler.poll]")
+                    + "- FAIL - The items were not polled in the expected order (" + first + ", " + second + ", "
+                    + third + ", " + fourth + ", " + fifth + ")");
+            throw e;
+        } // try catch
+    } // testPoll
+
+} // RetrySchedulerTest
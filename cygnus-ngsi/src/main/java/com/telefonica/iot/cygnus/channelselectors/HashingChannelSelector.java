@@ -0,0 +1,254 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.channelselectors;
+
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.sinks.Enums.DataModel;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.channel.AbstractChannelSelector;
+
+/**
+ * Channel selector routing the events by the hash of a key (service, service path, entity or destination), in a way
+ * all the events regarding the same key are always put into the same channel of each storage. Thus, each sink owns
+ * a stable shard of the destinations and no two sinks write to the same destination at the same time.
+ *
+ * @author frb
+ */
+public class HashingChannelSelector extends AbstractChannelSelector {
+
+    /**
+     * Available hashing keys.
+     */
+    public enum HashingKey { SERVICE, SERVICEPATH, ENTITY, DESTINATION }
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(HashingChannelSelector.class);
+    private int numStorages;
+    private HashingKey hashingKey;
+    private DataModel dataModel;
+    private boolean enableGrouping;
+    private boolean enableNameMappings;
+    private final LinkedHashMap<String, ArrayList<String>> channelsPerStorage;
+    private final HashMap<String, Channel> channelsByName;
+
+    /**
+     * Constructor.
+     */
+    public HashingChannelSelector() {
+        this.channelsPerStorage = new LinkedHashMap<>();
+        this.channelsByName = new HashMap<>();
+    } // HashingChannelSelector
+
+    protected HashingKey getHashingKey() {
+        return hashingKey;
+    } // getHashingKey
+
+    protected DataModel getDataModel() {
+        return dataModel;
+    } // getDataModel
+
+    @Override
+    public void setChannels(List<Channel> channels) {
+        super.setChannels(channels);
+        channelsByName.clear();
+
+        for (Channel channel : channels) {
+            channelsByName.put(channel.getName(), channel);
+        } // for
+    } // setChannels
+
+    @Override
+    public void configure(Context context) {
+        numStorages = context.getInteger("storages", 1);
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (storages=" + numStorages + ")");
+
+        for (int i = 0; i < numStorages; i++) {
+            String channelsStr = context.getString("storages.storage" + (i + 1));
+
+            if (channelsStr == null || channelsStr.isEmpty()) {
+                LOGGER.error("[" + this.getName() + "] Invalid configuration (storages.storage" + (i + 1) + "="
+                        + channelsStr + ") -- Must be a comma-separated list of channels, the storage is ignored");
+                continue;
+            } // if
+
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (storages.storage" + (i + 1) + "="
+                    + channelsStr + ")");
+
+            ArrayList<String> channelArrayList = new ArrayList<>();
+
+            for (String channelName : channelsStr.split(",")) {
+                channelArrayList.add(channelName.trim());
+            } // for
+
+            channelsPerStorage.put("storage" + (i + 1), channelArrayList);
+        } // for
+
+        String hashingKeyStr = context.getString("hashing_key", "destination");
+
+        try {
+            hashingKey = HashingKey.valueOf(hashingKeyStr.replaceAll("-", "").toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (hashing_key=" + hashingKeyStr + ")");
+        } catch (Exception e) {
+            hashingKey = HashingKey.DESTINATION;
+            LOGGER.error("[" + this.getName() + "] Invalid configuration (hashing_key=" + hashingKeyStr + ") -- Must "
+                    + "be 'service', 'service-path', 'entity' or 'destination', using 'destination'");
+        } // try catch
+
+        String dataModelStr = context.getString("data_model", "dm-by-entity");
+
+        try {
+            dataModel = DataModel.valueOf(dataModelStr.replaceAll("-", "").toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (data_model=" + dataModelStr + ")");
+        } catch (Exception e) {
+            dataModel = DataModel.DMBYENTITY;
+            LOGGER.error("[" + this.getName() + "] Invalid configuration (data_model=" + dataModelStr + ") -- Must "
+                    + "be 'dm-by-service', 'dm-by-service-path', 'dm-by-entity' or 'dm-by-attribute', using "
+                    + "'dm-by-entity'");
+        } // try catch
+
+        String enableGroupingStr = context.getString("enable_grouping", "false");
+
+        if (enableGroupingStr.equals("true") || enableGroupingStr.equals("false")) {
+            enableGrouping = Boolean.valueOf(enableGroupingStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (enable_grouping="
+                + enableGroupingStr + ")");
+        } else {
+            enableGrouping = false;
+            LOGGER.error("[" + this.getName() + "] Invalid configuration (enable_grouping="
+                + enableGroupingStr + ") -- Must be 'true' or 'false', using 'false'");
+        } // if else
+
+        String enableNameMappingsStr = context.getString("enable_name_mappings", "false");
+
+        if (enableNameMappingsStr.equals("true") || enableNameMappingsStr.equals("false")) {
+            enableNameMappings = Boolean.valueOf(enableNameMappingsStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (enable_name_mappings="
+                + enableNameMappingsStr + ")");
+        } else {
+            enableNameMappings = false;
+            LOGGER.error("[" + this.getName() + "] Invalid configuration (enable_name_mappings="
+                + enableNameMappingsStr + ") -- Must be 'true' or 'false', using 'false'");
+        } // if else
+    } // configure
+
+    @Override
+    public List<Channel> getOptionalChannels(Event event) {
+        LOGGER.debug("Returning empty optional channels");
+        return new ArrayList<>();
+    } // getOptionalChannels
+
+    @Override
+    public List<Channel> getRequiredChannels(Event event) {
+        // resulting list of required channels
+        List<Channel> res = new ArrayList<>();
+
+        // the hash is computed once, and used for all the storages
+        String key = getKey(event);
+        int hash = key.hashCode() & Integer.MAX_VALUE;
+
+        for (ArrayList<String> channelNames : channelsPerStorage.values()) {
+            Channel channel = channelsByName.get(channelNames.get(hash % channelNames.size()));
+
+            if (channel != null) {
+                res.add(channel);
+            } // if
+        } // for
+
+        LOGGER.debug("Returning " + res.toString() + " channels (key=" + key + ")");
+        return res;
+    } // getRequiredChannels
+
+    /**
+     * Gets the key the given event is routed by. When routing by destination, the key is the same destination the
+     * NGSI sinks accumulate the event into, but for the 'dm-by-attribute' data model, where the entity destination is
+     * used since the attributes of an entity are never split among events.
+     * @param event
+     * @return The key the given event is routed by
+     */
+    protected String getKey(Event event) {
+        Map<String, String> headers = event.getHeaders();
+        ContextElement originalCE = null;
+        ContextElement mappedCE = null;
+
+        if (event instanceof NGSIEvent) {
+            originalCE = ((NGSIEvent) event).getOriginalCE();
+            mappedCE = ((NGSIEvent) event).getMappedCE();
+        } // if
+
+        boolean useMappings = enableNameMappings && mappedCE != null;
+        boolean useGrouping = enableGrouping && mappedCE == null;
+        String service = useMappings
+                ? headers.get(NGSIConstants.FLUME_HEADER_MAPPED_SERVICE)
+                : headers.get(CommonConstants.HEADER_FIWARE_SERVICE);
+        String servicePath;
+
+        if (useMappings) {
+            servicePath = headers.get(NGSIConstants.FLUME_HEADER_MAPPED_SERVICE_PATH);
+        } else if (useGrouping) {
+            servicePath = headers.get(NGSIConstants.FLUME_HEADER_GROUPED_SERVICE_PATH);
+        } else {
+            servicePath = headers.get(CommonConstants.HEADER_FIWARE_SERVICE_PATH);
+        } // if else
+
+        String entity;
+
+        if (useMappings) {
+            entity = mappedCE.getId() + "_" + mappedCE.getType();
+        } else if (mappedCE != null && originalCE != null) {
+            entity = originalCE.getId() + "_" + originalCE.getType();
+        } else if (useGrouping) {
+            entity = headers.get(NGSIConstants.FLUME_HEADER_GROUPED_ENTITY);
+        } else if (headers.containsKey(NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY)) {
+            entity = headers.get(NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY);
+        } else if (originalCE != null) {
+            entity = originalCE.getId() + "_" + originalCE.getType();
+        } else {
+            entity = null;
+        } // if else
+
+        switch (hashingKey) {
+            case SERVICE:
+                return String.valueOf(service);
+            case SERVICEPATH:
+                return service + "_" + servicePath;
+            case ENTITY:
+                return service + "_" + servicePath + "_" + entity;
+            default:
+                switch (dataModel) {
+                    case DMBYSERVICE:
+                        return String.valueOf(service);
+                    case DMBYSERVICEPATH:
+                        return service + "_" + servicePath;
+                    default:
+                        return service + "_" + servicePath + "_" + entity;
+                } // switch
+        } // switch
+    } // getKey
+
+} // HashingChannelSelector
@@ -317,6 +317,22 @@ public class NotifyContextRequest {
             return type;
         } // getType
         
+        /**
+         * Gets the context value as it was parsed.
+         * @return The context value for this context attribute in Json format
+         */
+        public JsonElement getJsonValue() {
+            return value;
+        } // getJsonValue
+        
+        /**
+         * Gets the context metadata as it was parsed.
+         * @return The context metadata for this context attribute, null if not notified
+         */
+        public ArrayList<ContextMetadata> getMetadatas() {
+            return metadatas;
+        } // getMetadatas
+        
         /**
          * Gets context value.
          * @param asStringRepresentation
@@ -463,6 +479,14 @@ public class NotifyContextRequest {
             } // if else if
         } // getValue
         
+        /**
+         * Gets the metadata value as it was parsed.
+         * @return The metadata value in Json format
+         */
+        public JsonElement getJsonValue() {
+            return value;
+        } // getJsonValue
+        
         public void setName(String name) {
             this.name = name;
         } // setName
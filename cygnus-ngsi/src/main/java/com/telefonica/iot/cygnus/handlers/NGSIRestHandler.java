@@ -21,24 +21,43 @@ package com.telefonica.iot.cygnus.handlers;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElementResponse;
+import com.telefonica.iot.cygnus.handlers.NGSIStreamingParser.ContextElementHandler;
 import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.interceptors.NGSIEventCodec;
+import com.telefonica.iot.cygnus.interceptors.NGSIEventCodec.BodyFormat;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.log.PayloadLogSampler;
 import com.telefonica.iot.cygnus.utils.CommonConstants;
 import com.telefonica.iot.cygnus.utils.CommonUtils;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.flume.ChannelException;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.source.http.HTTPBadRequestException;
 import org.apache.flume.source.http.HTTPSourceHandler;
 import org.apache.http.MethodNotSupportedException;
 import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import org.mortbay.jetty.HttpConnection;
 import org.slf4j.MDC;
 
 /**
@@ -60,10 +79,33 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
     private String notificationTarget;
     private String defaultService;
     private String defaultServicePath;
+    private boolean enableStreamingParsing;
+    private BodyFormat eventBodyFormat;
+    private boolean enableBackpressure;
+    private String backpressureChannels;
+    private int backpressureHighWatermark;
+    private int backpressureLowWatermark;
+    private int backpressureMaxRetryAfter;
+    private int serviceRate;
+    private int serviceBurst;
+    private int servicePathRate;
+    private int servicePathBurst;
+    private long maxDecodedSize;
+    private PayloadLogSampler payloadLogSampler;
+    
+    // backpressure
+    private BackpressureController backpressureController;
     
     // shared variables, making them static all the instances of this class will share them
     private static final Object LOCK = new Object();
     
+    // size of the buffers used when decoding compressed notifications
+    private static final int DECODING_BUFFER_SIZE = 8192;
+    
+    // not defined by the servlet API version Jetty 6 implements
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final int SC_PAYLOAD_TOO_LARGE = 413;
+    
     /**
      * Constructor. This can be used as a place where to initialize all that things we would like to do in the Flume
      * "initialization" class, which is unreachable by our code. As long as this class is instantiated almost at boot
@@ -72,6 +114,9 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
     public NGSIRestHandler() {
         // initially, the configuration is meant to be valid
         invalidConfiguration = false;
+        
+        // by default, all the payloads are fully logged
+        payloadLogSampler = new PayloadLogSampler(1, -1);
     } // NGSIRestHandler
     
     /**
@@ -98,6 +143,47 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
         return defaultServicePath;
     } // getDefaultServicePath
     
+    /**
+     * Gets if the streaming parsing is enabled. It is protected due to it is only required for testing purposes.
+     * @return True if the streaming parsing is enabled, false otherwise
+     */
+    protected boolean getEnableStreamingParsing() {
+        return enableStreamingParsing;
+    } // getEnableStreamingParsing
+    
+    /**
+     * Gets the format of the events body. It is protected due to it is only required for testing purposes.
+     * @return The format of the events body
+     */
+    protected BodyFormat getEventBodyFormat() {
+        return eventBodyFormat;
+    } // getEventBodyFormat
+    
+    /**
+     * Gets if the backpressure is enabled. It is protected due to it is only required for testing purposes.
+     * @return True if the backpressure is enabled, false otherwise
+     */
+    protected boolean getEnableBackpressure() {
+        return enableBackpressure;
+    } // getEnableBackpressure
+    
+    /**
+     * Gets the sampler of the logged payloads. It is protected due to it is only required for testing purposes.
+     * @return The sampler of the logged payloads
+     */
+    protected PayloadLogSampler getPayloadLogSampler() {
+        return payloadLogSampler;
+    } // getPayloadLogSampler
+    
+    /**
+     * Gets the maximum decoded size of a compressed notification. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum decoded size of a compressed notification, in bytes
+     */
+    protected long getMaxDecodedSize() {
+        return maxDecodedSize;
+    } // getMaxDecodedSize
+    
     /**
      * Gets true if the configuration is invalid, false otherwise. It is protected due to it is only
      * required for testing purposes.
@@ -154,8 +240,158 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
                     + "' parameter can only contain alphanumerics or underscores");
         } // else
         
+        String enableStreamingParsingStr = context.getString(NGSIConstants.PARAM_ENABLE_STREAMING_PARSING, "false");
+        
+        if (enableStreamingParsingStr.equals("true") || enableStreamingParsingStr.equals("false")) {
+            enableStreamingParsing = Boolean.valueOf(enableStreamingParsingStr);
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_ENABLE_STREAMING_PARSING
+                    + "=" + enableStreamingParsingStr + ")");
+        } else {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_ENABLE_STREAMING_PARSING
+                    + "=" + enableStreamingParsingStr + ") -- Must be 'true' or 'false'");
+        } // if else
+        
+        String eventBodyFormatStr = context.getString(NGSIConstants.PARAM_EVENT_BODY_FORMAT, "json");
+        
+        try {
+            eventBodyFormat = BodyFormat.valueOf(eventBodyFormatStr.toUpperCase(Locale.ENGLISH));
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_EVENT_BODY_FORMAT + "="
+                    + eventBodyFormatStr + ")");
+        } catch (Exception e) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_EVENT_BODY_FORMAT + "="
+                    + eventBodyFormatStr + ") -- Must be 'json' or 'binary'");
+        } // try catch
+        
+        String enableBackpressureStr = context.getString(NGSIConstants.PARAM_BACKPRESSURE_ENABLED, "false");
+        
+        if (enableBackpressureStr.equals("true") || enableBackpressureStr.equals("false")) {
+            enableBackpressure = Boolean.valueOf(enableBackpressureStr);
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_BACKPRESSURE_ENABLED
+                    + "=" + enableBackpressureStr + ")");
+        } else {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_BACKPRESSURE_ENABLED
+                    + "=" + enableBackpressureStr + ") -- Must be 'true' or 'false'");
+        } // if else
+        
+        backpressureChannels = context.getString(NGSIConstants.PARAM_BACKPRESSURE_CHANNELS, "");
+        LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_BACKPRESSURE_CHANNELS + "="
+                + backpressureChannels + ")");
+        backpressureHighWatermark = context.getInteger(NGSIConstants.PARAM_BACKPRESSURE_HIGH_WM, 90);
+        backpressureLowWatermark = context.getInteger(NGSIConstants.PARAM_BACKPRESSURE_LOW_WM, 70);
+        
+        if (backpressureHighWatermark <= 0 || backpressureHighWatermark > 100) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_BACKPRESSURE_HIGH_WM + "="
+                    + backpressureHighWatermark + ") -- Must be a percentage greater than 0");
+        } else if (backpressureLowWatermark < 0 || backpressureLowWatermark > backpressureHighWatermark) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_BACKPRESSURE_LOW_WM + "="
+                    + backpressureLowWatermark + ") -- Must be a percentage lower than or equal to "
+                    + NGSIConstants.PARAM_BACKPRESSURE_HIGH_WM);
+        } else {
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_BACKPRESSURE_HIGH_WM
+                    + "=" + backpressureHighWatermark + ")");
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_BACKPRESSURE_LOW_WM
+                    + "=" + backpressureLowWatermark + ")");
+        } // if else
+        
+        backpressureMaxRetryAfter = context.getInteger(NGSIConstants.PARAM_BACKPRESSURE_MAX_RETRY, 60);
+        
+        if (backpressureMaxRetryAfter <= 0) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_BACKPRESSURE_MAX_RETRY + "="
+                    + backpressureMaxRetryAfter + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_BACKPRESSURE_MAX_RETRY
+                    + "=" + backpressureMaxRetryAfter + ")");
+        } // if else
+        
+        serviceRate = getNonNegativeInteger(context, NGSIConstants.PARAM_SERVICE_RATE);
+        serviceBurst = getNonNegativeInteger(context, NGSIConstants.PARAM_SERVICE_BURST);
+        servicePathRate = getNonNegativeInteger(context, NGSIConstants.PARAM_SERVICE_PATH_RATE);
+        servicePathBurst = getNonNegativeInteger(context, NGSIConstants.PARAM_SERVICE_PATH_BURST);
+        maxDecodedSize = context.getLong(NGSIConstants.PARAM_MAX_DECODED_SIZE, 10485760L);
+        
+        if (maxDecodedSize <= 0) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_MAX_DECODED_SIZE + "="
+                    + maxDecodedSize + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_MAX_DECODED_SIZE + "="
+                    + maxDecodedSize + ")");
+        } // if else
+        
+        int logPayloadSampling = context.getInteger(NGSIConstants.PARAM_LOG_PAYLOAD_SAMPLING, 1);
+        int logPayloadMaxLength = context.getInteger(NGSIConstants.PARAM_LOG_PAYLOAD_MAX_LENGTH, -1);
+        
+        if (logPayloadSampling < 0) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_LOG_PAYLOAD_SAMPLING + "="
+                    + logPayloadSampling + ") -- Must be greater than or equal to 0");
+        } else if (logPayloadMaxLength < -1) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + NGSIConstants.PARAM_LOG_PAYLOAD_MAX_LENGTH + "="
+                    + logPayloadMaxLength + ") -- Must be greater than or equal to -1");
+        } else {
+            payloadLogSampler = new PayloadLogSampler(logPayloadSampling, logPayloadMaxLength);
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_LOG_PAYLOAD_SAMPLING
+                    + "=" + logPayloadSampling + ")");
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + NGSIConstants.PARAM_LOG_PAYLOAD_MAX_LENGTH
+                    + "=" + logPayloadMaxLength + ")");
+        } // if else
+        
+        // The rate limiter is always created, since specific limits may be set at runtime through the management
+        // interface even if there are no default limits
+        rateLimiter = new RateLimiter(new RateLimiter.Limits(serviceRate, serviceBurst),
+                new RateLimiter.Limits(servicePathRate, servicePathBurst));
+        
+        if (enableBackpressure && !invalidConfiguration) {
+            backpressureController = createBackpressureController(backpressureChannels.isEmpty()
+                    ? new ArrayList<String>() : Arrays.asList(backpressureChannels.split(",")),
+                    backpressureHighWatermark / 100.0, backpressureLowWatermark / 100.0, backpressureMaxRetryAfter);
+        } else {
+            backpressureController = null;
+        } // if else
+        
         LOGGER.info("[NGSIRestHandler] Startup completed");
     } // configure
+    
+    /**
+     * Gets a non negative integer parameter from the given context, 0 if not configured.
+     * @param context
+     * @param param
+     * @return The non negative integer parameter value
+     */
+    private int getNonNegativeInteger(Context context, String param) {
+        int value = context.getInteger(param, 0);
+        
+        if (value < 0) {
+            invalidConfiguration = true;
+            LOGGER.error("[NGSIRestHandler] Bad configuration (" + param + "=" + value + ") -- Must be greater than "
+                    + "or equal to 0");
+        } else {
+            LOGGER.debug("[NGSIRestHandler] Reading configuration (" + param + "=" + value + ")");
+        } // if else
+        
+        return value;
+    } // getNonNegativeInteger
+    
+    /**
+     * Creates the controller deciding if notifications must be shed because of backpressure. It is protected since it
+     * is overridden by the tests.
+     * @param channelNames
+     * @param highWatermark
+     * @param lowWatermark
+     * @param maxRetryAfter
+     * @return The backpressure controller
+     */
+    protected BackpressureController createBackpressureController(List<String> channelNames, double highWatermark,
+            double lowWatermark, int maxRetryAfter) {
+        return new BackpressureController(channelNames, highWatermark, lowWatermark, maxRetryAfter);
+    } // createBackpressureController
             
     @Override
     public List<Event> getEvents(javax.servlet.http.HttpServletRequest request) throws Exception {
@@ -176,13 +412,14 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
         Enumeration headerNames = request.getHeaderNames();
         String corrId = null;
         String contentType = null;
+        String contentEncoding = null;
         String service = defaultService;
         String servicePath = defaultServicePath;
         
         while (headerNames.hasMoreElements()) {
             String headerName = ((String) headerNames.nextElement()).toLowerCase(Locale.ENGLISH);
             String headerValue = request.getHeader(headerName);
-            LOGGER.debug("[NGSIRestHandler] Header " + headerName + " received with value " + headerValue);
+            LOGGER.debug("[NGSIRestHandler] Header {} received with value {}", headerName, headerValue);
             
             switch (headerName) {
                 case CommonConstants.HEADER_CORRELATOR_ID:
@@ -198,6 +435,17 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
                         contentType = headerValue;
                     } // if else
                     
+                    break;
+                case CommonConstants.HTTP_HEADER_CONTENT_ENCODING:
+                    if (wrongContentEncoding(headerValue)) {
+                        LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (" + headerValue
+                                + " content encoding not supported)");
+                        throw new HTTPBadRequestException(headerValue
+                                + " content encoding not supported");
+                    } else {
+                        contentEncoding = headerValue.trim().toLowerCase(Locale.ENGLISH);
+                    } // if else
+                    
                     break;
                 case CommonConstants.HEADER_FIWARE_SERVICE:
                     if (wrongServiceHeaderLength(headerValue)) {
@@ -280,6 +528,31 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
             throw new HTTPBadRequestException("Missing content type. Required 'application/json; charset=utf-8'");
         } // if
         
+        // Check the service and the service paths are not exceeding their rate limits
+        String effectiveService = service == null ? defaultService : service;
+        String[] effectiveServicePaths = (servicePath == null ? defaultServicePath : servicePath).split(",");
+        long wait = rateLimiter.tryAcquire(effectiveService, effectiveServicePaths, System.nanoTime());
+        
+        if (wait > 0) {
+            int retryAfter = (int) Math.max(1, (wait + 999999999L) / 1000000000L);
+            serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 0, 0, 0, 0, 0, 0);
+            serviceMetrics.addIncomingTransactionsThrottled(service, servicePath, 1);
+            LOGGER.warn("[NGSIRestHandler] Rate limit exceeded, notification throttled (Retry-After: " + retryAfter
+                    + ")");
+            sendTooManyRequests(retryAfter);
+            return new ArrayList<>();
+        } // if
+        
+        // Check the channels are not saturated before reading the notification, otherwise it would be parsed in vain
+        if (backpressureController != null && backpressureController.isSaturated(new Date().getTime())) {
+            int retryAfter = backpressureController.getRetryAfter();
+            serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 0, 0, 0, 0, 0, 0);
+            serviceMetrics.addIncomingTransactionsShed(service, servicePath, 1);
+            LOGGER.warn("[NGSIRestHandler] Channels saturated, notification shed (Retry-After: " + retryAfter + ")");
+            sendServiceUnavailable(retryAfter);
+            return new ArrayList<>();
+        } // if
+        
         // Get an internal transaction ID.
         String transId = CommonUtils.generateUniqueId(null, null);
         
@@ -293,23 +566,59 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
         MDC.put(CommonConstants.LOG4J_TRANS, transId);
         LOGGER.info("[NGSIRestHandler] Starting internal transaction (" + transId + ")");
         
+        // Decode the data content while reading it, if compressed; both the received (wire) bytes and the decoded
+        // bytes are counted, and the decoding is aborted once the decoded bytes exceed the maximum, since a few
+        // compressed bytes may decode into a huge content
+        ByteCountingInputStream wireIn = null;
+        ByteCountingInputStream decodedIn = null;
+        
+        if (contentEncoding != null && !contentEncoding.equals("identity")) {
+            wireIn = new ByteCountingInputStream(request.getInputStream());
+            decodedIn = new ByteCountingInputStream(new LazyDecodingInputStream(wireIn, contentEncoding),
+                    maxDecodedSize);
+        } // if
+        
+        // Parse the data content while reading it, if configured
+        if (enableStreamingParsing) {
+            return getEventsStreaming(request, decodedIn == null ? request.getInputStream() : decodedIn, wireIn,
+                    decodedIn, service, servicePath, corrId, transId);
+        } // if
+        
         // Get the data content
-        String data = "";
+        StringBuilder dataBuilder = new StringBuilder();
         String line;
         
-        try (BufferedReader reader = request.getReader()) {
+        try (BufferedReader reader = decodedIn == null
+                ? request.getReader()
+                : new BufferedReader(new InputStreamReader(decodedIn, StandardCharsets.UTF_8))) {
             while ((line = reader.readLine()) != null) {
-                data += line;
+                dataBuilder.append(line);
             } // while
-        } // try
+        } catch (IOException e) {
+            if (decodedIn == null) {
+                throw e;
+            } // if
+            
+            if (e instanceof MaxCountExceededException) {
+                return rejectPayloadTooLarge(request, wireIn, service, servicePath);
+            } // if
+            
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+            LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (" + contentEncoding + " content could not be "
+                    + "decoded: " + e.getMessage() + ")");
+            throw new HTTPBadRequestException(contentEncoding + " content could not be decoded");
+        } // try catch
+        
+        String data = dataBuilder.toString();
+        addDecodedSize(service, servicePath, decodedIn);
                 
         if (data.length() == 0) {
-            serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 1, 0, 0, 0, 0, 0);
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
             LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (No content in the request)");
             throw new HTTPBadRequestException("No content in the request");
         } // if
 
-        LOGGER.info("[NGSIRestHandler] Received data (" + data + ")");
+        LOGGER.info("[NGSIRestHandler] Received data ({})", payloadLogSampler.sample(data));
         
         // Parse the original data into a NotifyContextRequest object
         NotifyContextRequest ncr;
@@ -317,9 +626,9 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
 
         try {
             ncr = gson.fromJson(data, NotifyContextRequest.class);
-            LOGGER.debug("[NGSIRestHandler] Parsed NotifyContextRequest: " + ncr.toString());
+            LOGGER.debug("[NGSIRestHandler] Parsed NotifyContextRequest: {}", ncr);
         } catch (JsonSyntaxException e) {
-            serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 1, 0, 0, 0, 0, 0);
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
             LOGGER.error("[NGSIRestHandler] Runtime error (" + e.getMessage() + ")");
             return null;
         } // try catch
@@ -328,7 +637,7 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
         String[] servicePaths = servicePath.split(",");
         
         if (servicePaths.length != ncr.getContextResponses().size()) {
-            serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 1, 0, 0, 0, 0, 0);
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
             LOGGER.warn("[NGSIRestHandler] Bad HTTP notification ('"
                     + CommonConstants.HEADER_FIWARE_SERVICE_PATH
                     + "' header value does not match the number of notified context responses");
@@ -337,63 +646,342 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
                     + "' header value does not match the number of notified context responses");
         } // if
         
-        // Iterate on the NotifyContextRequest object in order to create an event per ContextElement
-        String ids = "";
+        // Iterate on the NotifyContextRequest object in order to create an event per ContextElement; the ids are
+        // only computed if they are going to be logged
+        boolean debugEnabled = LOGGER.isDebugEnabled();
+        StringBuilder ids = debugEnabled ? new StringBuilder() : null;
         
         for (int i = 0; i < ncr.getContextResponses().size(); i++) {
             ContextElementResponse cer = ncr.getContextResponses().get(i);
-            LOGGER.debug("[NGSIRestHandler] NGSI event created for ContextElementResponse: " + cer.toString());
-            
-            // Create the appropiate headers
-            Map<String, String> headers = new HashMap<>();
-            headers.put(CommonConstants.HEADER_FIWARE_SERVICE, service);
-            LOGGER.debug("[NGSIRestHandler] Header added to NGSI event ("
-                    + CommonConstants.HEADER_FIWARE_SERVICE + ": " + service + ")");
-            headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, servicePaths[i]);
-            LOGGER.debug("[NGSIRestHandler] Header added to NGSI event ("
-                    + CommonConstants.HEADER_FIWARE_SERVICE_PATH + ": " + servicePaths[i] + ")");
-            headers.put(CommonConstants.HEADER_CORRELATOR_ID, corrId);
-            LOGGER.debug("[NGSIRestHandler] Header added to NGSI event ("
-                    + CommonConstants.HEADER_CORRELATOR_ID + ": " + corrId + ")");
-            headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, transId);
-            LOGGER.debug("[NGSIRestHandler] Header added to NGSI event ("
-                    + NGSIConstants.FLUME_HEADER_TRANSACTION_ID + ": " + transId + ")");
+            LOGGER.debug("[NGSIRestHandler] NGSI event created for ContextElementResponse: {}", cer);
             
             // Create the NGSI event and add it to the list
-            NGSIEvent ngsiEvent = new NGSIEvent(
-                    // Headers
-                    headers, 
+            NGSIEvent ngsiEvent = createEvent(service, servicePaths[i], corrId, transId, cer.getContextElement(),
                     // Bytes version of the notified ContextElement
-                    (cer.getContextElement().toString() + CommonConstants.CONCATENATOR).getBytes(), 
-                    // Object version of the notified ContextElement
-                    cer.getContextElement(),
-                    // Will be set with the mapped object version of the notified ContextElement, by
-                    // NGSINameMappingsInterceptor (if configured). Currently, null
-                    null 
-            );
+                    NGSIEventCodec.encode(eventBodyFormat, cer.getContextElement(), null));
             ngsiEvents.add(ngsiEvent);
             
-            if (ids.isEmpty()) {
-                ids += ngsiEvent.hashCode();
-            } else {
-                ids += "," + ngsiEvent.hashCode();
-            } // if else
+            if (debugEnabled) {
+                ids.append(ids.length() == 0 ? "" : ",").append(ngsiEvent.hashCode());
+            } // if
         } // for
 
         // Return the NGSIEvent list
-        serviceMetrics.add(service, servicePath, 1, request.getContentLength(), 0, 0, 0, 0, 0, 0, 0);
-        LOGGER.debug("[NGSIRestHandler] NGSI events put in the channel, ids=" + ids);
+        serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 0, 0, 0, 0, 0, 0);
+        LOGGER.debug("[NGSIRestHandler] NGSI events put in the channel, ids={}", ids);
         numProcessedEvents++;
         return ngsiEvents;
     } // getEvents
     
+    /**
+     * Gets the NGSI events by parsing the notification while reading it from the request input stream. Each notified
+     * ContextElement is directly converted into a NGSI event, whose body is the raw Json slice of such ContextElement
+     * (no re-serialization is done).
+     * @param request
+     * @param in Input stream the notification is read from, already decoded if it was compressed
+     * @param wireIn Input stream counting the received bytes, null if the notification was not compressed
+     * @param decodedIn Input stream counting the decoded bytes, null if the notification was not compressed
+     * @param service
+     * @param servicePath
+     * @param corrId
+     * @param transId
+     * @return The list of NGSI events, or null if the notification could not be parsed
+     * @throws Exception
+     */
+    private List<Event> getEventsStreaming(javax.servlet.http.HttpServletRequest request, InputStream in,
+            ByteCountingInputStream wireIn, ByteCountingInputStream decodedIn, final String service,
+            String servicePath, final String corrId, final String transId) throws Exception {
+        final ArrayList<Event> ngsiEvents = new ArrayList<>();
+        final String[] servicePaths = servicePath.split(",");
+        int numContextResponses;
+        
+        try (InputStream closeableIn = in) {
+            NGSIStreamingParser parser = new NGSIStreamingParser(closeableIn,
+                    CommonConstants.CONCATENATOR.getBytes());
+            
+            if (!parser.hasContent()) {
+                throw new HTTPBadRequestException("No content in the request");
+            } // if
+            
+            numContextResponses = parser.parse(new ContextElementHandler() {
+                @Override
+                public void onContextElement(ContextElement contextElement, byte[] body) {
+                    int i = ngsiEvents.size();
+                    
+                    if (i >= servicePaths.length) {
+                        throw new HTTPBadRequestException(
+                                "'" + CommonConstants.HEADER_FIWARE_SERVICE_PATH
+                                + "' header value does not match the number of notified context responses");
+                    } // if
+                    
+                    // The raw Json slice is used as body unless the binary format is configured
+                    byte[] eventBody = eventBodyFormat == BodyFormat.BINARY
+                            ? NGSIEventCodec.encode(contextElement, null) : body;
+                    ngsiEvents.add(createEvent(service, servicePaths[i], corrId, transId, contextElement, eventBody));
+                } // onContextElement
+            });
+            
+            LOGGER.info("[NGSIRestHandler] Received data (" + numContextResponses + " context responses, "
+                    + parser.getBytesRead() + " bytes)");
+        } catch (JsonSyntaxException e) {
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+            LOGGER.error("[NGSIRestHandler] Runtime error (" + e.getMessage() + ")");
+            return null;
+        } catch (HTTPBadRequestException e) {
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+            LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (" + e.getMessage() + ")");
+            throw e;
+        } catch (IOException e) {
+            if (decodedIn == null) {
+                throw e;
+            } // if
+            
+            if (e instanceof MaxCountExceededException) {
+                return rejectPayloadTooLarge(request, wireIn, service, servicePath);
+            } // if
+            
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+            LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (content could not be decoded: " + e.getMessage()
+                    + ")");
+            throw new HTTPBadRequestException("Content could not be decoded");
+        } // try catch
+        
+        addDecodedSize(service, servicePath, decodedIn);
+        
+        if (servicePaths.length != numContextResponses) {
+            serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+            LOGGER.warn("[NGSIRestHandler] Bad HTTP notification ('"
+                    + CommonConstants.HEADER_FIWARE_SERVICE_PATH
+                    + "' header value does not match the number of notified context responses");
+            throw new HTTPBadRequestException(
+                    "'" + CommonConstants.HEADER_FIWARE_SERVICE_PATH
+                    + "' header value does not match the number of notified context responses");
+        } // if
+        
+        // Return the NGSIEvent list
+        serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 0, 0, 0, 0, 0, 0);
+        LOGGER.debug("[NGSIRestHandler] NGSI events put in the channel, num={}", ngsiEvents.size());
+        numProcessedEvents++;
+        return ngsiEvents;
+    } // getEventsStreaming
+    
+    /**
+     * Rejects a compressed notification whose decoded content exceeds the maximum decoded size, accounting it as a
+     * bad request.
+     * @param request
+     * @param wireIn Input stream counting the received bytes
+     * @param service
+     * @param servicePath
+     * @return An empty list of NGSI events
+     * @throws Exception
+     */
+    private List<Event> rejectPayloadTooLarge(javax.servlet.http.HttpServletRequest request,
+            ByteCountingInputStream wireIn, String service, String servicePath) throws Exception {
+        serviceMetrics.add(service, servicePath, 1, getRequestSize(request, wireIn), 0, 1, 0, 0, 0, 0, 0);
+        LOGGER.warn("[NGSIRestHandler] Bad HTTP notification (decoded content greater than " + maxDecodedSize
+                + " bytes)");
+        sendPayloadTooLarge();
+        return new ArrayList<>();
+    } // rejectPayloadTooLarge
+    
+    /**
+     * Responds with a 503 Service Unavailable status code and a Retry-After header. The response is directly sent
+     * through the current HTTP connection since the HTTP source only responds with such a status code when the events
+     * cannot be put into the channels, i.e. once the notification has been read and parsed. It is protected since it
+     * is overridden by the tests.
+     * @param retryAfter
+     * @throws Exception
+     */
+    protected void sendServiceUnavailable(int retryAfter) throws Exception {
+        String message = "Channels saturated, retry after " + retryAfter + " seconds";
+        
+        if (!sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, message)) {
+            throw new ChannelException(message);
+        } // if
+    } // sendServiceUnavailable
+    
+    /**
+     * Responds with a 429 Too Many Requests status code and a Retry-After header, in the same way than
+     * sendServiceUnavailable. It is protected since it is overridden by the tests.
+     * @param retryAfter
+     * @throws Exception
+     */
+    protected void sendTooManyRequests(int retryAfter) throws Exception {
+        String message = "Rate limit exceeded, retry after " + retryAfter + " seconds";
+        
+        if (!sendError(SC_TOO_MANY_REQUESTS, retryAfter, message)) {
+            throw new HTTPBadRequestException(message);
+        } // if
+    } // sendTooManyRequests
+    
+    /**
+     * Responds with a 413 Payload Too Large status code, in the same way than sendServiceUnavailable but without a
+     * Retry-After header; if there is no current HTTP connection, a 400 Bad Request is responded instead. It is
+     * protected since it is overridden by the tests.
+     * @throws Exception
+     */
+    protected void sendPayloadTooLarge() throws Exception {
+        String message = "Decoded content greater than " + maxDecodedSize + " bytes";
+        
+        if (!sendError(SC_PAYLOAD_TOO_LARGE, 0, message)) {
+            throw new HTTPBadRequestException(message);
+        } // if
+    } // sendPayloadTooLarge
+    
+    /**
+     * Sends an error response with a Retry-After header through the current HTTP connection.
+     * @param statusCode
+     * @param retryAfter Seconds, or 0 if no Retry-After header must be sent
+     * @param message
+     * @return True if the response was sent, false if there is no current HTTP connection
+     * @throws IOException
+     */
+    private boolean sendError(int statusCode, int retryAfter, String message) throws IOException {
+        HttpServletResponse response = getCurrentResponse();
+        
+        if (response == null) {
+            return false;
+        } // if
+        
+        if (retryAfter > 0) {
+            response.setHeader("Retry-After", String.valueOf(retryAfter));
+        } // if
+        
+        response.sendError(statusCode, message);
+        return true;
+    } // sendError
+    
+    /**
+     * Gets the response of the current HTTP connection. It is protected since it is overridden by the tests.
+     * @return The response of the current HTTP connection, or null if there is no current HTTP connection
+     */
+    protected HttpServletResponse getCurrentResponse() {
+        HttpConnection connection = HttpConnection.getCurrentConnection();
+        return connection == null ? null : connection.getResponse();
+    } // getCurrentResponse
+    
+    /**
+     * Gets the size of the request as received. If the request was compressed, the counted received bytes are
+     * returned, since the content length may not be notified (chunked transfer encoding).
+     * @param request
+     * @param wireIn
+     * @return The size of the request as received
+     */
+    private long getRequestSize(javax.servlet.http.HttpServletRequest request, ByteCountingInputStream wireIn) {
+        return wireIn == null ? request.getContentLength() : wireIn.getCount();
+    } // getRequestSize
+    
+    /**
+     * Adds the decoded size of a compressed request to the service metrics.
+     * @param service
+     * @param servicePath
+     * @param decodedIn
+     */
+    private void addDecodedSize(String service, String servicePath, ByteCountingInputStream decodedIn) {
+        if (decodedIn != null) {
+            serviceMetrics.addIncomingTransactionDecodedSize(service, servicePath, decodedIn.getCount());
+        } // if
+    } // addDecodedSize
+    
+    /**
+     * Gets an input stream decoding the given one according to the given content encoding. Both the zlib format and
+     * the raw deflate format (sent by certain clients) are accepted for the 'deflate' content encoding.
+     * @param in
+     * @param contentEncoding 'gzip', 'x-gzip' or 'deflate'
+     * @return An input stream decoding the given one
+     * @throws IOException
+     */
+    protected static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        switch (contentEncoding) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(in, DECODING_BUFFER_SIZE);
+            case "deflate":
+                PushbackInputStream pushbackIn = new PushbackInputStream(in, 2);
+                byte[] header = new byte[2];
+                int len = 0;
+                int read;
+                
+                while (len < 2 && (read = pushbackIn.read(header, len, 2 - len)) != -1) {
+                    len += read;
+                } // while
+                
+                pushbackIn.unread(header, 0, len);
+                boolean zlibWrapped = len == 2 && (header[0] & 0x0f) == 8
+                        && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+                return new InflaterInputStream(pushbackIn, new Inflater(!zlibWrapped), DECODING_BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end(); // not done by the superclass when the inflater is not the default one
+                        } // try finally
+                    } // close
+                };
+            default:
+                return in;
+        } // switch
+    } // decode
+    
+    /**
+     * Checks if the given Content-Encoding header value is wrong or not. It is protected since it is used by the tests.
+     * @param headerValue
+     * @return True if the content encoding is not supported, otherwise false
+     */
+    protected boolean wrongContentEncoding(String headerValue) {
+        switch (headerValue.trim().toLowerCase(Locale.ENGLISH)) {
+            case "identity":
+            case "gzip":
+            case "x-gzip":
+            case "deflate":
+                return false;
+            default:
+                return true;
+        } // switch
+    } // wrongContentEncoding
+    
+    /**
+     * Creates a NGSI event for the given notified ContextElement.
+     * @param service
+     * @param servicePath
+     * @param corrId
+     * @param transId
+     * @param contextElement
+     * @param body
+     * @return A NGSI event for the given notified ContextElement
+     */
+    private NGSIEvent createEvent(String service, String servicePath, String corrId, String transId,
+            ContextElement contextElement, byte[] body) {
+        // Create the appropiate headers
+        Map<String, String> headers = new HashMap<>();
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, service);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, servicePath);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, corrId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, transId);
+        LOGGER.debug("[NGSIRestHandler] Headers added to NGSI event ({})", headers);
+        
+        return new NGSIEvent(
+                // Headers
+                headers, 
+                // Bytes version of the notified ContextElement
+                body, 
+                // Object version of the notified ContextElement
+                contextElement,
+                // Will be set with the mapped object version of the notified ContextElement, by
+                // NGSINameMappingsInterceptor (if configured). Currently, null
+                null 
+        );
+    } // createEvent
+    
     /**
      * Checks is the give Content-Type header value is wrong or not. It is protected since it is used by the tests.
      * @param headerValue
      * @return True is the header value length is wrong, otherwise false
      */
     protected boolean wrongContentType(String headerValue) {
-        return !headerValue.contains("application/json; charset=utf-8");
+        // Proxies may change the letter case and the blanks, e.g. 'application/json;charset=UTF-8'
+        return !headerValue.toLowerCase(Locale.ENGLISH).replace(" ", "").contains("application/json;charset=utf-8");
     } // wrongContentType
     
     /**
@@ -426,4 +1014,145 @@ public class NGSIRestHandler extends CygnusHandler implements HTTPSourceHandler
         return !headerValue.startsWith("/");
     } // wrongServicePathHeaderInitialCharacter
     
+    /**
+     * Exception raised when the bytes read through a ByteCountingInputStream exceed its maximum.
+     */
+    protected static class MaxCountExceededException extends IOException {
+        
+        /**
+         * Constructor.
+         * @param maxCount
+         */
+        public MaxCountExceededException(long maxCount) {
+            super("More than " + maxCount + " bytes read");
+        } // MaxCountExceededException
+        
+    } // MaxCountExceededException
+    
+    /**
+     * Input stream counting the bytes read through it, and optionally failing once a maximum is exceeded.
+     */
+    protected static class ByteCountingInputStream extends FilterInputStream {
+        
+        private final long maxCount;
+        private long count;
+        
+        /**
+         * Constructor.
+         * @param in
+         */
+        public ByteCountingInputStream(InputStream in) {
+            this(in, -1);
+        } // ByteCountingInputStream
+        
+        /**
+         * Constructor.
+         * @param in
+         * @param maxCount Maximum number of bytes that can be read, -1 if not limited
+         */
+        public ByteCountingInputStream(InputStream in, long maxCount) {
+            super(in);
+            this.maxCount = maxCount;
+            count = 0;
+        } // ByteCountingInputStream
+        
+        public long getCount() {
+            return count;
+        } // getCount
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            
+            if (b != -1) {
+                count++;
+                checkCount();
+            } // if
+            
+            return b;
+        } // read
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            
+            if (read > 0) {
+                count += read;
+                checkCount();
+            } // if
+            
+            return read;
+        } // read
+        
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            checkCount();
+            return skipped;
+        } // skip
+        
+        private void checkCount() throws MaxCountExceededException {
+            if (maxCount != -1 && count > maxCount) {
+                throw new MaxCountExceededException(maxCount);
+            } // if
+        } // checkCount
+        
+        @Override
+        public boolean markSupported() {
+            return false;
+        } // markSupported
+        
+    } // ByteCountingInputStream
+    
+    /**
+     * Input stream decoding a compressed one. The decoder is created when first reading, thus errors regarding the
+     * compression headers are raised while reading the content, as any other decoding error.
+     */
+    private static class LazyDecodingInputStream extends InputStream {
+        
+        private final InputStream in;
+        private final String contentEncoding;
+        private InputStream decoder;
+        
+        /**
+         * Constructor.
+         * @param in
+         * @param contentEncoding
+         */
+        LazyDecodingInputStream(InputStream in, String contentEncoding) {
+            this.in = in;
+            this.contentEncoding = contentEncoding;
+            this.decoder = null;
+        } // LazyDecodingInputStream
+        
+        private InputStream getDecoder() throws IOException {
+            if (decoder == null) {
+                decoder = decode(in, contentEncoding);
+            } // if
+            
+            return decoder;
+        } // getDecoder
+        
+        @Override
+        public int read() throws IOException {
+            return getDecoder().read();
+        } // read
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return getDecoder().read(b, off, len);
+        } // read
+        
+        @Override
+        public void close() throws IOException {
+            if (decoder == null) {
+                in.close();
+            } else {
+                decoder.close();
+            } // if else
+        } // close
+        
+    } // LazyDecodingInputStream
+    
 } // NGSIRestHandler
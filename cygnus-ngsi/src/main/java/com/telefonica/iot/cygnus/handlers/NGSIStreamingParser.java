@@ -0,0 +1,391 @@
+/**
+ * Copyright 2014-2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.handlers;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ *
+ * @author frb
+ *
+ * Streaming parser for notifyContextRequest notifications. Instead of reading the whole notification into a String
+ * and mapping it into a NotifyContextRequest tree, the raw bytes are scanned while read from the input stream, and
+ * each contextElement found within the contextResponses array is handed to a ContextElementHandler as soon as it is
+ * completely read. The raw Json slice of each contextElement is reused as the Flume event body, thus there is no need
+ * for re-serializing the parsed object. At any moment, only the contextElement being read is kept in memory.
+ */
+public class NGSIStreamingParser {
+
+    /**
+     * Interface for those classes receiving the context elements found by the parser.
+     */
+    public interface ContextElementHandler {
+
+        /**
+         * Called each time a contextElement is completely read.
+         * @param contextElement Object version of the contextElement
+         * @param body Raw Json version of the contextElement, followed by the configured trailer
+         */
+        void onContextElement(ContextElement contextElement, byte[] body);
+
+    } // ContextElementHandler
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final Gson GSON = new Gson();
+    private final InputStream in;
+    private final byte[] trailer;
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    private int mark;
+    private long bytesRead;
+
+    /**
+     * Constructor.
+     * @param in Input stream the notification is read from
+     * @param trailer Bytes to be appended to the raw Json of each contextElement when building the body
+     */
+    public NGSIStreamingParser(InputStream in, byte[] trailer) {
+        this.in = in;
+        this.trailer = trailer == null ? new byte[0] : trailer;
+        this.buf = new byte[DEFAULT_BUFFER_SIZE];
+        this.pos = 0;
+        this.limit = 0;
+        this.mark = -1;
+        this.bytesRead = 0;
+    } // NGSIStreamingParser
+
+    /**
+     * Gets the number of bytes read so far from the input stream.
+     * @return The number of bytes read so far from the input stream
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    } // getBytesRead
+
+    /**
+     * Checks if there is any content (apart from blanks) to be parsed.
+     * @return True if there is content to be parsed, false otherwise
+     * @throws IOException
+     */
+    public boolean hasContent() throws IOException {
+        return peekNonBlank() != -1;
+    } // hasContent
+
+    /**
+     * Parses the notification, calling the given handler once per notified contextElement.
+     * @param handler
+     * @return The number of notified context responses
+     * @throws IOException
+     * @throws JsonSyntaxException
+     */
+    public int parse(ContextElementHandler handler) throws IOException, JsonSyntaxException {
+        int numContextResponses = 0;
+        expect('{');
+
+        if (peekNonBlank() == '}') {
+            read();
+            return numContextResponses;
+        } // if
+
+        while (true) {
+            String key = readKey();
+
+            if (key.equals("contextResponses")) {
+                numContextResponses = parseContextResponses(handler);
+            } else {
+                skipValue();
+            } // if else
+
+            int c = readNonBlank();
+
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw syntaxError("',' or '}' expected");
+            } // if else
+        } // while
+
+        return numContextResponses;
+    } // parse
+
+    private int parseContextResponses(ContextElementHandler handler) throws IOException {
+        int numContextResponses = 0;
+        expect('[');
+
+        if (peekNonBlank() == ']') {
+            read();
+            return numContextResponses;
+        } // if
+
+        while (true) {
+            parseContextElementResponse(handler);
+            numContextResponses++;
+            int c = readNonBlank();
+
+            if (c == ']') {
+                break;
+            } else if (c != ',') {
+                throw syntaxError("',' or ']' expected");
+            } // if else
+        } // while
+
+        return numContextResponses;
+    } // parseContextResponses
+
+    private void parseContextElementResponse(ContextElementHandler handler) throws IOException {
+        ContextElement contextElement = null;
+        byte[] body = null;
+        expect('{');
+
+        if (peekNonBlank() == '}') {
+            read();
+            throw syntaxError("contextElement expected");
+        } // if
+
+        while (true) {
+            String key = readKey();
+
+            if (key.equals("contextElement")) {
+                peekNonBlank();
+                mark = pos;
+                skipValue();
+                int length = pos - mark;
+                body = Arrays.copyOfRange(buf, mark, pos + trailer.length);
+                System.arraycopy(trailer, 0, body, length, trailer.length);
+                mark = -1;
+                contextElement = GSON.fromJson(new InputStreamReader(
+                        new ByteArrayInputStream(body, 0, length), StandardCharsets.UTF_8), ContextElement.class);
+            } else {
+                skipValue();
+            } // if else
+
+            int c = readNonBlank();
+
+            if (c == '}') {
+                break;
+            } else if (c != ',') {
+                throw syntaxError("',' or '}' expected");
+            } // if else
+        } // while
+
+        if (contextElement == null) {
+            throw syntaxError("contextElement expected");
+        } // if
+
+        handler.onContextElement(contextElement, body);
+    } // parseContextElementResponse
+
+    /**
+     * Reads an object key, including the ':' separator. Escaped characters are not unescaped, since the keys this
+     * parser is interested in do not contain them.
+     * @return The object key
+     * @throws IOException
+     */
+    private String readKey() throws IOException {
+        expect('"');
+        mark = pos;
+        skipString();
+        String key = new String(buf, mark, pos - mark - 1, StandardCharsets.UTF_8);
+        mark = -1;
+        expect(':');
+        return key;
+    } // readKey
+
+    private void skipValue() throws IOException {
+        int c = readNonBlank();
+
+        switch (c) {
+            case '"':
+                skipString();
+                break;
+            case '{':
+            case '[':
+                skipStructure();
+                break;
+            case -1:
+                throw syntaxError("value expected");
+            case ',':
+            case ':':
+            case '}':
+            case ']':
+                throw syntaxError("unexpected '" + (char) c + "'");
+            default:
+                // literal (number, true, false or null)
+                while (true) {
+                    c = peek();
+
+                    if (c == -1 || c == ',' || c == '}' || c == ']' || isBlank(c)) {
+                        break;
+                    } // if
+
+                    pos++;
+                } // while
+        } // switch
+    } // skipValue
+
+    /**
+     * Skips a string whose opening double quote has already been read.
+     * @throws IOException
+     */
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                if (read() == -1) {
+                    throw syntaxError("unterminated string");
+                } // if
+            } else if (c == -1) {
+                throw syntaxError("unterminated string");
+            } // if else
+        } // while
+    } // skipString
+
+    /**
+     * Skips an object or an array whose opening character has already been read.
+     * @throws IOException
+     */
+    private void skipStructure() throws IOException {
+        int depth = 1;
+
+        while (depth > 0) {
+            int c = read();
+
+            switch (c) {
+                case '"':
+                    skipString();
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case -1:
+                    throw syntaxError("unterminated object or array");
+                default:
+                    break;
+            } // switch
+        } // while
+    } // skipStructure
+
+    private void expect(char expected) throws IOException {
+        int c = readNonBlank();
+
+        if (c != expected) {
+            throw syntaxError("'" + expected + "' expected");
+        } // if
+    } // expect
+
+    private int readNonBlank() throws IOException {
+        int c = peekNonBlank();
+
+        if (c != -1) {
+            pos++;
+        } // if
+
+        return c;
+    } // readNonBlank
+
+    private int peekNonBlank() throws IOException {
+        while (true) {
+            int c = peek();
+
+            if (c == -1 || !isBlank(c)) {
+                return c;
+            } // if
+
+            pos++;
+        } // while
+    } // peekNonBlank
+
+    private int read() throws IOException {
+        int c = peek();
+
+        if (c != -1) {
+            pos++;
+        } // if
+
+        return c;
+    } // read
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        } // if
+
+        return buf[pos] & 0xff;
+    } // peek
+
+    /**
+     * Reads more bytes from the input stream. Already consumed bytes are discarded, except those after the mark
+     * (if any); the buffer is grown only if the marked region does not fit.
+     * @return True if more bytes were read, false if the end of the stream was reached
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        int keep = mark == -1 ? pos : mark;
+
+        if (keep > 0) {
+            System.arraycopy(buf, keep, buf, 0, limit - keep);
+            limit -= keep;
+            pos -= keep;
+
+            if (mark != -1) {
+                mark = 0;
+            } // if
+        } // if
+
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        } // if
+
+        int n = in.read(buf, limit, buf.length - limit);
+
+        if (n <= 0) {
+            return false;
+        } // if
+
+        limit += n;
+        bytesRead += n;
+        return true;
+    } // fill
+
+    private boolean isBlank(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    } // isBlank
+
+    private JsonSyntaxException syntaxError(String msg) {
+        return new JsonSyntaxException("Malformed notification, " + msg + " at byte " + (bytesRead - limit + pos));
+    } // syntaxError
+
+} // NGSIStreamingParser
@@ -0,0 +1,348 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.interceptors;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextMetadata;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Codec for the body of the NGSI events, i.e. the bytes version of the original and the mapped context elements
+ * persisted within the file-based channels.
+ *
+ * The binary format is versioned and length-prefixed: a magic byte (never found at the beginning of a Json document),
+ * the format version, a flags byte (whether the mapped context element is present) and the context elements, whose
+ * strings are encoded as their length followed by their UTF-8 bytes. Attribute and metadata values are tagged by
+ * their Json type, and only Json objects and arrays are kept as Json text. Thus, decoding does not require
+ * reflection.
+ *
+ * Legacy bodies, i.e. the Json version of the context elements separated by CommonConstants.CONCATENATOR, are
+ * decoded as well.
+ *
+ * @author frb
+ */
+public final class NGSIEventCodec {
+
+    /**
+     * Available body formats.
+     */
+    public enum BodyFormat { JSON, BINARY }
+
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_MAPPED_CE = 1;
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_JSON_NULL = 1;
+    private static final byte TAG_STRING = 2;
+    private static final byte TAG_NUMBER = 3;
+    private static final byte TAG_BOOLEAN = 4;
+    private static final byte TAG_JSON = 5;
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Constructor. Utility classes should not have a public or default constructor.
+     */
+    private NGSIEventCodec() {
+    } // NGSIEventCodec
+
+    /**
+     * Checks if the given body is binary encoded.
+     * @param body
+     * @return True if the given body is binary encoded, false otherwise
+     */
+    public static boolean isBinary(byte[] body) {
+        return body != null && body.length > 1 && body[0] == MAGIC;
+    } // isBinary
+
+    /**
+     * Encodes the given context elements in the binary format.
+     * @param originalCE
+     * @param mappedCE Null if there is no mapped context element
+     * @return The binary encoded body
+     */
+    public static byte[] encode(ContextElement originalCE, ContextElement mappedCE) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(mappedCE == null ? 0 : FLAG_MAPPED_CE);
+            writeContextElement(out, originalCE);
+
+            if (mappedCE != null) {
+                writeContextElement(out, mappedCE);
+            } // if
+        } catch (IOException e) {
+            // never thrown when writing into memory
+            throw new IllegalStateException(e);
+        } // try catch
+
+        return bytes.toByteArray();
+    } // encode
+
+    /**
+     * Encodes the given context elements in the legacy Json format.
+     * @param originalCE
+     * @param mappedCE Null if there is no mapped context element
+     * @return The Json encoded body
+     */
+    public static byte[] encodeJson(ContextElement originalCE, ContextElement mappedCE) {
+        return (originalCE.toString() + CommonConstants.CONCATENATOR
+                + (mappedCE == null ? "" : mappedCE.toString())).getBytes();
+    } // encodeJson
+
+    /**
+     * Encodes the given context elements in the given format.
+     * @param format
+     * @param originalCE
+     * @param mappedCE Null if there is no mapped context element
+     * @return The encoded body
+     */
+    public static byte[] encode(BodyFormat format, ContextElement originalCE, ContextElement mappedCE) {
+        return format == BodyFormat.BINARY ? encode(originalCE, mappedCE) : encodeJson(originalCE, mappedCE);
+    } // encode
+
+    /**
+     * Decodes the given body, either binary or Json encoded, into a NGSI event.
+     * @param headers
+     * @param body
+     * @return The NGSI event
+     * @throws IOException If the body is corrupted (including malformed Json) or it was encoded by a newer version of
+     * the format
+     */
+    public static NGSIEvent decode(Map<String, String> headers, byte[] body) throws IOException {
+        ContextElement originalCE = null;
+        ContextElement mappedCE = null;
+
+        try {
+            if (isBinary(body)) {
+                NotifyContextRequest ncr = new NotifyContextRequest();
+
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+                    in.readByte(); // magic
+                    byte version = in.readByte();
+
+                    if (version > VERSION) {
+                        throw new IOException("Unsupported event body format version (" + version + ")");
+                    } // if
+
+                    byte flags = in.readByte();
+                    originalCE = readContextElement(in, ncr);
+
+                    if ((flags & FLAG_MAPPED_CE) != 0) {
+                        mappedCE = readContextElement(in, ncr);
+                    } // if
+                } // try
+            } else {
+                String[] contextElementsStr = (new String(body)).split(CommonConstants.CONCATENATOR);
+
+                if (contextElementsStr.length == 1) {
+                    originalCE = GSON.fromJson(contextElementsStr[0], ContextElement.class);
+                } else if (contextElementsStr.length == 2) {
+                    originalCE = GSON.fromJson(contextElementsStr[0], ContextElement.class);
+                    mappedCE = GSON.fromJson(contextElementsStr[1], ContextElement.class);
+                } // if else
+            } // if else
+        } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+            // Gson throws unchecked exceptions upon malformed Json, or Json not matching a context element
+            throw new IOException("Corrupted event body (" + e.getMessage() + ")", e);
+        } // try catch
+
+        return new NGSIEvent(headers, body, originalCE, mappedCE);
+    } // decode
+
+    private static void writeContextElement(DataOutputStream out, ContextElement ce) throws IOException {
+        writeString(out, ce.getId());
+        writeString(out, ce.getType());
+        writeString(out, ce.getIsPattern());
+        ArrayList<ContextAttribute> attrs = ce.getAttributes();
+
+        if (attrs == null) {
+            out.writeInt(-1);
+            return;
+        } // if
+
+        out.writeInt(attrs.size());
+
+        for (ContextAttribute attr : attrs) {
+            writeString(out, attr.getName());
+            writeString(out, attr.getType());
+            writeValue(out, attr.getJsonValue());
+            ArrayList<ContextMetadata> mds = attr.getMetadatas();
+
+            if (mds == null) {
+                out.writeInt(-1);
+                continue;
+            } // if
+
+            out.writeInt(mds.size());
+
+            for (ContextMetadata md : mds) {
+                if (md == null) {
+                    out.writeBoolean(false);
+                    continue;
+                } // if
+
+                out.writeBoolean(true);
+                writeString(out, md.getName());
+                writeString(out, md.getType());
+                writeValue(out, md.getJsonValue());
+            } // for
+        } // for
+    } // writeContextElement
+
+    private static ContextElement readContextElement(DataInputStream in, NotifyContextRequest ncr)
+        throws IOException {
+        ContextElement ce = ncr.new ContextElement();
+        ce.setId(readString(in));
+        ce.setType(readString(in));
+        ce.setIsPattern(readString(in));
+        int numAttrs = in.readInt();
+
+        if (numAttrs < 0) {
+            ce.setAttributes(null);
+            return ce;
+        } // if
+
+        // a corrupted count must not allocate more than the remaining bytes
+        ArrayList<ContextAttribute> attrs = new ArrayList<>(Math.min(numAttrs, in.available()));
+
+        for (int i = 0; i < numAttrs; i++) {
+            ContextAttribute attr = ncr.new ContextAttribute();
+            attr.setName(readString(in));
+            attr.setType(readString(in));
+            attr.setContextValue(readValue(in));
+            int numMds = in.readInt();
+
+            if (numMds >= 0) {
+                ArrayList<ContextMetadata> mds = new ArrayList<>(Math.min(numMds, in.available()));
+
+                for (int j = 0; j < numMds; j++) {
+                    if (!in.readBoolean()) {
+                        mds.add(null);
+                        continue;
+                    } // if
+
+                    ContextMetadata md = ncr.new ContextMetadata();
+                    md.setName(readString(in));
+                    md.setType(readString(in));
+                    md.setContextMetadata(readValue(in));
+                    mds.add(md);
+                } // for
+
+                attr.setContextMetadata(mds);
+            } // if
+
+            attrs.add(attr);
+        } // for
+
+        ce.setAttributes(attrs);
+        return ce;
+    } // readContextElement
+
+    private static void writeValue(DataOutputStream out, JsonElement value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value.isJsonNull()) {
+            out.writeByte(TAG_JSON_NULL);
+        } else if (value.isJsonPrimitive()) {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+
+            if (primitive.isBoolean()) {
+                out.writeByte(TAG_BOOLEAN);
+                out.writeBoolean(primitive.getAsBoolean());
+            } else if (primitive.isNumber()) {
+                out.writeByte(TAG_NUMBER);
+                writeString(out, primitive.getAsString());
+            } else {
+                out.writeByte(TAG_STRING);
+                writeString(out, primitive.getAsString());
+            } // if else
+        } else {
+            out.writeByte(TAG_JSON);
+            writeString(out, value.toString());
+        } // if else
+    } // writeValue
+
+    private static JsonElement readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_JSON_NULL:
+                return JsonNull.INSTANCE;
+            case TAG_BOOLEAN:
+                return new JsonPrimitive(in.readBoolean());
+            case TAG_NUMBER:
+                return new JsonPrimitive(new LazilyParsedNumber(readString(in)));
+            case TAG_STRING:
+                return new JsonPrimitive(readString(in));
+            case TAG_JSON:
+                return new JsonParser().parse(readString(in));
+            default:
+                throw new IOException("Corrupted event body (unknown value tag " + tag + ")");
+        } // switch
+    } // readValue
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        } // if
+
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    } // writeString
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+
+        if (length < 0) {
+            return null;
+        } // if
+
+        if (length > in.available()) {
+            throw new IOException("Corrupted event body (string length " + length + " exceeds the body)");
+        } // if
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    } // readString
+
+} // NGSIEventCodec
@@ -81,7 +81,7 @@ public class NGSIGroupingInterceptor implements Interceptor {
             return event;
         } // if
         
-        LOGGER.debug("[gi] Event intercepted, id=" + event.hashCode());
+        LOGGER.debug("[gi] Event intercepted, id={}", event.hashCode());
         
         // Casting to NGSIEvent
         NGSIEvent ngsiEvent = (NGSIEvent) event;
@@ -114,17 +114,17 @@ public class NGSIGroupingInterceptor implements Interceptor {
 
         // Set the final header values
         headers.put(NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY, notifiedEntity);
-        LOGGER.debug("[gi] Adding flume event header (" + NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY
-                + ": " + notifiedEntity + ")");
+        LOGGER.debug("[gi] Adding flume event header ({}: {})", NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY,
+                notifiedEntity);
         headers.put(NGSIConstants.FLUME_HEADER_GROUPED_ENTITY, groupedDestination);
-        LOGGER.debug("[gi] Adding flume event header (" + NGSIConstants.FLUME_HEADER_GROUPED_ENTITY
-                + ": " + groupedDestination + ")");
+        LOGGER.debug("[gi] Adding flume event header ({}: {})", NGSIConstants.FLUME_HEADER_GROUPED_ENTITY,
+                groupedDestination);
         headers.put(NGSIConstants.FLUME_HEADER_GROUPED_SERVICE_PATH, groupedServicePath);
-        LOGGER.debug("[gi] Adding flume event header (" + NGSIConstants.FLUME_HEADER_GROUPED_SERVICE_PATH
-                + ": " + groupedServicePath + ")");
+        LOGGER.debug("[gi] Adding flume event header ({}: {})", NGSIConstants.FLUME_HEADER_GROUPED_SERVICE_PATH,
+                groupedServicePath);
         
         // Return the intercepted getRecvTimeTs
-        LOGGER.debug("[gi] Event put in the channel, id=" + event.hashCode());
+        LOGGER.debug("[gi] Event put in the channel, id={}", event.hashCode());
         return ngsiEvent;
     } // intercept
  
@@ -81,7 +81,7 @@ public class NGSINameMappingsInterceptor implements Interceptor {
             return event;
         } // if
         
-        LOGGER.debug("[nmi] Event intercepted, id=" + event.hashCode());
+        LOGGER.debug("[nmi] Event intercepted, id={}", event.hashCode());
 
         // Casting to NGSIEvent
         NGSIEvent ngsiEvent = (NGSIEvent) event;
@@ -96,32 +96,41 @@ public class NGSINameMappingsInterceptor implements Interceptor {
         // Create the mapped NotifyContextRequest
         ImmutableTriple<String, String, ContextElement> map =
                 doMap(originalService, originalServicePath, ngsiEvent.getOriginalCE());
-        LOGGER.debug("[nmi] Mapped ContextElement: " + map.getRight().toString());
+        LOGGER.debug("[nmi] Mapped ContextElement: {}", map.getRight());
         
         // Add the mapped ContextElement to the NGSIEvent
         ngsiEvent.setMappedCE(map.getRight());
         
-        // Add the bytes version of the mapped ContextElement to event's body
+        // Add the bytes version of the mapped ContextElement to event's body, keeping the format of the original one
         byte[] originalCEBytes = ngsiEvent.getBody();
-        byte[] mappedCEBytes = map.getRight().toString().getBytes();
-        byte[] newBody = new byte[originalCEBytes.length + mappedCEBytes.length];
-        System.arraycopy(originalCEBytes, 0, newBody, 0, originalCEBytes.length);
-        System.arraycopy(mappedCEBytes, 0, newBody, originalCEBytes.length, mappedCEBytes.length);
+        byte[] newBody;
+        
+        if (NGSIEventCodec.isBinary(originalCEBytes)) {
+            newBody = NGSIEventCodec.encode(ngsiEvent.getOriginalCE(), map.getRight());
+            LOGGER.debug("[nmi] New body: {} bytes (binary format)", newBody.length);
+        } else {
+            byte[] mappedCEBytes = map.getRight().toString().getBytes();
+            newBody = new byte[originalCEBytes.length + mappedCEBytes.length];
+            System.arraycopy(originalCEBytes, 0, newBody, 0, originalCEBytes.length);
+            System.arraycopy(mappedCEBytes, 0, newBody, originalCEBytes.length, mappedCEBytes.length);
+            
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("[nmi] New body: " + new String(newBody));
+            } // if
+        } // if else
+        
         ngsiEvent.setBody(newBody);
-        LOGGER.debug("[nmi] New body: " + new String(newBody));
         
         // Add the mapped service and service path to the headers
         headers.put(NGSIConstants.FLUME_HEADER_MAPPED_SERVICE, map.getLeft());
-        LOGGER.debug("[nmi] Header added to NGSI event ("
-                + NGSIConstants.FLUME_HEADER_MAPPED_SERVICE
-                + ": " + map.getLeft() + ")");
+        LOGGER.debug("[nmi] Header added to NGSI event ({}: {})", NGSIConstants.FLUME_HEADER_MAPPED_SERVICE,
+                map.getLeft());
         headers.put(NGSIConstants.FLUME_HEADER_MAPPED_SERVICE_PATH, map.getMiddle());
-        LOGGER.debug("[nmi] Header added to NGSI event ("
-                + NGSIConstants.FLUME_HEADER_MAPPED_SERVICE_PATH
-                + ": " + map.getMiddle() + ")");
+        LOGGER.debug("[nmi] Header added to NGSI event ({}: {})", NGSIConstants.FLUME_HEADER_MAPPED_SERVICE_PATH,
+                map.getMiddle());
         
         // Return the intercepted event
-        LOGGER.debug("[nmi] Event put in the channel, id=" + event.hashCode());
+        LOGGER.debug("[nmi] Event put in the channel, id={}", event.hashCode());
         return ngsiEvent;
     } // intercept
 
@@ -51,6 +51,88 @@ public class NGSIBatch {
     public int getNumEvents() {
         return numEvents;
     } // getNumEvents
+    
+    /**
+     * Gets the number of destinations (i.e. sub-batches) within this batch.
+     * @return The number of destinations within this batch
+     */
+    public int getNumDestinations() {
+        return subBatches.size();
+    } // getNumDestinations
+    
+    /**
+     * Gets the destinations whose sub-batches have not been persisted yet.
+     * @return The destinations whose sub-batches have not been persisted yet
+     */
+    public ArrayList<String> getNotPersistedDestinations() {
+        ArrayList<String> destinations = new ArrayList<>();
+        
+        for (Entry<String, SubBatch> entry : subBatches.entrySet()) {
+            if (!entry.getValue().getPersisted()) {
+                destinations.add(entry.getKey());
+            } // if
+        } // for
+        
+        return destinations;
+    } // getNotPersistedDestinations
+    
+    /**
+     * Gets a new batch containing only the sub-batch regarding the given destination. Both batches share the events.
+     * @param destination
+     * @return A new batch containing only the sub-batch regarding the given destination, or null if the destination
+     * is not within this batch
+     */
+    public NGSIBatch getSubBatch(String destination) {
+        SubBatch subBatch = subBatches.get(destination);
+        
+        if (subBatch == null) {
+            return null;
+        } // if
+        
+        NGSIBatch batch = new NGSIBatch();
+        
+        for (NGSIEvent event : subBatch.getEvents()) {
+            batch.addEvent(destination, event);
+        } // for
+        
+        return batch;
+    } // getSubBatch
+    
+    /**
+     * Starts a new persistence attempt of this batch, i.e. the sub-batches persisted from now on are the only ones
+     * considered as newly persisted. Sub-batches persisted by previous attempts (e.g. before the batch was rollbacked)
+     * are kept as persisted.
+     */
+    public void startAttempt() {
+        for (SubBatch subBatch : subBatches.values()) {
+            subBatch.newlyPersisted = false;
+        } // for
+    } // startAttempt
+    
+    /**
+     * Sets the sub-batch regarding the given destination as persisted.
+     * @param destination
+     * @param persisted
+     */
+    public void setPersisted(String destination, boolean persisted) {
+        SubBatch subBatch = subBatches.get(destination);
+        
+        if (subBatch != null) {
+            subBatch.setPersisted(persisted);
+        } // if
+    } // setPersisted
+    
+    /**
+     * Removes the sub-batch regarding the given destination, e.g. because its events are held elsewhere.
+     * @param destination
+     */
+    public void removeSubBatch(String destination) {
+        SubBatch subBatch = subBatches.remove(destination);
+        
+        if (subBatch != null) {
+            numEvents -= subBatch.getEvents().size();
+        } // if
+    } // removeSubBatch
 
     /**
      * Adds an event to the given destination sub-batch.
@@ -109,6 +191,36 @@ public class NGSIBatch {
         return ((SubBatch) nextEntry.getValue()).getEvents();
     } // getNextEvent
     
+    /**
+     * Gets if the next sub-batch is persisted.
+     * @return True if the next sub-batch is persisted, false otherwise
+     */
+    public boolean isNextPersisted() {
+        return ((SubBatch) nextEntry.getValue()).getPersisted();
+    } // isNextPersisted
+    
+    /**
+     * Sets the sub-batch regarding the given destination as discarded, i.e. it is not persisted again (it would fail
+     * again) but it is not considered as newly persisted either.
+     * @param destination
+     */
+    public void setDiscarded(String destination) {
+        SubBatch subBatch = subBatches.get(destination);
+        
+        if (subBatch != null) {
+            subBatch.setPersisted(true);
+            subBatch.newlyPersisted = false;
+        } // if
+    } // setDiscarded
+    
+    /**
+     * Gets if the next sub-batch was persisted by the current persistence attempt.
+     * @return True if the next sub-batch was persisted by the current persistence attempt, false otherwise
+     */
+    public boolean isNextNewlyPersisted() {
+        return ((SubBatch) nextEntry.getValue()).newlyPersisted;
+    } // isNextNewlyPersisted
+    
     /**
      * Sets the next sub-batch as persisted.
      * @param persisted
@@ -123,6 +235,7 @@ public class NGSIBatch {
     private class SubBatch {
         
         private boolean persisted;
+        private boolean newlyPersisted;
         private ArrayList<NGSIEvent> events;
         
         /**
@@ -146,6 +259,7 @@ public class NGSIBatch {
         } // getPersisted
         
         public void setPersisted(boolean persisted) {
+            newlyPersisted = persisted && (newlyPersisted || !this.persisted);
             this.persisted = persisted;
         } // setPersisted
         
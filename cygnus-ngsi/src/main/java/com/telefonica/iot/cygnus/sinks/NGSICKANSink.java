@@ -262,6 +262,40 @@ public class NGSICKANSink extends NGSISink {
         } // while
     } // persistBatch
 
+    /**
+     * Organizations, packages and resources are looked up and created on demand through a cache which is not
+     * thread-safe, and concurrent sub-batches regarding the same package would race for creating it; thus, the
+     * sub-batches are persisted sequentially.
+     * @return False
+     */
+    @Override
+    protected boolean supportsParallelPersistence() {
+        return false;
+    } // supportsParallelPersistence
+
+    /**
+     * Gets the number of records the given events are persisted as: a row per attribute in row mode, a row per event
+     * in column mode.
+     * @param events
+     * @return The number of records the given events are persisted as
+     */
+    @Override
+    protected long getNumRecords(ArrayList<NGSIEvent> events) {
+        if (!rowAttrPersistence) {
+            return events.size();
+        } // if
+        
+        long numRecords = 0;
+        
+        for (NGSIEvent event : events) {
+            ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes =
+                    event.getContextElement().getAttributes();
+            numRecords += contextAttributes == null ? 0 : contextAttributes.size();
+        } // for
+        
+        return numRecords;
+    } // getNumRecords
+
     @Override
     public void capRecords(NGSIBatch batch, long maxRecords) throws CygnusCappingError {
         if (batch == null) {
@@ -391,8 +425,7 @@ public class NGSICKANSink extends NGSISink {
             NotifyContextRequest.ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -408,8 +441,7 @@ public class NGSICKANSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // create a column and aggregate it
                 String record = "{\"" + NGSIConstants.RECV_TIME_TS + "\": \"" + recvTimeTs / 1000 + "\","
@@ -453,8 +485,7 @@ public class NGSICKANSink extends NGSISink {
             NotifyContextRequest.ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -475,8 +506,7 @@ public class NGSICKANSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // create part of the column with the current attribute (a.k.a. a column)
                 record += (isSpecialValue(attrValue) ? "" : ",\"" + attrName + "\": " + attrValue)
@@ -508,8 +538,8 @@ public class NGSICKANSink extends NGSISink {
         String pkgName = aggregator.getPkgName(enableLowercase);
         String resName = aggregator.getResName(enableLowercase);
 
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSICKANSink (orgName=" + orgName
-                + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + aggregation + ")");
+        LOGGER.info("[{}] Persisting data at NGSICKANSink (orgName={}, pkgName={}, resName={}, data={})",
+                this.getName(), orgName, pkgName, resName, payloadLogSampler.sample(aggregation));
 
         ((CKANBackendImpl) persistenceBackend).startTransaction();
         
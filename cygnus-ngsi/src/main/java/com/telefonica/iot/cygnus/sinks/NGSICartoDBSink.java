@@ -567,8 +567,7 @@ public class NGSICartoDBSink extends NGSISink {
             NotifyContextRequest.ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -589,8 +588,7 @@ public class NGSICartoDBSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 ImmutablePair<String, Boolean> location = NGSIUtils.getGeometry(attrValue, attrType, attrMetadata,
                         swapCoordinates);
                 
@@ -613,8 +611,8 @@ public class NGSICartoDBSink extends NGSISink {
         String withs = "";
         String fields = aggregator.getFields();
         String rows = aggregator.getRows();
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSICartoDBSink. Schema (" + schema
-                + "), Table (" + tableName + "), Data (" + rows + ")");
+        LOGGER.info("[{}] Persisting data at NGSICartoDBSink. Schema ({}), Table ({}), Data ({})",
+                this.getName(), schema, tableName, payloadLogSampler.sample(rows));
         
         try {
             ((CartoDBBackendImpl) backends.get(schema)).startTransaction();
@@ -678,8 +676,8 @@ public class NGSICartoDBSink extends NGSISink {
                             + location.getLeft() + ",0,0,0,0,0,0,0,0,0," + Float.MIN_VALUE + "," + Float.MAX_VALUE + ","
                             + Float.MIN_VALUE + "," + Float.MAX_VALUE + "," + Float.MIN_VALUE + "," + Float.MAX_VALUE
                             + ",1)";
-                    LOGGER.info("[" + this.getName() + "] Persisting data at NGSICartoDBSink. Schema (" + schema
-                            + "), Table (" + tableName + "), Data (" + rows + ")");
+                    LOGGER.info("[{}] Persisting data at NGSICartoDBSink. Schema ({}), Table ({}), Data ({})",
+                            this.getName(), schema, tableName, payloadLogSampler.sample(rows));
                     backends.get(schema).insert(schema, tableName, withs, fields, rows);
                 } catch (Exception e1) {
                     String withs = ""
@@ -751,8 +749,8 @@ public class NGSICartoDBSink extends NGSISink {
                             + "(SELECT max_time FROM inserts),(SELECT min_time FROM inserts),"
                             + "(SELECT max_speed FROM inserts),(SELECT min_speed FROM inserts),"
                             + "(SELECT num_samples FROM inserts))";
-                    LOGGER.info("[" + this.getName() + "] Persisting data at NGSICartoDBSink. Schema (" + schema
-                            + "), Table (" + tableName + "), Data (" + rows + ")");
+                    LOGGER.info("[{}] Persisting data at NGSICartoDBSink. Schema ({}), Table ({}), Data ({})",
+                            this.getName(), schema, tableName, payloadLogSampler.sample(rows));
                     
                     try {
                         backends.get(schema).insert(schema, tableName, withs, fields, rows);
@@ -234,8 +234,7 @@ public class NGSIDynamoDBSink extends NGSISink {
             NotifyContextRequest.ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -251,8 +250,7 @@ public class NGSIDynamoDBSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // create an item and aggregate it
                 Item item = new Item()
@@ -295,8 +293,7 @@ public class NGSIDynamoDBSink extends NGSISink {
             NotifyContextRequest.ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -320,8 +317,7 @@ public class NGSIDynamoDBSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 item.withString(attrName, attrValue)
                         .withString(attrName + "_md", attrMetadata);
@@ -348,8 +344,8 @@ public class NGSIDynamoDBSink extends NGSISink {
         ArrayList aggregation = aggregator.getAggregation();
         String tableName = aggregator.getTableName(enableLowercase);
 
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIDynamoDBSink. Dynamo table ("
-                + tableName + "), Data (" + aggregation.toString() + ")");
+        LOGGER.info("[{}] Persisting data at NGSIDynamoDBSink. Dynamo table ({}), Data ({})", this.getName(),
+                tableName, payloadLogSampler.sample(aggregation));
 
         // tables can be always created in DynamoDB, independedntly of the attribute persistence mode,
         // since it is NoSQL and there is no fixed structure
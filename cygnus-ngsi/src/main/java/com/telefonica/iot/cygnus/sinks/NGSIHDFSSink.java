@@ -516,6 +516,16 @@ public class NGSIHDFSSink extends NGSISink {
         } // for
     } // persistBatch
     
+    /**
+     * The HDFS endpoints are reordered upon failover while being iterated, and each endpoint counts the bytes of the
+     * current transaction; thus, the sub-batches are persisted sequentially.
+     * @return False
+     */
+    @Override
+    protected boolean supportsParallelPersistence() {
+        return false;
+    } // supportsParallelPersistence
+    
     @Override
     public void capRecords(NGSIBatch batch, long maxRecords) throws CygnusCappingError {
     } // capRecords
@@ -621,8 +631,7 @@ public class NGSIHDFSSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -638,8 +647,7 @@ public class NGSIHDFSSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // create a line and aggregate it
                 String line = "{"
@@ -703,8 +711,7 @@ public class NGSIHDFSSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -725,8 +732,7 @@ public class NGSIHDFSSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // create part of the line with the current attribute (a.k.a. a column)
                 line += ", \"" + attrName + "\":" + attrValue + ", \"" + attrName + "_md\":" + attrMetadata;
@@ -771,8 +777,7 @@ public class NGSIHDFSSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -788,8 +793,7 @@ public class NGSIHDFSSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 // this has to be done notification by notification and not at initialization since in row mode not all
                 // the notifications contain all the attributes
                 String attrMdFileName = buildAttrMdFilePath(service, servicePathForNaming, entityForNaming, attrName,
@@ -906,8 +910,7 @@ public class NGSIHDFSSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -926,8 +929,7 @@ public class NGSIHDFSSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(true);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
                 // this has to be done notification by notification and not at initialization since in row mode not all
                 // the notifications contain all the attributes
@@ -1017,8 +1019,8 @@ public class NGSIHDFSSink extends NGSISink {
         String hdfsFolder = aggregator.getFolder(enableLowercase);
         String hdfsFile = aggregator.getFile(enableLowercase);
         
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIHDFSSink. HDFS file ("
-                + hdfsFile + "), Data (" + aggregation + ")");
+        LOGGER.info("[{}] Persisting data at NGSIHDFSSink. HDFS file ({}), Data ({})", this.getName(), hdfsFile,
+                payloadLogSampler.sample(aggregation));
         
         // Some variables related to persistence backends looping
         boolean persisted = false;
@@ -1084,8 +1086,8 @@ public class NGSIHDFSSink extends NGSISink {
             String hdfsMdFolder = hdfsMDFile.substring(0, hdfsMDFile.lastIndexOf("/"));
             String mdAggregation = aggregator.getMDAggregation(hdfsMDFile);
 
-            LOGGER.info("[" + this.getName() + "] Persisting metadata at NGSIHDFSSink. HDFS file ("
-                    + hdfsMDFile + "), Data (" + mdAggregation + ")");
+            LOGGER.info("[{}] Persisting metadata at NGSIHDFSSink. HDFS file ({}), Data ({})", this.getName(),
+                    hdfsMDFile, payloadLogSampler.sample(mdAggregation));
 
             for (HDFSBackend persistenceBackend: persistenceBackends) {
                 try {
@@ -30,9 +30,15 @@ import com.telefonica.iot.cygnus.log.CygnusLogger;
 import com.telefonica.iot.cygnus.utils.CommonConstants;
 import com.telefonica.iot.cygnus.utils.NGSICharsets;
 import java.util.ArrayList;
-import org.I0Itec.zkclient.ZkClient;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.apache.flume.Context;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 /**
  *
@@ -40,13 +46,23 @@ import org.apache.kafka.clients.producer.ProducerRecord;
  */
 public class NGSIKafkaSink extends NGSISink {
 
+    /**
+     * Available producer modes.
+     */
+    public enum ProducerMode { UNACKED, ACKED }
+
     private static final CygnusLogger LOGGER = new CygnusLogger(NGSIKafkaSink.class);
     private KafkaBackendImpl persistenceBackend;
     private String brokerList;
     private String zookeeperEndpoint;
-    private ZkClient zookeeperClient;
     private int partitions;
     private int replicationFactor;
+    private ProducerMode producerMode;
+    private int producerLingerMs;
+    private int producerBatchSize;
+    private String producerCompressionType;
+    private String producerAcks;
+    private long producerAckTimeout;
 
     /**
      * Gets the broker list.
@@ -64,6 +80,30 @@ public class NGSIKafkaSink extends NGSISink {
         return zookeeperEndpoint;
     } // getZookeeperEndpoint
 
+    /**
+     * Gets the producer mode. It is protected since it is only used by the tests.
+     * @return The producer mode
+     */
+    protected ProducerMode getProducerMode() {
+        return producerMode;
+    } // getProducerMode
+
+    /**
+     * Gets the producer compression type. It is protected since it is only used by the tests.
+     * @return The producer compression type
+     */
+    protected String getProducerCompressionType() {
+        return producerCompressionType;
+    } // getProducerCompressionType
+
+    /**
+     * Gets the producer acks. It is protected since it is only used by the tests.
+     * @return The producer acks
+     */
+    protected String getProducerAcks() {
+        return producerAcks;
+    } // getProducerAcks
+
     /**
      * Gets the persistence backend.
      * @return The persistence backend
@@ -113,13 +153,82 @@ public class NGSIKafkaSink extends NGSISink {
             LOGGER.debug("[" + this.getName() + "] Reading configuration (replication_factor="
                     + replicationFactor + ")");
         } // if else
+
+        String producerModeStr = context.getString("producer.mode", "unacked");
+
+        try {
+            producerMode = ProducerMode.valueOf(producerModeStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.mode="
+                    + producerModeStr + ")");
+        } catch (Exception e) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.mode="
+                    + producerModeStr + ") -- Must be 'unacked' or 'acked'");
+        } // try catch
+
+        producerLingerMs = context.getInteger("producer.linger_ms", 0);
+
+        if (producerLingerMs < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.linger_ms="
+                    + producerLingerMs + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.linger_ms="
+                    + producerLingerMs + ")");
+        } // if else
+
+        producerBatchSize = context.getInteger("producer.batch_size", 16384);
+
+        if (producerBatchSize <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.batch_size="
+                    + producerBatchSize + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.batch_size="
+                    + producerBatchSize + ")");
+        } // if else
+
+        producerCompressionType = context.getString("producer.compression_type", "none");
+
+        if (producerCompressionType.equals("none") || producerCompressionType.equals("gzip")
+                || producerCompressionType.equals("snappy") || producerCompressionType.equals("lz4")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.compression_type="
+                    + producerCompressionType + ")");
+        } else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.compression_type="
+                    + producerCompressionType + ") -- Must be 'none', 'gzip', 'snappy' or 'lz4'");
+        } // if else
+
+        producerAcks = context.getString("producer.acks", "1");
+
+        if (producerAcks.equals("0") || producerAcks.equals("1") || producerAcks.equals("all")
+                || producerAcks.equals("-1")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.acks=" + producerAcks + ")");
+        } else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.acks="
+                    + producerAcks + ") -- Must be '0', '1', 'all' or '-1'");
+        } // if else
+
+        producerAckTimeout = context.getLong("producer.ack_timeout", 30000L);
+
+        if (producerAckTimeout <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (producer.ack_timeout="
+                    + producerAckTimeout + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (producer.ack_timeout="
+                    + producerAckTimeout + ")");
+        } // if else
     } // configure
 
     @Override
     public void start() {
         // create the persistence backend
         try {
-            persistenceBackend = new KafkaBackendImpl(brokerList, zookeeperEndpoint);
+            persistenceBackend = new KafkaBackendImpl(brokerList, zookeeperEndpoint, producerLingerMs,
+                    producerBatchSize, producerCompressionType, producerAcks);
             LOGGER.debug("[" + this.getName() + "] Kafka persistence backend (KafkaProducer) created");
         } catch (Exception e) {
             LOGGER.error("Error while creating the Kafka persistence backend (KafkaProducer). Details="
@@ -129,6 +238,15 @@ public class NGSIKafkaSink extends NGSISink {
         super.start();
     } // start
 
+    @Override
+    public void stop() {
+        super.stop();
+
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+    } // stop
+
     @Override
     void persistBatch(NGSIBatch batch) throws CygnusBadConfiguration, CygnusBadContextData, CygnusPersistenceError {
         if (batch == null) {
@@ -136,6 +254,11 @@ public class NGSIKafkaSink extends NGSISink {
             return;
         } // if
 
+        if (producerMode == ProducerMode.ACKED) {
+            persistBatchAcked(batch);
+            return;
+        } // if
+
         // Iterate on the destinations
         batch.startIterator();
         
@@ -160,6 +283,80 @@ public class NGSIKafkaSink extends NGSISink {
             batch.setNextPersisted(true);
         } // for
     } // persistBatch
+
+    /**
+     * Persists a batch by sending all its sub-batches at once, and then waiting for all the acknowledgements. Those
+     * sub-batches already acknowledged in a previous attempt are not sent again.
+     * @param batch
+     * @throws CygnusBadConfiguration
+     * @throws CygnusPersistenceError
+     */
+    private void persistBatchAcked(NGSIBatch batch) throws CygnusBadConfiguration, CygnusPersistenceError {
+        LinkedHashMap<String, Future<RecordMetadata>> acks = new LinkedHashMap<>();
+
+        // Iterate on the destinations, sending without waiting
+        batch.startIterator();
+
+        while (batch.hasNext()) {
+            String destination = batch.getNextDestination();
+
+            if (batch.isNextPersisted()) {
+                LOGGER.debug("[" + this.getName() + "] Sub-batch regarding the " + destination
+                        + " destination already acknowledged, skipping it");
+                continue;
+            } // if
+
+            LOGGER.debug("[" + this.getName() + "] Processing sub-batch regarding the "
+                    + destination + " destination");
+
+            // Get the events within the current sub-batch
+            ArrayList<NGSIEvent> events = batch.getNextEvents();
+
+            // Get an aggregator for this destination and initialize it
+            KafkaAggregator aggregator = new KafkaAggregator();
+            aggregator.initialize(events.get(0));
+
+            for (NGSIEvent event : events) {
+                aggregator.aggregate(event);
+            } // for
+
+            acks.put(destination, persistenceBackend.sendAsync(buildRecord(aggregator)));
+        } // while
+
+        // Wait for all the acknowledgements, within a common deadline; the error of each acknowledgement is
+        // tracked apart, thus a failed sub-batch does not prevent the following ones from being marked as persisted
+        long deadline = System.currentTimeMillis() + producerAckTimeout;
+        int numErrors = 0;
+        String lastError = null;
+
+        for (Entry<String, Future<RecordMetadata>> ack : acks.entrySet()) {
+            String error = null;
+
+            try {
+                ack.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                batch.setPersisted(ack.getKey(), true);
+            } catch (ExecutionException e) {
+                error = e.getCause() == null ? e.getMessage() : e.getCause().getMessage();
+            } catch (TimeoutException e) {
+                error = "Acknowledgement not received within " + producerAckTimeout + " ms";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "Interrupted while waiting for the acknowledgement";
+            } // try catch
+
+            if (error != null) {
+                numErrors++;
+                lastError = error;
+                LOGGER.debug("[" + this.getName() + "] Sub-batch regarding the " + ack.getKey()
+                        + " destination not acknowledged. Details=" + error);
+            } // if
+        } // for
+
+        if (numErrors > 0) {
+            throw new CygnusPersistenceError("-, " + numErrors + " out of " + acks.size()
+                    + " sub-batches not acknowledged. Details=" + lastError);
+        } // if
+    } // persistBatchAcked
     
     @Override
     public void capRecords(NGSIBatch batch, long maxRecords) throws CygnusCappingError {
@@ -285,6 +482,18 @@ public class NGSIKafkaSink extends NGSISink {
     } // KafkaAggregator
 
     private void persistAggregation(KafkaAggregator aggregator) throws CygnusBadConfiguration, CygnusPersistenceError {
+        persistenceBackend.send(buildRecord(aggregator));
+    } // persistAggregation
+
+    /**
+     * Builds the record for the given aggregation, creating its topic if not existing.
+     * @param aggregator
+     * @return The record for the given aggregation
+     * @throws CygnusBadConfiguration
+     * @throws CygnusPersistenceError
+     */
+    private ProducerRecord<String, String> buildRecord(KafkaAggregator aggregator)
+        throws CygnusBadConfiguration, CygnusPersistenceError {
         String aggregation = aggregator.getAggregation();
         String topicName = buildTopicName(aggregator.getService(),
                 aggregator.getServicePathForNaming(), aggregator.getEntityForNaming(),
@@ -307,11 +516,11 @@ public class NGSIKafkaSink extends NGSISink {
             persistenceBackend.createTopic(topicName, partitions, replicationFactor);
         } // if
 
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIKafkaSink. Topic ("
-                + topicName + "), Data (" + aggregation + ")");
+        LOGGER.info("[{}] Persisting data at NGSIKafkaSink. Topic ({}), Data ({})", this.getName(), topicName,
+                payloadLogSampler.sample(aggregation));
         record = new ProducerRecord<>(topicName, aggregation);
-        persistenceBackend.send(record);
-    } // persistAggregation
+        return record;
+    } // buildRecord
 
     private String buildMessage(ContextElement contextElement, String fiwareService,
             String fiwareServicePath, long recvTimeTs) {
@@ -212,8 +212,7 @@ public class NGSIMongoSink extends NGSIMongoBaseSink {
             ContextElement contextElement = cygnusEvent.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -246,8 +245,7 @@ public class NGSIMongoSink extends NGSIMongoBaseSink {
                     recvTimeTs = notifiedRecvTimeTs;
                 } // if else
                 
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 
                 Document doc;
 
@@ -341,8 +339,7 @@ public class NGSIMongoSink extends NGSIMongoBaseSink {
             ContextElement contextElement = cygnusEvent.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -365,8 +362,7 @@ public class NGSIMongoSink extends NGSIMongoBaseSink {
                     continue;
                 } // if
                 
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 doc.append(attrName, attrValue);
             } // for
             
@@ -410,8 +406,8 @@ public class NGSIMongoSink extends NGSIMongoBaseSink {
         
         String dbName = aggregator.getDbName(enableLowercase);
         String collectionName = aggregator.getCollectionName(enableLowercase);
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIMongoSink. Database: "
-                + dbName + ", Collection: " + collectionName + ", Data: " + aggregation.toString());
+        LOGGER.info("[{}] Persisting data at NGSIMongoSink. Database: {}, Collection: {}, Data: {}",
+                this.getName(), dbName, collectionName, payloadLogSampler.sample(aggregation));
         
         try {
             backend.createDatabase(dbName);
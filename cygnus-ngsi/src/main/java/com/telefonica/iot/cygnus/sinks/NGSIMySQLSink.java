@@ -29,6 +29,7 @@ import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.metrics.CygnusMetrics;
 import com.telefonica.iot.cygnus.utils.CommonConstants;
 import com.telefonica.iot.cygnus.utils.CommonUtils;
 import com.telefonica.iot.cygnus.utils.NGSICharsets;
@@ -36,8 +37,10 @@ import com.telefonica.iot.cygnus.utils.NGSIConstants;
 import com.telefonica.iot.cygnus.utils.NGSIUtils;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.flume.Context;
 
 /**
@@ -49,19 +52,37 @@ import org.apache.flume.Context;
  */
 public class NGSIMySQLSink extends NGSISink {
     
+    /**
+     * Available insertion modes.
+     */
+    public enum InsertMode { LITERAL, PREPARED }
+    
     private static final CygnusLogger LOGGER = new CygnusLogger(NGSIMySQLSink.class);
+    private static final int RESCAN_LISTINGS = 10;
     private String mysqlHost;
     private String mysqlPort;
     private String mysqlUsername;
     private String mysqlPassword;
     private boolean rowAttrPersistence;
+    private int backendMaxConns;
+    private int backendMaxConnsPerDb;
+    private long backendMaxWait;
+    private long backendIdleTimeout;
+    private long backendValidationInterval;
+    private InsertMode backendInsertMode;
+    private int backendDeleteChunkSize;
+    private boolean backendCreateRecvTimeIndex;
     private MySQLBackendImpl persistenceBackend;
+    private final ConcurrentHashMap<String, Long> oldestRecordTimes;
+    private int numExpirationListings;
     
     /**
      * Constructor.
      */
     public NGSIMySQLSink() {
         super();
+        oldestRecordTimes = new ConcurrentHashMap<>();
+        numExpirationListings = 0;
     } // NGSIMySQLSink
     
     /**
@@ -105,6 +126,76 @@ public class NGSIMySQLSink extends NGSISink {
         return rowAttrPersistence;
     } // getRowAttrPersistence
 
+    /**
+     * Gets the maximum number of pooled connections. It is protected due to it is only required for testing purposes.
+     * @return The maximum number of pooled connections
+     */
+    protected int getBackendMaxConns() {
+        return backendMaxConns;
+    } // getBackendMaxConns
+    
+    /**
+     * Gets the maximum number of pooled connections per database. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of pooled connections per database
+     */
+    protected int getBackendMaxConnsPerDb() {
+        return backendMaxConnsPerDb;
+    } // getBackendMaxConnsPerDb
+    
+    /**
+     * Gets the maximum time to wait for a pooled connection. It is protected due to it is only required for testing
+     * purposes.
+     * @return The maximum time to wait for a pooled connection
+     */
+    protected long getBackendMaxWait() {
+        return backendMaxWait;
+    } // getBackendMaxWait
+    
+    /**
+     * Gets the time after which an idle pooled connection is closed. It is protected due to it is only required for
+     * testing purposes.
+     * @return The time after which an idle pooled connection is closed
+     */
+    protected long getBackendIdleTimeout() {
+        return backendIdleTimeout;
+    } // getBackendIdleTimeout
+    
+    /**
+     * Gets the time between validations of the idle pooled connections. It is protected due to it is only required
+     * for testing purposes.
+     * @return The time between validations of the idle pooled connections
+     */
+    protected long getBackendValidationInterval() {
+        return backendValidationInterval;
+    } // getBackendValidationInterval
+    
+    /**
+     * Gets the insertion mode. It is protected due to it is only required for testing purposes.
+     * @return The insertion mode
+     */
+    protected InsertMode getBackendInsertMode() {
+        return backendInsertMode;
+    } // getBackendInsertMode
+    
+    /**
+     * Gets the maximum number of records deleted at once when capping or expirating. It is protected due to it is
+     * only required for testing purposes.
+     * @return The maximum number of records deleted at once when capping or expirating
+     */
+    protected int getBackendDeleteChunkSize() {
+        return backendDeleteChunkSize;
+    } // getBackendDeleteChunkSize
+    
+    /**
+     * Gets if an index on the reception time is created when capping or expirating. It is protected due to it is
+     * only required for testing purposes.
+     * @return True if an index on the reception time is created when capping or expirating, false otherwise
+     */
+    protected boolean getBackendCreateRecvTimeIndex() {
+        return backendCreateRecvTimeIndex;
+    } // getBackendCreateRecvTimeIndex
+
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -153,13 +244,105 @@ public class NGSIMySQLSink extends NGSISink {
                 + persistence + ") must be 'row' or 'column'");
         }  // if else
         
+        backendMaxConns = context.getInteger("backend.max_conns", 50);
+        
+        if (backendMaxConns <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_conns="
+                    + backendMaxConns + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_conns="
+                    + backendMaxConns + ")");
+        } // if else
+        
+        backendMaxConnsPerDb = context.getInteger("backend.max_conns_per_db", 10);
+        
+        if (backendMaxConnsPerDb <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_conns_per_db="
+                    + backendMaxConnsPerDb + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_conns_per_db="
+                    + backendMaxConnsPerDb + ")");
+        } // if else
+        
+        backendMaxWait = context.getLong("backend.max_wait", 10000L);
+        
+        if (backendMaxWait < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_wait="
+                    + backendMaxWait + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_wait="
+                    + backendMaxWait + ")");
+        } // if else
+        
+        backendIdleTimeout = context.getLong("backend.idle_timeout", 300L);
+        
+        if (backendIdleTimeout <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.idle_timeout="
+                    + backendIdleTimeout + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.idle_timeout="
+                    + backendIdleTimeout + ")");
+        } // if else
+        
+        backendValidationInterval = context.getLong("backend.validation_interval", 30L);
+        
+        if (backendValidationInterval < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.validation_interval="
+                    + backendValidationInterval + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.validation_interval="
+                    + backendValidationInterval + ")");
+        } // if else
+        
+        String backendInsertModeStr = context.getString("backend.insert_mode", "literal");
+        
+        try {
+            backendInsertMode = InsertMode.valueOf(backendInsertModeStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.insert_mode="
+                    + backendInsertModeStr + ")");
+        } catch (Exception e) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.insert_mode="
+                    + backendInsertModeStr + ") -- Must be 'literal' or 'prepared'");
+        } // try catch
+        
+        backendDeleteChunkSize = context.getInteger("backend.delete_chunk_size", 1000);
+        
+        if (backendDeleteChunkSize <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.delete_chunk_size="
+                    + backendDeleteChunkSize + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.delete_chunk_size="
+                    + backendDeleteChunkSize + ")");
+        } // if else
+        
+        String backendCreateRecvTimeIndexStr = context.getString("backend.create_recvtime_index", "false");
+        
+        if (backendCreateRecvTimeIndexStr.equals("true") || backendCreateRecvTimeIndexStr.equals("false")) {
+            backendCreateRecvTimeIndex = Boolean.valueOf(backendCreateRecvTimeIndexStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.create_recvtime_index="
+                    + backendCreateRecvTimeIndexStr + ")");
+        } else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.create_recvtime_index="
+                    + backendCreateRecvTimeIndexStr + ") -- Must be 'true' or 'false'");
+        } // if else
+        
         super.configure(context);
     } // configure
 
     @Override
     public void start() {
         try {
-            persistenceBackend = new MySQLBackendImpl(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword);
+            persistenceBackend = new MySQLBackendImpl(mysqlHost, mysqlPort, mysqlUsername, mysqlPassword,
+                    backendMaxConns, backendMaxConnsPerDb, backendMaxWait, backendIdleTimeout,
+                    backendValidationInterval, backendDeleteChunkSize, backendCreateRecvTimeIndex);
             LOGGER.debug("[" + this.getName() + "] MySQL persistence backend created");
         } catch (Exception e) {
             LOGGER.error("Error while creating the MySQL persistence backend. Details="
@@ -169,6 +352,25 @@ public class NGSIMySQLSink extends NGSISink {
         super.start();
     } // start
     
+    @Override
+    public void stop() {
+        super.stop();
+        
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+    } // stop
+    
+    @Override
+    public CygnusMetrics getServiceMetrics() {
+        // capping and expiration happen within the backend, thus their metrics are collected from it
+        if (persistenceBackend != null) {
+            persistenceBackend.drainDeletionMetrics(serviceMetrics);
+        } // if
+        
+        return super.getServiceMetrics();
+    } // getServiceMetrics
+    
     @Override
     void persistBatch(NGSIBatch batch)
         throws CygnusBadConfiguration, CygnusPersistenceError, CygnusRuntimeError, CygnusBadContextData {
@@ -202,6 +404,47 @@ public class NGSIMySQLSink extends NGSISink {
         } // for
     } // persistBatch
     
+    /**
+     * Sub-batches are persisted through pooled connections and the backend cache is thread-safe, thus several
+     * sub-batches can be persisted at the same time.
+     * @return True
+     */
+    @Override
+    protected boolean supportsParallelPersistence() {
+        return true;
+    } // supportsParallelPersistence
+    
+    /**
+     * Cappings only use pooled connections, thus they can be done while persisting.
+     * @return True
+     */
+    @Override
+    protected boolean supportsAsyncCapping() {
+        return true;
+    } // supportsAsyncCapping
+
+    /**
+     * Gets the number of records the given events are persisted as: a row per attribute in row mode, a row per event
+     * in column mode.
+     * @param events
+     * @return The number of records the given events are persisted as
+     */
+    @Override
+    protected long getNumRecords(ArrayList<NGSIEvent> events) {
+        if (!rowAttrPersistence) {
+            return events.size();
+        } // if
+        
+        long numRecords = 0;
+        
+        for (NGSIEvent event : events) {
+            ArrayList<ContextAttribute> contextAttributes = event.getContextElement().getAttributes();
+            numRecords += contextAttributes == null ? 0 : contextAttributes.size();
+        } // for
+        
+        return numRecords;
+    } // getNumRecords
+
     @Override
     public void capRecords(NGSIBatch batch, long maxRecords) throws CygnusCappingError {
         if (batch == null) {
@@ -248,6 +491,101 @@ public class NGSIMySQLSink extends NGSISink {
         } // try catch
     } // expirateRecords
     
+    /**
+     * Gets the destinations to be expirated. The oldest record time of a table is only selected the first time the
+     * table is listed (or while empty or unknown); then, it is kept as known, and advanced to the expiration horizon
+     * once the table is fully expirated, since the records are inserted with the current time and deleting them only
+     * makes the oldest one newer. Thus, tables not behind the horizon are not queried at all but for the estimated
+     * number of records. The known times are dropped every RESCAN_LISTINGS listings, in order to catch up with old
+     * records inserted anyway (e.g. rollbacked batches persisted long after they were received).
+     * @return The destinations to be expirated
+     * @throws CygnusExpiratingError
+     */
+    @Override
+    protected ArrayList<ExpirationScheduler.Destination> getExpirationDestinations() throws CygnusExpiratingError {
+        ArrayList<ExpirationScheduler.Destination> destinations = new ArrayList<>();
+        HashSet<String> listed = new HashSet<>();
+        
+        if (++numExpirationListings % RESCAN_LISTINGS == 0) {
+            oldestRecordTimes.clear();
+        } // if
+        
+        try {
+            for (String[] table : persistenceBackend.getCachedTables()) {
+                String destination = table[0] + "." + table[1];
+                long numRecords = persistenceBackend.estimateNumRecords(table[0], table[1]);
+                Long knownOldestRecordTime = oldestRecordTimes.get(destination);
+                long oldestRecordTime;
+                listed.add(destination);
+                
+                if (knownOldestRecordTime != null) {
+                    oldestRecordTime = knownOldestRecordTime;
+                } else {
+                    oldestRecordTime = getOldestRecordTime(table[0], table[1]);
+                    
+                    if (oldestRecordTime > 0) {
+                        oldestRecordTimes.put(destination, oldestRecordTime);
+                    } // if
+                } // if else
+                
+                destinations.add(new ExpirationScheduler.Destination(destination, numRecords, oldestRecordTime));
+            } // for
+        } catch (CygnusRuntimeError | CygnusPersistenceError e) {
+            throw new CygnusExpiratingError(e.getMessage());
+        } // try catch
+        
+        oldestRecordTimes.keySet().retainAll(listed);
+        return destinations;
+    } // getExpirationDestinations
+    
+    /**
+     * Gets the reception time of the oldest record within the given table.
+     * @param dbName
+     * @param tableName
+     * @return The reception time of the oldest record (in milliseconds), 0 if there are no records, or -1 if unknown
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private long getOldestRecordTime(String dbName, String tableName)
+        throws CygnusRuntimeError, CygnusPersistenceError {
+        String recvTime = persistenceBackend.getOldestRecvTime(dbName, tableName);
+        
+        if (recvTime == null) {
+            return 0;
+        } // if
+        
+        try {
+            return CommonUtils.getMilliseconds(recvTime);
+        } catch (Exception e) {
+            return -1;
+        } // try catch
+    } // getOldestRecordTime
+    
+    @Override
+    protected long expirateRecords(String destination, long horizon, long maxRecords) throws CygnusExpiratingError {
+        // Destinations are given as database and table names separated by a dot, not allowed within database names
+        int dot = destination.indexOf('.');
+        String dbName = destination.substring(0, dot);
+        String tableName = destination.substring(dot + 1);
+        
+        long numRecords;
+        
+        try {
+            numRecords = persistenceBackend.expirateRecords(dbName, tableName,
+                    CommonUtils.getHumanReadable(horizon, true), maxRecords);
+        } catch (CygnusRuntimeError | CygnusPersistenceError e) {
+            throw new CygnusExpiratingError(e.getMessage());
+        } // try catch
+        
+        // Once fully expirated, no record is older than the horizon
+        if (numRecords < maxRecords) {
+            Long known = oldestRecordTimes.get(destination);
+            oldestRecordTimes.put(destination, known == null ? horizon : Math.max(known, horizon));
+        } // if
+        
+        return numRecords;
+    } // expirateRecords
+    
     /**
      * Class for aggregating.
      */
@@ -320,11 +658,16 @@ public class NGSIMySQLSink extends NGSISink {
             Iterator it = aggregation.keySet().iterator();
             
             while (it.hasNext()) {
+                String field = (String) it.next();
+                
+                // recvTime is not a text column, in order to be fully indexable when capping or expirating
+                String type = NGSIConstants.RECV_TIME.equals(field) ? " varchar(32)" : " text";
+                
                 if (first) {
-                    fieldsForCreate += (String) it.next() + " text";
+                    fieldsForCreate += field + type;
                     first = false;
                 } else {
-                    fieldsForCreate += "," + (String) it.next() + " text";
+                    fieldsForCreate += "," + field + type;
                 } // if else
             } // while
             
@@ -348,6 +691,23 @@ public class NGSIMySQLSink extends NGSISink {
             return fieldsForInsert + ")";
         } // getFieldsForInsert
         
+        public ArrayList<ArrayList<String>> getRowsForInsert() {
+            int numEvents = aggregation.get(NGSIConstants.FIWARE_SERVICE_PATH).size();
+            ArrayList<ArrayList<String>> rowsForInsert = new ArrayList<>(numEvents);
+            
+            for (int i = 0; i < numEvents; i++) {
+                ArrayList<String> row = new ArrayList<>(aggregation.size());
+                
+                for (ArrayList<String> values : aggregation.values()) {
+                    row.add(values.get(i));
+                } // for
+                
+                rowsForInsert.add(row);
+            } // for
+            
+            return rowsForInsert;
+        } // getRowsForInsert
+        
         public void initialize(NGSIEvent event) throws CygnusBadConfiguration {
             service = event.getServiceForNaming(enableNameMappings);
             servicePathForData = event.getServicePathForData();
@@ -391,8 +751,7 @@ public class NGSIMySQLSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -408,8 +767,7 @@ public class NGSIMySQLSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 
                 // aggregate the attribute information
                 aggregation.get(NGSIConstants.RECV_TIME_TS).add(Long.toString(recvTimeTs));
@@ -468,8 +826,7 @@ public class NGSIMySQLSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // Iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -490,8 +847,7 @@ public class NGSIMySQLSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 
                 // Check if the attribute already exists in the form of 2 columns (one for metadata); if not existing,
                 // add an empty value for all previous rows
@@ -532,13 +888,20 @@ public class NGSIMySQLSink extends NGSISink {
         throws CygnusPersistenceError, CygnusRuntimeError, CygnusBadContextData {
         String fieldsForCreate = aggregator.getFieldsForCreate();
         String fieldsForInsert = aggregator.getFieldsForInsert();
-        String valuesForInsert = aggregator.getValuesForInsert();
         String dbName = aggregator.getDbName(enableLowercase);
         String tableName = aggregator.getTableName(enableLowercase);
+        String valuesForInsert = null;
+        ArrayList<ArrayList<String>> rowsForInsert = null;
         
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIMySQLSink. Database ("
-                + dbName + "), Table (" + tableName + "), Fields (" + fieldsForInsert + "), Values ("
-                + valuesForInsert + ")");
+        if (backendInsertMode == InsertMode.PREPARED) {
+            rowsForInsert = aggregator.getRowsForInsert();
+            LOGGER.info("[{}] Persisting data at NGSIMySQLSink. Database ({}), Table ({}), Fields ({}), Rows ({})",
+                    this.getName(), dbName, tableName, fieldsForInsert, rowsForInsert.size());
+        } else {
+            valuesForInsert = aggregator.getValuesForInsert();
+            LOGGER.info("[{}] Persisting data at NGSIMySQLSink. Database ({}), Table ({}), Fields ({}), Values ({})",
+                    this.getName(), dbName, tableName, fieldsForInsert, payloadLogSampler.sample(valuesForInsert));
+        } // if else
         
         // creating the database and the table has only sense if working in row mode, in column node
         // everything must be provisioned in advance
@@ -547,7 +910,11 @@ public class NGSIMySQLSink extends NGSISink {
             persistenceBackend.createTable(dbName, tableName, fieldsForCreate);
         } // if
 
-        persistenceBackend.insertContextData(dbName, tableName, fieldsForInsert, valuesForInsert);
+        if (backendInsertMode == InsertMode.PREPARED) {
+            persistenceBackend.insertContextDataPrepared(dbName, tableName, fieldsForInsert, rowsForInsert);
+        } else {
+            persistenceBackend.insertContextData(dbName, tableName, fieldsForInsert, valuesForInsert);
+        } // if else
     } // persistAggregation
     
     /**
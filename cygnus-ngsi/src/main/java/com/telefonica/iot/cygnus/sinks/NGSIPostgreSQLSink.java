@@ -44,6 +44,11 @@ import org.apache.flume.Context;
  */
 public class NGSIPostgreSQLSink extends NGSISink {
 
+    /**
+     * Available insertion modes.
+     */
+    public enum InsertMode { LITERAL, PREPARED, COPY }
+
     private static final CygnusLogger LOGGER = new CygnusLogger(NGSIPostgreSQLSink.class);
     private String postgresqlHost;
     private String postgresqlPort;
@@ -53,6 +58,12 @@ public class NGSIPostgreSQLSink extends NGSISink {
     private boolean rowAttrPersistence;
     private PostgreSQLBackendImpl persistenceBackend;
     private boolean enableCache;
+    private int backendMaxConns;
+    private int backendMaxConnsPerDb;
+    private long backendMaxWait;
+    private long backendIdleTimeout;
+    private long backendValidationInterval;
+    private InsertMode backendInsertMode;
 
     /**
      * Constructor.
@@ -118,6 +129,58 @@ public class NGSIPostgreSQLSink extends NGSISink {
         return rowAttrPersistence;
     } // getRowAttrPersistence
 
+    /**
+     * Gets the maximum number of pooled connections. It is protected due to it is only required for testing purposes.
+     * @return The maximum number of pooled connections
+     */
+    protected int getBackendMaxConns() {
+        return backendMaxConns;
+    } // getBackendMaxConns
+
+    /**
+     * Gets the maximum number of pooled connections per schema. It is protected due to it is only required for
+     * testing purposes.
+     * @return The maximum number of pooled connections per schema
+     */
+    protected int getBackendMaxConnsPerDb() {
+        return backendMaxConnsPerDb;
+    } // getBackendMaxConnsPerDb
+
+    /**
+     * Gets the maximum time to wait for a pooled connection. It is protected due to it is only required for testing
+     * purposes.
+     * @return The maximum time to wait for a pooled connection
+     */
+    protected long getBackendMaxWait() {
+        return backendMaxWait;
+    } // getBackendMaxWait
+
+    /**
+     * Gets the time after which an idle pooled connection is closed. It is protected due to it is only required for
+     * testing purposes.
+     * @return The time after which an idle pooled connection is closed
+     */
+    protected long getBackendIdleTimeout() {
+        return backendIdleTimeout;
+    } // getBackendIdleTimeout
+
+    /**
+     * Gets the time between validations of the idle pooled connections. It is protected due to it is only required
+     * for testing purposes.
+     * @return The time between validations of the idle pooled connections
+     */
+    protected long getBackendValidationInterval() {
+        return backendValidationInterval;
+    } // getBackendValidationInterval
+
+    /**
+     * Gets the insertion mode. It is protected due to it is only required for testing purposes.
+     * @return The insertion mode
+     */
+    protected InsertMode getBackendInsertMode() {
+        return backendInsertMode;
+    } // getBackendInsertMode
+
     /**
      * Returns the persistence backend. It is protected due to it is only required for testing purposes.
      * @return The persistence backend
@@ -184,14 +247,81 @@ public class NGSIPostgreSQLSink extends NGSISink {
             LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.enable_cache="
                 + enableCache + ") -- Must be 'true' or 'false'");
         }  // if else
-        
+
+        backendMaxConns = context.getInteger("backend.max_conns", 50);
+
+        if (backendMaxConns <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_conns="
+                    + backendMaxConns + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_conns="
+                    + backendMaxConns + ")");
+        } // if else
+
+        backendMaxConnsPerDb = context.getInteger("backend.max_conns_per_db", 10);
+
+        if (backendMaxConnsPerDb <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_conns_per_db="
+                    + backendMaxConnsPerDb + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_conns_per_db="
+                    + backendMaxConnsPerDb + ")");
+        } // if else
+
+        backendMaxWait = context.getLong("backend.max_wait", 10000L);
+
+        if (backendMaxWait < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.max_wait="
+                    + backendMaxWait + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.max_wait="
+                    + backendMaxWait + ")");
+        } // if else
+
+        backendIdleTimeout = context.getLong("backend.idle_timeout", 300L);
+
+        if (backendIdleTimeout <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.idle_timeout="
+                    + backendIdleTimeout + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.idle_timeout="
+                    + backendIdleTimeout + ")");
+        } // if else
+
+        backendValidationInterval = context.getLong("backend.validation_interval", 30L);
+
+        if (backendValidationInterval < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.validation_interval="
+                    + backendValidationInterval + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.validation_interval="
+                    + backendValidationInterval + ")");
+        } // if else
+
+        String backendInsertModeStr = context.getString("backend.insert_mode", "literal");
+
+        try {
+            backendInsertMode = InsertMode.valueOf(backendInsertModeStr.toUpperCase());
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (backend.insert_mode="
+                    + backendInsertModeStr + ")");
+        } catch (Exception e) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (backend.insert_mode="
+                    + backendInsertModeStr + ") -- Must be 'literal', 'prepared' or 'copy'");
+        } // try catch
     } // configure
 
     @Override
     public void start() {
         try {
             persistenceBackend = new PostgreSQLBackendImpl(postgresqlHost, postgresqlPort, postgresqlDatabase,
-                    postgresqlUsername, postgresqlPassword, enableCache);
+                    postgresqlUsername, postgresqlPassword, enableCache, backendMaxConns, backendMaxConnsPerDb,
+                    backendMaxWait, backendIdleTimeout, backendValidationInterval);
         } catch (Exception e) {
             LOGGER.error("Error while creating the PostgreSQL persistence backend. Details="
                     + e.getMessage());
@@ -201,6 +331,15 @@ public class NGSIPostgreSQLSink extends NGSISink {
         LOGGER.info("[" + this.getName() + "] Startup completed");
     } // start
 
+    @Override
+    public void stop() {
+        super.stop();
+
+        if (persistenceBackend != null) {
+            persistenceBackend.close();
+        } // if
+    } // stop
+
     @Override
     void persistBatch(NGSIBatch batch) throws CygnusBadConfiguration, CygnusPersistenceError {
         if (batch == null) {
@@ -233,6 +372,16 @@ public class NGSIPostgreSQLSink extends NGSISink {
         } // for
     } // persistBatch
     
+    /**
+     * Sub-batches are persisted through pooled connections and the backend cache is thread-safe, thus several
+     * sub-batches can be persisted at the same time.
+     * @return True
+     */
+    @Override
+    protected boolean supportsParallelPersistence() {
+        return true;
+    } // supportsParallelPersistence
+    
     @Override
     public void capRecords(NGSIBatch batch, long maxRecords) throws CygnusCappingError {
     } // capRecords
@@ -246,8 +395,8 @@ public class NGSIPostgreSQLSink extends NGSISink {
      */
     private abstract class PostgreSQLAggregator {
 
-        // string containing the data fieldValues
-        protected String aggregation;
+        // list of rows containing the data fieldValues
+        protected ArrayList<ArrayList<String>> aggregation;
 
         protected String service;
         protected String servicePathForData;
@@ -260,13 +409,31 @@ public class NGSIPostgreSQLSink extends NGSISink {
         protected String fieldNames;
 
         public PostgreSQLAggregator() {
-            aggregation = "";
+            aggregation = new ArrayList<>();
         } // PostgreSQLAggregator
 
         public String getAggregation() {
-            return aggregation;
+            StringBuilder fieldValues = new StringBuilder();
+
+            for (ArrayList<String> row : aggregation) {
+                fieldValues.append(fieldValues.length() == 0 ? "('" : ",('");
+                boolean first = true;
+
+                for (String value : row) {
+                    fieldValues.append(first ? "" : "','").append(value);
+                    first = false;
+                } // for
+
+                fieldValues.append("')");
+            } // for
+
+            return fieldValues.toString();
         } // getAggregation
 
+        public ArrayList<ArrayList<String>> getRows() {
+            return aggregation;
+        } // getRows
+
         public String getSchemaName(boolean enableLowercase) {
             if (enableLowercase) {
                 return schemaName.toLowerCase();
@@ -347,8 +514,7 @@ public class NGSIPostgreSQLSink extends NGSISink {
             ContextElement contextElement = event.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -364,27 +530,20 @@ public class NGSIPostgreSQLSink extends NGSISink {
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
-
-                // create a column and aggregate it
-                String row = "('"
-                    + recvTimeTs + "','"
-                    + recvTime + "','"
-                    + servicePathForData + "','"
-                    + entityId + "','"
-                    + entityType + "','"
-                    + attrName + "','"
-                    + attrType + "','"
-                    + attrValue + "','"
-                    + attrMetadata
-                    + "')";
-
-                if (aggregation.isEmpty()) {
-                    aggregation += row;
-                } else {
-                    aggregation += "," + row;
-                } // if else
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
+
+                // create a row and aggregate it
+                ArrayList<String> row = new ArrayList<>(9);
+                row.add(Long.toString(recvTimeTs));
+                row.add(recvTime);
+                row.add(servicePathForData);
+                row.add(entityId);
+                row.add(entityType);
+                row.add(attrName);
+                row.add(attrType);
+                row.add(attrValue);
+                row.add(attrMetadata);
+                aggregation.add(row);
             } // for
         } // aggregate
 
@@ -436,8 +595,7 @@ public class NGSIPostgreSQLSink extends NGSISink {
             ContextElement contextElement = cygnusEvent.getContextElement();
             String entityId = contextElement.getId();
             String entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
 
             // iterate on all this context element attributes, if there are attributes
             ArrayList<ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -448,26 +606,26 @@ public class NGSIPostgreSQLSink extends NGSISink {
                 return;
             } // if
 
-            String column = "('" + recvTime + "','" + servicePathForData + "','" + entityId + "','" + entityType + "'";
+            ArrayList<String> row = new ArrayList<>(4 + 2 * contextAttributes.size());
+            row.add(recvTime);
+            row.add(servicePathForData);
+            row.add(entityId);
+            row.add(entityType);
 
             for (ContextAttribute contextAttribute : contextAttributes) {
                 String attrName = contextAttribute.getName();
                 String attrType = contextAttribute.getType();
                 String attrValue = contextAttribute.getContextValue(false);
                 String attrMetadata = contextAttribute.getContextMetadata();
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
 
-                // create part of the column with the current attribute (a.k.a. a column)
-                column += ",'" + attrValue + "','"  + attrMetadata + "'";
+                // create part of the row with the current attribute (a.k.a. a column)
+                row.add(attrValue);
+                row.add(attrMetadata);
             } // for
 
-            // now, aggregate the column
-            if (aggregation.isEmpty()) {
-                aggregation += column + ")";
-            } else {
-                aggregation += "," + column + ")";
-            } // if else
+            // now, aggregate the row
+            aggregation.add(row);
         } // aggregate
 
     } // ColumnAggregator
@@ -483,13 +641,19 @@ public class NGSIPostgreSQLSink extends NGSISink {
     private void persistAggregation(PostgreSQLAggregator aggregator) throws CygnusPersistenceError {
         String typedFieldNames = aggregator.getTypedFieldNames();
         String fieldNames = aggregator.getFieldNames();
-        String fieldValues = aggregator.getAggregation();
         String schemaName = aggregator.getSchemaName(enableLowercase);
         String tableName = aggregator.getTableName(enableLowercase);
+        String fieldValues = null;
 
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSIPostgreSQLSink. Schema ("
-                + schemaName + "), Table (" + tableName + "), Fields (" + fieldNames + "), Values ("
-                + fieldValues + ")");
+        if (backendInsertMode == InsertMode.PREPARED || backendInsertMode == InsertMode.COPY) {
+            LOGGER.info("[{}] Persisting data at NGSIPostgreSQLSink. Schema ({}), Table ({}), Fields ({}), Rows ({})",
+                    this.getName(), schemaName, tableName, fieldNames, aggregator.getRows().size());
+        } else {
+            fieldValues = aggregator.getAggregation();
+            LOGGER.info("[{}] Persisting data at NGSIPostgreSQLSink. Schema ({}), Table ({}), Fields ({}), "
+                    + "Values ({})", this.getName(), schemaName, tableName, fieldNames,
+                    payloadLogSampler.sample(fieldValues));
+        } // if else
         
         try {
             if (aggregator instanceof RowAggregator) {
@@ -499,7 +663,22 @@ public class NGSIPostgreSQLSink extends NGSISink {
             // creating the database and the table has only sense if working in row mode, in column node
             // everything must be provisioned in advance
 
-            persistenceBackend.insertContextData(schemaName, tableName, fieldNames, fieldValues);
+            if (backendInsertMode == InsertMode.COPY) {
+                try {
+                    persistenceBackend.insertContextDataCopy(schemaName, tableName, fieldNames, aggregator.getRows());
+                } catch (Exception e) {
+                    // a failed copy does not load any row, thus the rows can be safely inserted instead
+                    LOGGER.warn("[" + this.getName() + "] Copy failed, falling back to insertion. Details="
+                            + e.getMessage());
+                    persistenceBackend.insertContextDataPrepared(schemaName, tableName, fieldNames,
+                            aggregator.getRows());
+                } // try catch
+            } else if (backendInsertMode == InsertMode.PREPARED) {
+                persistenceBackend.insertContextDataPrepared(schemaName, tableName, fieldNames,
+                        aggregator.getRows());
+            } else {
+                persistenceBackend.insertContextData(schemaName, tableName, fieldNames, fieldValues);
+            } // if else
         } catch (Exception e) {
             throw new CygnusPersistenceError("-, " + e.getMessage());
         } // try catch
@@ -0,0 +1,709 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author frb
+ *
+ * On-disk store for rollbacked batches. Batches are appended to memory-mapped segment files, and only a small index
+ * (segment, position, TTL and last retry) is kept in memory; the events are read back from disk when the batch is
+ * retried. Every change on a rollbacked batch (new retry, partial persistence, finished retries) is appended as a
+ * record as well, thus the pending batches can be replayed after a restart.
+ *
+ * Each record is framed as: record length (int), CRC32 (int), type (byte), batch identifier (long) and payload. A
+ * zero length, a length beyond the segment end or a wrong CRC denote the end of the valid data within a segment (a
+ * record may be half-written if Cygnus crashed while writing it).
+ *
+ * Segments are deleted once all their batches have been removed. Every time a new segment is created a checkpoint is
+ * done: the still pending batches of the oldest segment are re-appended to the new segment, and the oldest segment
+ * is deleted. This way, a batch being retried for a long time does not prevent the rest of the segments from being
+ * deleted.
+ */
+public class NGSIRollbackStore {
+
+    /**
+     * Pending batch, as replayed when opening the store.
+     */
+    public static class PendingBatch {
+
+        private final long id;
+        private final String transactionIds;
+        private final int ttl;
+        private final long lastRetry;
+        private final long rollbackTime;
+
+        /**
+         * Constructor.
+         * @param id
+         * @param transactionIds
+         * @param ttl
+         * @param lastRetry
+         * @param rollbackTime
+         */
+        public PendingBatch(long id, String transactionIds, int ttl, long lastRetry, long rollbackTime) {
+            this.id = id;
+            this.transactionIds = transactionIds;
+            this.ttl = ttl;
+            this.lastRetry = lastRetry;
+            this.rollbackTime = rollbackTime;
+        } // PendingBatch
+
+        public long getId() {
+            return id;
+        } // getId
+
+        public String getTransactionIds() {
+            return transactionIds;
+        } // getTransactionIds
+
+        public int getTTL() {
+            return ttl;
+        } // getTTL
+
+        public long getLastRetry() {
+            return lastRetry;
+        } // getLastRetry
+
+        public long getRollbackTime() {
+            return rollbackTime;
+        } // getRollbackTime
+
+    } // PendingBatch
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(NGSIRollbackStore.class);
+    private static final Gson GSON = new Gson();
+    private static final Charset BODY_CHARSET = StandardCharsets.ISO_8859_1; // byte to char one to one mapping
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 17;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_UPDATE = 2;
+    private static final byte TYPE_REMOVE = 3;
+    private final File directory;
+    private final int segmentSize;
+    private final LinkedList<Segment> segments;
+    private final HashMap<Long, Record> index;
+    private Segment activeSegment;
+    private long nextId;
+    private long nextSegmentSeq;
+    private long queuedBytes;
+
+    /**
+     * Constructor.
+     * @param directory Directory where the segment files are stored
+     * @param segmentSize Size in bytes of the segment files
+     */
+    public NGSIRollbackStore(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new LinkedList<>();
+        this.index = new HashMap<>();
+        this.activeSegment = null;
+        this.nextId = 0;
+        this.nextSegmentSeq = 0;
+        this.queuedBytes = 0;
+    } // NGSIRollbackStore
+
+    /**
+     * Opens the store, replaying the existing segment files (if any).
+     * @return The pending batches, in rollback order
+     * @throws IOException
+     */
+    public synchronized ArrayList<PendingBatch> open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the rollback store directory " + directory.getAbsolutePath());
+        } // if
+
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+
+        for (File file : files) {
+            String name = file.getName();
+
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            } // if
+
+            long seq = new Long(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(file, (int) file.length());
+            segments.add(segment);
+            nextSegmentSeq = seq + 1;
+            replay(segment);
+        } // for
+
+        if (!segments.isEmpty() && segments.getLast().hasRoom(HEADER_SIZE)) {
+            activeSegment = segments.getLast();
+        } else {
+            activeSegment = createSegment(segmentSize);
+        } // if else
+
+        deleteDeadSegments();
+
+        // Get the pending batches, sorted by identifier (i.e. by rollback order)
+        TreeMap<Long, Record> sorted = new TreeMap<>(index);
+        ArrayList<PendingBatch> pendingBatches = new ArrayList<>();
+
+        for (Record record : sorted.values()) {
+            StoredAccumulationMeta meta = GSON.fromJson(new String(record.segment.read(record.position),
+                    StandardCharsets.UTF_8), StoredAccumulationMeta.class);
+            pendingBatches.add(new PendingBatch(record.id, meta.transactionIds, record.ttl, record.lastRetry,
+                    meta.rollbackTime));
+        } // for
+
+        LOGGER.info("Rollback store opened (directory=" + directory.getAbsolutePath() + ", segments="
+                + segments.size() + ", pendingBatches=" + pendingBatches.size() + ", queuedBytes=" + queuedBytes
+                + ")");
+        return pendingBatches;
+    } // open
+
+    /**
+     * Closes the store. Nothing is deleted, thus the pending batches will be replayed the next time the store is
+     * opened.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        } // for
+
+        segments.clear();
+        index.clear();
+        activeSegment = null;
+        queuedBytes = 0;
+    } // close
+
+    /**
+     * Puts a rollbacked batch.
+     * @param batch
+     * @param transactionIds
+     * @param ttl
+     * @param lastRetry
+     * @param rollbackTime
+     * @return The identifier of the stored batch
+     * @throws IOException
+     */
+    public synchronized long put(NGSIBatch batch, String transactionIds, int ttl, long lastRetry,
+            long rollbackTime) throws IOException {
+        StoredAccumulation stored = new StoredAccumulation();
+        stored.transactionIds = transactionIds;
+        stored.ttl = ttl;
+        stored.lastRetry = lastRetry;
+        stored.rollbackTime = rollbackTime;
+        stored.subBatches = new ArrayList<>();
+        batch.startIterator();
+
+        while (batch.hasNext()) {
+            StoredSubBatch subBatch = new StoredSubBatch();
+            subBatch.destination = batch.getNextDestination();
+            subBatch.persisted = batch.isNextPersisted();
+            subBatch.events = new ArrayList<>();
+
+            for (NGSIEvent event : batch.getNextEvents()) {
+                StoredEvent storedEvent = new StoredEvent();
+                storedEvent.headers = event.getHeaders();
+                storedEvent.body = event.getBody() == null ? null : new String(event.getBody(), BODY_CHARSET);
+                storedEvent.originalCE = event.getOriginalCE();
+                storedEvent.mappedCE = event.getMappedCE();
+                subBatch.events.add(storedEvent);
+            } // for
+
+            stored.subBatches.add(subBatch);
+        } // while
+
+        long id = nextId++;
+        byte[] payload = GSON.toJson(stored).getBytes(StandardCharsets.UTF_8);
+        Record record = new Record(id, ttl, lastRetry);
+        append(TYPE_PUT, id, payload, record, true);
+        index.put(id, record);
+        return id;
+    } // put
+
+    /**
+     * Updates a rollbacked batch after a failed retry.
+     * @param id
+     * @param ttl
+     * @param lastRetry
+     * @param batch The batch, whose persisted sub-batches are not persisted again once replayed
+     * @throws IOException
+     */
+    public synchronized void update(long id, int ttl, long lastRetry, NGSIBatch batch) throws IOException {
+        Record record = index.get(id);
+
+        if (record == null) {
+            return;
+        } // if
+
+        record.ttl = ttl;
+        record.lastRetry = lastRetry;
+
+        if (batch != null) {
+            batch.startIterator();
+
+            while (batch.hasNext()) {
+                String destination = batch.getNextDestination();
+
+                if (batch.isNextPersisted() && !record.persisted.contains(destination)) {
+                    record.persisted.add(destination);
+                } // if
+            } // while
+        } // if
+
+        append(TYPE_UPDATE, id, buildUpdatePayload(record), null, true);
+    } // update
+
+    /**
+     * Removes a rollbacked batch, once persisted or once its TTL is exhausted.
+     * @param id
+     * @throws IOException
+     */
+    public synchronized void remove(long id) throws IOException {
+        Record record = index.remove(id);
+
+        if (record == null) {
+            return;
+        } // if
+
+        record.segment.liveRecords--;
+        queuedBytes -= record.length;
+        append(TYPE_REMOVE, id, new byte[0], null, true);
+        deleteDeadSegments();
+    } // remove
+
+    /**
+     * Loads a rollbacked batch from disk.
+     * @param id
+     * @return The rollbacked batch, or null if not found
+     * @throws IOException
+     */
+    public synchronized NGSIBatch load(long id) throws IOException {
+        Record record = index.get(id);
+
+        if (record == null) {
+            return null;
+        } // if
+
+        StoredAccumulation stored;
+
+        try {
+            stored = GSON.fromJson(new String(record.segment.read(record.position), StandardCharsets.UTF_8),
+                    StoredAccumulation.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Corrupted rollbacked batch (id=" + id + "). Details: " + e.getMessage());
+        } // try catch
+
+        NGSIBatch batch = new NGSIBatch();
+
+        for (StoredSubBatch subBatch : stored.subBatches) {
+            for (StoredEvent storedEvent : subBatch.events) {
+                batch.addEvent(subBatch.destination, new NGSIEvent(storedEvent.headers,
+                        storedEvent.body == null ? null : storedEvent.body.getBytes(BODY_CHARSET),
+                        storedEvent.originalCE, storedEvent.mappedCE));
+            } // for
+
+            if (subBatch.persisted || record.persisted.contains(subBatch.destination)) {
+                batch.setPersisted(subBatch.destination, true);
+            } // if
+        } // for
+
+        return batch;
+    } // load
+
+    /**
+     * Gets the number of pending batches.
+     * @return The number of pending batches
+     */
+    public synchronized int getNumPendingBatches() {
+        return index.size();
+    } // getNumPendingBatches
+
+    /**
+     * Gets the number of bytes used by the pending batches.
+     * @return The number of bytes used by the pending batches
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    } // getQueuedBytes
+
+    /**
+     * Gets the number of segment files.
+     * @return The number of segment files
+     */
+    public synchronized int getNumSegments() {
+        return segments.size();
+    } // getNumSegments
+
+    private void replay(Segment segment) {
+        int position = 0;
+
+        while (true) {
+            int length = segment.validRecordLength(position);
+
+            if (length == -1) {
+                break;
+            } // if
+
+            byte type = segment.buffer.get(position + 8);
+            long id = segment.buffer.getLong(position + 9);
+            nextId = Math.max(nextId, id + 1);
+            Record record = index.get(id);
+
+            switch (type) {
+                case TYPE_PUT:
+                    if (record != null) {
+                        // the batch was relocated by a checkpoint
+                        record.segment.liveRecords--;
+                        queuedBytes -= record.length;
+                    } else {
+                        record = new Record(id, 0, 0);
+                        index.put(id, record);
+                    } // if else
+
+                    StoredAccumulationMeta meta = GSON.fromJson(new String(segment.read(position),
+                            StandardCharsets.UTF_8), StoredAccumulationMeta.class);
+                    record.ttl = meta.ttl;
+                    record.lastRetry = meta.lastRetry;
+                    record.segment = segment;
+                    record.position = position;
+                    record.length = length;
+                    segment.liveRecords++;
+                    queuedBytes += length;
+                    break;
+                case TYPE_UPDATE:
+                    if (record != null) {
+                        StoredUpdate update = GSON.fromJson(new String(segment.read(position),
+                                StandardCharsets.UTF_8), StoredUpdate.class);
+                        record.ttl = update.ttl;
+                        record.lastRetry = update.lastRetry;
+                        record.persisted = update.persisted;
+                    } // if
+
+                    break;
+                case TYPE_REMOVE:
+                    if (record != null) {
+                        index.remove(id);
+                        record.segment.liveRecords--;
+                        queuedBytes -= record.length;
+                    } // if
+
+                    break;
+                default:
+                    LOGGER.warn("Unknown record type in rollback store segment " + segment.file.getName()
+                            + " (type=" + type + ")");
+            } // switch
+
+            position += length;
+        } // while
+
+        segment.position = position;
+    } // replay
+
+    /**
+     * Appends a record to the active segment, creating a new segment if the active one is full.
+     * @param type
+     * @param id
+     * @param payload
+     * @param record Index record to be updated with the position of the appended record, if any
+     * @param checkpoint True if a checkpoint must be done in case a new segment is created
+     * @throws IOException
+     */
+    private void append(byte type, long id, byte[] payload, Record record, boolean checkpoint) throws IOException {
+        int length = HEADER_SIZE + payload.length;
+
+        if (!activeSegment.hasRoom(length)) {
+            activeSegment = createSegment(Math.max(segmentSize, length));
+
+            if (checkpoint) {
+                checkpoint();
+            } // if
+
+            if (!activeSegment.hasRoom(length)) {
+                activeSegment = createSegment(Math.max(segmentSize, length));
+            } // if
+        } // if
+
+        Segment segment = activeSegment;
+        int position = segment.position;
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(longToBytes(id));
+        crc.update(payload);
+        segment.buffer.putInt(position + 4, (int) crc.getValue());
+        segment.buffer.put(position + 8, type);
+        segment.buffer.putLong(position + 9, id);
+        segment.buffer.position(position + HEADER_SIZE);
+        segment.buffer.put(payload);
+        segment.buffer.putInt(position, length); // the length is written the last one
+        segment.buffer.force();
+        segment.position = position + length;
+
+        if (record != null) {
+            if (record.segment != null) {
+                record.segment.liveRecords--;
+                queuedBytes -= record.length;
+            } // if
+
+            record.segment = segment;
+            record.position = position;
+            record.length = length;
+            segment.liveRecords++;
+            queuedBytes += length;
+        } // if
+    } // append
+
+    /**
+     * Re-appends the pending batches of the oldest segment to the active segment, so that the oldest segment can be
+     * deleted.
+     * @throws IOException
+     */
+    private void checkpoint() throws IOException {
+        Segment oldest = segments.getFirst();
+
+        if (oldest == activeSegment) {
+            return;
+        } // if
+
+        for (Record record : new ArrayList<>(index.values())) {
+            if (record.segment == oldest) {
+                append(TYPE_PUT, record.id, record.segment.read(record.position), record, false);
+                append(TYPE_UPDATE, record.id, buildUpdatePayload(record), null, false);
+            } // if
+        } // for
+
+        LOGGER.debug("Rollback store checkpoint done (segment=" + oldest.file.getName() + ")");
+        deleteDeadSegments();
+    } // checkpoint
+
+    private void deleteDeadSegments() {
+        Iterator<Segment> it = segments.iterator();
+
+        while (it.hasNext()) {
+            Segment segment = it.next();
+
+            if (segment == activeSegment || segment.liveRecords > 0) {
+                break; // segments must be deleted in order, otherwise removed batches could be replayed
+            } // if
+
+            segment.close();
+
+            if (!segment.file.delete()) {
+                LOGGER.warn("Cannot delete rollback store segment " + segment.file.getAbsolutePath());
+            } // if
+
+            it.remove();
+        } // while
+    } // deleteDeadSegments
+
+    private Segment createSegment(int size) throws IOException {
+        File file = new File(directory, String.format("%020d", nextSegmentSeq) + SEGMENT_SUFFIX);
+        Segment segment = new Segment(file, size);
+        nextSegmentSeq++;
+        segments.add(segment);
+        return segment;
+    } // createSegment
+
+    private byte[] buildUpdatePayload(Record record) {
+        StoredUpdate update = new StoredUpdate();
+        update.ttl = record.ttl;
+        update.lastRetry = record.lastRetry;
+        update.persisted = record.persisted;
+        return GSON.toJson(update).getBytes(StandardCharsets.UTF_8);
+    } // buildUpdatePayload
+
+    private static byte[] longToBytes(long l) {
+        byte[] bytes = new byte[8];
+
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) (l & 0xff);
+            l >>= 8;
+        } // for
+
+        return bytes;
+    } // longToBytes
+
+    /**
+     * Memory-mapped segment file.
+     */
+    private static class Segment {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private int liveRecords;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.position = 0;
+            this.liveRecords = 0;
+        } // Segment
+
+        boolean hasRoom(int length) {
+            return position + length <= buffer.capacity();
+        } // hasRoom
+
+        /**
+         * Gets the length of the record at the given position, if valid.
+         * @param position
+         * @return The length of the record, or -1 if there is no valid record at the given position
+         */
+        int validRecordLength(int position) {
+            if (position + HEADER_SIZE > buffer.capacity()) {
+                return -1;
+            } // if
+
+            int length = buffer.getInt(position);
+
+            if (length < HEADER_SIZE || position + length > buffer.capacity()) {
+                return -1;
+            } // if
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.get(position + 8));
+            crc.update(longToBytes(buffer.getLong(position + 9)));
+            crc.update(read(position));
+
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                return -1;
+            } // if
+
+            return length;
+        } // validRecordLength
+
+        byte[] read(int position) {
+            int length = buffer.getInt(position);
+            byte[] payload = new byte[length - HEADER_SIZE];
+            buffer.position(position + HEADER_SIZE);
+            buffer.get(payload);
+            return payload;
+        } // read
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close rollback store segment " + file.getAbsolutePath() + ". Details: "
+                        + e.getMessage());
+            } // try catch
+        } // close
+
+    } // Segment
+
+    /**
+     * In-memory index record regarding a pending batch.
+     */
+    private static class Record {
+
+        private final long id;
+        private int ttl;
+        private long lastRetry;
+        private ArrayList<String> persisted;
+        private Segment segment;
+        private int position;
+        private int length;
+
+        Record(long id, int ttl, long lastRetry) {
+            this.id = id;
+            this.ttl = ttl;
+            this.lastRetry = lastRetry;
+            this.persisted = new ArrayList<>();
+            this.segment = null;
+            this.position = 0;
+            this.length = 0;
+        } // Record
+
+    } // Record
+
+    /**
+     * Json representation of a rollbacked batch, without its sub-batches (they are skipped when parsing).
+     */
+    private static class StoredAccumulationMeta {
+
+        protected String transactionIds;
+        protected int ttl;
+        protected long lastRetry;
+        protected long rollbackTime;
+
+    } // StoredAccumulationMeta
+
+    /**
+     * Json representation of a rollbacked batch.
+     */
+    private static class StoredAccumulation extends StoredAccumulationMeta {
+
+        private ArrayList<StoredSubBatch> subBatches;
+
+    } // StoredAccumulation
+
+    /**
+     * Json representation of a sub-batch.
+     */
+    private static class StoredSubBatch {
+
+        private String destination;
+        private boolean persisted;
+        private ArrayList<StoredEvent> events;
+
+    } // StoredSubBatch
+
+    /**
+     * Json representation of an event.
+     */
+    private static class StoredEvent {
+
+        private Map<String, String> headers;
+        private String body;
+        private ContextElement originalCE;
+        private ContextElement mappedCE;
+
+    } // StoredEvent
+
+    /**
+     * Json representation of an update on a rollbacked batch.
+     */
+    private static class StoredUpdate {
+
+        private int ttl;
+        private long lastRetry;
+        private ArrayList<String> persisted;
+
+    } // StoredUpdate
+
+} // NGSIRollbackStore
@@ -17,6 +17,7 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mongo.AggregatedSample;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
@@ -120,143 +121,22 @@ public class NGSISTHSink extends NGSIMongoBaseSink {
     public void expirateRecords(long expirationTime) throws CygnusExpiratingError {
     } // expirateRecords
     
-    private class STHNumericAggregation {
-        
-        private final String attrName;
-        private final String attrType;
-        private double max;
-        private double min;
-        private double sum;
-        private double sum2;
-        private int numSamples;
-        
-        public STHNumericAggregation(String attrName, String attrType) {
-            this.attrName = attrName;
-            this.attrType = attrType;
-            max = Double.MIN_VALUE;
-            min = Double.MAX_VALUE;
-            sum = 0;
-            sum2 = 0;
-            numSamples = 0;
-        } // STHNumericAggregation
-        
-        public void update(double v) {
-            if (v > max) {
-                max = v;
-            } // if
-                    
-            if (v < min) {
-                min = v;
-            } // if
-
-            sum += v;
-            sum2 += (v * v);
-            numSamples++;
-        } // update
-        
-        public String getAttrName() {
-            return attrName;
-        } // getAttrName
-        
-        public String getAttrType() {
-            return attrType;
-        } // getAttrType
-        
-        public double getMax() {
-            return max;
-        } // getMax
-        
-        public double getMin() {
-            return min;
-        } // getMin
-        
-        public double getSum() {
-            return sum;
-        } // getSum
-        
-        public double getSum2() {
-            return sum2;
-        } // getSum2
-        
-        public int getNumSamples() {
-            return numSamples;
-        } // getNumSamples
-        
-    } // STHNumericAggregation
-    
-    private class STHStringAggregation {
-        
-        private final String attrName;
-        private final String attrType;
-        private HashMap<String, Integer> counts;
-        private int numSamples;
-        
-        public STHStringAggregation(String attrName, String attrType) {
-            this.attrName = attrName;
-            this.attrType = attrType;
-            counts = new HashMap<>();
-            numSamples = 0;
-        } // STHStringAggregation
-        
-        public void update(String v) {
-            Integer count = counts.get(v);
-            
-            if (count == null) {
-                count = 1;
-            } else {
-                count++;
-            } // if else
-            
-            counts.put(v, count);
-            numSamples++;
-        } // update
-        
-        public String getAttrName() {
-            return attrName;
-        } // getAttrName
-        
-        public String getAttrType() {
-            return attrType;
-        } // getAttrType
-        
-        public HashMap<String, Integer> getCounts() {
-            return counts;
-        } // getCounts
-        
-        public int getNumSamples() {
-            return numSamples;
-        } // getNumSamples
-        
-    } // STHStringAggregation
-    
     private class STHAggregator {
 
         // Aggregations
-        private long lastRecvTimeTs;
-        private final HashMap<String, STHNumericAggregation> numericAggrs;
-        private final HashMap<String, STHStringAggregation> stringAggrs;
+        private final ArrayList<AggregatedSample> samples;
         
         // MongoDB names 
         private String dbName;
         private String collectionName;
         
-        // Entity info
-        private String entityId;
-        private String entityType;
-        
         public STHAggregator() {
-            lastRecvTimeTs = 0;
-            numericAggrs = new HashMap<>();
-            stringAggrs = new HashMap<>();
+            samples = new ArrayList<>();
         } // STHAggregator
         
-        public HashMap<String, STHNumericAggregation> getNumericAggr() {
-            return numericAggrs;
-        } // getNumericAggr
-        
-        public HashMap<String, STHStringAggregation> getStringAggr() {
-            return stringAggrs;
-        } // getStringAggr
+        public ArrayList<AggregatedSample> getSamples() {
+            return samples;
+        } // getSamples
         
         public String getDbName(boolean enableLowercase) {
             if (enableLowercase) {
@@ -274,14 +154,6 @@ public class NGSISTHSink extends NGSIMongoBaseSink {
             } // if else
         } // getCollectionName
         
-        public String getEntityId() {
-            return entityId;
-        } // getEntityId
-        
-        public String getEntityType() {
-            return entityType;
-        } // getEntityType
-        
         public void initialize(NGSIEvent event) throws CygnusBadConfiguration {
             String service = event.getServiceForNaming(enableNameMappings);
             String servicePathForData = event.getServicePathForData();
@@ -300,10 +172,9 @@ public class NGSISTHSink extends NGSIMongoBaseSink {
             ContextElement contextElement = event.getContextElement();
             
             // Get entity info
-            entityId = contextElement.getId();
-            entityType = contextElement.getType();
-            LOGGER.debug("[" + getName() + "] Processing context element (id=" + entityId + ", type="
-                    + entityType + ")");
+            String entityId = contextElement.getId();
+            String entityType = contextElement.getType();
+            LOGGER.debug("[{}] Processing context element (id={}, type={})", getName(), entityId, entityType);
             
             // Iterate on all this context element attributes, if there are attributes
             ArrayList<NotifyContextRequest.ContextAttribute> contextAttributes = contextElement.getAttributes();
@@ -328,35 +199,27 @@ public class NGSISTHSink extends NGSIMongoBaseSink {
                 
                 // Check if the metadata contains a TimeInstant value; use the notified reception time instead
                 Long timeInstant = CommonUtils.getTimeInstant(attrMetadata);
+                long recvTimeTs;
 
                 if (timeInstant != null) {
-                    this.lastRecvTimeTs = timeInstant;
+                    recvTimeTs = timeInstant;
                 } else {
-                    this.lastRecvTimeTs = notifiedRecvTimeTs;
+                    recvTimeTs = notifiedRecvTimeTs;
                 } // if else
                 
-                LOGGER.debug("[" + getName() + "] Processing context attribute (name=" + attrName + ", type="
-                        + attrType + ")");
+                LOGGER.debug("[{}] Processing context attribute (name={}, type={})", getName(), attrName, attrType);
                 
-                // Get current aggregation for this attribute, or cerate them if not existing
+                // Create a sample for this attribute; samples regarding the same aggregated document are merged by
+                // the backend
                 if (CommonUtils.isANumber(attrValue)) {
-                    STHNumericAggregation aggr = numericAggrs.get(attrName + "xffff" + attrType);
-                    
-                    if (aggr == null) {
-                        aggr = new STHNumericAggregation(attrName, attrType);
-                        numericAggrs.put(attrName + "xffff" + attrType, aggr);
-                    } // if
-                    
-                    aggr.update(new Double(attrValue));
+                    double v = new Double(attrValue);
+                    samples.add(new AggregatedSample(recvTimeTs, entityId, entityType, attrName, attrType,
+                            v, v, v, v * v, 1));
                 } else {
-                    STHStringAggregation aggr = stringAggrs.get(attrName + "xffff" + attrType);
-                    
-                    if (aggr == null) {
-                        aggr = new STHStringAggregation(attrName, attrType);
-                        stringAggrs.put(attrName + "xffff" + attrType, aggr);
-                    } // if
-                    
-                    aggr.update(attrValue);
+                    HashMap<String, Integer> counts = new HashMap<>();
+                    counts.put(attrValue, 1);
+                    samples.add(new AggregatedSample(recvTimeTs, entityId, entityType, attrName, attrType,
+                            counts));
                 } // if else
             } // for
         } // aggregate
@@ -374,43 +237,18 @@ public class NGSISTHSink extends NGSIMongoBaseSink {
                 throw new CygnusPersistenceError("-, " + e.getMessage());
             } // try catch
                 
-            for (String key : numericAggrs.keySet()) {
-                STHNumericAggregation numericAggr = numericAggrs.get(key);
-                
-                LOGGER.info("[" + sinkName + "] Persisting data at NGSISTHSink. Database: " + dbName
-                        + ", Collection: " + collectionName + ", Data: " + lastRecvTimeTs + ","
-                        + entityId + "," + entityType + "," + numericAggr.getAttrName() + ","
-                        + numericAggr.getAttrType() + ",[" + numericAggr.getMax() + ","
-                        + numericAggr.getMin() + "," + numericAggr.getSum() + "," + numericAggr.getSum2()
-                        + "," + numericAggr.getNumSamples() + "]");
-
-                try {
-                    backend.insertContextDataAggregated(dbName, collectionName, lastRecvTimeTs,
-                            entityId, entityType, numericAggr.getAttrName(), numericAggr.getAttrType(),
-                            numericAggr.getMax(), numericAggr.getMin(), numericAggr.getSum(),
-                            numericAggr.getSum2(), numericAggr.getNumSamples(), resolutions);
-                } catch (Exception e) {
-                    throw new CygnusPersistenceError("-, " + e.getMessage());
-                } // try catch
-            } // for
-
-            for (String key : stringAggrs.keySet()) {
-                STHStringAggregation stringAggr = stringAggrs.get(key);
-                
-                LOGGER.info("[" + sinkName + "] Persisting data at NGSISTHSink. Database: " + dbName
-                        + ", Collection: " + collectionName + ", Data: " + lastRecvTimeTs + ","
-                        + entityId + "," + entityType + "," + stringAggr.getAttrName() + ","
-                        + stringAggr.getAttrType() + ",[" + stringAggr.getCounts().toString()
-                        + "," + stringAggr.getNumSamples() + "]");
+            if (samples.isEmpty()) {
+                return;
+            } // if
+            
+            LOGGER.info("[{}] Persisting data at NGSISTHSink. Database: {}, Collection: {}, Data: {}", sinkName,
+                    dbName, collectionName, payloadLogSampler.sample(samples));
 
-                try {
-                    backend.insertContextDataAggregated(dbName, collectionName, lastRecvTimeTs,
-                            entityId, entityType, stringAggr.getAttrName(), stringAggr.getAttrType(),
-                            stringAggr.getCounts(), resolutions);
-                } catch (Exception e) {
-                    throw new CygnusPersistenceError("-, " + e.getMessage());
-                } // try catch
-            } // for
+            try {
+                backend.insertContextDataAggregated(dbName, collectionName, samples, resolutions);
+            } catch (Exception e) {
+                throw new CygnusPersistenceError("-, " + e.getMessage());
+            } // try catch
         } // persist
         
     } // STHAggregator
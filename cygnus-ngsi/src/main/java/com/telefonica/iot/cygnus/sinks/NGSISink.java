@@ -18,7 +18,8 @@
 
 package com.telefonica.iot.cygnus.sinks;
 
-import com.google.gson.Gson;
+import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
+import com.telefonica.iot.cygnus.channels.EventSignal;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
@@ -28,7 +29,10 @@ import com.telefonica.iot.cygnus.errors.CygnusExpiratingError;
 import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
 import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
 import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.interceptors.NGSIEventCodec;
 import com.telefonica.iot.cygnus.log.CygnusLogger;
+import com.telefonica.iot.cygnus.log.PayloadLogSampler;
+import com.telefonica.iot.cygnus.metrics.CygnusMetrics;
 import com.telefonica.iot.cygnus.sinks.Enums.DataModel;
 import static com.telefonica.iot.cygnus.sinks.Enums.DataModel.DMBYATTRIBUTE;
 import static com.telefonica.iot.cygnus.sinks.Enums.DataModel.DMBYENTITY;
@@ -37,9 +41,24 @@ import static com.telefonica.iot.cygnus.sinks.Enums.DataModel.DMBYSERVICEPATH;
 import java.util.Map;
 import com.telefonica.iot.cygnus.utils.CommonConstants;
 import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -70,6 +89,11 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
 
     // Logger
     private static final CygnusLogger LOGGER = new CygnusLogger(NGSISink.class);
+    // Maximum time waiting for new events before checking the batch timeout again, in miliseconds
+    private static final long FLUSH_POLL_INTERVAL = 100;
+    private static final int DRAIN_PUT_CHUNK = 100;
+    // Time after which the number of records of a not persisted destination is forgotten, in miliseconds
+    private static final long RECORD_COUNTERS_MAX_IDLE = 3600000;
     // General parameters for all the sinks
     protected DataModel dataModel;
     protected boolean enableGrouping;
@@ -77,19 +101,64 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     protected int batchTimeout;
     protected int batchTTL;
     protected int[] batchRetryIntervals;
+    private String batchRetryBackoff;
+    private int batchRetryMaxInterval;
+    private int batchRetryJitter;
+    private int batchRetryMaxPerDestination;
+    private boolean enableCircuitBreakers;
+    private int circuitBreakerFailureThreshold;
+    private int circuitBreakerOpenTime;
+    private int circuitBreakerMaxParkedEvents;
     protected boolean enableLowercase;
     protected boolean invalidConfiguration;
     protected boolean enableEncoding;
     protected boolean enableNameMappings;
+    protected PayloadLogSampler payloadLogSampler;
     private long persistencePolicyMaxRecords;
     private long persistencePolicyExpirationTime;
     private long persistencePolicyCheckingTime;
+    private long persistencePolicyCappingSlack;
+    private int persistencePolicyCappingQueueSize;
+    private int persistencePolicyExpirationThreads;
+    private int persistencePolicyExpirationRate;
+    private int persistenceThreads;
+    private String rollbackStoreDirectory;
+    private int rollbackStoreSegmentSize;
+    private int drainTimeout;
+    private long batchMaxBytes;
+    private long heapGuardMaxBytes;
+    private long wakeUpMaxWait;
+    private boolean enableWriteBehind;
+    private int writeBehindMaxEvents;
+    private long writeBehindMaxAge;
+    private long writeBehindMaxBytes;
+    private boolean enableAdaptiveBatching;
+    private int adaptiveBatchingMinBatchSize;
+    private int adaptiveBatchingMaxBatchSize;
+    private int adaptiveBatchingTargetLatency;
     // Accumulator utility
     private final Accumulator accumulator;
     // Rollback queues
-    private ArrayList<Accumulator> rollbackedAccumulations;
-    // Expiration thread
-    private ExpirationTimeChecker expirationTimeChecker;
+    private RetryScheduler<Accumulator> retryScheduler;
+    private NGSIRollbackStore rollbackStore;
+    // Events short-circuited by an open circuit breaker, per destination, if circuit breakers are enabled
+    private ParkedEvents parkedEvents;
+    // Buffers per destination coalescing the sub-batches of several batches, if write-behind is enabled
+    private WriteBehindFlusher writeBehindFlusher;
+    private final WriteBehindFlusher.Flusher writeBehindPersister;
+    // Sub-batches persistence threads
+    private ExecutorService persistenceExecutor;
+    // Approximate number of records per destination, and capping thread
+    private RecordCounters recordCounters;
+    private ThreadPoolExecutor cappingExecutor;
+    // Results of the last drain, done when stopping
+    private long lastDrainTime;
+    private int numDrainPersistedEvents;
+    private int numDrainStoredBatches;
+    private int numDrainRequeuedEvents;
+    private int numDrainLostEvents;
+    // Signal raised by the channel when new events are committed, if waking up instead of backing off
+    private EventSignal eventSignal;
 
     /**
      * Constructor.
@@ -99,12 +168,23 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
 
         // Configuration is supposed to be valid
         invalidConfiguration = false;
+        
+        // By default, all the persisted payloads are fully logged
+        payloadLogSampler = new PayloadLogSampler(1, -1);
 
         // Create the accumulator utility
         accumulator = new Accumulator();
 
-        // Create the rollbacking queue
-        rollbackedAccumulations = new ArrayList<>();
+        // Create the rollbacking queue; it is created again once read the configuration
+        retryScheduler = new RetryScheduler<>(new int[] {5000}, false, 5000, 0, 1);
+        
+        // Create the persister of the batches flushed from the write-behind buffers, if write-behind is enabled
+        writeBehindPersister = new WriteBehindFlusher.Flusher() {
+            @Override
+            public boolean flush(NGSIBatch batch) {
+                return persistWriteBehindBatch(batch) == Status.READY;
+            } // flush
+        };
     } // NGSISink
     
     protected String getBatchRetryIntervals() {
@@ -180,14 +260,47 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         return invalidConfiguration;
     } // getInvalidConfiguration
     
+    /**
+     * Gets a copy of the rollbacked accumulations, ordered by next retry time.
+     * @return A copy of the rollbacked accumulations, ordered by next retry time
+     */
     protected ArrayList<Accumulator> getRollbackedAccumulations() {
-        return rollbackedAccumulations;
+        return retryScheduler.getItems();
     } // getRollbackedAccumulations
     
+    /**
+     * Sets the rollbacked accumulations, scheduling them given their last retry time.
+     * @param rollbackedAccumulations
+     */
     protected void setRollbackedAccumulations(ArrayList<Accumulator> rollbackedAccumulations) {
-        this.rollbackedAccumulations = rollbackedAccumulations;
+        retryScheduler.clear();
+        
+        for (Accumulator rollbackedAccumulation : rollbackedAccumulations) {
+            scheduleRetry(rollbackedAccumulation);
+        } // for
     } // setRollbackedAccumulations
     
+    protected String getBatchRetryBackoff() {
+        return batchRetryBackoff;
+    } // getBatchRetryBackoff
+    
+    protected int getBatchRetryMaxPerDestination() {
+        return batchRetryMaxPerDestination;
+    } // getBatchRetryMaxPerDestination
+    
+    protected boolean getEnableCircuitBreakers() {
+        return enableCircuitBreakers;
+    } // getEnableCircuitBreakers
+    
+    /**
+     * Gets the number of events parked for the given destination because of an open circuit breaker.
+     * @param destination
+     * @return The number of events parked for the given destination
+     */
+    protected int getNumParkedEvents(String destination) {
+        return parkedEvents == null ? 0 : parkedEvents.getNumEvents(destination);
+    } // getNumParkedEvents
+    
     protected long getPersistencePolicyMaxRecords() {
         return persistencePolicyMaxRecords;
     } // getPersistencePolicyMaxRecords
@@ -199,6 +312,140 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     protected long getPersistencePolicyCheckingTime() {
         return persistencePolicyCheckingTime;
     } // getPersistencePolicyCheckingTime
+    
+    protected long getPersistencePolicyCappingSlack() {
+        return persistencePolicyCappingSlack;
+    } // getPersistencePolicyCappingSlack
+    
+    protected int getPersistencePolicyExpirationThreads() {
+        return persistencePolicyExpirationThreads;
+    } // getPersistencePolicyExpirationThreads
+    
+    protected int getPersistencePolicyExpirationRate() {
+        return persistencePolicyExpirationRate;
+    } // getPersistencePolicyExpirationRate
+    
+    /**
+     * Gets the number of threads used for persisting the sub-batches of a batch.
+     * @return The number of threads used for persisting the sub-batches of a batch
+     */
+    protected int getPersistenceThreads() {
+        return persistenceThreads;
+    } // getPersistenceThreads
+    
+    protected String getRollbackStoreDirectory() {
+        return rollbackStoreDirectory;
+    } // getRollbackStoreDirectory
+    
+    protected int getRollbackStoreSegmentSize() {
+        return rollbackStoreSegmentSize;
+    } // getRollbackStoreSegmentSize
+    
+    protected long getBatchMaxBytes() {
+        return batchMaxBytes;
+    } // getBatchMaxBytes
+    
+    protected long getHeapGuardMaxBytes() {
+        return heapGuardMaxBytes;
+    } // getHeapGuardMaxBytes
+    
+    protected int getDrainTimeout() {
+        return drainTimeout;
+    } // getDrainTimeout
+    
+    protected long getWakeUpMaxWait() {
+        return wakeUpMaxWait;
+    } // getWakeUpMaxWait
+    
+    protected boolean getEnableWriteBehind() {
+        return enableWriteBehind;
+    } // getEnableWriteBehind
+    
+    protected int getWriteBehindMaxEvents() {
+        return writeBehindMaxEvents;
+    } // getWriteBehindMaxEvents
+    
+    protected long getWriteBehindMaxAge() {
+        return writeBehindMaxAge;
+    } // getWriteBehindMaxAge
+    
+    protected long getWriteBehindMaxBytes() {
+        return writeBehindMaxBytes;
+    } // getWriteBehindMaxBytes
+    
+    protected WriteBehindBuffers getWriteBehindBuffers() {
+        return writeBehindFlusher == null ? null : writeBehindFlusher.getBuffers();
+    } // getWriteBehindBuffers
+    
+    /**
+     * Gets the time the last drain lasted.
+     * @return The time the last drain lasted (in miliseconds), or 0 if not drained
+     */
+    protected long getLastDrainTime() {
+        return lastDrainTime;
+    } // getLastDrainTime
+    
+    /**
+     * Gets the number of events persisted by the last drain.
+     * @return The number of events persisted by the last drain
+     */
+    protected int getNumDrainPersistedEvents() {
+        return numDrainPersistedEvents;
+    } // getNumDrainPersistedEvents
+    
+    /**
+     * Gets the number of batches left in the rollback store by the last drain.
+     * @return The number of batches left in the rollback store by the last drain
+     */
+    protected int getNumDrainStoredBatches() {
+        return numDrainStoredBatches;
+    } // getNumDrainStoredBatches
+    
+    /**
+     * Gets the number of events put back into the channel by the last drain.
+     * @return The number of events put back into the channel by the last drain
+     */
+    protected int getNumDrainRequeuedEvents() {
+        return numDrainRequeuedEvents;
+    } // getNumDrainRequeuedEvents
+    
+    /**
+     * Gets the number of events lost by the last drain, i.e. neither persisted, stored nor put back into the channel.
+     * @return The number of events lost by the last drain
+     */
+    protected int getNumDrainLostEvents() {
+        return numDrainLostEvents;
+    } // getNumDrainLostEvents
+    
+    /**
+     * Gets if the sink supports persisting several sub-batches at the same time, i.e. if persistBatch can be
+     * concurrently called by several threads. Sinks supporting it must override this method.
+     * @return True if the sink supports persisting several sub-batches at the same time, false otherwise
+     */
+    protected boolean supportsParallelPersistence() {
+        return false;
+    } // supportsParallelPersistence
+    
+    /**
+     * Gets if the sink supports capping records while persisting, i.e. if capRecords can be called by the capping
+     * thread while persistBatch is called by the sink runner thread. Sinks supporting it must override this method;
+     * otherwise, the cappings are done by the sink runner thread once the batch is persisted.
+     * @return True if the sink supports capping records while persisting, false otherwise
+     */
+    protected boolean supportsAsyncCapping() {
+        return false;
+    } // supportsAsyncCapping
+    
+    /**
+     * Gets the number of records the given events are persisted as, in order to decide when their destination must
+     * be capped. By default, a record per event; sinks persisting several records per event (e.g. a row per
+     * attribute) must override this method.
+     * @param events
+     * @return The number of records the given events are persisted as
+     */
+    protected long getNumRecords(ArrayList<NGSIEvent> events) {
+        return events.size();
+    } // getNumRecords
 
     @Override
     public void configure(Context context) {
@@ -260,6 +507,35 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
                     + batchTimeout + ")");
         } // if
 
+        batchMaxBytes = context.getLong("batch_max_bytes", -1L);
+        
+        if (batchMaxBytes == 0 || batchMaxBytes < -1) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (batch_max_bytes="
+                    + batchMaxBytes + ") -- Must be greater than 0 or -1");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_max_bytes="
+                    + batchMaxBytes + ")");
+        } // if else
+        
+        heapGuardMaxBytes = context.getLong("heap_guard.max_bytes", -1L);
+        
+        if (heapGuardMaxBytes == 0 || heapGuardMaxBytes < -1) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (heap_guard.max_bytes="
+                    + heapGuardMaxBytes + ") -- Must be greater than 0 or -1");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (heap_guard.max_bytes="
+                    + heapGuardMaxBytes + ")");
+        } // if else
+        
+        if (heapGuardMaxBytes > 0 && !invalidConfiguration) {
+            heapGuard = HeapGuard.getInstance();
+            heapGuard.setMaxBytes(heapGuardMaxBytes);
+        } else {
+            heapGuard = null;
+        } // if else
+        
         batchTTL = context.getInteger("batch_ttl", 10);
         
         if (batchTTL < -1) {
@@ -320,6 +596,106 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
                     + batchRetryIntervalsStr + ")");
         } // if
         
+        batchRetryBackoff = context.getString("batch_retry.backoff", "fixed");
+        
+        if (batchRetryBackoff.equals("fixed") || batchRetryBackoff.equals("exponential")) {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry.backoff="
+                + batchRetryBackoff + ")");
+        }  else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (batch_retry.backoff="
+                + batchRetryBackoff + ") -- Must be 'fixed' or 'exponential'");
+        }  // if else
+        
+        batchRetryMaxInterval = context.getInteger("batch_retry.max_interval", 300000);
+        
+        if (batchRetryMaxInterval <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (batch_retry.max_interval="
+                    + batchRetryMaxInterval + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry.max_interval="
+                    + batchRetryMaxInterval + ")");
+        } // if else
+        
+        batchRetryJitter = context.getInteger("batch_retry.jitter", 0);
+        
+        if (batchRetryJitter < 0 || batchRetryJitter > 100) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (batch_retry.jitter="
+                    + batchRetryJitter + ") -- Must be between 0 and 100");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry.jitter="
+                    + batchRetryJitter + ")");
+        } // if else
+        
+        batchRetryMaxPerDestination = context.getInteger("batch_retry.max_per_destination", 1);
+        
+        if (batchRetryMaxPerDestination <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (batch_retry.max_per_destination="
+                    + batchRetryMaxPerDestination + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (batch_retry.max_per_destination="
+                    + batchRetryMaxPerDestination + ")");
+        } // if else
+        
+        retryScheduler = new RetryScheduler<>(batchRetryIntervals, batchRetryBackoff.equals("exponential"),
+                batchRetryMaxInterval, batchRetryJitter, batchRetryMaxPerDestination);
+        
+        String enableCircuitBreakersStr = context.getString("circuit_breaker.enabled", "false");
+        
+        if (enableCircuitBreakersStr.equals("true") || enableCircuitBreakersStr.equals("false")) {
+            enableCircuitBreakers = Boolean.valueOf(enableCircuitBreakersStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (circuit_breaker.enabled="
+                + enableCircuitBreakersStr + ")");
+        }  else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (circuit_breaker.enabled="
+                + enableCircuitBreakersStr + ") -- Must be 'true' or 'false'");
+        }  // if else
+        
+        circuitBreakerFailureThreshold = context.getInteger("circuit_breaker.failure_threshold", 5);
+        
+        if (circuitBreakerFailureThreshold <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (circuit_breaker.failure_threshold="
+                    + circuitBreakerFailureThreshold + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (circuit_breaker.failure_threshold="
+                    + circuitBreakerFailureThreshold + ")");
+        } // if else
+        
+        circuitBreakerOpenTime = context.getInteger("circuit_breaker.open_time", 30000);
+        
+        if (circuitBreakerOpenTime <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (circuit_breaker.open_time="
+                    + circuitBreakerOpenTime + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (circuit_breaker.open_time="
+                    + circuitBreakerOpenTime + ")");
+        } // if else
+        
+        circuitBreakerMaxParkedEvents = context.getInteger("circuit_breaker.max_parked_events", 10000);
+        
+        if (circuitBreakerMaxParkedEvents <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (circuit_breaker.max_parked_events="
+                    + circuitBreakerMaxParkedEvents + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (circuit_breaker.max_parked_events="
+                    + circuitBreakerMaxParkedEvents + ")");
+        } // if else
+        
+        if (enableCircuitBreakers && !invalidConfiguration) {
+            circuitBreakers = new CircuitBreakers(circuitBreakerFailureThreshold, circuitBreakerOpenTime);
+            parkedEvents = new ParkedEvents(this.getName(), circuitBreakers, circuitBreakerMaxParkedEvents);
+        } else {
+            circuitBreakers = null;
+            parkedEvents = null;
+        } // if else
+        
         persistencePolicyMaxRecords = context.getInteger("persistence_policy.max_records", -1);
         LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.max_records="
                     + persistencePolicyMaxRecords + ")");
@@ -336,6 +712,221 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
             LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.checking_time="
                     + persistencePolicyCheckingTime + ")");
         } // if else
+        
+        persistencePolicyCappingSlack = context.getInteger("persistence_policy.capping_slack", 0);
+        
+        if (persistencePolicyCappingSlack < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (persistence_policy.capping_slack="
+                    + persistencePolicyCappingSlack + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.capping_slack="
+                    + persistencePolicyCappingSlack + ")");
+        } // if else
+        
+        persistencePolicyCappingQueueSize = context.getInteger("persistence_policy.capping_queue_size", 100);
+        
+        if (persistencePolicyCappingQueueSize <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (persistence_policy.capping_queue_size="
+                    + persistencePolicyCappingQueueSize + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.capping_queue_size="
+                    + persistencePolicyCappingQueueSize + ")");
+        } // if else
+        
+        recordCounters = new RecordCounters(persistencePolicyMaxRecords, persistencePolicyCappingSlack,
+                RECORD_COUNTERS_MAX_IDLE);
+        
+        persistencePolicyExpirationThreads = context.getInteger("persistence_policy.expiration_threads", 1);
+        
+        if (persistencePolicyExpirationThreads <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (persistence_policy.expiration_threads="
+                    + persistencePolicyExpirationThreads + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.expiration_threads="
+                    + persistencePolicyExpirationThreads + ")");
+        } // if else
+        
+        persistencePolicyExpirationRate = context.getInteger("persistence_policy.expiration_rate", 0);
+        
+        if (persistencePolicyExpirationRate < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (persistence_policy.expiration_rate="
+                    + persistencePolicyExpirationRate + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_policy.expiration_rate="
+                    + persistencePolicyExpirationRate + ")");
+        } // if else
+        
+        persistenceThreads = context.getInteger("persistence_threads", 1);
+        
+        if (persistenceThreads <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (persistence_threads="
+                    + persistenceThreads + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (persistence_threads="
+                    + persistenceThreads + ")");
+        } // if else
+        
+        rollbackStoreDirectory = context.getString("rollback_store.directory", "");
+        LOGGER.debug("[" + this.getName() + "] Reading configuration (rollback_store.directory="
+                + rollbackStoreDirectory + ")");
+        rollbackStoreSegmentSize = context.getInteger("rollback_store.segment_size", 67108864);
+        
+        if (rollbackStoreSegmentSize < 1024) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (rollback_store.segment_size="
+                    + rollbackStoreSegmentSize + ") -- Must be greater than or equal to 1024");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (rollback_store.segment_size="
+                    + rollbackStoreSegmentSize + ")");
+        } // if else
+        
+        drainTimeout = context.getInteger("drain.timeout", 10000);
+        
+        if (drainTimeout < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (drain.timeout="
+                    + drainTimeout + ") -- Must be greater than or equal to 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (drain.timeout="
+                    + drainTimeout + ")");
+        } // if else
+        
+        wakeUpMaxWait = context.getLong("wake_up.max_wait", -1L);
+        
+        if (wakeUpMaxWait == 0 || wakeUpMaxWait < -1) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (wake_up.max_wait="
+                    + wakeUpMaxWait + ") -- Must be greater than 0 or -1");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (wake_up.max_wait="
+                    + wakeUpMaxWait + ")");
+        } // if else
+        
+        String enableWriteBehindStr = context.getString("write_behind.enabled", "false");
+        
+        if (enableWriteBehindStr.equals("true") || enableWriteBehindStr.equals("false")) {
+            enableWriteBehind = Boolean.valueOf(enableWriteBehindStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (write_behind.enabled="
+                + enableWriteBehindStr + ")");
+        }  else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (write_behind.enabled="
+                + enableWriteBehindStr + ") -- Must be 'true' or 'false'");
+        }  // if else
+        
+        writeBehindMaxEvents = context.getInteger("write_behind.max_events", 1000);
+        
+        if (writeBehindMaxEvents <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (write_behind.max_events="
+                    + writeBehindMaxEvents + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (write_behind.max_events="
+                    + writeBehindMaxEvents + ")");
+        } // if else
+        
+        writeBehindMaxAge = context.getLong("write_behind.max_age", 5000L);
+        
+        if (writeBehindMaxAge <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (write_behind.max_age="
+                    + writeBehindMaxAge + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (write_behind.max_age="
+                    + writeBehindMaxAge + ")");
+        } // if else
+        
+        writeBehindMaxBytes = context.getLong("write_behind.max_bytes", 16777216L);
+        
+        if (writeBehindMaxBytes == 0 || writeBehindMaxBytes < -1) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (write_behind.max_bytes="
+                    + writeBehindMaxBytes + ") -- Must be greater than 0 or -1");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (write_behind.max_bytes="
+                    + writeBehindMaxBytes + ")");
+        } // if else
+        
+        if (enableWriteBehind && !invalidConfiguration) {
+            writeBehindFlusher = new WriteBehindFlusher(this.getName(),
+                    new WriteBehindBuffers(writeBehindMaxEvents, writeBehindMaxAge, writeBehindMaxBytes));
+        } else {
+            writeBehindFlusher = null;
+        } // if else
+        
+        int logPayloadSampling = context.getInteger(NGSIConstants.PARAM_LOG_PAYLOAD_SAMPLING, 1);
+        int logPayloadMaxLength = context.getInteger(NGSIConstants.PARAM_LOG_PAYLOAD_MAX_LENGTH, -1);
+        
+        if (logPayloadSampling < 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (log_payload.sampling="
+                    + logPayloadSampling + ") -- Must be greater than or equal to 0");
+        } else if (logPayloadMaxLength < -1) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (log_payload.max_length="
+                    + logPayloadMaxLength + ") -- Must be greater than or equal to -1");
+        } else {
+            payloadLogSampler = new PayloadLogSampler(logPayloadSampling, logPayloadMaxLength);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (log_payload.sampling="
+                    + logPayloadSampling + ")");
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (log_payload.max_length="
+                    + logPayloadMaxLength + ")");
+        } // if else
+        
+        String enableAdaptiveBatchingStr = context.getString("adaptive_batching.enabled", "false");
+        
+        if (enableAdaptiveBatchingStr.equals("true") || enableAdaptiveBatchingStr.equals("false")) {
+            enableAdaptiveBatching = Boolean.valueOf(enableAdaptiveBatchingStr);
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (adaptive_batching.enabled="
+                + enableAdaptiveBatchingStr + ")");
+        }  else {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (adaptive_batching.enabled="
+                + enableAdaptiveBatchingStr + ") -- Must be 'true' or 'false'");
+        }  // if else
+        
+        adaptiveBatchingMinBatchSize = context.getInteger("adaptive_batching.min_batch_size", 1);
+        adaptiveBatchingMaxBatchSize = context.getInteger("adaptive_batching.max_batch_size", 1000);
+        
+        if (adaptiveBatchingMinBatchSize <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (adaptive_batching.min_batch_size="
+                    + adaptiveBatchingMinBatchSize + ") -- Must be greater than 0");
+        } else if (adaptiveBatchingMaxBatchSize < adaptiveBatchingMinBatchSize) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (adaptive_batching.max_batch_size="
+                    + adaptiveBatchingMaxBatchSize + ") -- Must be greater than or equal to "
+                    + "adaptive_batching.min_batch_size");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (adaptive_batching.min_batch_size="
+                    + adaptiveBatchingMinBatchSize + ")");
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (adaptive_batching.max_batch_size="
+                    + adaptiveBatchingMaxBatchSize + ")");
+        } // if else
+        
+        adaptiveBatchingTargetLatency = context.getInteger("adaptive_batching.target_latency", 1000);
+        
+        if (adaptiveBatchingTargetLatency <= 0) {
+            invalidConfiguration = true;
+            LOGGER.debug("[" + this.getName() + "] Invalid configuration (adaptive_batching.target_latency="
+                    + adaptiveBatchingTargetLatency + ") -- Must be greater than 0");
+        } else {
+            LOGGER.debug("[" + this.getName() + "] Reading configuration (adaptive_batching.target_latency="
+                    + adaptiveBatchingTargetLatency + ")");
+        } // if else
+        
+        if (enableAdaptiveBatching && !invalidConfiguration) {
+            // The configured batch size is the initial one
+            adaptiveBatchSizer = new AdaptiveBatchSizer(batchSize, adaptiveBatchingMinBatchSize,
+                    adaptiveBatchingMaxBatchSize, adaptiveBatchingTargetLatency, persistenceThreads);
+        } else {
+            adaptiveBatchSizer = null;
+        } // if else
     } // configure
 
     @Override
@@ -348,10 +939,52 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         } else {
             // The accumulator must be initialized once read the configuration
             accumulator.initialize(new Date().getTime());
-            // Crate and start the expiration time checker thread... this has to be created here in order to have a not
-            // null name for the sink (i.e. after configuration)
-            expirationTimeChecker = new ExpirationTimeChecker(this.getName());
-            expirationTimeChecker.start();
+            
+            // Open the rollback store, if configured, replaying the batches rollbacked before the last stop
+            if (!rollbackStoreDirectory.isEmpty()) {
+                openRollbackStore();
+            } // if
+            
+            // Register within the shared expiration scheduler, if required... this has to be done here in order to
+            // have a not null name for the sink (i.e. after configuration)
+            if (persistencePolicyExpirationTime > -1) {
+                expirationRegistration = new ExpirationScheduler.Registration(this.getName(), new SinkExpirator(),
+                        persistencePolicyExpirationTime * 1000, persistencePolicyCheckingTime * 1000,
+                        persistencePolicyExpirationRate, persistencePolicyExpirationThreads);
+                ExpirationScheduler.getInstance().register(expirationRegistration);
+            } // if
+            
+            // Create the sub-batches persistence threads, if required and supported
+            if (persistenceThreads > 1) {
+                if (supportsParallelPersistence()) {
+                    persistenceExecutor = Executors.newFixedThreadPool(persistenceThreads);
+                } else {
+                    LOGGER.warn("[" + this.getName() + "] This sink does not support parallel persistence, "
+                            + "sub-batches will be sequentially persisted (persistence_threads=" + persistenceThreads
+                            + ")");
+                } // if else
+            } // if
+            
+            // Create the capping thread, if required and supported; cappings exceeding the queue size are discarded,
+            // and tried again once new records are persisted
+            if (persistencePolicyMaxRecords > -1 && supportsAsyncCapping()) {
+                cappingExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(persistencePolicyCappingQueueSize));
+            } // if
+            
+            // Get the signal raised by the channel when new events are committed, if waking up is required and
+            // supported; otherwise, the sink backs off when the channel is empty
+            if (wakeUpMaxWait > 0) {
+                Channel ch = getChannel();
+                
+                if (ch instanceof CygnusMemoryChannel) {
+                    eventSignal = ((CygnusMemoryChannel) ch).getEventSignal();
+                } else {
+                    eventSignal = null;
+                    LOGGER.warn("[" + this.getName() + "] The channel does not signal new events, this sink will "
+                            + "back off when the channel is empty (wake_up.max_wait=" + wakeUpMaxWait + ")");
+                } // if else
+            } // if
             
             LOGGER.info("[" + this.getName() + "] Startup completed");
         } // if else
@@ -360,37 +993,480 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     @Override
     public void stop() {
         super.stop();
+        long deadline = new Date().getTime() + drainTimeout;
+        
+        if (expirationRegistration != null) {
+            ExpirationScheduler.getInstance().unregister(expirationRegistration);
+            expirationRegistration = null;
+        } // if
+        
+        if (heapGuard != null) {
+            heapGuard.remove(this.getName());
+        } // if
+        
+        // The sink runner thread is already stopped, thus the accumulated, rollbacked and parked events can be safely
+        // drained before stopping the background threads
+        if (!invalidConfiguration) {
+            drain(deadline);
+        } // if
+        
+        shutdownExecutor(persistenceExecutor, deadline);
+        persistenceExecutor = null;
+        shutdownExecutor(cappingExecutor, deadline);
+        cappingExecutor = null;
+        
+        if (rollbackStore != null) {
+            rollbackStore.close();
+            rollbackStore = null;
+        } // if
     } // stop
+    
+    /**
+     * Shuts down the given executor, waiting for the already submitted tasks until the given deadline, at most.
+     * @param executor
+     * @param deadline Time the drain must finish at, in milliseconds
+     */
+    private void shutdownExecutor(ExecutorService executor, long deadline) {
+        if (executor == null) {
+            return;
+        } // if
+        
+        executor.shutdown();
+        
+        try {
+            if (!executor.awaitTermination(Math.max(deadline - new Date().getTime(), 0), TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("[" + this.getName() + "] Background threads still running after the drain timeout, "
+                        + "they are interrupted");
+                executor.shutdownNow();
+            } // if
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } // try catch
+    } // shutdownExecutor
+    
+    /**
+     * Drains the events already taken from the channel but not yet persisted, for zero-loss restarts. Until the given
+     * deadline, the current accumulation (together with the write-behind buffers, if any) is persisted and the
+     * rollbacked batches are retried, regardless of their next retry time; retries stop at the first persistence
+     * error. Then, the events still not persisted (including the parked ones) are left in the rollback store, if
+     * configured, otherwise they are put back into the channel.
+     * @param deadline Time the drain must finish at, in milliseconds
+     */
+    private void drain(long deadline) {
+        long drainStart = new Date().getTime();
+        long persistedBefore = numPersistedEvents;
+        ArrayList<NGSIBatch> leftovers = new ArrayList<>();
+        numDrainStoredBatches = 0;
+        numDrainRequeuedEvents = 0;
+        numDrainLostEvents = 0;
+        
+        // Persist the current accumulation, together with the write-behind buffers, if any
+        NGSIBatch batch = accumulator.getAccIndex() > 0 ? accumulator.getBatch() : null;
+        
+        if (writeBehindFlusher != null) {
+            batch = writeBehindFlusher.drain(batch, drainStart);
+        } // if
+        
+        if (batch != null) {
+            if (new Date().getTime() < deadline && drainBatch(batch)) {
+                numPersistedEvents += batch.getNumEvents();
+            } else {
+                leftovers.add(batch);
+            } // if else
+        } // if
+        
+        accumulator.initialize(new Date().getTime());
+        
+        // Retry the rollbacked batches, in as many retry rounds as required
+        boolean retry = true;
+        
+        while (retry && !retryScheduler.isEmpty() && new Date().getTime() < deadline) {
+            retryScheduler.startRound();
+            Accumulator rollbackedAccumulation;
+            
+            while (new Date().getTime() < deadline
+                    && (rollbackedAccumulation = retryScheduler.poll(Long.MAX_VALUE)) != null) {
+                if (retryRollbackedBatch(rollbackedAccumulation) == Status.BACKOFF) {
+                    retry = false;
+                    break;
+                } // if
+            } // while
+        } // while
+        
+        // Spill the rollbacked batches not retried, or failed again
+        for (Accumulator rollbackedAccumulation : retryScheduler.getItems()) {
+            if (rollbackStore != null && rollbackedAccumulation.getBatch() != null) {
+                storeRollbackedBatch(rollbackedAccumulation);
+            } // if
+            
+            if (rollbackedAccumulation.getBatch() == null) {
+                numDrainStoredBatches++;
+            } else {
+                leftovers.add(rollbackedAccumulation.getBatch());
+            } // if else
+        } // for
+        
+        retryScheduler.clear();
+        
+        // Spill the parked events
+        if (parkedEvents != null) {
+            leftovers.addAll(parkedEvents.takeAll());
+        } // if
+        
+        for (NGSIBatch leftover : leftovers) {
+            spillBatch(leftover);
+        } // for
+        
+        lastDrainTime = new Date().getTime() - drainStart;
+        numDrainPersistedEvents = (int) (numPersistedEvents - persistedBefore);
+        LOGGER.info("[" + this.getName() + "] Drain completed (drain_time=" + lastDrainTime + ", persisted_events="
+                + numDrainPersistedEvents + ", stored_batches=" + numDrainStoredBatches + ", requeued_events="
+                + numDrainRequeuedEvents + ", lost_events=" + numDrainLostEvents + ")");
+    } // drain
+    
+    /**
+     * Persists a batch while draining.
+     * @param batch
+     * @return True if the batch does not need to be spilled (i.e. it was persisted or failed because of a non
+     * retriable error), false otherwise
+     */
+    private boolean drainBatch(NGSIBatch batch) {
+        try {
+            doPersistBatch(batch);
+        } catch (CygnusBadConfiguration | CygnusBadContextData | CygnusRuntimeError e) {
+            updateServiceMetrics(batch, true);
+            LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+            return true;
+        } catch (CygnusPersistenceError e) {
+            updateServiceMetrics(batch, true);
+            LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+            return false;
+        } // try catch
+        
+        updateServiceMetrics(batch, false);
+        return true;
+    } // drainBatch
+    
+    /**
+     * Spills the not persisted sub-batches of a batch while draining: the batch is put into the rollback store, if
+     * configured, in order to be replayed after restarting; otherwise (or if not stored), its events are put back
+     * into the channel, in transactions of DRAIN_PUT_CHUNK events at most.
+     * @param batch
+     */
+    private void spillBatch(NGSIBatch batch) {
+        if (rollbackStore != null) {
+            long now = new Date().getTime();
+            
+            try {
+                rollbackStore.put(batch, "", batchTTL, now, now);
+                numDrainStoredBatches++;
+                return;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("[" + this.getName() + "] Batch could not be stored while draining, it will be put back "
+                        + "into the channel. Details: " + e.getMessage());
+            } // try catch
+        } // if
+        
+        ArrayList<NGSIEvent> events = new ArrayList<>();
+        batch.startIterator();
+        
+        while (batch.hasNext()) {
+            batch.getNextDestination();
+            
+            if (!batch.isNextPersisted()) {
+                events.addAll(batch.getNextEvents());
+            } // if
+        } // while
+        
+        Channel ch = getChannel();
+        
+        for (int i = 0; i < events.size(); i += DRAIN_PUT_CHUNK) {
+            List<NGSIEvent> chunk = events.subList(i, Math.min(i + DRAIN_PUT_CHUNK, events.size()));
+            Transaction txn = ch.getTransaction();
+            
+            try {
+                txn.begin();
+                
+                for (NGSIEvent event : chunk) {
+                    ch.put(event);
+                } // for
+                
+                txn.commit();
+                numDrainRequeuedEvents += chunk.size();
+            } catch (RuntimeException e) {
+                txn.rollback();
+                numDrainLostEvents += chunk.size();
+                LOGGER.error("[" + this.getName() + "] Events could not be put back into the channel while draining, "
+                        + "they are lost (events=" + chunk.size() + "). Details: " + e.getMessage());
+            } finally {
+                txn.close();
+            } // try catch finally
+        } // for
+    } // spillBatch
+    
+    @Override
+    public CygnusMetrics getServiceMetrics() {
+        CygnusMetrics metrics = super.getServiceMetrics();
+        
+        if (rollbackStore == null && retryScheduler.isEmpty()) {
+            return metrics;
+        } // if
+        
+        // rollback metrics are gauges, thus they are added to a copy of the service metrics
+        long now = new Date().getTime();
+        long oldestRollbackTime = now;
+        ArrayList<Accumulator> accs = retryScheduler.getItems();
+        
+        for (Accumulator acc : accs) {
+            oldestRollbackTime = Math.min(oldestRollbackTime, acc.getRollbackTime());
+        } // for
+        
+        CygnusMetrics copy = new CygnusMetrics();
+        copy.merge(metrics);
+        copy.addRollbackMetrics(this.getName(), accs.size(),
+                rollbackStore == null ? 0 : rollbackStore.getQueuedBytes(), now - oldestRollbackTime);
+        return copy;
+    } // getServiceMetrics
+    
+    /**
+     * Opens the rollback store, replaying the pending batches. If the rollback store cannot be opened, rollbacked
+     * batches are kept in memory.
+     */
+    private void openRollbackStore() {
+        NGSIRollbackStore store = new NGSIRollbackStore(new File(rollbackStoreDirectory, this.getName()),
+                rollbackStoreSegmentSize);
+        
+        try {
+            for (NGSIRollbackStore.PendingBatch pendingBatch : store.open()) {
+                Accumulator acc = new Accumulator();
+                acc.setAccTransactionIds(pendingBatch.getTransactionIds());
+                acc.setTTL(pendingBatch.getTTL());
+                acc.setNumRetries(pendingBatch.getTTL() == -1 ? 0 : Math.max(batchTTL - pendingBatch.getTTL(), 0));
+                acc.setLastRetry(pendingBatch.getLastRetry());
+                acc.setRollbackTime(pendingBatch.getRollbackTime());
+                acc.setStoreId(pendingBatch.getId());
+                acc.setBatch(null); // the batch is loaded from the rollback store when retried
+                scheduleRetry(acc);
+            } // for
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            LOGGER.error("[" + this.getName() + "] Rollback store could not be opened, rollbacked batches will be "
+                    + "kept in memory. Details: " + e.getMessage());
+            return;
+        } // try catch
+        
+        rollbackStore = store;
+        LOGGER.info("[" + this.getName() + "] " + retryScheduler.size() + " rollbacked batches replayed "
+                + "from the rollback store");
+    } // openRollbackStore
+    
+    /**
+     * Stores the batch of a rollbacked accumulation in the rollback store, if any, releasing it from memory.
+     * @param rollbackedAccumulation
+     */
+    private void storeRollbackedBatch(Accumulator rollbackedAccumulation) {
+        if (rollbackStore == null) {
+            return;
+        } // if
+        
+        try {
+            if (rollbackedAccumulation.getStoreId() == -1) {
+                rollbackedAccumulation.setStoreId(rollbackStore.put(rollbackedAccumulation.getBatch(),
+                        rollbackedAccumulation.getAccTransactionIds(), rollbackedAccumulation.getTTL(),
+                        rollbackedAccumulation.getLastRetry(), rollbackedAccumulation.getRollbackTime()));
+            } else {
+                rollbackStore.update(rollbackedAccumulation.getStoreId(), rollbackedAccumulation.getTTL(),
+                        rollbackedAccumulation.getLastRetry(), rollbackedAccumulation.getBatch());
+            } // if else
+            
+            rollbackedAccumulation.setBatch(null);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("[" + this.getName() + "] Rollbacked batch could not be stored, it will be kept in memory ("
+                    + rollbackedAccumulation.getAccTransactionIds() + "). Details: " + e.getMessage());
+        } // try catch
+    } // storeRollbackedBatch
+    
+    /**
+     * Loads the batch of a rollbacked accumulation from the rollback store, if not in memory.
+     * @param rollbackedAccumulation
+     * @return True if the batch is available, false otherwise
+     */
+    private boolean loadRollbackedBatch(Accumulator rollbackedAccumulation) {
+        if (rollbackedAccumulation.getBatch() != null) {
+            return true;
+        } // if
+        
+        NGSIBatch batch = null;
+        
+        try {
+            batch = rollbackStore == null ? null : rollbackStore.load(rollbackedAccumulation.getStoreId());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("[" + this.getName() + "] Rollbacked batch could not be loaded, it will be dropped ("
+                    + rollbackedAccumulation.getAccTransactionIds() + "). Details: " + e.getMessage());
+        } // try catch
+        
+        if (batch == null) {
+            removeRollbackedAccumulation(rollbackedAccumulation);
+            return false;
+        } // if
+        
+        rollbackedAccumulation.setBatch(batch);
+        rollbackedAccumulation.setAccBytes(getNumBytes(batch));
+        
+        // The destinations of the batches replayed from the rollback store are not known until loaded
+        if (rollbackedAccumulation.getDestinations().isEmpty()) {
+            rollbackedAccumulation.setDestinations(batch.getNotPersistedDestinations());
+        } // if
+        
+        return true;
+    } // loadRollbackedBatch
+    
+    /**
+     * Removes a rollbacked accumulation, both from memory and from the rollback store (if any).
+     * @param rollbackedAccumulation
+     */
+    private void removeRollbackedAccumulation(Accumulator rollbackedAccumulation) {
+        retryScheduler.remove(rollbackedAccumulation);
+        
+        if (rollbackStore != null && rollbackedAccumulation.getStoreId() != -1) {
+            try {
+                rollbackStore.remove(rollbackedAccumulation.getStoreId());
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("[" + this.getName() + "] Rollbacked batch could not be removed from the rollback "
+                        + "store (" + rollbackedAccumulation.getAccTransactionIds() + "). Details: "
+                        + e.getMessage());
+            } // try catch
+        } // if
+    } // removeRollbackedAccumulation
 
     @Override
     public Status process() throws EventDeliveryException {
         if (invalidConfiguration) {
             return Status.BACKOFF;
-        } else if (rollbackedAccumulations.isEmpty()) {
-            return processNewBatches();
-        } else {
+        } // if
+        
+        if (circuitBreakers != null) {
+            processParkedEvents();
+        } // if
+        
+        if (!retryScheduler.isEmpty()) {
             processRollbackedBatches();
-            return processNewBatches();
+        } // if
+        
+        Status status;
+        
+        if (heapGuard != null && heapGuard.isExceeded() && accumulator.getAccIndex() == 0) {
+            // Stop taking events from the channel until the held bytes are released, by this or other sinks
+            LOGGER.debug("[{}] Heap budget exceeded, no events are taken from the channel (total_bytes={})",
+                    this.getName(), heapGuard.getTotalBytes());
+            status = Status.BACKOFF;
+        } else {
+            status = processNewBatches();
         } // if else
+        
+        // Flush the ready write-behind buffers, or all of them if the heap budget is exceeded
+        if (writeBehindFlusher != null && !writeBehindFlusher.flush(new Date().getTime(),
+                heapGuard != null && heapGuard.isExceeded(), writeBehindPersister)) {
+            status = Status.BACKOFF;
+        } // if
+        
+        if (heapGuard != null) {
+            heapGuard.setHeldBytes(this.getName(), getHeldBytes());
+        } // if
+        
+        return status;
     } // process
+    
+    /**
+     * Gets the number of event bytes held in memory by this sink, i.e. accumulated, buffered, rollbacked (and not in
+     * the rollback store) and parked.
+     * @return The number of event bytes held in memory by this sink
+     */
+    private long getHeldBytes() {
+        long bytes = accumulator.getAccBytes();
+        
+        if (parkedEvents != null) {
+            bytes += parkedEvents.getNumBytes();
+        } // if
+        
+        if (writeBehindFlusher != null) {
+            bytes += writeBehindFlusher.getBuffers().getNumBytes();
+        } // if
+        
+        if (!retryScheduler.isEmpty()) {
+            for (Accumulator rollbackedAccumulation : retryScheduler.getItems()) {
+                if (rollbackedAccumulation.getBatch() != null) {
+                    bytes += rollbackedAccumulation.getAccBytes();
+                } // if
+            } // for
+        } // if
+        
+        return bytes;
+    } // getHeldBytes
+    
+    /**
+     * Gets the number of body bytes of the events within a batch, each event being counted once even if it is
+     * within several sub-batches.
+     * @param batch
+     * @return The number of body bytes of the events within the batch
+     */
+    static long getNumBytes(NGSIBatch batch) {
+        IdentityHashMap<NGSIEvent, Boolean> counted = new IdentityHashMap<>();
+        long bytes = 0;
+        batch.startIterator();
+        
+        while (batch.hasNext()) {
+            batch.getNextDestination();
+            
+            for (NGSIEvent event : batch.getNextEvents()) {
+                if (counted.put(event, Boolean.TRUE) == null && event.getBody() != null) {
+                    bytes += event.getBody().length;
+                } // if
+            } // for
+        } // while
+        
+        return bytes;
+    } // getNumBytes
 
+    /**
+     * Retries the rollbacked accumulations whose retry time has been reached, in a retry round. The round ends once
+     * there are no more rollbacked accumulations to be retried, the maximum number of retries per destination is
+     * reached or a retry fails because of the persistence backend.
+     * @return The status of the round
+     */
     private Status processRollbackedBatches() {
-        // Get a rollbacked accumulation
-        Accumulator rollbackedAccumulation = getRollbackedAccumulationForRetry();
-
-        if (rollbackedAccumulation == null) {
+        retryScheduler.startRound();
+        long now = new Date().getTime();
+        Accumulator rollbackedAccumulation = retryScheduler.poll(now);
+        
+        while (rollbackedAccumulation != null) {
+            if (retryRollbackedBatch(rollbackedAccumulation) == Status.BACKOFF) {
+                return Status.BACKOFF; // Slow down the sink since there are problems with the persistence backend
+            } // if
+            
+            rollbackedAccumulation = retryScheduler.poll(now);
+        } // while
+        
+        return Status.READY; // No more rollbacked batches are ready for retry, so we are ready to process new batches
+    } // processRollbackedBatches
+    
+    private Status retryRollbackedBatch(Accumulator rollbackedAccumulation) {
+        // Get the rollbacked batch from the rollback store, if not in memory
+        if (!loadRollbackedBatch(rollbackedAccumulation)) {
             setMDCToNA();
-            return Status.READY; // No rollbacked batch was ready for retry, so we are ready to process new batches
+            return Status.READY;
         } // if
             
         // Try persisting the rollbacked accumulation
         NGSIBatch batch = rollbackedAccumulation.getBatch();
         
         try {
-            persistBatch(batch);
+            doPersistBatch(batch);
         } catch (CygnusBadConfiguration | CygnusBadContextData | CygnusRuntimeError e) {
             updateServiceMetrics(batch, true);
             LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+            removeRollbackedAccumulation(rollbackedAccumulation);
             setMDCToNA();
             return Status.READY;
         } catch (CygnusPersistenceError e) {
@@ -398,57 +1474,66 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
             LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
             doRollbackAgain(rollbackedAccumulation);
             setMDCToNA();
-            return Status.BACKOFF; // Slow down the sink since there are problems with the persistence backend
+            return Status.BACKOFF;
         } // try catch
 
-        if (persistencePolicyMaxRecords > -1) {
-            try {
-                capRecords(batch, persistencePolicyMaxRecords);
-            } catch (CygnusCappingError e) {
-                LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
-            } // try catch
-        } // if
-        
         updateServiceMetrics(batch, false);
 
         if (!rollbackedAccumulation.getAccTransactionIds().isEmpty()) {
             LOGGER.info("Finishing internal transaction (" + rollbackedAccumulation.getAccTransactionIds() + ")");
         } // if
 
-        rollbackedAccumulations.remove(0);
-        numPersistedEvents += rollbackedAccumulation.getBatch().getNumEvents();
+        removeRollbackedAccumulation(rollbackedAccumulation);
+        numPersistedEvents += batch.getNumEvents();
         setMDCToNA();
         return Status.READY;
-    } // processRollbackedBatches
+    } // retryRollbackedBatch
     
     /**
-     * Gets a rollbacked accumulation for retry.
-     * @return A rollbacked accumulation for retry.
+     * Probes the destinations whose circuit breakers are half-opened, by persisting the events parked for them. The
+     * parked events are not counted as persisted until actually persisted by a successful probe.
      */
-    protected Accumulator getRollbackedAccumulationForRetry() {
-        Accumulator rollbackedAccumulation = null;
+    private void processParkedEvents() {
+        ArrayList<NGSIBatch> batches = parkedEvents.probe(new Date().getTime(), new ParkedEvents.Prober() {
+            @Override
+            public void persist(NGSIBatch batch) throws CygnusBadConfiguration, CygnusBadContextData,
+                    CygnusRuntimeError, CygnusPersistenceError {
+                persistBatch(batch);
+            } // persist
+        });
         
-        for (Accumulator rollbackedAcc : rollbackedAccumulations) {
-            rollbackedAccumulation = rollbackedAcc;
-            
-            // Check the last retry
-            int retryIntervalIndex = batchTTL - rollbackedAccumulation.ttl;
-            
-            if (retryIntervalIndex >= batchRetryIntervals.length) {
-                retryIntervalIndex = batchRetryIntervals.length - 1;
-            } // if
-            
-            if (rollbackedAccumulation.getLastRetry() + batchRetryIntervals[retryIntervalIndex]
-                    <= new Date().getTime()) {
-                break;
+        for (NGSIBatch batch : batches) {
+            if (persistencePolicyMaxRecords > -1) {
+                scheduleCappings(batch);
             } // if
             
-            rollbackedAccumulation = null;
+            updateServiceMetrics(batch, false);
+            numPersistedEvents += batch.getNumEvents();
         } // for
-        
-        return rollbackedAccumulation;
+    } // processParkedEvents
+    
+    /**
+     * Gets a rollbacked accumulation for retry, within a new retry round.
+     * @return A rollbacked accumulation for retry.
+     */
+    protected Accumulator getRollbackedAccumulationForRetry() {
+        retryScheduler.startRound();
+        return retryScheduler.poll(new Date().getTime());
     } // getRollbackedAccumulationForRetry
     
+    /**
+     * Schedules the next retry of a rollbacked accumulation, given its last retry time and its number of retries.
+     * @param rollbackedAccumulation
+     */
+    private void scheduleRetry(Accumulator rollbackedAccumulation) {
+        if (rollbackedAccumulation.getBatch() != null) {
+            rollbackedAccumulation.setDestinations(rollbackedAccumulation.getBatch().getNotPersistedDestinations());
+        } // if
+        
+        retryScheduler.schedule(rollbackedAccumulation, rollbackedAccumulation.getDestinations(),
+                rollbackedAccumulation.getLastRetry(), rollbackedAccumulation.getNumRetries());
+    } // scheduleRetry
+    
     /**
      * Rollbacks the accumulation once more.
      * @param rollbackedAccumulation
@@ -456,15 +1541,21 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     protected void doRollbackAgain(Accumulator rollbackedAccumulation) {
         if (rollbackedAccumulation.getTTL() == -1) {
             rollbackedAccumulation.setLastRetry(new Date().getTime());
+            rollbackedAccumulation.setNumRetries(rollbackedAccumulation.getNumRetries() + 1);
+            scheduleRetry(rollbackedAccumulation);
+            storeRollbackedBatch(rollbackedAccumulation);
             LOGGER.info("Rollbacking again (" + rollbackedAccumulation.getAccTransactionIds() + "), "
                     + "infinite batch TTL");
         } else if (rollbackedAccumulation.getTTL() > 1) {
             rollbackedAccumulation.setLastRetry(new Date().getTime());
             rollbackedAccumulation.setTTL(rollbackedAccumulation.getTTL() - 1);
+            rollbackedAccumulation.setNumRetries(rollbackedAccumulation.getNumRetries() + 1);
+            scheduleRetry(rollbackedAccumulation);
+            storeRollbackedBatch(rollbackedAccumulation);
             LOGGER.info("Rollbacking again (" + rollbackedAccumulation.getAccTransactionIds() + "), "
                     + "this was retry #" + (batchTTL - rollbackedAccumulation.getTTL()));
         } else {
-            rollbackedAccumulations.remove(rollbackedAccumulation);
+            removeRollbackedAccumulation(rollbackedAccumulation);
 
             if (!rollbackedAccumulation.getAccTransactionIds().isEmpty()) {
                 LOGGER.info("Finishing internal transaction ("
@@ -481,27 +1572,65 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         Transaction txn = ch.getTransaction();
         txn.begin();
 
-        // Get and process as many events as the batch size
+        // Get and process as many events as the batch size; discarded events are taken (thus bounded by the batch
+        // size within the Flume transaction) but not accumulated
         int currentIndex;
+        int numDiscarded = 0;
+        boolean debugEnabled = LOGGER.isDebugEnabled();
+        NGSIEvent lastEvent = null;
+
+        int targetBatchSize = adaptiveBatchSizer == null ? batchSize : adaptiveBatchSizer.getBatchSize();
+        
+        // Get the number of signals raised by the channel before taking events, in order not to miss the events
+        // committed once the channel is found empty
+        long numSignals = eventSignal == null ? 0 : eventSignal.getNumSignals();
 
-        for (currentIndex = accumulator.getAccIndex(); currentIndex < batchSize; currentIndex++) {
-            // Check if the batch accumulation timeout has been reached
-            if ((new Date().getTime() - accumulator.getAccStartDate()) > (batchTimeout * 1000)) {
+        for (currentIndex = accumulator.getAccIndex(); currentIndex < targetBatchSize; currentIndex++) {
+            // Check if the batch accumulation timeout has been reached, given the oldest accumulated event
+            if (getBatchDeadlineRemaining() <= 0) {
                 LOGGER.debug("Batch accumulation time reached, the batch will be processed as it is");
                 break;
             } // if
+            
+            // Check if the maximum accumulated bytes, or the heap budget shared by all the sinks, has been reached
+            if (batchMaxBytes > 0 && accumulator.getAccBytes() >= batchMaxBytes) {
+                LOGGER.debug("Batch maximum bytes reached, the batch will be processed as it is");
+                break;
+            } else if (heapGuard != null && currentIndex - numDiscarded > 0 && heapGuard.isExceeded()) {
+                LOGGER.debug("Heap budget exceeded, the batch will be processed as it is");
+                break;
+            } // if else
 
             // Get an event
             Event event = ch.take();
             
             // Check if the event is null
             if (event == null) {
-                accumulator.setAccIndex(currentIndex);
+                if (currentIndex - numDiscarded > 0 && getBatchDeadlineRemaining() <= 0) {
+                    LOGGER.debug("Batch accumulation time reached, the batch will be processed as it is");
+                    break;
+                } // if
+                
+                accumulator.setAccIndex(currentIndex - numDiscarded);
                 txn.commit();
                 txn.close();
                 // to-do: this must be uncomment once multiple transaction and correlation IDs are traced in logs
                 //setMDCToNA();
-                return Status.BACKOFF; // Slow down the sink since no events are available
+                
+                if (accumulator.getAccIndex() == 0 && eventSignal == null) {
+                    return Status.BACKOFF; // Slow down the sink since no events are available
+                } else if (accumulator.getAccIndex() == 0) {
+                    // Instead of backing off (the sink runner could sleep for seconds) wait until new events are
+                    // committed, or the next rollbacked batch retry is due, during the maximum wait at most
+                    waitForEvents(numSignals, getWakeUpWait());
+                    return Status.READY;
+                } // if else
+                
+                // Some events are accumulated, thus instead of backing off (the sink runner could sleep beyond the
+                // batch timeout) wait for new events until the batch timeout is reached, at most
+                waitForEvents(numSignals, Math.min(getBatchDeadlineRemaining(),
+                        eventSignal == null ? FLUSH_POLL_INTERVAL : getWakeUpWait()));
+                return Status.READY;
             } // if
             
             // Cast the event to a NGSI event
@@ -511,35 +1640,28 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
                 // Event comes from memory... everything is already in memory
                 ngsiEvent = (NGSIEvent)event;
             } else {
-                // Event comes from file... original and mapped context elements must be re-created
-                String[] contextElementsStr = (new String(event.getBody())).split(CommonConstants.CONCATENATOR);
-                Gson gson = new Gson();
-                ContextElement originalCE = null;
-                ContextElement mappedCE = null;
-                
-                if (contextElementsStr.length == 1) {
-                    originalCE = gson.fromJson(contextElementsStr[0], ContextElement.class);
-                } else if (contextElementsStr.length == 2) {
-                    originalCE = gson.fromJson(contextElementsStr[0], ContextElement.class);
-                    mappedCE = gson.fromJson(contextElementsStr[1], ContextElement.class);
-                } // if else
+                // Event comes from file... original and mapped context elements must be re-created, either from the
+                // binary format or from the legacy Json one
+                try {
+                    ngsiEvent = NGSIEventCodec.decode(event.getHeaders(), event.getBody());
+                } catch (IOException e) {
+                    LOGGER.error("Discarding an event whose body could not be decoded. Details: " + e.getMessage());
+                    numDiscarded++;
+                    continue;
+                } // try catch
                 
-                // Re-create the NGSI event
-                ngsiEvent = new NGSIEvent(event.getHeaders(), event.getBody(), originalCE, mappedCE);
-                LOGGER.debug("Re-creating NGSI event from raw bytes in file channel, original context element: "
-                        + (originalCE == null ? null : originalCE.toString()) + ", mapped context element: "
-                        + (mappedCE == null ? null : mappedCE.toString()));
+                LOGGER.debug("Re-creating NGSI event from raw bytes in file channel, original context element: {}, "
+                        + "mapped context element: {}", ngsiEvent.getOriginalCE(), ngsiEvent.getMappedCE());
+
             } // if else
 
-            // Set the correlation ID, transaction ID, service and service path in MDC
-            MDC.put(CommonConstants.LOG4J_CORR,
-                    ngsiEvent.getHeaders().get(CommonConstants.HEADER_CORRELATOR_ID));
-            MDC.put(CommonConstants.LOG4J_TRANS,
-                    ngsiEvent.getHeaders().get(NGSIConstants.FLUME_HEADER_TRANSACTION_ID));
-            MDC.put(CommonConstants.LOG4J_SVC,
-                    ngsiEvent.getHeaders().get(CommonConstants.HEADER_FIWARE_SERVICE));
-            MDC.put(CommonConstants.LOG4J_SUBSVC,
-                    ngsiEvent.getHeaders().get(CommonConstants.HEADER_FIWARE_SERVICE_PATH));
+            // Set the correlation ID, transaction ID, service and service path in MDC; per event traces are only
+            // printed at DEBUG level, otherwise it is enough to set them once for the last event of the batch
+            if (debugEnabled) {
+                setMDC(ngsiEvent);
+            } // if
+            
+            lastEvent = ngsiEvent;
 
             // Accumulate the event
             accumulator.accumulate(ngsiEvent);
@@ -547,15 +1669,32 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         } // for
 
         // Save the current index for next run of the process() method
-        accumulator.setAccIndex(currentIndex);
+        accumulator.setAccIndex(currentIndex - numDiscarded);
+        
+        if (!debugEnabled && lastEvent != null) {
+            setMDC(lastEvent);
+        } // if
 
+        // Buffer the accumulation, if write-behind is enabled; as the accumulated events, the buffered ones are held
+        // in memory once the Flume transaction is committed, until their destinations are flushed
+        if (writeBehindFlusher != null && accumulator.getAccIndex() != 0) {
+            writeBehindFlusher.buffer(accumulator.getBatch(), new Date().getTime());
+            accumulator.initialize(new Date().getTime());
+            txn.commit();
+            txn.close();
+            setMDCToNA();
+            return Status.READY;
+        } // if
+        
         // Persist the accumulation
         if (accumulator.getAccIndex() != 0) {
             LOGGER.debug("Batch completed");
             NGSIBatch batch = accumulator.getBatch();
+            long persistStart = System.currentTimeMillis();
 
             try {
-                persistBatch(batch);
+                doPersistBatch(batch);
+                onBatchPersisted(accumulator.getAccIndex(), persistStart, false);
             } catch (CygnusBadConfiguration | CygnusBadContextData | CygnusRuntimeError e) {
                 updateServiceMetrics(batch, true);
                 LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
@@ -565,6 +1704,7 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
                 setMDCToNA();
                 return Status.READY;
             } catch (CygnusPersistenceError e) {
+                onBatchPersisted(accumulator.getAccIndex(), persistStart, true);
                 updateServiceMetrics(batch, true);
                 LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
                 doRollback(accumulator.clone()); // the global accumulator has to be cloned for rollbacking purposes
@@ -575,14 +1715,6 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
                 return Status.BACKOFF; // slow down the sink since there are problems with the persistence backend
             } // try catch
 
-            if (persistencePolicyMaxRecords > -1) {
-                try {
-                    capRecords(batch, persistencePolicyMaxRecords);
-                } catch (CygnusCappingError e) {
-                    LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
-                } // try
-            } // if
-            
             updateServiceMetrics(batch, false);
         } // if
 
@@ -598,6 +1730,405 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         return Status.READY;
     } // processNewBatches
     
+    /**
+     * Persists a batch made of flushed write-behind buffers. If a persistence error occurs, the batch is rollbacked
+     * as any other batch, thus only its not persisted sub-batches are retried.
+     * @param batch
+     * @return Status.BACKOFF if there are problems with the persistence backend, Status.READY otherwise
+     */
+    private Status persistWriteBehindBatch(NGSIBatch batch) {
+        long persistStart = System.currentTimeMillis();
+        
+        try {
+            doPersistBatch(batch);
+            onBatchPersisted(batch.getNumEvents(), persistStart, false);
+        } catch (CygnusBadConfiguration | CygnusBadContextData | CygnusRuntimeError e) {
+            updateServiceMetrics(batch, true);
+            LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+            return Status.READY;
+        } catch (CygnusPersistenceError e) {
+            onBatchPersisted(batch.getNumEvents(), persistStart, true);
+            updateServiceMetrics(batch, true);
+            LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+            Accumulator rollbackedAccumulation = new Accumulator();
+            rollbackedAccumulation.initialize(new Date().getTime());
+            rollbackedAccumulation.setBatch(batch);
+            rollbackedAccumulation.setAccBytes(getNumBytes(batch));
+            rollbackedAccumulation.setAccIndex(batch.getNumEvents());
+            rollbackedAccumulation.setAccTransactionIds(getTransactionIds(batch));
+            doRollback(rollbackedAccumulation);
+            return Status.BACKOFF; // slow down the sink since there are problems with the persistence backend
+        } // try catch
+        
+        updateServiceMetrics(batch, false);
+        numPersistedEvents += batch.getNumEvents();
+        return Status.READY;
+    } // persistWriteBehindBatch
+    
+    /**
+     * Gets the transaction IDs of the events within a batch, comma-separated.
+     * @param batch
+     * @return The transaction IDs of the events within a batch, comma-separated
+     */
+    private static String getTransactionIds(NGSIBatch batch) {
+        LinkedHashSet<String> transactionIds = new LinkedHashSet<>();
+        batch.startIterator();
+        
+        while (batch.hasNext()) {
+            batch.getNextDestination();
+            
+            for (NGSIEvent event : batch.getNextEvents()) {
+                transactionIds.add(event.getHeaders().get(CommonConstants.HEADER_CORRELATOR_ID));
+            } // for
+        } // while
+        
+        String ids = "";
+        
+        for (String transactionId : transactionIds) {
+            ids += ids.isEmpty() ? transactionId : "," + transactionId;
+        } // for
+        
+        return ids;
+    } // getTransactionIds
+    
+    /**
+     * Gets the time remaining until the accumulated batch must be persisted, i.e. until the batch timeout is reached
+     * since the first accumulated event was taken from the channel. The timestamp header is not used, since it may
+     * come from a clock different than the sink one (or be old because of the channel queueing), making the batch be
+     * persisted as soon as it is started.
+     * @return The time remaining until the accumulated batch must be persisted (in miliseconds), or Long.MAX_VALUE if
+     * there are no accumulated events
+     */
+    private long getBatchDeadlineRemaining() {
+        long firstTakeTime = accumulator.getFirstTakeTime();
+        
+        if (firstTakeTime == 0) {
+            return Long.MAX_VALUE;
+        } // if
+        
+        return firstTakeTime + (batchTimeout * 1000L) - new Date().getTime();
+    } // getBatchDeadlineRemaining
+    
+    /**
+     * Waits for new events to be available in the channel. If the channel signals new events, the wait finishes as
+     * soon as a signal is raised after the given number of signals.
+     * @param numSignals Number of signals raised by the channel before finding it empty
+     * @param time Time to wait (in miliseconds)
+     */
+    private void waitForEvents(long numSignals, long time) {
+        if (time <= 0) {
+            return;
+        } // if
+        
+        try {
+            if (eventSignal == null) {
+                Thread.sleep(time);
+            } else {
+                eventSignal.await(numSignals, time);
+            } // if else
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } // try catch
+    } // waitForEvents
+    
+    /**
+     * Gets the time to wait for new events once the channel is found empty, i.e. the maximum wait, or the time until
+     * the next rollbacked batch retry or the next write-behind buffer flush if shorter.
+     * @return The time to wait for new events, in milliseconds
+     */
+    private long getWakeUpWait() {
+        long nextAttempt = retryScheduler.getNextAttempt();
+        long nextFlush = writeBehindFlusher == null ? -1 : writeBehindFlusher.getBuffers().getNextFlushTime();
+        long wait = wakeUpMaxWait;
+        long now = new Date().getTime();
+        
+        if (nextAttempt != -1) {
+            wait = Math.min(wait, nextAttempt - now);
+        } // if
+        
+        if (nextFlush != -1) {
+            wait = Math.min(wait, nextFlush - now);
+        } // if
+        
+        return Math.max(0, wait);
+    } // getWakeUpWait
+    
+    @Override
+    public long getAccumulatedBytes() {
+        return accumulator.getAccBytes();
+    } // getAccumulatedBytes
+    
+    @Override
+    public long getOldestAccumulatedEventAge() {
+        long oldestEventTime = accumulator.getOldestEventTime();
+        return oldestEventTime == 0 ? 0 : Math.max(0, new Date().getTime() - oldestEventTime);
+    } // getOldestAccumulatedEventAge
+    
+    /**
+     * Notifies the adaptive batch sizer, if any, about a new batch having been persisted or having failed.
+     * @param numEvents
+     * @param persistStart Time the persistence started at, in milliseconds
+     * @param failed
+     */
+    private void onBatchPersisted(int numEvents, long persistStart, boolean failed) {
+        if (adaptiveBatchSizer == null) {
+            return;
+        } // if
+        
+        adaptiveBatchSizer.onBatchPersisted(numEvents, System.currentTimeMillis() - persistStart, failed);
+        LOGGER.debug("[{}] Adaptive batching (batch_size={}, concurrency={}, observed_latency={})", this.getName(),
+                adaptiveBatchSizer.getBatchSize(), adaptiveBatchSizer.getConcurrency(),
+                adaptiveBatchSizer.getObservedLatency());
+    } // onBatchPersisted
+    
+    /**
+     * Persists a batch. If several persistence threads are available, the not yet persisted sub-batches are
+     * concurrently persisted, each one being set as persisted once successfully persisted; this way, only failed
+     * sub-batches are persisted again if the batch is rollbacked. Sub-batches failing because of a non retriable error
+     * (bad configuration, bad context data or runtime error) are set as persisted as well, since they would fail
+     * again. If adaptive batching is enabled, the sub-batches are persisted in rounds of as many sub-batches as the
+     * current concurrency. If circuit breakers are enabled, the sub-batches regarding destinations whose circuit
+     * breaker is open are parked instead of persisted, and removed from the batch, thus they are not counted as
+     * persisted; if the maximum number of parked events of a destination would be exceeded, its sub-batch is not
+     * parked but failed with a persistence error, thus it is rollbacked as any other failed sub-batch. Whatever the
+     * result, the sub-batches persisted by this attempt are counted for capping purposes; those persisted by previous
+     * attempts were already counted.
+     * @param batch
+     * @throws CygnusBadConfiguration
+     * @throws CygnusBadContextData
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private void doPersistBatch(NGSIBatch batch) throws CygnusBadConfiguration, CygnusBadContextData,
+            CygnusRuntimeError, CygnusPersistenceError {
+        try {
+            doPersistSubBatches(batch);
+        } finally {
+            if (persistencePolicyMaxRecords > -1) {
+                scheduleCappings(batch);
+            } // if
+        } // try finally
+    } // doPersistBatch
+    
+    /**
+     * Persists the not yet persisted sub-batches of a batch, as described in doPersistBatch.
+     * @param batch
+     * @throws CygnusBadConfiguration
+     * @throws CygnusBadContextData
+     * @throws CygnusRuntimeError
+     * @throws CygnusPersistenceError
+     */
+    private void doPersistSubBatches(NGSIBatch batch) throws CygnusBadConfiguration, CygnusBadContextData,
+            CygnusRuntimeError, CygnusPersistenceError {
+        ExecutorService executor = persistenceExecutor;
+        ArrayList<String> destinations = batch.getNotPersistedDestinations();
+        batch.startAttempt();
+        
+        // The whole batch is given to the sink only if none of its sub-batches was persisted by a previous attempt
+        if (circuitBreakers == null && (executor == null || batch.getNumDestinations() <= 1)
+                && destinations.size() == batch.getNumDestinations()) {
+            persistBatch(batch);
+            
+            for (String destination : destinations) {
+                batch.setPersisted(destination, true);
+            } // for
+            
+            return;
+        } // if
+        
+        CygnusPersistenceError persistenceError = null;
+        Throwable otherError = null;
+        
+        if (circuitBreakers != null) {
+            ArrayList<String> allowedDestinations = new ArrayList<>(destinations.size());
+            
+            for (String destination : destinations) {
+                if (circuitBreakers.allowsWrites(destination) && !parkedEvents.isParked(destination)) {
+                    allowedDestinations.add(destination);
+                } else if (parkedEvents.park(destination, batch.getSubBatch(destination))) {
+                    batch.removeSubBatch(destination);
+                } else if (persistenceError == null) {
+                    persistenceError = new CygnusPersistenceError("Circuit breaker open and too many parked events "
+                            + "regarding the " + destination + " destination");
+                } // if else
+            } // for
+            
+            destinations = allowedDestinations;
+        } // if
+        
+        int concurrency;
+        
+        if (executor == null) {
+            concurrency = 1;
+        } else if (adaptiveBatchSizer == null) {
+            concurrency = Math.max(destinations.size(), 1);
+        } else {
+            concurrency = adaptiveBatchSizer.getConcurrency();
+        } // if else
+        
+        for (int from = 0; from < destinations.size(); from += concurrency) {
+            int to = Math.min(from + concurrency, destinations.size());
+            ArrayList<Future<Void>> futures = new ArrayList<>(to - from);
+            
+            for (String destination : destinations.subList(from, to)) {
+                final NGSIBatch subBatch = batch.getSubBatch(destination);
+                Callable<Void> task = new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        persistBatch(subBatch);
+                        return null;
+                    } // call
+                };
+                
+                if (executor == null) {
+                    FutureTask<Void> future = new FutureTask<>(task);
+                    future.run();
+                    futures.add(future);
+                } else {
+                    futures.add(executor.submit(task));
+                } // if else
+            } // for
+            
+            for (int i = 0; i < futures.size(); i++) {
+                String destination = destinations.get(from + i);
+                
+                try {
+                    futures.get(i).get();
+                    batch.setPersisted(destination, true);
+                    
+                    if (circuitBreakers != null) {
+                        circuitBreakers.onSuccess(destination);
+                    } // if
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    
+                    if (persistenceError == null) {
+                        persistenceError = new CygnusPersistenceError("Interrupted while persisting the sub-batch "
+                                + "regarding the " + destination + " destination");
+                    } // if
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    LOGGER.error("[" + this.getName() + "] Error while persisting the sub-batch regarding the "
+                            + destination + " destination. Details: " + cause.getMessage());
+                    
+                    boolean parked = false;
+                    
+                    if (circuitBreakers != null
+                            && (cause instanceof CygnusPersistenceError || cause instanceof CygnusBadContextData)
+                            && circuitBreakers.onFailure(destination, new Date().getTime())) {
+                        // The circuit breaker is open, thus the sub-batch is parked instead of rollbacked or dropped
+                        LOGGER.error("[" + this.getName() + "] Circuit breaker open (destination=" + destination
+                                + ")");
+                        parked = parkedEvents.park(destination, batch.getSubBatch(destination));
+                    } // if
+                    
+                    if (parked) {
+                        batch.removeSubBatch(destination);
+                    } else if (cause instanceof CygnusPersistenceError) {
+                        if (persistenceError == null) {
+                            persistenceError = (CygnusPersistenceError) cause;
+                        } // if
+                    } else {
+                        batch.setDiscarded(destination);
+                        
+                        if (otherError == null) {
+                            otherError = cause;
+                        } // if
+                    } // if else
+                } // try catch
+            } // for
+        } // for
+        
+        if (persistenceError != null) {
+            throw persistenceError;
+        } else if (otherError instanceof CygnusBadConfiguration) {
+            throw (CygnusBadConfiguration) otherError;
+        } else if (otherError instanceof CygnusBadContextData) {
+            throw (CygnusBadContextData) otherError;
+        } else if (otherError instanceof CygnusRuntimeError) {
+            throw (CygnusRuntimeError) otherError;
+        } else if (otherError != null) {
+            throw new CygnusRuntimeError(otherError.getClass().getSimpleName() + ", " + otherError.getMessage());
+        } // if else
+    } // doPersistSubBatches
+    
+    /**
+     * Schedules the capping of the destinations of a persisted batch exceeding (approximately) the maximum number of
+     * records. Cappings are done by the capping thread, thus this sink does not wait for them; if no capping thread
+     * is available (e.g. the sink does not support asynchronous capping, or it has not been started), they are done
+     * by the calling thread.
+     * @param batch
+     */
+    private void scheduleCappings(NGSIBatch batch) {
+        batch.startIterator();
+        
+        while (batch.hasNext()) {
+            final String destination = batch.getNextDestination();
+            ArrayList<NGSIEvent> events = batch.getNextEvents();
+            
+            // Sub-batches persisted by previous attempts were already counted
+            if (!batch.isNextNewlyPersisted()) {
+                continue;
+            } // if
+            
+            if (!recordCounters.onPersisted(destination, getNumRecords(events), System.currentTimeMillis())) {
+                continue;
+            } // if
+            
+            // A representative event is enough for building the names regarding the destination
+            final NGSIBatch cappingBatch = new NGSIBatch();
+            cappingBatch.addEvent(destination, events.get(0));
+            Runnable capping = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        capRecords(cappingBatch, persistencePolicyMaxRecords);
+                        recordCounters.onCapped(destination, true, System.currentTimeMillis());
+                    } catch (CygnusCappingError | RuntimeException e) {
+                        recordCounters.onCapped(destination, false, System.currentTimeMillis());
+                        LOGGER.error(e.getMessage() + ", Stack trace: " + Arrays.toString(e.getStackTrace()));
+                    } // try catch
+                } // run
+            };
+            ThreadPoolExecutor executor = cappingExecutor;
+            
+            if (executor == null) {
+                capping.run();
+                continue;
+            } // if
+            
+            try {
+                executor.execute(capping);
+            } catch (RejectedExecutionException e) {
+                recordCounters.onCapped(destination, false, System.currentTimeMillis());
+                LOGGER.debug("[{}] Capping queue full, the capping is discarded (destination={})", this.getName(),
+                        destination);
+            } // try catch
+        } // while
+    } // scheduleCappings
+    
+    /**
+     * Sets the correlation ID, transaction ID, service and service path MDC logging fields for this thread, given the
+     * headers of a NGSI event.
+     * @param ngsiEvent
+     */
+    private void setMDC(NGSIEvent ngsiEvent) {
+        Map<String, String> headers = ngsiEvent.getHeaders();
+        putMDC(CommonConstants.LOG4J_CORR, headers.get(CommonConstants.HEADER_CORRELATOR_ID));
+        putMDC(CommonConstants.LOG4J_TRANS, headers.get(NGSIConstants.FLUME_HEADER_TRANSACTION_ID));
+        putMDC(CommonConstants.LOG4J_SVC, headers.get(CommonConstants.HEADER_FIWARE_SERVICE));
+        putMDC(CommonConstants.LOG4J_SUBSVC, headers.get(CommonConstants.HEADER_FIWARE_SERVICE_PATH));
+    } // setMDC
+    
+    /**
+     * Sets a MDC logging field for this thread, 'N/A' if the value is not available (MDC does not accept nulls).
+     * @param key
+     * @param value
+     */
+    private void putMDC(String key, String value) {
+        MDC.put(key, value == null ? CommonConstants.NA : value);
+    } // putMDC
+    
     /**
      * Sets some MDC logging fields to 'N/A' for this thread. Value for the component field is inherited from main
      * thread (CygnusApplication.java).
@@ -616,12 +2147,16 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     protected void doRollback(Accumulator accumulator) {
         if (accumulator.getTTL() == -1) {
             accumulator.setLastRetry(new Date().getTime());
-            rollbackedAccumulations.add(accumulator);
+            accumulator.setRollbackTime(accumulator.getLastRetry());
+            scheduleRetry(accumulator);
+            storeRollbackedBatch(accumulator);
             LOGGER.info("Rollbacking (" + accumulator.getAccTransactionIds() + "), "
                     + "infinite batch TTL");
         } else if (accumulator.getTTL() > 0) {
             accumulator.setLastRetry(new Date().getTime());
-            rollbackedAccumulations.add(accumulator);
+            accumulator.setRollbackTime(accumulator.getLastRetry());
+            scheduleRetry(accumulator);
+            storeRollbackedBatch(accumulator);
             LOGGER.info("Rollbacking (" + accumulator.getAccTransactionIds() + "), "
                     + batchTTL + " retries will be done");
         } else {
@@ -653,10 +2188,17 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         // accumulated events
         private NGSIBatch batch;
         private long accStartDate;
+        private volatile long oldestEventTime;
+        private long firstTakeTime;
+        private volatile long accBytes;
         private int accIndex;
         private String accTransactionIds;
         private int ttl;
         private long lastRetry;
+        private int numRetries;
+        private ArrayList<String> destinations;
+        private long rollbackTime;
+        private long storeId;
 
         /**
          * Constructor.
@@ -664,16 +2206,54 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         public Accumulator() {
             batch = new NGSIBatch();
             accStartDate = 0;
+            oldestEventTime = 0;
+            firstTakeTime = 0;
+            accBytes = 0;
             accIndex = 0;
             accTransactionIds = null;
             ttl = batchTTL;
             lastRetry = 0;
+            numRetries = 0;
+            destinations = new ArrayList<>();
+            rollbackTime = 0;
+            storeId = -1;
         } // Accumulator
 
         public long getAccStartDate() {
             return accStartDate;
         } // getAccStartDate
 
+        /**
+         * Gets the time the oldest accumulated event was received at, i.e. the value of its timestamp header if any,
+         * otherwise the time it was accumulated at.
+         * @return The time the oldest accumulated event was received at (in miliseconds), 0 if no events are
+         * accumulated
+         */
+        public long getOldestEventTime() {
+            return oldestEventTime;
+        } // getOldestEventTime
+        
+        /**
+         * Gets the time the first accumulated event was taken from the channel (i.e. accumulated) at.
+         * @return The time the first accumulated event was taken from the channel at (in miliseconds), 0 if no events
+         * are accumulated
+         */
+        public long getFirstTakeTime() {
+            return firstTakeTime;
+        } // getFirstTakeTime
+        
+        /**
+         * Gets the number of body bytes of the accumulated events.
+         * @return The number of body bytes of the accumulated events
+         */
+        public long getAccBytes() {
+            return accBytes;
+        } // getAccBytes
+        
+        public void setAccBytes(long accBytes) {
+            this.accBytes = accBytes;
+        } // setAccBytes
+
         public int getAccIndex() {
             return accIndex;
         } // getAccIndex
@@ -685,11 +2265,19 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
         public NGSIBatch getBatch() {
             return batch;
         } // getBatch
+        
+        public void setBatch(NGSIBatch batch) {
+            this.batch = batch;
+        } // setBatch
 
         public String getAccTransactionIds() {
             return accTransactionIds;
         } // getAccTransactionIds
         
+        public void setAccTransactionIds(String accTransactionIds) {
+            this.accTransactionIds = accTransactionIds;
+        } // setAccTransactionIds
+        
         public long getLastRetry() {
             return lastRetry;
         } // getLastRetry
@@ -702,9 +2290,49 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
             return ttl;
         } // getTTL
         
+        public int getNumRetries() {
+            return numRetries;
+        } // getNumRetries
+        
+        public void setNumRetries(int numRetries) {
+            this.numRetries = numRetries;
+        } // setNumRetries
+        
+        /**
+         * Gets the destinations the rollbacked batch regards to, used for limiting the retries per destination.
+         * @return The destinations the rollbacked batch regards to, empty if not known
+         */
+        public ArrayList<String> getDestinations() {
+            return destinations;
+        } // getDestinations
+        
+        public void setDestinations(ArrayList<String> destinations) {
+            this.destinations = destinations;
+        } // setDestinations
+        
         public void setTTL(int ttl) {
             this.ttl = ttl;
         } // setTTL
+        
+        public long getRollbackTime() {
+            return rollbackTime;
+        } // getRollbackTime
+        
+        public void setRollbackTime(long rollbackTime) {
+            this.rollbackTime = rollbackTime;
+        } // setRollbackTime
+        
+        /**
+         * Gets the identifier of the accumulation within the rollback store.
+         * @return The identifier of the accumulation within the rollback store, -1 if not stored
+         */
+        public long getStoreId() {
+            return storeId;
+        } // getStoreId
+        
+        public void setStoreId(long storeId) {
+            this.storeId = storeId;
+        } // setStoreId
 
         /**
          * Accumulates an getRecvTimeTs given its headers and context data.
@@ -712,6 +2340,15 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
          */
         public void accumulate(NGSIEvent event) {
             String transactionId = event.getHeaders().get(CommonConstants.HEADER_CORRELATOR_ID);
+            
+            if (oldestEventTime == 0) {
+                oldestEventTime = getReceptionTime(event);
+                firstTakeTime = new Date().getTime();
+            } // if
+            
+            if (event.getBody() != null) {
+                accBytes += event.getBody().length;
+            } // if
 
             if (accTransactionIds.isEmpty()) {
                 accTransactionIds = transactionId;
@@ -737,6 +2374,20 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
             } // switch
         } // accumulate
 
+        private long getReceptionTime(NGSIEvent event) {
+            String timestamp = event.getHeaders().get(NGSIConstants.FLUME_HEADER_TIMESTAMP);
+            
+            if (timestamp != null) {
+                try {
+                    return Long.parseLong(timestamp);
+                } catch (NumberFormatException e) {
+                    LOGGER.debug("Invalid timestamp header (" + timestamp + "), using the accumulation time");
+                } // try catch
+            } // if
+            
+            return new Date().getTime();
+        } // getReceptionTime
+
         private void accumulateByService(NGSIEvent event) {
             Map<String, String> headers = event.getHeaders();
             ContextElement mappedCE = event.getMappedCE();
@@ -872,13 +2523,20 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
          * @param startDateMs
          */
         public void initialize(long startDateMs) {
-            // what happens if Cygnus falls down while accumulating the batch?
-            // TBD: https://github.com/telefonicaid/fiware-cygnus/issues/562
+            // Accumulated batches are drained when stopping the sink; once rollbacked, batches survive a crash if
+            // the rollback store is enabled
             batch = new NGSIBatch();
             accStartDate = startDateMs;
+            oldestEventTime = 0;
+            firstTakeTime = 0;
+            accBytes = 0;
             accIndex = 0;
             accTransactionIds = "";
             ttl = batchTTL;
+            numRetries = 0;
+            destinations = new ArrayList<>();
+            rollbackTime = 0;
+            storeId = -1;
         } // initialize
 
         @Override
@@ -894,56 +2552,22 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
     } // Accumulator
     
     /**
-     * Class for checking about expired records.
+     * Class for expirating the records of this sink when scheduled by the shared expiration scheduler.
      */
-    private class ExpirationTimeChecker extends Thread {
-        
-        private final String sinkName;
-        
-        /**
-         * Constructor.
-         * @param sinkName
-         */
-        public ExpirationTimeChecker(String sinkName) {
-            this.sinkName = sinkName;
-        } // ExpirationTimeChecker
+    private class SinkExpirator implements ExpirationScheduler.Expirator {
 
         @Override
-        public void run() {
-            while (true) {
-                long timeBefore = 0;
-                long timeAfter = 0;
-                
-                if (persistencePolicyExpirationTime > -1) {
-                    timeBefore = new Date().getTime();
-                    
-                    try {
-                        LOGGER.debug("[" + sinkName + "] Expirating records");
-                        expirateRecords(persistencePolicyExpirationTime);
-                    } catch (Exception e) {
-                        LOGGER.error("[" + sinkName + "] Error while expirating records. Details: "
-                                + e.getMessage());
-                    } // try catch
-                    
-                    timeAfter = new Date().getTime();
-                } // if
-                
-                long timeExpent = timeAfter - timeBefore;
-                long sleepTime = (persistencePolicyCheckingTime * 1000) - timeExpent;
-                
-                if (sleepTime <= 0) {
-                    sleepTime = 1000; // sleep at least 1 second
-                } // if
-                
-                try {
-                    sleep(sleepTime);
-                } catch (InterruptedException e) {
-                    LOGGER.error("[" + sinkName + "] Error while sleeping. Details: " + e.getMessage());
-                } // try
-            } // while
-        } // run
+        public ArrayList<ExpirationScheduler.Destination> getExpirationDestinations() throws CygnusExpiratingError {
+            return NGSISink.this.getExpirationDestinations();
+        } // getExpirationDestinations
+
+        @Override
+        public long expirate(String destination, long horizon, long maxRecords) throws CygnusExpiratingError {
+            LOGGER.debug("[" + getName() + "] Expirating records (destination=" + destination + ")");
+            return expirateRecords(destination, horizon, maxRecords);
+        } // expirate
 
-    } // ExpirationTimeChecker
+    } // SinkExpirator
     
     /**
      * This is the method the classes extending this class must implement when dealing with a batch of events to be
@@ -968,5 +2592,32 @@ public abstract class NGSISink extends CygnusSink implements Configurable {
      * @throws Exception
      */
     abstract void expirateRecords(long expirationTime) throws CygnusExpiratingError;
+    
+    /**
+     * Gets the destinations whose records may be expirated. By default, the whole sink is a single destination of
+     * unknown size and age; sinks able to expirate their destinations one by one must override this method and
+     * expirateRecords(String, long, long).
+     * @return The destinations whose records may be expirated
+     * @throws CygnusExpiratingError
+     */
+    protected ArrayList<ExpirationScheduler.Destination> getExpirationDestinations() throws CygnusExpiratingError {
+        ArrayList<ExpirationScheduler.Destination> destinations = new ArrayList<>();
+        destinations.add(new ExpirationScheduler.Destination(this.getName(), -1, -1));
+        return destinations;
+    } // getExpirationDestinations
+    
+    /**
+     * Expirates, at most, the given number of records received before the given horizon from the given destination.
+     * By default, all the expired records of the sink are expirated at once, regardless of the given maximum.
+     * @param destination
+     * @param horizon Expiration horizon, in milliseconds
+     * @param maxRecords
+     * @return The number of expirated records, or 0 if unknown
+     * @throws CygnusExpiratingError
+     */
+    protected long expirateRecords(String destination, long horizon, long maxRecords) throws CygnusExpiratingError {
+        expirateRecords(persistencePolicyExpirationTime);
+        return 0;
+    } // expirateRecords
 
 } // NGSISink
@@ -178,7 +178,8 @@ public class NGSITestSink extends NGSISink {
     private void persistAggregation(TestAggregator aggregator) {
         String aggregation = aggregator.getAggregation();
         
-        LOGGER.info("[" + this.getName() + "] Persisting data at NGSITestSink. Data (" + aggregation + ")");
+        LOGGER.info("[{}] Persisting data at NGSITestSink. Data ({})", this.getName(),
+                payloadLogSampler.sample(aggregation));
     } // persistAggregation
 
 } // NGSITestSink
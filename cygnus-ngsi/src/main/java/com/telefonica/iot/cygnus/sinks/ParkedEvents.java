@@ -0,0 +1,225 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.errors.CygnusBadConfiguration;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.errors.CygnusRuntimeError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Events parked per destination of a sink, since the circuit breaker of the destination is open:
+ *
+ *  - The sub-batches regarding a destination whose circuit breaker is open are parked instead of persisted, unless
+ *    the maximum number of parked events of the destination would be exceeded.
+ *  - Once the circuit breaker of a destination is half-opened, its parked events are persisted as a probe. If the
+ *    probe succeeds, the events are unparked and the circuit breaker is closed; otherwise, the events remain parked
+ *    and the circuit breaker is opened again.
+ *  - When the sink is stopped, all the parked events are taken in order to be spilled.
+ *
+ * The number of parked events of each destination is reported to the circuit breakers, in order to be shown by
+ * GET /v1/stats.
+ *
+ * This class is not thread-safe. It is only used by the sink runner thread, and by the thread stopping the sink once
+ * the sink runner thread has finished.
+ *
+ * @author frb
+ */
+public class ParkedEvents {
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(ParkedEvents.class);
+    private final String sinkName;
+    private final CircuitBreakers circuitBreakers;
+    private final int maxEvents;
+    private final LinkedHashMap<String, ArrayList<NGSIEvent>> events;
+    private long numBytes;
+
+    /**
+     * Interface for persisting the parked events of a destination as a probe.
+     */
+    public interface Prober {
+
+        /**
+         * Persists the given batch, made of the parked events of a single destination.
+         * @param batch
+         * @throws CygnusBadConfiguration
+         * @throws CygnusBadContextData
+         * @throws CygnusRuntimeError
+         * @throws CygnusPersistenceError
+         */
+        void persist(NGSIBatch batch) throws CygnusBadConfiguration, CygnusBadContextData, CygnusRuntimeError,
+                CygnusPersistenceError;
+
+    } // Prober
+
+    /**
+     * Constructor.
+     * @param sinkName Name of the sink the events are parked by
+     * @param circuitBreakers Circuit breakers of the sink
+     * @param maxEvents Maximum number of parked events per destination
+     */
+    public ParkedEvents(String sinkName, CircuitBreakers circuitBreakers, int maxEvents) {
+        this.sinkName = sinkName;
+        this.circuitBreakers = circuitBreakers;
+        this.maxEvents = maxEvents;
+        this.events = new LinkedHashMap<>();
+        this.numBytes = 0;
+    } // ParkedEvents
+
+    /**
+     * Parks the events of a sub-batch. If the maximum number of parked events of its destination would be exceeded,
+     * the events are not parked, and the caller must rollback them instead.
+     * @param destination
+     * @param subBatch
+     * @return True if the events were parked, false otherwise
+     */
+    public boolean park(String destination, NGSIBatch subBatch) {
+        ArrayList<NGSIEvent> parked = events.get(destination);
+        int numParked = parked == null ? 0 : parked.size();
+
+        if (numParked + subBatch.getNumEvents() > maxEvents) {
+            LOGGER.error("[" + sinkName + "] Too many parked events, the events are rollbacked instead of parked "
+                    + "(destination=" + destination + ", parked_events=" + numParked + ", events="
+                    + subBatch.getNumEvents() + ")");
+            return false;
+        } // if
+
+        if (parked == null) {
+            parked = new ArrayList<>();
+            events.put(destination, parked);
+        } // if
+
+        subBatch.startIterator();
+
+        while (subBatch.hasNext()) {
+            subBatch.getNextDestination();
+            parked.addAll(subBatch.getNextEvents());
+        } // while
+
+        numBytes += NGSISink.getNumBytes(subBatch);
+        circuitBreakers.setNumParkedEvents(destination, parked.size());
+        LOGGER.debug("[{}] Circuit breaker open, events parked (destination={}, parked_events={})", sinkName,
+                destination, parked.size());
+        return true;
+    } // park
+
+    /**
+     * Probes the destinations whose circuit breakers are half-opened, by persisting the events parked for them. If
+     * there are no parked events, the next write into the destination is the probe.
+     * @param now Current time, in milliseconds
+     * @param prober
+     * @return The batches successfully persisted, a batch per destination, each one set as persisted
+     */
+    public ArrayList<NGSIBatch> probe(long now, Prober prober) {
+        ArrayList<NGSIBatch> persisted = new ArrayList<>();
+
+        for (String destination : circuitBreakers.halfOpen(now)) {
+            NGSIBatch batch = getBatch(destination);
+
+            if (batch == null) {
+                continue;
+            } // if
+
+            try {
+                prober.persist(batch);
+            } catch (CygnusBadConfiguration | CygnusBadContextData | CygnusRuntimeError | CygnusPersistenceError e) {
+                circuitBreakers.onFailure(destination, now);
+                LOGGER.error("[" + sinkName + "] Circuit breaker probe failed, the circuit breaker is open again "
+                        + "(destination=" + destination + ", parked_events=" + batch.getNumEvents() + "). Details: "
+                        + e.getMessage());
+                continue;
+            } // try catch
+
+            events.remove(destination);
+            numBytes -= NGSISink.getNumBytes(batch);
+            circuitBreakers.setNumParkedEvents(destination, 0);
+            circuitBreakers.onSuccess(destination);
+            batch.setPersisted(destination, true);
+            persisted.add(batch);
+            LOGGER.info("[" + sinkName + "] Circuit breaker probe succeeded, the circuit breaker is closed "
+                    + "(destination=" + destination + ", persisted_parked_events=" + batch.getNumEvents() + ")");
+        } // for
+
+        return persisted;
+    } // probe
+
+    /**
+     * Takes all the parked events, regardless of the state of the circuit breakers.
+     * @return The parked events, a batch per destination
+     */
+    public ArrayList<NGSIBatch> takeAll() {
+        ArrayList<NGSIBatch> batches = new ArrayList<>(events.size());
+
+        for (String destination : events.keySet()) {
+            batches.add(getBatch(destination));
+        } // for
+
+        events.clear();
+        numBytes = 0;
+        return batches;
+    } // takeAll
+
+    /**
+     * Gets if there are events parked for the given destination.
+     * @param destination
+     * @return True if there are events parked for the given destination, false otherwise
+     */
+    public boolean isParked(String destination) {
+        return events.containsKey(destination);
+    } // isParked
+
+    /**
+     * Gets the number of events parked for the given destination.
+     * @param destination
+     * @return The number of events parked for the given destination
+     */
+    public int getNumEvents(String destination) {
+        ArrayList<NGSIEvent> parked = events.get(destination);
+        return parked == null ? 0 : parked.size();
+    } // getNumEvents
+
+    /**
+     * Gets the number of parked event bytes.
+     * @return The number of parked event bytes
+     */
+    public long getNumBytes() {
+        return numBytes;
+    } // getNumBytes
+
+    private NGSIBatch getBatch(String destination) {
+        ArrayList<NGSIEvent> parked = events.get(destination);
+
+        if (parked == null) {
+            return null;
+        } // if
+
+        NGSIBatch batch = new NGSIBatch();
+
+        for (NGSIEvent event : parked) {
+            batch.addEvent(destination, event);
+        } // for
+
+        return batch;
+    } // getBatch
+
+} // ParkedEvents
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Write-behind buffers per destination of a sink, coalescing the sub-batches of several batches before persisting
+ * them:
+ *
+ *  - The not persisted sub-batches of each batch are appended to the buffers of their destinations.
+ *  - A destination is flushed once its buffer reaches the maximum number of events, or once its oldest event has
+ *    been buffered for the maximum age.
+ *  - If the buffered bytes exceed the maximum, the oldest buffers are flushed as well until not exceeding it.
+ *
+ * Buffers are created when their first event is buffered and removed when flushed, thus they are iterated from the
+ * oldest to the newest one.
+ *
+ * This class is not thread-safe. It is only used by the sink runner thread, and by the thread stopping the sink once
+ * the sink runner thread has finished.
+ *
+ * @author frb
+ */
+public class WriteBehindBuffers {
+
+    private final int maxEvents;
+    private final long maxAge;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Buffer> buffers;
+    private long numBytes;
+    private int numEvents;
+
+    /**
+     * Buffer of a single destination.
+     */
+    private static class Buffer {
+
+        private final ArrayList<NGSIEvent> events;
+        private final long bufferingTime;
+        private long numBytes;
+
+        Buffer(long bufferingTime) {
+            this.events = new ArrayList<>();
+            this.bufferingTime = bufferingTime;
+            this.numBytes = 0;
+        } // Buffer
+
+    } // Buffer
+
+    /**
+     * Constructor.
+     * @param maxEvents Maximum number of events per destination before flushing it
+     * @param maxAge Maximum time an event is buffered before flushing its destination, in milliseconds
+     * @param maxBytes Maximum number of event bytes buffered for all the destinations, -1 if not limited
+     */
+    public WriteBehindBuffers(int maxEvents, long maxAge, long maxBytes) {
+        this.maxEvents = maxEvents;
+        this.maxAge = maxAge;
+        this.maxBytes = maxBytes;
+        this.buffers = new LinkedHashMap<>();
+        this.numBytes = 0;
+        this.numEvents = 0;
+    } // WriteBehindBuffers
+
+    /**
+     * Appends the not persisted sub-batches of the given batch to the buffers of their destinations.
+     * @param batch
+     * @param now Current time, in milliseconds
+     */
+    public void add(NGSIBatch batch, long now) {
+        batch.startIterator();
+
+        while (batch.hasNext()) {
+            String destination = batch.getNextDestination();
+
+            if (batch.isNextPersisted()) {
+                continue;
+            } // if
+
+            Buffer buffer = buffers.get(destination);
+
+            if (buffer == null) {
+                buffer = new Buffer(now);
+                buffers.put(destination, buffer);
+            } // if
+
+            for (NGSIEvent event : batch.getNextEvents()) {
+                long eventBytes = event.getBody() == null ? 0 : event.getBody().length;
+                buffer.events.add(event);
+                buffer.numBytes += eventBytes;
+                numBytes += eventBytes;
+                numEvents++;
+            } // for
+        } // while
+    } // add
+
+    /**
+     * Takes the buffers ready to be flushed, i.e. those reaching the maximum number of events or the maximum age, and
+     * the oldest ones while the maximum number of bytes is exceeded.
+     * @param now Current time, in milliseconds
+     * @return A batch containing a sub-batch per flushed destination, or null if no destination must be flushed
+     */
+    public NGSIBatch takeReady(long now) {
+        NGSIBatch batch = null;
+        long remainingBytes = numBytes;
+        Iterator<Entry<String, Buffer>> it = buffers.entrySet().iterator();
+
+        while (it.hasNext()) {
+            Entry<String, Buffer> entry = it.next();
+            Buffer buffer = entry.getValue();
+
+            if (buffer.events.size() < maxEvents && now - buffer.bufferingTime < maxAge
+                    && (maxBytes == -1 || remainingBytes <= maxBytes)) {
+                continue;
+            } // if
+
+            if (batch == null) {
+                batch = new NGSIBatch();
+            } // if
+
+            take(batch, entry.getKey(), buffer);
+            remainingBytes -= buffer.numBytes;
+            it.remove();
+        } // while
+
+        return batch;
+    } // takeReady
+
+    /**
+     * Takes all the buffers, regardless of their size and age.
+     * @return A batch containing a sub-batch per buffered destination, or null if there are no buffered destinations
+     */
+    public NGSIBatch takeAll() {
+        if (buffers.isEmpty()) {
+            return null;
+        } // if
+
+        NGSIBatch batch = new NGSIBatch();
+
+        for (Entry<String, Buffer> entry : buffers.entrySet()) {
+            take(batch, entry.getKey(), entry.getValue());
+        } // for
+
+        buffers.clear();
+        return batch;
+    } // takeAll
+
+    private void take(NGSIBatch batch, String destination, Buffer buffer) {
+        for (NGSIEvent event : buffer.events) {
+            batch.addEvent(destination, event);
+        } // for
+
+        numBytes -= buffer.numBytes;
+        numEvents -= buffer.events.size();
+    } // take
+
+    /**
+     * Gets the time the oldest buffer must be flushed at, given the maximum age.
+     * @return The time the oldest buffer must be flushed at, in milliseconds, or -1 if there are no buffers
+     */
+    public long getNextFlushTime() {
+        if (buffers.isEmpty()) {
+            return -1;
+        } // if
+
+        return buffers.values().iterator().next().bufferingTime + maxAge;
+    } // getNextFlushTime
+
+    /**
+     * Gets the number of buffered event bytes.
+     * @return The number of buffered event bytes
+     */
+    public long getNumBytes() {
+        return numBytes;
+    } // getNumBytes
+
+    /**
+     * Gets the number of buffered events.
+     * @return The number of buffered events
+     */
+    public int getNumEvents() {
+        return numEvents;
+    } // getNumEvents
+
+    /**
+     * Gets the number of buffered destinations.
+     * @return The number of buffered destinations
+     */
+    public int getNumDestinations() {
+        return buffers.size();
+    } // getNumDestinations
+
+} // WriteBehindBuffers
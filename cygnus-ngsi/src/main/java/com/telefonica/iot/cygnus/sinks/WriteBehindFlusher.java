@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.log.CygnusLogger;
+
+/**
+ * Write-behind path of a sink, on top of its write-behind buffers:
+ *
+ *  - Completed batches are buffered instead of persisted.
+ *  - Every time the sink is processed, the buffers ready to be flushed (or all of them, if the heap budget is
+ *    exceeded) are taken and persisted as a single batch.
+ *  - When the sink is stopped, the current accumulation is buffered and all the buffers are taken in order to be
+ *    drained.
+ *
+ * The persistence itself, including the rollback of the flushed batch upon a persistence error, is delegated to the
+ * sink.
+ *
+ * This class is not thread-safe. It is only used by the sink runner thread, and by the thread stopping the sink once
+ * the sink runner thread has finished.
+ *
+ * @author frb
+ */
+public class WriteBehindFlusher {
+
+    private static final CygnusLogger LOGGER = new CygnusLogger(WriteBehindFlusher.class);
+    private final String sinkName;
+    private final WriteBehindBuffers buffers;
+
+    /**
+     * Interface for persisting a batch made of flushed buffers.
+     */
+    public interface Flusher {
+
+        /**
+         * Persists the given batch, made of flushed buffers, rollbacking it if a persistence error occurs.
+         * @param batch
+         * @return True if the batch was persisted or it failed because of a non retriable error, false if it was
+         * rollbacked because of problems with the persistence backend
+         */
+        boolean flush(NGSIBatch batch);
+
+    } // Flusher
+
+    /**
+     * Constructor.
+     * @param sinkName Name of the sink the batches are buffered by
+     * @param buffers Write-behind buffers of the sink
+     */
+    public WriteBehindFlusher(String sinkName, WriteBehindBuffers buffers) {
+        this.sinkName = sinkName;
+        this.buffers = buffers;
+    } // WriteBehindFlusher
+
+    /**
+     * Buffers the not persisted sub-batches of a completed batch.
+     * @param batch
+     * @param now Current time, in milliseconds
+     */
+    public void buffer(NGSIBatch batch, long now) {
+        LOGGER.debug("[{}] Batch completed, buffering it (destinations={}, events={})", sinkName,
+                batch.getNumDestinations(), batch.getNumEvents());
+        buffers.add(batch, now);
+    } // buffer
+
+    /**
+     * Flushes the buffers ready to be flushed, or all of them.
+     * @param now Current time, in milliseconds
+     * @param all True if all the buffers must be flushed, regardless of their size and age
+     * @param flusher
+     * @return False if the flushed batch was rollbacked because of problems with the persistence backend, true
+     * otherwise (including when there was nothing to flush)
+     */
+    public boolean flush(long now, boolean all, Flusher flusher) {
+        NGSIBatch batch = all ? buffers.takeAll() : buffers.takeReady(now);
+
+        if (batch == null) {
+            return true;
+        } // if
+
+        LOGGER.debug("[{}] Flushing write-behind buffers (destinations={}, events={})", sinkName,
+                batch.getNumDestinations(), batch.getNumEvents());
+        return flusher.flush(batch);
+    } // flush
+
+    /**
+     * Takes all the buffers for draining purposes, together with the given (current) accumulation, if any.
+     * @param accumulation Not yet buffered batch, or null if none
+     * @param now Current time, in milliseconds
+     * @return A batch containing a sub-batch per buffered destination, or null if there is nothing to be drained
+     */
+    public NGSIBatch drain(NGSIBatch accumulation, long now) {
+        if (accumulation != null) {
+            buffers.add(accumulation, now);
+        } // if
+
+        return buffers.takeAll();
+    } // drain
+
+    /**
+     * Gets the write-behind buffers.
+     * @return The write-behind buffers
+     */
+    public WriteBehindBuffers getBuffers() {
+        return buffers;
+    } // getBuffers
+
+} // WriteBehindFlusher
@@ -56,9 +56,25 @@ public final class NGSIConstants {
     public static final int SERVICE_PATH_HEADER_MAX_LEN = 50;
 
     // NGSIRestHandler specific constants
-    public static final String PARAM_DEFAULT_SERVICE      = "default_service";
-    public static final String PARAM_DEFAULT_SERVICE_PATH = "default_service_path";
-    public static final String PARAM_NOTIFICATION_TARGET  = "notification_target";
+    public static final String PARAM_DEFAULT_SERVICE          = "default_service";
+    public static final String PARAM_DEFAULT_SERVICE_PATH     = "default_service_path";
+    public static final String PARAM_NOTIFICATION_TARGET      = "notification_target";
+    public static final String PARAM_ENABLE_STREAMING_PARSING = "enable_streaming_parsing";
+    public static final String PARAM_EVENT_BODY_FORMAT        = "event_body_format";
+    public static final String PARAM_BACKPRESSURE_ENABLED     = "backpressure.enabled";
+    public static final String PARAM_BACKPRESSURE_CHANNELS    = "backpressure.channels";
+    public static final String PARAM_BACKPRESSURE_HIGH_WM     = "backpressure.high_watermark";
+    public static final String PARAM_BACKPRESSURE_LOW_WM      = "backpressure.low_watermark";
+    public static final String PARAM_BACKPRESSURE_MAX_RETRY   = "backpressure.max_retry_after";
+    public static final String PARAM_SERVICE_RATE             = "rate_limits.service_rate";
+    public static final String PARAM_SERVICE_BURST            = "rate_limits.service_burst";
+    public static final String PARAM_SERVICE_PATH_RATE        = "rate_limits.service_path_rate";
+    public static final String PARAM_SERVICE_PATH_BURST       = "rate_limits.service_path_burst";
+    public static final String PARAM_MAX_DECODED_SIZE         = "max_decoded_size";
+    
+    // NGSIRestHandler and NGSISink common constants
+    public static final String PARAM_LOG_PAYLOAD_SAMPLING     = "log_payload.sampling";
+    public static final String PARAM_LOG_PAYLOAD_MAX_LENGTH   = "log_payload.max_length";
     
     //NGSICKANSink specific constants
     // http://docs.ckan.org/en/latest/api/#ckan.logic.action.create.organization_create
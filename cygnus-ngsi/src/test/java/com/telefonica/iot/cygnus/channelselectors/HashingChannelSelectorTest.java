@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.channelselectors;
+
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class HashingChannelSelectorTest {
+
+    // instance to be tested
+    private HashingChannelSelector channelSelector;
+
+    // other instances
+    private Context context;
+
+    /**
+     * Constructor.
+     */
+    public HashingChannelSelectorTest() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // HashingChannelSelectorTest
+
+    /**
+     * Sets up tests by creating a unique instance of the tested class.
+     */
+    @Before
+    public void setUp() {
+        channelSelector = new HashingChannelSelector();
+        ArrayList<Channel> allChannels = new ArrayList<>();
+
+        for (int i = 1; i <= 4; i++) {
+            Channel channel = new MemoryChannel();
+            channel.setName("ch" + i);
+            allChannels.add(channel);
+        } // for
+
+        channelSelector.setChannels(allChannels);
+        context = new Context();
+        context.put("storages", "2");
+        context.put("storages.storage1", "ch1");
+        context.put("storages.storage2", "ch2,ch3,ch4");
+    } // setUp
+
+    /**
+     * [HashingChannelSelector.getRequiredChannels] -------- Events regarding the same destination are always put into
+     * the same channel of each storage.
+     */
+    @Test
+    public void testGetRequiredChannelsSameDestination() {
+        System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                + "-------- Events regarding the same destination are always put into the same channel of each "
+                + "storage");
+        context.put("hashing_key", "destination");
+        context.put("data_model", "dm-by-entity");
+        channelSelector.configure(context);
+        List<Channel> first = channelSelector.getRequiredChannels(createEvent("/somePath", "someEntity"));
+        HashSet<String> channelNames = new HashSet<>();
+
+        for (int i = 0; i < 10; i++) {
+            List<Channel> required = channelSelector.getRequiredChannels(createEvent("/somePath", "someEntity"));
+            channelNames.add(required.get(1).getName());
+        } // for
+
+        try {
+            assertEquals(2, first.size());
+            assertEquals("ch1", first.get(0).getName());
+            assertEquals(1, channelNames.size());
+            assertTrue(channelNames.contains(first.get(1).getName()));
+            System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                    + "-  OK  - All the events were put into " + first.toString());
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                    + "- FAIL - The events were put into " + channelNames.toString());
+            throw e;
+        } // try catch
+    } // testGetRequiredChannelsSameDestination
+
+    /**
+     * [HashingChannelSelector.getRequiredChannels] -------- When routing by service path, events regarding different
+     * entities of the same service path are put into the same channel, and different service paths are spread.
+     */
+    @Test
+    public void testGetRequiredChannelsByServicePath() {
+        System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                + "-------- When routing by service path, events regarding different entities of the same service "
+                + "path are put into the same channel, and different service paths are spread");
+        context.put("hashing_key", "service-path");
+        channelSelector.configure(context);
+        HashSet<String> sameServicePathChannels = new HashSet<>();
+        HashSet<String> allChannels = new HashSet<>();
+
+        for (int i = 0; i < 10; i++) {
+            sameServicePathChannels.add(channelSelector.getRequiredChannels(
+                    createEvent("/somePath", "someEntity" + i)).get(1).getName());
+        } // for
+
+        for (int i = 0; i < 100; i++) {
+            allChannels.add(channelSelector.getRequiredChannels(
+                    createEvent("/somePath" + i, "someEntity")).get(1).getName());
+        } // for
+
+        try {
+            assertEquals(1, sameServicePathChannels.size());
+            assertEquals(3, allChannels.size());
+            System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                    + "-  OK  - The same service path was put into a single channel, and all the channels were used");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[HashingChannelSelector.getRequiredChannels]")
+                    + "- FAIL - The same service path was put into " + sameServicePathChannels.toString()
+                    + ", and the channels used were " + allChannels.toString());
+            throw e;
+        } // try catch
+    } // testGetRequiredChannelsByServicePath
+
+    private NGSIEvent createEvent(String servicePath, String entity) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, "someService");
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, servicePath);
+        headers.put(NGSIConstants.FLUME_HEADER_NOTIFIED_ENTITY, entity);
+        return new NGSIEvent(headers, new byte[0], null, null);
+    } // createEvent
+
+} // HashingChannelSelectorTest
@@ -18,17 +18,24 @@
 
 package com.telefonica.iot.cygnus.handlers;
 
+import com.telefonica.iot.cygnus.channels.CygnusChannel;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
 import com.telefonica.iot.cygnus.utils.CommonConstants;
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.log4j.Level;
@@ -39,6 +46,9 @@ import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.mockito.Mockito;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import com.telefonica.iot.cygnus.utils.CommonUtils;
 import com.telefonica.iot.cygnus.utils.NGSIConstants;
@@ -162,6 +172,13 @@ public class NGSIRestHandlerTest {
         when(mockHttpServletRequest2.getHeader("fiware-servicepath")).thenReturn("/a,/b");
         when(mockHttpServletRequest2.getReader()).thenReturn(
                 new BufferedReader(new InputStreamReader(new ByteArrayInputStream(notification2.getBytes()))));
+        final ByteArrayInputStream notification2Stream = new ByteArrayInputStream(notification2.getBytes());
+        when(mockHttpServletRequest2.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return notification2Stream.read();
+            } // read
+        });
     } // setUp
     
     /**
@@ -527,6 +544,329 @@ public class NGSIRestHandlerTest {
         } // try catch
     } // testGetEventsMultiValuedServicePath
     
+    /**
+     * [NGSIRestHandler.getEvents] -------- When streaming parsing is enabled, a NGSIEvent is generated for each
+     * notified ContextElementResponse, having the raw notified ContextElement as body.
+     */
+    @Test
+    public void testGetEventsStreamingParsing() {
+        System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                + "-------- When streaming parsing is enabled, a NGSIEvent is generated for each notified "
+                + "ContextElementResponse, having the raw notified ContextElement as body");
+        NGSIRestHandler handler = new NGSIRestHandler();
+        Context context = createContext(null, null, null);
+        context.put(NGSIConstants.PARAM_ENABLE_STREAMING_PARSING, "true");
+        handler.configure(context);
+        List<Event> events;
+        
+        try {
+            events = handler.getEvents(mockHttpServletRequest2);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - There was some problem when intercepting the event");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+            
+        try {
+            assertEquals(2, events.size());
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The generated events are 2");
+        } catch (AssertionError e1) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The generated events are not 2");
+            throw e1;
+        } // try catch
+        
+        try {
+            NGSIEvent event1 = (NGSIEvent) events.get(0);
+            NGSIEvent event2 = (NGSIEvent) events.get(1);
+            assertEquals("Room.1", event1.getOriginalCE().getId());
+            assertEquals("/a", event1.getHeaders().get(CommonConstants.HEADER_FIWARE_SERVICE_PATH));
+            assertEquals("Room.suite", event2.getOriginalCE().getId());
+            assertEquals("/b", event2.getHeaders().get(CommonConstants.HEADER_FIWARE_SERVICE_PATH));
+            String body = new String(event2.getBody());
+            assertTrue(body.startsWith("{") && body.endsWith("}" + CommonConstants.CONCATENATOR));
+            assertTrue(body.contains("\"id\" : \"Room.suite\""));
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The generated events contain the notified ContextElements, both parsed and raw");
+        } catch (AssertionError e1) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The generated events do not contain the notified ContextElements");
+            throw e1;
+        } // try catch
+    } // testGetEventsStreamingParsing
+    
+    /**
+     * [NGSIRestHandler.getEvents] -------- When the notification is gzip encoded, it is decoded and both the received
+     * and the decoded sizes are accounted.
+     */
+    @Test
+    public void testGetEventsGzipEncoded() {
+        System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                + "-------- When the notification is gzip encoded, it is decoded and both the received and the "
+                + "decoded sizes are accounted");
+        NGSIRestHandler handler = new NGSIRestHandler();
+        handler.configure(createContext(null, null, null));
+        List<Event> events;
+        long wireSize;
+        
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(notification2.getBytes());
+            } // try
+            
+            wireSize = compressed.size();
+            final ByteArrayInputStream compressedStream = new ByteArrayInputStream(compressed.toByteArray());
+            HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+            when(request.getMethod()).thenReturn("POST");
+            when(request.getRequestURI()).thenReturn("/notify");
+            String[] headerNames = {"Content-Type", "Content-Encoding", "fiware-service", "fiware-servicePath"};
+            when(request.getHeaderNames()).thenReturn(
+                    Collections.enumeration(new ArrayList(Arrays.asList(headerNames))));
+            when(request.getHeader("content-type")).thenReturn("application/json; charset=utf-8");
+            when(request.getHeader("content-encoding")).thenReturn("gzip");
+            when(request.getHeader("fiware-service")).thenReturn("myservice");
+            when(request.getHeader("fiware-servicepath")).thenReturn("/a,/b");
+            when(request.getContentLength()).thenReturn(-1); // chunked
+            when(request.getInputStream()).thenReturn(new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return compressedStream.read();
+                } // read
+            });
+            events = handler.getEvents(request);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - There was some problem when intercepting the event");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+            
+        try {
+            assertEquals(2, events.size());
+            assertEquals("Room.suite", ((NGSIEvent) events.get(1)).getOriginalCE().getId());
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The gzip encoded notification was decoded into 2 events");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The gzip encoded notification was not decoded into 2 events");
+            throw e;
+        } // try catch
+        
+        try {
+            assertEquals(wireSize, handler.serviceMetrics.getAllAggrMetrics().getIncomingTransactionRequestSize());
+            assertEquals(notification2.getBytes().length,
+                    handler.serviceMetrics.getAllAggrMetrics().getIncomingTransactionDecodedSize());
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - Both the received and the decoded sizes were accounted");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The received or the decoded sizes were not accounted");
+            throw e;
+        } // try catch
+    } // testGetEventsGzipEncoded
+    
+    /**
+     * [NGSIRestHandler.getEvents] -------- When the decoded content of a gzip encoded notification exceeds the maximum
+     * decoded size, the decoding is aborted and the notification is rejected with a 413 response, both when parsing
+     * the whole content and when streaming it.
+     */
+    @Test
+    public void testGetEventsMaxDecodedSize() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                + "-------- When the decoded content of a gzip encoded notification exceeds the maximum decoded size, "
+                + "the decoding is aborted and the notification is rejected with a 413 response, both when parsing "
+                + "the whole content and when streaming it");
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(notification2.getBytes());
+        } // try
+        
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        List<Event> whole = null;
+        List<Event> streamed = null;
+        long maxDecodedSize = notification2.getBytes().length / 2;
+        
+        for (String enableStreamingParsing : new String[] {"false", "true"}) {
+            NGSIRestHandler handler = new NGSIRestHandler() {
+                @Override
+                protected HttpServletResponse getCurrentResponse() {
+                    return response;
+                } // getCurrentResponse
+            };
+            Context context = createContext(null, null, null);
+            context.put(NGSIConstants.PARAM_MAX_DECODED_SIZE, String.valueOf(maxDecodedSize));
+            context.put(NGSIConstants.PARAM_ENABLE_STREAMING_PARSING, enableStreamingParsing);
+            handler.configure(context);
+            final ByteArrayInputStream compressedStream = new ByteArrayInputStream(compressed.toByteArray());
+            HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+            when(request.getMethod()).thenReturn("POST");
+            when(request.getRequestURI()).thenReturn("/notify");
+            String[] headerNames = {"Content-Type", "Content-Encoding", "fiware-service", "fiware-servicePath"};
+            when(request.getHeaderNames()).thenReturn(
+                    Collections.enumeration(new ArrayList(Arrays.asList(headerNames))));
+            when(request.getHeader("content-type")).thenReturn("application/json; charset=utf-8");
+            when(request.getHeader("content-encoding")).thenReturn("gzip");
+            when(request.getHeader("fiware-service")).thenReturn("myservice");
+            when(request.getHeader("fiware-servicepath")).thenReturn("/a,/b");
+            when(request.getContentLength()).thenReturn(-1); // chunked
+            when(request.getInputStream()).thenReturn(new ServletInputStream() {
+                @Override
+                public int read() throws IOException {
+                    return compressedStream.read();
+                } // read
+            });
+            
+            if (enableStreamingParsing.equals("false")) {
+                whole = handler.getEvents(request);
+            } else {
+                streamed = handler.getEvents(request);
+            } // if else
+        } // for
+        
+        try {
+            assertEquals(0, whole.size());
+            assertEquals(0, streamed.size());
+            verify(response, Mockito.times(2)).sendError(Mockito.eq(413), Mockito.anyString());
+            verify(response, never()).setHeader(Mockito.eq("Retry-After"), Mockito.anyString());
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The notification was rejected with a 413 response in both cases");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The notification was not rejected with a 413 response");
+            throw e;
+        } // try catch
+    } // testGetEventsMaxDecodedSize
+    
+    /**
+     * [NGSIRestHandler.getEvents] -------- When the channels are saturated, the notification is shed with a 503
+     * response without being read, and it is accounted as shed.
+     */
+    @Test
+    public void testGetEventsShedUponSaturation() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                + "-------- When the channels are saturated, the notification is shed with a 503 response without "
+                + "being read, and it is accounted as shed");
+        final CygnusChannel channel = Mockito.mock(CygnusChannel.class);
+        when(channel.getCapacity()).thenReturn(1000L);
+        when(channel.getNumEvents()).thenReturn(950L);
+        final ArrayList<Integer> retryAfters = new ArrayList<>();
+        NGSIRestHandler handler = new NGSIRestHandler() {
+            @Override
+            protected BackpressureController createBackpressureController(List<String> channelNames,
+                    double highWatermark, double lowWatermark, int maxRetryAfter) {
+                return new BackpressureController(channelNames, highWatermark, lowWatermark, maxRetryAfter) {
+                    @Override
+                    protected List<CygnusChannel> getChannels() {
+                        return Collections.singletonList(channel);
+                    } // getChannels
+                };
+            } // createBackpressureController
+            
+            @Override
+            protected void sendServiceUnavailable(int retryAfter) {
+                retryAfters.add(retryAfter);
+            } // sendServiceUnavailable
+        };
+        Context context = createContext(null, null, null);
+        context.put(NGSIConstants.PARAM_BACKPRESSURE_ENABLED, "true");
+        context.put(NGSIConstants.PARAM_BACKPRESSURE_MAX_RETRY, "30");
+        handler.configure(context);
+        List<Event> events;
+        
+        try {
+            events = handler.getEvents(mockHttpServletRequest);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - There was some problem when shedding the notification");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+        
+        try {
+            assertEquals(0, events.size());
+            assertEquals(1, retryAfters.size());
+            assertEquals(30, (int) retryAfters.get(0));
+            assertEquals(1, handler.serviceMetrics.getAllAggrMetrics().getIncomingTransactionsShed());
+            verify(mockHttpServletRequest, never()).getReader();
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The notification was shed with a 503 response and a Retry-After of 30 seconds");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The notification was not shed");
+            throw e;
+        } // try catch
+    } // testGetEventsShedUponSaturation
+    
+    /**
+     * [NGSIRestHandler.getEvents] -------- When a service exceeds its rate limits, the notification is throttled with
+     * a 429 response having a Retry-After header, and it is accounted as throttled for such a service; other services
+     * are not throttled.
+     */
+    @Test
+    public void testGetEventsThrottledUponRateLimit() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                + "-------- When a service exceeds its rate limits, the notification is throttled with a 429 "
+                + "response having a Retry-After header, and it is accounted as throttled for such a service; other "
+                + "services are not throttled");
+        final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        NGSIRestHandler handler = new NGSIRestHandler() {
+            @Override
+            protected HttpServletResponse getCurrentResponse() {
+                return response;
+            } // getCurrentResponse
+        };
+        Context context = createContext(null, null, null);
+        context.put(NGSIConstants.PARAM_SERVICE_RATE, "1");
+        handler.configure(context);
+        List<Event> admitted;
+        List<Event> throttled;
+        List<Event> otherService;
+        
+        try {
+            admitted = handler.getEvents(createNotificationRequest("myservice"));
+            throttled = handler.getEvents(createNotificationRequest("myservice"));
+            otherService = handler.getEvents(createNotificationRequest("otherservice"));
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - There was some problem when throttling the notification");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+        
+        try {
+            assertEquals(1, admitted.size());
+            assertEquals(0, throttled.size());
+            assertEquals(1, otherService.size());
+            verify(response).setHeader("Retry-After", "1");
+            verify(response).sendError(Mockito.eq(429), Mockito.anyString());
+            assertEquals(1, handler.serviceMetrics.getServiceAggrMetrics("myservice")
+                    .getIncomingTransactionsThrottled());
+            assertEquals(0, handler.serviceMetrics.getServiceAggrMetrics("otherservice")
+                    .getIncomingTransactionsThrottled());
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "-  OK  - The second notification was throttled with a 429 response");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRestHandler.getEvents]")
+                    + "- FAIL - The second notification was not throttled");
+            throw e;
+        } // try catch
+    } // testGetEventsThrottledUponRateLimit
+    
+    private HttpServletRequest createNotificationRequest(String service) throws IOException {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        String[] headerNames = {"Content-Type", "fiware-service", "fiware-servicePath"};
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getRequestURI()).thenReturn("/notify");
+        when(request.getHeaderNames()).thenReturn(Collections.enumeration(Arrays.asList(headerNames)));
+        when(request.getHeader("content-type")).thenReturn("application/json; charset=utf-8");
+        when(request.getHeader("fiware-service")).thenReturn(service);
+        when(request.getHeader("fiware-servicepath")).thenReturn("/myservicepath");
+        when(request.getReader()).thenReturn(
+                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(notification.getBytes()))));
+        return request;
+    } // createNotificationRequest
+    
     /**
      * [NGSIRestHandler.generateUniqueId] -------- An internal transaction ID is generated.
      */
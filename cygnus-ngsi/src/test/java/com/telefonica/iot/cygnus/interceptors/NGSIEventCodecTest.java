@@ -0,0 +1,216 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.interceptors;
+
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NGSIEventCodecTest {
+
+    private final String originalCEStr = ""
+            + "{"
+            +   "\"attributes\" : ["
+            +     "{"
+            +       "\"name\" : \"temperature\","
+            +       "\"type\" : \"centigrade\","
+            +       "\"value\" : 26.5,"
+            +       "\"metadatas\" : ["
+            +         "{"
+            +           "\"name\" : \"location\","
+            +           "\"type\" : \"geo:json\","
+            +           "\"value\" : {\"type\":\"Point\",\"coordinates\":[-3.7,40.4]}"
+            +         "}"
+            +       "]"
+            +     "},"
+            +     "{"
+            +       "\"name\" : \"name\","
+            +       "\"type\" : \"string\","
+            +       "\"value\" : \"Room 1, \\\"the big one\\\"\""
+            +     "},"
+            +     "{"
+            +       "\"name\" : \"occupied\","
+            +       "\"type\" : \"boolean\","
+            +       "\"value\" : true"
+            +     "}"
+            +   "],"
+            +   "\"type\" : \"Room\","
+            +   "\"isPattern\" : \"false\","
+            +   "\"id\" : \"Room1\""
+            + "}";
+    private final String mappedCEStr = ""
+            + "{"
+            +   "\"attributes\" : ["
+            +     "{"
+            +       "\"name\" : \"temp\","
+            +       "\"type\" : \"centigrade\","
+            +       "\"value\" : 26.5"
+            +     "}"
+            +   "],"
+            +   "\"type\" : \"NewRoom\","
+            +   "\"isPattern\" : \"false\","
+            +   "\"id\" : \"NewRoom1\""
+            + "}";
+
+    /**
+     * Constructor.
+     */
+    public NGSIEventCodecTest() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // NGSIEventCodecTest
+
+    /**
+     * [NGSIEventCodec.decode] -------- Binary encoded context elements are decoded as they were before being encoded.
+     */
+    @Test
+    public void testDecodeBinary() {
+        System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                + "-------- Binary encoded context elements are decoded as they were before being encoded");
+        ContextElement originalCE;
+        ContextElement mappedCE;
+        byte[] body;
+        NGSIEvent event;
+
+        try {
+            originalCE = TestUtils.createJsonContextElement(originalCEStr);
+            mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+            body = NGSIEventCodec.encode(originalCE, mappedCE);
+            event = NGSIEventCodec.decode(new HashMap<String, String>(), body);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - There was some problem when encoding or decoding the context elements");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            assertTrue(NGSIEventCodec.isBinary(body));
+            assertEquals(originalCE.toString(), event.getOriginalCE().toString());
+            assertEquals(mappedCE.toString(), event.getMappedCE().toString());
+            assertEquals("26.5", event.getOriginalCE().getAttributes().get(0).getContextValue(false));
+            assertEquals("{\"type\":\"Point\",\"coordinates\":[-3.7,40.4]}",
+                    event.getOriginalCE().getAttributes().get(0).getMetadatas().get(0).getValue());
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "-  OK  - The decoded context elements are equal to the encoded ones");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - The decoded context elements are not equal to the encoded ones");
+            throw e;
+        } // try catch
+    } // testDecodeBinary
+
+    /**
+     * [NGSIEventCodec.decode] -------- Legacy Json encoded context elements are decoded as well.
+     */
+    @Test
+    public void testDecodeLegacyJson() {
+        System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                + "-------- Legacy Json encoded context elements are decoded as well");
+        byte[] originalBody = (originalCEStr + CommonConstants.CONCATENATOR).getBytes();
+        byte[] mappedBody = (originalCEStr + CommonConstants.CONCATENATOR + mappedCEStr).getBytes();
+        NGSIEvent originalEvent;
+        NGSIEvent mappedEvent;
+
+        try {
+            originalEvent = NGSIEventCodec.decode(new HashMap<String, String>(), originalBody);
+            mappedEvent = NGSIEventCodec.decode(new HashMap<String, String>(), mappedBody);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - There was some problem when decoding the context elements");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            assertFalse(NGSIEventCodec.isBinary(originalBody));
+            assertEquals("Room1", originalEvent.getOriginalCE().getId());
+            assertEquals(null, originalEvent.getMappedCE());
+            assertEquals("Room1", mappedEvent.getOriginalCE().getId());
+            assertEquals("NewRoom1", mappedEvent.getMappedCE().getId());
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "-  OK  - The legacy Json encoded context elements were decoded");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - The legacy Json encoded context elements were not decoded");
+            throw e;
+        } // try catch
+    } // testDecodeLegacyJson
+
+    /**
+     * [NGSIEventCodec.decode] -------- Malformed Json, either a legacy body or a Json value within a binary body, is
+     * reported as an IOException instead of an unchecked exception.
+     */
+    @Test
+    public void testDecodeMalformedJson() {
+        System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                + "-------- Malformed Json, either a legacy body or a Json value within a binary body, is reported as "
+                + "an IOException instead of an unchecked exception");
+        byte[] legacyBody = ("{\"id\":\"Room1\",\"attributes\":[" + CommonConstants.CONCATENATOR).getBytes();
+        byte[] binaryBody;
+
+        try {
+            binaryBody = NGSIEventCodec.encode(TestUtils.createJsonContextElement(originalCEStr), null);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - There was some problem when encoding the context elements");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        // the closing brace of the Json metadata value is replaced, keeping the length of the string
+        String binaryStr = new String(binaryBody, StandardCharsets.ISO_8859_1);
+        binaryBody[binaryStr.indexOf("[-3.7,40.4]}") + "[-3.7,40.4]".length()] = ' ';
+        boolean legacyIOException = false;
+        boolean binaryIOException = false;
+
+        try {
+            NGSIEventCodec.decode(new HashMap<String, String>(), legacyBody);
+        } catch (IOException e) {
+            legacyIOException = true;
+        } // try catch
+
+        try {
+            NGSIEventCodec.decode(new HashMap<String, String>(), binaryBody);
+        } catch (IOException e) {
+            binaryIOException = true;
+        } // try catch
+
+        try {
+            assertTrue(legacyIOException);
+            assertTrue(binaryIOException);
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "-  OK  - The malformed Json was reported as an IOException");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIEventCodec.decode]")
+                    + "- FAIL - The malformed Json was not reported as an IOException");
+            throw e;
+        } // try catch
+    } // testDecodeMalformedJson
+
+} // NGSIEventCodecTest
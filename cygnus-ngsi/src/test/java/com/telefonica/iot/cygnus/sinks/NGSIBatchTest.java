@@ -147,4 +147,65 @@ public class NGSIBatchTest {
         } // try catch
     } // testAddEventExistentSubbatch
     
+    /**
+     * [NGSIBatch.getSubBatch] -------- A sub-batch is got as a new batch, and it is not considered as not persisted
+     * once set as persisted.
+     */
+    @Test
+    public void testGetSubBatch() {
+        System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                + "-------- A sub-batch is got as a new batch, and it is not considered as not persisted once set as "
+                + "persisted");
+        NGSIBatch batch = new NGSIBatch();
+        String destination1 = "someDestination1";
+        String destination2 = "someDestination2";
+        String originalCEStr = ""; // not necessary a real one for this test
+        String mappedCEStr = ""; // not necessary a real one for this test
+        String service = "someService";
+        String servicePath = "/someServicePath";
+        String correlatorId = "12345";
+        NGSIEvent event1;
+        NGSIEvent event2;
+        
+        try {
+            event1 = TestUtils.createNGSIEvent(originalCEStr, mappedCEStr, service, servicePath, correlatorId);
+            event2 = TestUtils.createNGSIEvent(originalCEStr, mappedCEStr, service, servicePath, correlatorId);
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                    + "- FAIL - There was some problem when creating the NGSI events");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+        
+        batch.addEvent(destination1, event1);
+        batch.addEvent(destination2, event2);
+        NGSIBatch subBatch = batch.getSubBatch(destination2);
+        subBatch.startIterator();
+        
+        try {
+            assertEquals(1, subBatch.getNumDestinations());
+            assertTrue(subBatch.hasNext());
+            assertEquals(event2, subBatch.getNextEvents().get(0));
+            assertEquals(destination2, subBatch.getNextDestination());
+            System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                    + "-  OK  - The got batch only contains the sub-batch regarding '" + destination2 + "'");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                    + "- FAIL - The got batch does not only contain the sub-batch regarding '" + destination2 + "'");
+            throw e;
+        } // try catch
+        
+        batch.setPersisted(destination1, true);
+        
+        try {
+            assertEquals(1, batch.getNotPersistedDestinations().size());
+            assertEquals(destination2, batch.getNotPersistedDestinations().get(0));
+            System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                    + "-  OK  - '" + destination2 + "' is the only not persisted destination");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIBatch.getSubBatch]")
+                    + "- FAIL - '" + destination2 + "' is not the only not persisted destination");
+            throw e;
+        } // try catch
+    } // testGetSubBatch
+    
 } // NGSIBatchTest
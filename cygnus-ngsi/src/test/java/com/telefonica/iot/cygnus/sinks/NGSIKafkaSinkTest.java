@@ -17,12 +17,38 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.google.gson.JsonPrimitive;
+import com.telefonica.iot.cygnus.backends.kafka.KafkaBackendImpl;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.apache.flume.Context;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -252,6 +278,162 @@ public class NGSIKafkaSinkTest {
         } // try catch
     } // testBuildTopicNameDmByAttributeWithSlashServicePath
     
+    /**
+     * [NGSIKafkaSink.configure] -------- When configuring an acked producer, the producer tuning parameters are
+     * validated.
+     */
+    @Test
+    public void testConfigureProducerAcked() {
+        System.out.println(getTestTraceHead("[NGSIKafkaSink.configure]")
+                + "-------- When configuring an acked producer, the producer tuning parameters are validated");
+        NGSIKafkaSink sink = new NGSIKafkaSink();
+        Context context = createContext("false", "dm-by-entity");
+        context.put("producer.mode", "acked");
+        context.put("producer.compression_type", "gzip");
+        context.put("producer.acks", "all");
+        sink.configure(context);
+        
+        try {
+            assertEquals(NGSIKafkaSink.ProducerMode.ACKED, sink.getProducerMode());
+            assertEquals("gzip", sink.getProducerCompressionType());
+            assertEquals("all", sink.getProducerAcks());
+            assertTrue(!sink.getInvalidConfiguration());
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.configure]")
+                    + "-  OK  - The acked producer configuration was accepted");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.configure]")
+                    + "- FAIL - The acked producer configuration was not accepted");
+            throw e;
+        } // try catch
+        
+        context.put("producer.acks", "2");
+        sink.configure(context);
+        
+        try {
+            assertTrue(sink.getInvalidConfiguration());
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.configure]")
+                    + "-  OK  - 'producer.acks=2' was detected as invalid");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.configure]")
+                    + "- FAIL - 'producer.acks=2' was not detected as invalid");
+            throw e;
+        } // try catch
+    } // testConfigureProducerAcked
+    
+    /**
+     * [NGSIKafkaSink.persistBatch] -------- When a sub-batch is not acknowledged, a persistence error is raised, the
+     * other sub-batches are marked as persisted regardless of their order, and only the failed sub-batch is sent again
+     * when retrying.
+     */
+    @Test
+    public void testPersistBatchAcked() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                + "-------- When a sub-batch is not acknowledged, a persistence error is raised, the other sub-batches "
+                + "are marked as persisted regardless of their order, and only the failed sub-batch is sent again "
+                + "when retrying");
+        final Future<RecordMetadata> acked = mock(Future.class);
+        final Future<RecordMetadata> failed = mock(Future.class);
+        when(failed.get(anyLong(), any(TimeUnit.class))).thenThrow(
+                new ExecutionException(new Exception("Broker not available")));
+        final ArrayList<String> sentTopics = new ArrayList<>();
+        final boolean[] failing = {true};
+        KafkaBackendImpl backend = mock(KafkaBackendImpl.class);
+        when(backend.topicExists(anyString())).thenReturn(true);
+        when(backend.sendAsync(any(ProducerRecord.class))).thenAnswer(new Answer<Future<RecordMetadata>>() {
+            @Override
+            public Future<RecordMetadata> answer(InvocationOnMock invocation) {
+                String topic = ((ProducerRecord<String, String>) invocation.getArguments()[0]).topic();
+                sentTopics.add(topic);
+                return failing[0] && topic.contains("room2") ? failed : acked;
+            } // answer
+        });
+        NGSIKafkaSink sink = new NGSIKafkaSink();
+        Context context = createContext("false", "dm-by-entity");
+        context.put("producer.mode", "acked");
+        sink.configure(context);
+        sink.setPersistenceBackend(backend);
+        NGSIBatch batch = new NGSIBatch();
+        
+        for (String entityId : new String[] {"room1", "room2", "room3"}) {
+            batch.addEvent(entityId, createEvent(entityId));
+        } // for
+        
+        try {
+            sink.persistBatch(batch);
+            fail();
+        } catch (CygnusPersistenceError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "-  OK  - A persistence error was raised (" + e.getMessage() + ")");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "- FAIL - No persistence error was raised");
+            throw e;
+        } // try catch
+        
+        try {
+            assertEquals(3, sentTopics.size());
+            assertTrue(isPersisted(batch, "room1"));
+            assertFalse(isPersisted(batch, "room2"));
+            assertTrue(isPersisted(batch, "room3"));
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "-  OK  - Only the not acknowledged sub-batch was not marked as persisted");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "- FAIL - The sub-batches were not marked as expected");
+            throw e;
+        } // try catch
+        
+        failing[0] = false;
+        sink.persistBatch(batch);
+        
+        try {
+            assertEquals(4, sentTopics.size());
+            assertTrue(sentTopics.get(3).contains("room2"));
+            assertTrue(isPersisted(batch, "room2"));
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "-  OK  - Only the not acknowledged sub-batch was sent again when retrying");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIKafkaSink.persistBatch]")
+                    + "- FAIL - Acknowledged sub-batches were sent again when retrying");
+            throw e;
+        } // try catch
+    } // testPersistBatchAcked
+    
+    private boolean isPersisted(NGSIBatch batch, String destination) {
+        batch.startIterator();
+        
+        while (batch.hasNext()) {
+            if (batch.getNextDestination().equals(destination)) {
+                return batch.isNextPersisted();
+            } // if
+        } // while
+        
+        return false;
+    } // isPersisted
+    
+    private NGSIEvent createEvent(String entityId) {
+        NotifyContextRequest notifyContextRequest = new NotifyContextRequest();
+        ContextAttribute contextAttribute = notifyContextRequest.new ContextAttribute();
+        contextAttribute.setName("temperature");
+        contextAttribute.setType("centigrade");
+        contextAttribute.setContextValue(new JsonPrimitive("26.5"));
+        contextAttribute.setContextMetadata(null);
+        ArrayList<ContextAttribute> attributes = new ArrayList<>();
+        attributes.add(contextAttribute);
+        ContextElement contextElement = notifyContextRequest.new ContextElement();
+        contextElement.setId(entityId);
+        contextElement.setType("room");
+        contextElement.setIsPattern("false");
+        contextElement.setAttributes(attributes);
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, "1461136795801");
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, "123456789");
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, "123456789");
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, service);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, servicePath);
+        return new NGSIEvent(headers, contextElement.toString().getBytes(), contextElement, null);
+    } // createEvent
+    
     private Context createContext(String lowerCase, String dataModel) {
         Context context = new Context();
         context.put("enable_lowercase", lowerCase);
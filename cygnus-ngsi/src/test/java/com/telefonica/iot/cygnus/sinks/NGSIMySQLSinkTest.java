@@ -18,14 +18,34 @@
 
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.backends.mysql.MySQLBackendImpl;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import com.telefonica.iot.cygnus.utils.TestUtils;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.flume.Context;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -211,6 +231,78 @@ public class NGSIMySQLSinkTest {
         } // try catch
     } // testConfigureAttrPersistence
     
+    /**
+     * [NGSIMySQLSink.configure] -------- backend.max_conns_per_db must be greater than 0.
+     */
+    @Test
+    public void testConfigureBackendMaxConnsPerDb() {
+        System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                + "-------- backend.max_conns_per_db must be greater than 0");
+        String attrPersistence = null; // default
+        String batchSize = null; // default
+        String batchTime = null; // default
+        String batchTTL = null; // default
+        String dataModel = null; // default
+        String enableEncoding = null; // default
+        String enableGrouping = null; // default
+        String enableLowercase = null; // default
+        String host = null; // default
+        String password = null; // default
+        String port = null; // default
+        String username = null; // default
+        NGSIMySQLSink sink = new NGSIMySQLSink();
+        Context context = createContext(attrPersistence, batchSize, batchTime, batchTTL, dataModel, enableEncoding,
+                enableGrouping, enableLowercase, host, password, port, username);
+        context.put("backend.max_conns_per_db", "0");
+        sink.configure(context);
+        
+        try {
+            assertTrue(sink.getInvalidConfiguration());
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                    + "-  OK  - 'backend.max_conns_per_db=0' was detected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                    + "- FAIL - 'backend.max_conns_per_db=0' was not detected");
+            throw e;
+        } // try catch
+    } // testConfigureBackendMaxConnsPerDb
+    
+    /**
+     * [NGSIMySQLSink.configure] -------- backend.insert_mode can only be 'literal' or 'prepared'.
+     */
+    @Test
+    public void testConfigureBackendInsertMode() {
+        System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                + "-------- backend.insert_mode can only be 'literal' or 'prepared'");
+        String attrPersistence = null; // default
+        String batchSize = null; // default
+        String batchTime = null; // default
+        String batchTTL = null; // default
+        String dataModel = null; // default
+        String enableEncoding = null; // default
+        String enableGrouping = null; // default
+        String enableLowercase = null; // default
+        String host = null; // default
+        String password = null; // default
+        String port = null; // default
+        String username = null; // default
+        NGSIMySQLSink sink = new NGSIMySQLSink();
+        Context context = createContext(attrPersistence, batchSize, batchTime, batchTTL, dataModel, enableEncoding,
+                enableGrouping, enableLowercase, host, password, port, username);
+        context.put("backend.insert_mode", "falseMode");
+        sink.configure(context);
+        
+        try {
+            assertTrue(sink.getInvalidConfiguration());
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                    + "-  OK  - 'backend.insert_mode=falseMode' was detected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.configure]")
+                    + "- FAIL - 'backend.insert_mode=falseMode' was not detected");
+            throw e;
+        } // try catch
+    } // testConfigureBackendInsertMode
+    
     /**
      * [NGSIMySQLSink.buildDBName] -------- When no encoding, the DB name is equals to the encoding of the
      * notified/defaulted service.
@@ -857,6 +949,162 @@ public class NGSIMySQLSinkTest {
                     + "-  OK  - A table name length greater than 64 characters has been detected");
         } // try catch
     } // testBuildTableNameLengthDataModelByAttribute
+    
+    /**
+     * [NGSIMySQLSink.getExpirationDestinations] -------- The oldest record time of a table is selected only the first
+     * time the table is listed, and it is advanced to the horizon once the table is fully expirated.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testGetExpirationDestinationsKnownOldestRecordTime() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIMySQLSink.getExpirationDestinations]")
+                + "-------- The oldest record time of a table is selected only the first time the table is listed, and "
+                + "it is advanced to the horizon once the table is fully expirated");
+        NGSIMySQLSink sink = new NGSIMySQLSink();
+        sink.configure(createContext(null, null, null, null, null, null, null, null, null, null, null, null));
+        MySQLBackendImpl backend = mock(MySQLBackendImpl.class);
+        ArrayList<String[]> tables = new ArrayList<>();
+        tables.add(new String[] {"db", "table"});
+        when(backend.getCachedTables()).thenReturn(tables);
+        when(backend.estimateNumRecords("db", "table")).thenReturn(100L);
+        when(backend.getOldestRecvTime("db", "table")).thenReturn("2017-01-01T00:00:00.000Z");
+        when(backend.expirateRecords(eq("db"), eq("table"), anyString(), eq(1000L))).thenReturn(10L);
+        sink.setPersistenceBackend(backend);
+        long oldestRecordTime = 1483228800000L;
+        long horizon = oldestRecordTime + 3600000;
+        long firstListing = sink.getExpirationDestinations().get(0).getOldestRecordTime();
+        long secondListing = sink.getExpirationDestinations().get(0).getOldestRecordTime();
+        sink.expirateRecords("db.table", horizon, 1000);
+        long afterExpirating = sink.getExpirationDestinations().get(0).getOldestRecordTime();
+        
+        try {
+            assertEquals(oldestRecordTime, firstListing);
+            assertEquals(oldestRecordTime, secondListing);
+            assertEquals(horizon, afterExpirating);
+            verify(backend, times(1)).getOldestRecvTime("db", "table");
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.getExpirationDestinations]")
+                    + "-  OK  - The oldest record time was selected once, and advanced to the horizon");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.getExpirationDestinations]")
+                    + "- FAIL - The oldest record time was not selected once, or not advanced to the horizon");
+            throw e;
+        } // try catch
+    } // testGetExpirationDestinationsKnownOldestRecordTime
+    
+    /**
+     * [NGSIMySQLSink.getNumRecords] -------- In row mode, an event is persisted as a record per attribute, while in
+     * column mode it is persisted as a single record.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testGetNumRecords() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIMySQLSink.getNumRecords]")
+                + "-------- In row mode, an event is persisted as a record per attribute, while in column mode it is "
+                + "persisted as a single record");
+        String ceStr = "{\"id\":\"Room1\",\"type\":\"Room\",\"isPattern\":\"false\",\"attributes\":["
+                + "{\"name\":\"temperature\",\"type\":\"centigrade\",\"value\":\"26.5\"},"
+                + "{\"name\":\"pressure\",\"type\":\"mmHg\",\"value\":\"720\"}]}";
+        ArrayList<NGSIEvent> events = new ArrayList<>();
+        events.add(TestUtils.createNGSIEvent(ceStr, ceStr, "vehicles", "/4wheels", "1234567890"));
+        events.add(TestUtils.createNGSIEvent(ceStr, ceStr, "vehicles", "/4wheels", "1234567891"));
+        NGSIMySQLSink rowSink = new NGSIMySQLSink();
+        rowSink.configure(createContext("row", null, null, null, null, null, null, null, null, null, null, null));
+        NGSIMySQLSink columnSink = new NGSIMySQLSink();
+        columnSink.configure(createContext("column", null, null, null, null, null, null, null, null, null, null,
+                null));
+        
+        try {
+            assertEquals(4, rowSink.getNumRecords(events));
+            assertEquals(2, columnSink.getNumRecords(events));
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.getNumRecords]")
+                    + "-  OK  - The records were counted per attribute in row mode, and per event in column mode");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.getNumRecords]")
+                    + "- FAIL - The records were not counted per attribute in row mode, or per event in column mode");
+            throw e;
+        } // try catch
+    } // testGetNumRecords
+    
+    /**
+     * [NGSIMySQLSink.process] -------- When several persistence threads are configured, the sub-batches of a batch are
+     * persisted at the same time, and only the failed sub-batches are rollbacked.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testProcessParallelPersistence() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIMySQLSink.process]")
+                + "-------- When several persistence threads are configured, the sub-batches of a batch are persisted "
+                + "at the same time, and only the failed sub-batches are rollbacked");
+        NGSIMySQLSink sink = new NGSIMySQLSink();
+        Context context = createContext(null, "3", null, null, null, null, null, null, null, null, null, null);
+        context.put("persistence_threads", "3");
+        sink.configure(context);
+        MemoryChannel channel = new MemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0");
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        
+        // all the sub-batches must be persisting at the same time in order to pass the latch
+        final CountDownLatch latch = new CountDownLatch(3);
+        final AtomicBoolean parallel = new AtomicBoolean(true);
+        MySQLBackendImpl backend = mock(MySQLBackendImpl.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                latch.countDown();
+                
+                if (!latch.await(10, TimeUnit.SECONDS)) {
+                    parallel.set(false);
+                } // if
+                
+                if (((String) invocation.getArguments()[1]).contains("Room2")) {
+                    throw new CygnusPersistenceError("Room2 not available");
+                } // if
+                
+                return null;
+            } // answer
+        }).when(backend).insertContextData(anyString(), anyString(), anyString(), anyString());
+        sink.setPersistenceBackend(backend);
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        
+        for (String entityId : new String[] {"Room1", "Room2", "Room3"}) {
+            String ceStr = "{\"id\":\"" + entityId + "\",\"type\":\"Room\",\"isPattern\":\"false\","
+                    + "\"attributes\":[{\"name\":\"temperature\",\"type\":\"centigrade\",\"value\":\"26.5\"}]}";
+            NGSIEvent event = TestUtils.createNGSIEvent(ceStr, ceStr, "vehicles", "/4wheels", "1234567890");
+            event.getHeaders().put(NGSIConstants.FLUME_HEADER_TIMESTAMP, "1234567890");
+            channel.put(event);
+        } // for
+        
+        txn.commit();
+        txn.close();
+        sink.process();
+        int numRollbacked = sink.getRollbackedAccumulations().size();
+        ArrayList<String> notPersisted = numRollbacked == 0 ? new ArrayList<String>()
+                : sink.getRollbackedAccumulations().get(0).getBatch().getNotPersistedDestinations();
+        
+        try {
+            assertTrue(parallel.get());
+            assertEquals(1, numRollbacked);
+            assertEquals(1, notPersisted.size());
+            assertTrue(notPersisted.get(0).contains("Room2"));
+            verify(backend, times(3)).insertContextData(anyString(), anyString(), anyString(), anyString());
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.process]")
+                    + "-  OK  - The sub-batches were persisted at the same time, and only the failed one was "
+                    + "rollbacked");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIMySQLSink.process]")
+                    + "- FAIL - The sub-batches were not persisted at the same time, or not only the failed one was "
+                    + "rollbacked");
+            throw e;
+        } finally {
+            sink.stop();
+            channel.stop();
+        } // try catch finally
+    } // testProcessParallelPersistence
 
     private Context createContext(String attrPersistence, String batchSize, String batchTime, String batchTTL,
             String dataModel, String enableEncoding, String enableGrouping, String enableLowercase, String host,
@@ -19,13 +19,32 @@
 package com.telefonica.iot.cygnus.sinks;
 
 import static org.junit.Assert.*; // this is required by "fail" like assertions
+import com.google.gson.JsonPrimitive;
+import com.telefonica.iot.cygnus.backends.postgresql.PostgreSQLBackendImpl;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextAttribute;
+import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
+import com.telefonica.iot.cygnus.errors.CygnusBadContextData;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
 import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
 import org.apache.flume.Context;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import org.mockito.runners.MockitoJUnitRunner;
 
 /**
@@ -218,6 +237,102 @@ public class NGSIPostgreSQLSinkTest {
         } // try catch
     } // testConfigureAttrPersistence
     
+    /**
+     * [NGSIPostgreSQLSink.configure] -------- backend.insert_mode can be 'copy'.
+     */
+    @Test
+    public void testConfigureBackendInsertModeCopy() {
+        System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.configure]")
+                + "-------- backend.insert_mode can be 'copy'");
+        String attrPersistence = null; // default
+        String batchSize = null; // default
+        String batchTime = null; // default
+        String batchTTL = null; // default
+        String dataModel = null; // default
+        String enableEncoding = null; // default
+        String enableGrouping = null; // default
+        String enableLowercase = null; // default
+        String host = null; // default
+        String password = null; // default
+        String port = null; // default
+        String username = null; // default
+        String cache = null; // default
+        NGSIPostgreSQLSink sink = new NGSIPostgreSQLSink();
+        Context context = createContext(attrPersistence, batchSize, batchTime, batchTTL, dataModel, enableEncoding,
+                enableGrouping, enableLowercase, host, password, port, username, cache);
+        context.put("backend.insert_mode", "copy");
+        sink.configure(context);
+        
+        try {
+            assertFalse(sink.getInvalidConfiguration());
+            assertEquals(NGSIPostgreSQLSink.InsertMode.COPY, sink.getBackendInsertMode());
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.configure]")
+                    + "-  OK  - 'backend.insert_mode=copy' was accepted");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.configure]")
+                    + "- FAIL - 'backend.insert_mode=copy' was not accepted");
+            throw e;
+        } // try catch
+    } // testConfigureBackendInsertModeCopy
+    
+    /**
+     * [NGSIPostgreSQLSink.persistBatch] -------- When the copy of a sub-batch fails, its rows are inserted through a
+     * prepared statement instead; if the insertion fails as well, a persistence error is raised.
+     */
+    @Test
+    public void testPersistBatchCopyFallback() throws Exception {
+        System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.persistBatch]")
+                + "-------- When the copy of a sub-batch fails, its rows are inserted through a prepared statement "
+                + "instead; if the insertion fails as well, a persistence error is raised");
+        PostgreSQLBackendImpl backend = mock(PostgreSQLBackendImpl.class);
+        doThrow(new CygnusBadContextData("ERROR: missing data for column")).when(backend).insertContextDataCopy(
+                anyString(), anyString(), anyString(), any(ArrayList.class));
+        NGSIPostgreSQLSink sink = new NGSIPostgreSQLSink();
+        Context context = createContext(null, null, null, null, null, null, null, null, null, null, null, null,
+                null);
+        context.put("backend.insert_mode", "copy");
+        sink.configure(context);
+        sink.setPersistenceBackend(backend);
+        NGSIBatch batch = new NGSIBatch();
+        batch.addEvent("room1", createEvent("room1"));
+        sink.persistBatch(batch);
+        ArgumentCaptor<ArrayList> copiedRows = ArgumentCaptor.forClass(ArrayList.class);
+        ArgumentCaptor<ArrayList> insertedRows = ArgumentCaptor.forClass(ArrayList.class);
+        
+        try {
+            verify(backend).insertContextDataCopy(anyString(), anyString(), anyString(), copiedRows.capture());
+            verify(backend).insertContextDataPrepared(anyString(), anyString(), anyString(), insertedRows.capture());
+            assertEquals(1, insertedRows.getValue().size());
+            assertEquals(copiedRows.getValue(), insertedRows.getValue());
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.persistBatch]")
+                    + "-  OK  - The rows were inserted through a prepared statement once the copy failed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.persistBatch]")
+                    + "- FAIL - The rows were not inserted through a prepared statement once the copy failed");
+            throw e;
+        } // try catch
+        
+        doThrow(new CygnusBadContextData("ERROR: value too long")).when(backend).insertContextDataPrepared(
+                anyString(), anyString(), anyString(), any(ArrayList.class));
+        batch = new NGSIBatch();
+        batch.addEvent("room1", createEvent("room1"));
+        
+        try {
+            sink.persistBatch(batch);
+            fail();
+        } catch (CygnusPersistenceError e) {
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.persistBatch]")
+                    + "-  OK  - A persistence error was raised once both the copy and the insertion failed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIPostgreSQLSink.persistBatch]")
+                    + "- FAIL - No persistence error was raised once both the copy and the insertion failed");
+            throw e;
+        } // try catch
+        
+        verify(backend, times(2)).insertContextDataCopy(eq("default"), anyString(), anyString(),
+                any(ArrayList.class));
+    } // testPersistBatchCopyFallback
+    
     /**
      * [NGSIPostgreSQLSink.buildDBName] -------- The schema name is equals to the encoding of the notified/defaulted
      * service.
@@ -912,6 +1027,29 @@ public class NGSIPostgreSQLSinkTest {
         } // try catch
     } // testConfigureEnableEncoding
     
+    private NGSIEvent createEvent(String entityId) {
+        NotifyContextRequest notifyContextRequest = new NotifyContextRequest();
+        ContextAttribute contextAttribute = notifyContextRequest.new ContextAttribute();
+        contextAttribute.setName("temperature");
+        contextAttribute.setType("centigrade");
+        contextAttribute.setContextValue(new JsonPrimitive("say \"26,5\""));
+        contextAttribute.setContextMetadata(null);
+        ArrayList<ContextAttribute> attributes = new ArrayList<>();
+        attributes.add(contextAttribute);
+        ContextElement contextElement = notifyContextRequest.new ContextElement();
+        contextElement.setId(entityId);
+        contextElement.setType("room");
+        contextElement.setIsPattern("false");
+        contextElement.setAttributes(attributes);
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, "1461136795801");
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, "123456789");
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, "123456789");
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, "default");
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, "/");
+        return new NGSIEvent(headers, contextElement.toString().getBytes(), contextElement, null);
+    } // createEvent
+    
     private Context createContext(String attrPersistence, String batchSize, String batchTime, String batchTTL,
             String dataModel, String enableEncoding, String enableGrouping, String enableLowercase, String host,
             String password, String port, String username, String cache) {
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class NGSIRollbackStoreTest {
+
+    /**
+     * Constructor.
+     */
+    public NGSIRollbackStoreTest() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // NGSIRollbackStoreTest
+
+    /**
+     * [NGSIRollbackStore.open] -------- Pending batches are replayed when the rollback store is reopened.
+     */
+    @Test
+    public void testOpenReplaysPendingBatches() {
+        System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                + "-------- Pending batches are replayed when the rollback store is reopened");
+        ArrayList<NGSIRollbackStore.PendingBatch> pendingBatches;
+        NGSIBatch loadedBatch;
+
+        try {
+            File directory = Files.createTempDirectory("rollback").toFile();
+            NGSIRollbackStore store = new NGSIRollbackStore(directory, 4096);
+            store.open();
+            long id1 = store.put(createBatch(), "1234", 10, 1000, 1000);
+            long id2 = store.put(createBatch(), "5678", 10, 2000, 2000);
+            NGSIBatch batch = store.load(id1);
+            batch.setPersisted("someDestination1", true);
+            store.update(id1, 9, 3000, batch);
+            store.remove(id2);
+            store.close();
+            store = new NGSIRollbackStore(directory, 4096);
+            pendingBatches = store.open();
+            loadedBatch = store.load(id1);
+            store.close();
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                    + "- FAIL - There was some problem when using the rollback store");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            assertEquals(1, pendingBatches.size());
+            assertEquals("1234", pendingBatches.get(0).getTransactionIds());
+            assertEquals(9, pendingBatches.get(0).getTTL());
+            assertEquals(3000, pendingBatches.get(0).getLastRetry());
+            assertEquals(1000, pendingBatches.get(0).getRollbackTime());
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                    + "-  OK  - The not removed batch was replayed with its last TTL and retry time");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                    + "- FAIL - The replayed batches were not the expected ones");
+            throw e;
+        } // try catch
+
+        try {
+            assertEquals(4, loadedBatch.getNumEvents());
+            assertEquals(1, loadedBatch.getNotPersistedDestinations().size());
+            assertEquals("someDestination2", loadedBatch.getNotPersistedDestinations().get(0));
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                    + "-  OK  - The replayed batch was loaded with its events and its persisted destinations");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.open]")
+                    + "- FAIL - The replayed batch was not loaded as it was stored");
+            throw e;
+        } // try catch
+    } // testOpenReplaysPendingBatches
+
+    /**
+     * [NGSIRollbackStore.put] -------- Old segments are checkpointed and deleted when the segments roll.
+     */
+    @Test
+    public void testPutCheckpointsOldSegments() {
+        System.out.println(getTestTraceHead("[NGSIRollbackStore.put]")
+                + "-------- Old segments are checkpointed and deleted when the segments roll");
+        NGSIRollbackStore store = null;
+        long id = -1;
+
+        try {
+            File directory = Files.createTempDirectory("rollback").toFile();
+            store = new NGSIRollbackStore(directory, 4096);
+            store.open();
+            id = store.put(createBatch(), "1234", -1, 1000, 1000);
+
+            for (int i = 0; i < 50; i++) {
+                store.remove(store.put(createBatch(), "5678", 10, 2000, 2000));
+            } // for
+        } catch (Exception e) {
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.put]")
+                    + "- FAIL - There was some problem when using the rollback store");
+            throw new AssertionError(e.getMessage());
+        } // try catch
+
+        try {
+            assertEquals(1, store.getNumPendingBatches());
+            assertTrue(store.getNumSegments() <= 2);
+            assertEquals(4, store.load(id).getNumEvents());
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.put]")
+                    + "-  OK  - Old segments were deleted and the pending batch was kept");
+        } catch (Exception | AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSIRollbackStore.put]")
+                    + "- FAIL - Old segments were not deleted or the pending batch was not kept");
+            throw new AssertionError(e.getMessage());
+        } finally {
+            store.close();
+        } // try catch finally
+    } // testPutCheckpointsOldSegments
+
+    private NGSIBatch createBatch() {
+        NGSIBatch batch = new NGSIBatch();
+
+        for (int i = 0; i < 4; i++) {
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("fiware-service", "someService");
+            headers.put("fiware-servicepath", "/someServicePath");
+            headers.put("fiware-correlator", "1234" + i);
+            batch.addEvent("someDestination" + (i % 2 + 1), new NGSIEvent(headers, ("body" + i).getBytes(), null,
+                    null));
+        } // for
+
+        return batch;
+    } // createBatch
+
+} // NGSIRollbackStoreTest
@@ -17,6 +17,7 @@
  */
 package com.telefonica.iot.cygnus.sinks;
 
+import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
 import com.telefonica.iot.cygnus.containers.NotifyContextRequest.ContextElement;
 import com.telefonica.iot.cygnus.errors.CygnusCappingError;
 import com.telefonica.iot.cygnus.errors.CygnusExpiratingError;
@@ -33,7 +34,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.flume.Context;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
 import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.event.EventBuilder;
 import org.apache.flume.lifecycle.LifecycleState;
 import org.apache.log4j.Level;
 import org.apache.log4j.LogManager;
@@ -275,6 +279,17 @@ public class NGSISinkTest {
                     + "'persistence_poilicy.checking_time' is '" + sink.getPersistencePolicyCheckingTime() + "'");
             throw e;
         } // try catch
+        
+        try {
+            assertEquals(1, sink.getPersistenceThreads());
+            System.out.println(getTestTraceHead("[NGSISink.configure]")
+                    + "-  OK  - The default configuration value for 'persistence_threads' is '1'");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.configure]")
+                    + "- FAIL - The default configuration value for "
+                    + "'persistence_threads' is '" + sink.getPersistenceThreads() + "'");
+            throw e;
+        } // try catch
     } // testConfigureNotMandatoryParameters
     
     /**
@@ -589,6 +604,96 @@ public class NGSISinkTest {
 */
     } // testAccumulateDMByService
     
+    /**
+     * [NGSISink.Accumulator.accumulate] -------- The reception time of the oldest accumulated event is kept until the
+     * accumulation is initialized again.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testAccumulateOldestEventTime() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                + "-------- The reception time of the oldest accumulated event, and the time it was taken at, are "
+                + "kept until the accumulation is initialized again");
+        NGSISinkImpl sink = new NGSISinkImpl();
+        sink.configure(createContext(null, null, null, null, null, null, null, null, null, null, null));
+        Accumulator acc = sink.new Accumulator();
+        acc.initialize(new Date().getTime());
+        long beforeAccumulating = acc.getOldestEventTime();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        long beforeTaking = new Date().getTime();
+        acc.accumulate(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        long afterTaking = new Date().getTime();
+        Map<String, String> newerHeaders = new HashMap<>(headers);
+        newerHeaders.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, "1234567899");
+        acc.accumulate(new NGSIEvent(newerHeaders, originalCE.toString().getBytes(), originalCE, mappedCE));
+        long afterAccumulating = acc.getOldestEventTime();
+        long firstTakeTime = acc.getFirstTakeTime();
+        acc.initialize(new Date().getTime());
+        long afterInitializing = acc.getOldestEventTime();
+        
+        try {
+            assertEquals(0, beforeAccumulating);
+            assertEquals(Long.parseLong(timestamp), afterAccumulating);
+            assertTrue(firstTakeTime >= beforeTaking && firstTakeTime <= afterTaking);
+            assertEquals(0, afterInitializing);
+            assertEquals(0, acc.getFirstTakeTime());
+            System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                    + "-  OK  - The oldest event time is '" + afterAccumulating + "' while accumulated");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                    + "- FAIL - The oldest event time is not the expected one (" + beforeAccumulating + ", "
+                    + afterAccumulating + ", " + afterInitializing + ")");
+            throw e;
+        } // try catch
+    } // testAccumulateOldestEventTime
+    
+    /**
+     * [NGSISink.Accumulator.accumulate] -------- The body bytes of the accumulated events are counted until the
+     * accumulation is initialized again.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testAccumulateBytes() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                + "-------- The body bytes of the accumulated events are counted until the accumulation is "
+                + "initialized again");
+        NGSISinkImpl sink = new NGSISinkImpl();
+        sink.configure(createContext(null, null, null, null, null, null, null, null, null, null, null));
+        Accumulator acc = sink.new Accumulator();
+        acc.initialize(new Date().getTime());
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        byte[] body = originalCE.toString().getBytes();
+        acc.accumulate(new NGSIEvent(headers, body, originalCE, mappedCE));
+        acc.accumulate(new NGSIEvent(headers, body, originalCE, mappedCE));
+        long afterAccumulating = acc.getAccBytes();
+        acc.initialize(new Date().getTime());
+        long afterInitializing = acc.getAccBytes();
+        
+        try {
+            assertEquals(2 * body.length, afterAccumulating);
+            assertEquals(0, afterInitializing);
+            System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                    + "-  OK  - The accumulated bytes are '" + afterAccumulating + "' while accumulated");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.Accumulator.accumulate]")
+                    + "- FAIL - The accumulated bytes are not the expected ones (" + afterAccumulating + ", "
+                    + afterInitializing + ")");
+            throw e;
+        } // try catch
+    } // testAccumulateBytes
+    
     /**
      * [NGSISink.Accumulator.accumulate] -------- When data model is by service path, a notification is successfully
      * accumulated.
@@ -1481,6 +1586,425 @@ public class NGSISinkTest {
         } // try catch
     } // testDoRollbackAgain
     
+    /**
+     * [NGSISink.stop] -------- When stopping, the events not persisted within the drain timeout are put back into
+     * the channel if there is no rollback store.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testStopDrain() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.stop]")
+                + "-------- When stopping, the events not persisted within the drain timeout are put back into the "
+                + "channel if there is no rollback store");
+        NGSISinkImpl sink = new NGSISinkImpl();
+        Context context = createContext(null, null, null, null, null, null, null, null, null, null, null);
+        context.put("drain.timeout", "0");
+        sink.configure(context);
+        MemoryChannel channel = new MemoryChannel();
+        channel.configure(new Context());
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        Accumulator acc = sink.new Accumulator();
+        acc.initialize(new Date().getTime());
+        acc.accumulate(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        acc.accumulate(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        sink.doRollback(acc);
+        sink.stop();
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        int numEvents = 0;
+        
+        while (channel.take() != null) {
+            numEvents++;
+        } // while
+        
+        txn.commit();
+        txn.close();
+        
+        try {
+            assertEquals(2, sink.getNumDrainRequeuedEvents());
+            assertEquals(0, sink.getNumDrainLostEvents());
+            assertEquals(2, numEvents);
+            assertEquals(0, sink.getRollbackedAccumulations().size());
+            System.out.println(getTestTraceHead("[NGSISink.stop]")
+                    + "-  OK  - The not persisted events were put back into the channel");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.stop]")
+                    + "- FAIL - The not persisted events were not put back into the channel");
+            throw e;
+        } // try catch
+    } // testStopDrain
+    
+    /**
+     * [NGSISink.process] -------- When the channel is empty and a maximum wake up wait is configured, the sink waits
+     * for new events and is woken up once they are committed, instead of backing off.
+     */
+    @Test
+    public void testProcessWakeUp() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- When the channel is empty and a maximum wake up wait is configured, the sink waits for new "
+                + "events and is woken up once they are committed, instead of backing off");
+        NGSISinkImpl sink = new NGSISinkImpl();
+        Context context = createContext(null, null, null, null, null, null, null, null, null, null, null);
+        context.put("wake_up.max_wait", "60000");
+        sink.configure(context);
+        final CygnusMemoryChannel channel = new CygnusMemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0"); // otherwise, the take waits for the event instead of the sink
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        final NGSIEvent event = new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE);
+        Thread putter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                } // try catch
+                
+                Transaction txn = channel.getTransaction();
+                txn.begin();
+                channel.put(event);
+                txn.commit();
+                txn.close();
+            } // run
+        });
+        putter.start();
+        long start = new Date().getTime();
+        Status status = sink.process();
+        long elapsed = new Date().getTime() - start;
+        putter.join();
+        sink.stop();
+        
+        try {
+            assertEquals(Status.READY, status);
+            assertTrue(elapsed < 30000);
+            assertEquals(1, channel.getNumEvents());
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - The sink was woken up after " + elapsed + " ms");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - The sink was not woken up as expected (" + status + ", " + elapsed + " ms)");
+            throw e;
+        } // try catch
+    } // testProcessWakeUp
+    
+    /**
+     * [NGSISink.process] -------- When a circuit breaker is open and the maximum number of parked events would be
+     * exceeded, the events are rollbacked instead of parked, and the parked events are not counted as persisted.
+     */
+    @Test
+    public void testProcessMaxParkedEvents() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- When a circuit breaker is open and the maximum number of parked events would be exceeded, "
+                + "the events are rollbacked instead of parked, and the parked events are not counted as persisted");
+        NGSISinkImpl sink = new NGSISinkImpl() {
+            @Override
+            void persistBatch(NGSIBatch batch) throws CygnusPersistenceError {
+                throw new CygnusPersistenceError("Backend not available");
+            } // persistBatch
+        };
+        Context context = createContext(null, "1", null, null, null, null, null, null, null, null, null);
+        context.put("circuit_breaker.enabled", "true");
+        context.put("circuit_breaker.failure_threshold", "1");
+        context.put("circuit_breaker.open_time", "60000");
+        context.put("circuit_breaker.max_parked_events", "1");
+        sink.configure(context);
+        MemoryChannel channel = new MemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0");
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        channel.put(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        channel.put(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        txn.commit();
+        txn.close();
+        Status parkedStatus = sink.process(); // the circuit breaker is opened and the event parked
+        Status rollbackedStatus = sink.process(); // the parking is full, thus the event is rollbacked
+        int numRollbacked = sink.getRollbackedAccumulations().size();
+        NGSIBatch rollbackedBatch = numRollbacked == 0 ? null : sink.getRollbackedAccumulations().get(0).getBatch();
+        int numRollbackedEvents = rollbackedBatch == null ? 0 : rollbackedBatch.getNumEvents();
+        int numParked = 0;
+        
+        if (rollbackedBatch != null) {
+            rollbackedBatch.startIterator();
+            
+            if (rollbackedBatch.hasNext()) {
+                numParked = sink.getNumParkedEvents(rollbackedBatch.getNextDestination());
+            } // if
+        } // if
+        
+        long numPersisted = sink.getNumPersistedEvents();
+        sink.stop();
+        channel.stop();
+        
+        try {
+            assertEquals(Status.READY, parkedStatus);
+            assertEquals(Status.BACKOFF, rollbackedStatus);
+            assertEquals(1, numRollbacked);
+            assertEquals(1, numRollbackedEvents);
+            assertEquals(1, numParked);
+            assertEquals(0, numPersisted);
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - The event exceeding the parking was rollbacked, and no event was counted as persisted");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - The event exceeding the parking was not rollbacked, or events were counted as "
+                    + "persisted");
+            throw e;
+        } // try catch
+    } // testProcessMaxParkedEvents
+    
+    /**
+     * [NGSISink.process] -------- When the sink does not support asynchronous capping, the persisted destinations are
+     * capped by the thread persisting them.
+     */
+    @Test
+    public void testProcessSyncCapping() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- When the sink does not support asynchronous capping, the persisted destinations are "
+                + "capped by the thread persisting them");
+        final ArrayList<Thread> cappingThreads = new ArrayList<>();
+        NGSISinkImpl sink = new NGSISinkImpl() {
+            @Override
+            void persistBatch(NGSIBatch batch) throws CygnusPersistenceError {
+            } // persistBatch
+            
+            @Override
+            public void capRecords(NGSIBatch batch, long size) throws CygnusCappingError {
+                synchronized (cappingThreads) {
+                    cappingThreads.add(Thread.currentThread());
+                } // synchronized
+            } // capRecords
+        };
+        sink.configure(createContext(null, "1", null, null, null, null, null, null, "10", null, null));
+        MemoryChannel channel = new MemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0");
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        channel.put(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        txn.commit();
+        txn.close();
+        sink.process();
+        sink.stop();
+        channel.stop();
+        
+        try {
+            assertEquals(1, cappingThreads.size());
+            assertEquals(Thread.currentThread(), cappingThreads.get(0));
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - The destination was capped by the thread persisting it");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - The destination was not capped, or it was capped by another thread");
+            throw e;
+        } // try catch
+    } // testProcessSyncCapping
+    
+    /**
+     * [NGSISink.process] -------- When a partially persisted batch is retried, only the sub-batches persisted by the
+     * retry are counted for capping purposes.
+     */
+    @Test
+    public void testProcessRetryCountsOnlyNewlyPersisted() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- When a partially persisted batch is retried, only the sub-batches persisted by the retry "
+                + "are counted for capping purposes");
+        final ArrayList<String> persistedDestinations = new ArrayList<>();
+        final ArrayList<Integer> countedEvents = new ArrayList<>();
+        NGSISinkImpl sink = new NGSISinkImpl() {
+            private boolean failed = false;
+            
+            @Override
+            void persistBatch(NGSIBatch batch) throws CygnusPersistenceError {
+                boolean fail = false;
+                batch.startIterator();
+                
+                while (batch.hasNext()) {
+                    String destination = batch.getNextDestination();
+                    
+                    if (batch.isNextPersisted()) {
+                        continue;
+                    } // if
+                    
+                    if (destination.contains("failing") && !failed) {
+                        fail = true;
+                        continue;
+                    } // if
+                    
+                    persistedDestinations.add(destination);
+                    batch.setNextPersisted(true);
+                } // while
+                
+                if (fail) {
+                    failed = true;
+                    throw new CygnusPersistenceError("Backend not available");
+                } // if
+            } // persistBatch
+            
+            @Override
+            public void capRecords(NGSIBatch batch, long size) throws CygnusCappingError {
+            } // capRecords
+            
+            @Override
+            protected long getNumRecords(ArrayList<NGSIEvent> events) {
+                countedEvents.add(events.size());
+                return events.size();
+            } // getNumRecords
+        };
+        sink.configure(createContext("1", "2", null, null, null, null, null, null, "10", null, null));
+        MemoryChannel channel = new MemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0");
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        ContextElement originalCE = TestUtils.createJsonContextElement(originalCEStr);
+        ContextElement mappedCE = TestUtils.createJsonContextElement(mappedCEStr);
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        Map<String, String> failingHeaders = new HashMap<>(headers);
+        failingHeaders.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, "/failing");
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        channel.put(new NGSIEvent(headers, originalCE.toString().getBytes(), originalCE, mappedCE));
+        channel.put(new NGSIEvent(failingHeaders, originalCE.toString().getBytes(), originalCE, mappedCE));
+        txn.commit();
+        txn.close();
+        Status failedStatus = sink.process(); // the non failing sub-batch is persisted, the batch is rollbacked
+        Thread.sleep(100);
+        sink.process(); // only the failing sub-batch is persisted again
+        int numRollbacked = sink.getRollbackedAccumulations().size();
+        sink.stop();
+        channel.stop();
+        
+        try {
+            assertEquals(Status.BACKOFF, failedStatus);
+            assertEquals(0, numRollbacked);
+            assertEquals(2, persistedDestinations.size());
+            assertTrue(persistedDestinations.get(1).contains("failing"));
+            assertEquals(2, countedEvents.size());
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - Each sub-batch was persisted and counted once");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - Some sub-batch was persisted or counted more than once " + persistedDestinations
+                    + " " + countedEvents);
+            throw e;
+        } // try catch
+    } // testProcessRetryCountsOnlyNewlyPersisted
+    
+    /**
+     * [NGSISink.process] -------- Events whose body cannot be decoded (e.g. malformed Json) are discarded without
+     * being counted within the batch.
+     */
+    @Test
+    public void testProcessDiscardMalformedBody() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- Events whose body cannot be decoded (e.g. malformed Json) are discarded without being "
+                + "counted within the batch");
+        final ArrayList<Integer> batchSizes = new ArrayList<>();
+        NGSISinkImpl sink = new NGSISinkImpl() {
+            @Override
+            void persistBatch(NGSIBatch batch) throws CygnusPersistenceError {
+                batchSizes.add(batch.getNumEvents());
+            } // persistBatch
+        };
+        sink.configure(createContext(null, "2", null, null, null, null, null, null, null, null, null));
+        MemoryChannel channel = new MemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", "0");
+        channel.configure(channelContext);
+        channel.start();
+        sink.setChannel(channel);
+        sink.start();
+        Map<String, String> headers = new HashMap<>();
+        headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, timestamp);
+        headers.put(CommonConstants.HEADER_CORRELATOR_ID, correlatorId);
+        headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, correlatorId);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE, originalService);
+        headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, originalServicePath);
+        Transaction txn = channel.getTransaction();
+        txn.begin();
+        // events coming from a file channel are not NGSI events, thus their bodies are decoded
+        channel.put(EventBuilder.withBody("{\"id\":\"Room1\",\"attributes\":[".getBytes(), headers));
+        channel.put(EventBuilder.withBody("[1,2]".getBytes(), headers));
+        txn.commit();
+        txn.close();
+        sink.process();
+        txn = channel.getTransaction();
+        txn.begin();
+        channel.put(EventBuilder.withBody((originalCEStr + CommonConstants.CONCATENATOR).getBytes(), headers));
+        channel.put(EventBuilder.withBody((originalCEStr + CommonConstants.CONCATENATOR).getBytes(), headers));
+        txn.commit();
+        txn.close();
+        sink.process();
+        long numPersisted = sink.getNumPersistedEvents();
+        sink.stop();
+        channel.stop();
+        
+        try {
+            assertEquals(1, batchSizes.size());
+            assertEquals(2, (int) batchSizes.get(0));
+            assertEquals(2, numPersisted);
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - The malformed event was discarded and not counted within the batch");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - The malformed event was not discarded, or it was counted within the batch");
+            throw e;
+        } // try catch
+    } // testProcessDiscardMalformedBody
+    
     private Context createContext(String batchRetryIntervals, String batchSize, String batchTimeout, String batchTTL,
             String dataModel, String enableGrouping, String enableLowercase, String enableNameMappings,
             String perisistencePolicyMaxRecords, String perisistencePolicyExpirationTime,
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.channels.CygnusMemoryChannel;
+import com.telefonica.iot.cygnus.errors.CygnusCappingError;
+import com.telefonica.iot.cygnus.errors.CygnusExpiratingError;
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.utils.CommonConstants;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import com.telefonica.iot.cygnus.utils.NGSIConstants;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.flume.Context;
+import org.apache.flume.Sink;
+import org.apache.flume.SinkRunner;
+import org.apache.flume.Transaction;
+import org.apache.flume.sink.DefaultSinkProcessor;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * End-to-end latency benchmark of NGSISink when its channel is momentarily empty, with and without waking up the sink
+ * (wake_up.max_wait parameter) instead of backing off. Events are put into a CygnusMemoryChannel at random intervals,
+ * so that the sink is idle in between, and the sink is run by Flume's sink runner, i.e. it backs off as in
+ * production. The latency is measured from the put commit until the event is given to persistBatch.
+ *
+ * It is not run by default (its name does not end in 'Test'), but explicitly:
+ *
+ *     mvn test -Dtest=NGSISinkWakeUpBenchmark [-Dbenchmark.events=20] [-Dbenchmark.max_gap=5000]
+ *         [-Dbenchmark.keep_alive=3] [-Dbenchmark.max_wait=1000]
+ *
+ * benchmark.keep_alive is the channel keep-alive, i.e. the seconds a take waits for an event before returning
+ * nothing (3 seconds by default in Flume).
+ *
+ * @author frb
+ */
+public class NGSISinkWakeUpBenchmark {
+
+    private static final String HEADER_PUT_TIME = "benchmark-put-time";
+    private final int numEvents = Integer.getInteger("benchmark.events", 20);
+    private final int maxGap = Integer.getInteger("benchmark.max_gap", 5000);
+    private final int keepAlive = Integer.getInteger("benchmark.keep_alive", 3);
+    private final int maxWait = Integer.getInteger("benchmark.max_wait", 1000);
+
+    /**
+     * Sink recording the latency of each persisted event.
+     */
+    private class LatencySink extends NGSISink {
+
+        private final ArrayList<Long> latencies = new ArrayList<>();
+
+        @Override
+        void persistBatch(NGSIBatch batch) throws CygnusPersistenceError {
+            long now = System.nanoTime();
+            batch.startIterator();
+
+            while (batch.hasNext()) {
+                batch.getNextDestination();
+
+                for (NGSIEvent event : batch.getNextEvents()) {
+                    synchronized (latencies) {
+                        latencies.add((now - Long.parseLong(event.getHeaders().get(HEADER_PUT_TIME))) / 1000000);
+                    } // synchronized
+                } // for
+            } // while
+        } // persistBatch
+
+        @Override
+        public void capRecords(NGSIBatch batch, long size) throws CygnusCappingError {
+        } // capRecords
+
+        @Override
+        public void expirateRecords(long time) throws CygnusExpiratingError {
+        } // expirateRecords
+
+        int getNumLatencies() {
+            synchronized (latencies) {
+                return latencies.size();
+            } // synchronized
+        } // getNumLatencies
+
+    } // LatencySink
+
+    /**
+     * Constructor.
+     */
+    public NGSISinkWakeUpBenchmark() {
+        LogManager.getRootLogger().setLevel(Level.FATAL);
+    } // NGSISinkWakeUpBenchmark
+
+    /**
+     * [NGSISink.process] -------- Compares the end-to-end latency percentiles when backing off and when waking up the
+     * sink.
+     */
+    @Test
+    public void benchmarkWakeUp() throws Exception {
+        System.out.println(getTestTraceHead("[NGSISink.process]")
+                + "-------- Compares the end-to-end latency percentiles when backing off and when waking up the sink "
+                + "(events=" + numEvents + ", max_gap=" + maxGap + ", keep_alive=" + keepAlive + ", max_wait="
+                + maxWait + ")");
+        ArrayList<Long> backoff = run(-1);
+        ArrayList<Long> wakeUp = run(maxWait);
+        System.out.println(getTestTraceHead("[NGSISink.process]") + "Backing off: " + getSummary(backoff));
+        System.out.println(getTestTraceHead("[NGSISink.process]") + "Waking up:   " + getSummary(wakeUp));
+
+        try {
+            assertTrue(getPercentile(wakeUp, 99) <= getPercentile(backoff, 99));
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "-  OK  - The p99 latency when waking up is not worse than when backing off");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[NGSISink.process]")
+                    + "- FAIL - The p99 latency when waking up is worse than when backing off");
+            throw e;
+        } // try catch
+    } // benchmarkWakeUp
+
+    private ArrayList<Long> run(long wakeUpMaxWait) throws Exception {
+        CygnusMemoryChannel channel = new CygnusMemoryChannel();
+        Context channelContext = new Context();
+        channelContext.put("keep-alive", String.valueOf(keepAlive));
+        channel.configure(channelContext);
+        channel.start();
+        LatencySink sink = new LatencySink();
+        sink.setName("benchmark-sink");
+        Context context = new Context();
+        context.put("wake_up.max_wait", String.valueOf(wakeUpMaxWait));
+        sink.configure(context);
+        sink.setChannel(channel);
+        DefaultSinkProcessor processor = new DefaultSinkProcessor();
+        processor.setSinks(Collections.<Sink>singletonList(sink));
+        SinkRunner runner = new SinkRunner(processor);
+        runner.start();
+        Random random = new Random(0); // same gaps for both runs
+
+        for (int i = 0; i < numEvents; i++) {
+            Thread.sleep(random.nextInt(maxGap));
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put(NGSIConstants.FLUME_HEADER_TIMESTAMP, String.valueOf(System.currentTimeMillis()));
+            headers.put(CommonConstants.HEADER_CORRELATOR_ID, String.valueOf(i));
+            headers.put(NGSIConstants.FLUME_HEADER_TRANSACTION_ID, String.valueOf(i));
+            headers.put(CommonConstants.HEADER_FIWARE_SERVICE, "benchmark");
+            headers.put(CommonConstants.HEADER_FIWARE_SERVICE_PATH, "/benchmark");
+            headers.put(HEADER_PUT_TIME, String.valueOf(System.nanoTime()));
+            Transaction txn = channel.getTransaction();
+            txn.begin();
+            channel.put(new NGSIEvent(headers, "{}".getBytes(), null, null));
+            txn.commit();
+            txn.close();
+        } // for
+
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (sink.getNumLatencies() < numEvents && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        } // while
+
+        runner.stop();
+        channel.stop();
+        ArrayList<Long> latencies = new ArrayList<>(sink.latencies);
+        Collections.sort(latencies);
+        return latencies;
+    } // run
+
+    private long getPercentile(ArrayList<Long> sortedLatencies, int percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return Long.MAX_VALUE;
+        } // if
+
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(0, index));
+    } // getPercentile
+
+    private String getSummary(ArrayList<Long> sortedLatencies) {
+        return "events=" + sortedLatencies.size() + ", p50=" + getPercentile(sortedLatencies, 50) + " ms, p99="
+                + getPercentile(sortedLatencies, 99) + " ms, max=" + getPercentile(sortedLatencies, 100) + " ms";
+    } // getSummary
+
+} // NGSISinkWakeUpBenchmark
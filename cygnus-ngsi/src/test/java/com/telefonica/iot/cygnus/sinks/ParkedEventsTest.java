@@ -0,0 +1,162 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.errors.CygnusPersistenceError;
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import com.telefonica.iot.cygnus.sinks.CircuitBreakers.State;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import java.util.HashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class ParkedEventsTest {
+
+    /**
+     * [ParkedEvents.park] -------- The events are parked per destination until the maximum number of parked events
+     * would be exceeded.
+     */
+    @Test
+    public void testPark() {
+        System.out.println(getTestTraceHead("[ParkedEvents.park]")
+                + "-------- The events are parked per destination until the maximum number of parked events would be "
+                + "exceeded");
+        CircuitBreakers circuitBreakers = new CircuitBreakers(1, 1000);
+        circuitBreakers.onFailure("room", 0);
+        ParkedEvents parkedEvents = new ParkedEvents("sink", circuitBreakers, 3);
+        NGSIBatch subBatch1 = new NGSIBatch();
+        subBatch1.addEvent("room", createEvent("1234"));
+        subBatch1.addEvent("room", createEvent("1234"));
+        boolean parked = parkedEvents.park("room", subBatch1);
+        NGSIBatch subBatch2 = new NGSIBatch();
+        subBatch2.addEvent("room", createEvent("1234"));
+        subBatch2.addEvent("room", createEvent("1234"));
+        boolean tooMany = parkedEvents.park("room", subBatch2);
+
+        try {
+            assertTrue(parked);
+            assertFalse(tooMany);
+            assertTrue(parkedEvents.isParked("room"));
+            assertFalse(parkedEvents.isParked("other"));
+            assertEquals(2, parkedEvents.getNumEvents("room"));
+            assertEquals(8, parkedEvents.getNumBytes());
+            System.out.println(getTestTraceHead("[ParkedEvents.park]")
+                    + "-  OK  - The events were parked until reaching the maximum");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ParkedEvents.park]")
+                    + "- FAIL - The events were not parked, or the maximum was exceeded");
+            throw e;
+        } // try catch
+    } // testPark
+
+    /**
+     * [ParkedEvents.probe] -------- Once the circuit breakers are half-opened, the parked events are persisted as a
+     * probe; they are unparked if the probe succeeds, otherwise they remain parked and the breaker is opened again.
+     */
+    @Test
+    public void testProbe() {
+        System.out.println(getTestTraceHead("[ParkedEvents.probe]")
+                + "-------- Once the circuit breakers are half-opened, the parked events are persisted as a probe; "
+                + "they are unparked if the probe succeeds, otherwise they remain parked and the breaker is opened "
+                + "again");
+        CircuitBreakers circuitBreakers = new CircuitBreakers(1, 1000);
+        circuitBreakers.onFailure("up", 0);
+        circuitBreakers.onFailure("down", 0);
+        ParkedEvents parkedEvents = new ParkedEvents("sink", circuitBreakers, 10);
+        NGSIBatch upBatch = new NGSIBatch();
+        upBatch.addEvent("up", createEvent("1234"));
+        parkedEvents.park("up", upBatch);
+        NGSIBatch downBatch = new NGSIBatch();
+        downBatch.addEvent("down", createEvent("123456"));
+        parkedEvents.park("down", downBatch);
+        ParkedEvents.Prober prober = new ParkedEvents.Prober() {
+            @Override
+            public void persist(NGSIBatch batch) throws CygnusPersistenceError {
+                if (batch.getSubBatch("down") != null) {
+                    throw new CygnusPersistenceError("Backend not available");
+                } // if
+            } // persist
+        };
+        ArrayList<NGSIBatch> tooEarly = parkedEvents.probe(500, prober);
+        ArrayList<NGSIBatch> persisted = parkedEvents.probe(1000, prober);
+
+        try {
+            assertEquals(0, tooEarly.size());
+            assertEquals(1, persisted.size());
+            assertEquals(1, persisted.get(0).getSubBatch("up").getNumEvents());
+            assertEquals(0, persisted.get(0).getNotPersistedDestinations().size());
+            assertFalse(parkedEvents.isParked("up"));
+            assertEquals(State.CLOSED, circuitBreakers.getState("up"));
+            assertTrue(parkedEvents.isParked("down"));
+            assertEquals(State.OPEN, circuitBreakers.getState("down"));
+            assertEquals(6, parkedEvents.getNumBytes());
+            System.out.println(getTestTraceHead("[ParkedEvents.probe]")
+                    + "-  OK  - The succeeded probe unparked the events, and the failed one kept them parked");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ParkedEvents.probe]")
+                    + "- FAIL - The parked events were not probed as expected");
+            throw e;
+        } // try catch
+    } // testProbe
+
+    /**
+     * [ParkedEvents.takeAll] -------- All the parked events are taken, a batch per destination.
+     */
+    @Test
+    public void testTakeAll() {
+        System.out.println(getTestTraceHead("[ParkedEvents.takeAll]")
+                + "-------- All the parked events are taken, a batch per destination");
+        CircuitBreakers circuitBreakers = new CircuitBreakers(1, 1000);
+        ParkedEvents parkedEvents = new ParkedEvents("sink", circuitBreakers, 10);
+        NGSIBatch subBatch1 = new NGSIBatch();
+        subBatch1.addEvent("room1", createEvent("1234"));
+        parkedEvents.park("room1", subBatch1);
+        NGSIBatch subBatch2 = new NGSIBatch();
+        subBatch2.addEvent("room2", createEvent("1234"));
+        subBatch2.addEvent("room2", createEvent("1234"));
+        parkedEvents.park("room2", subBatch2);
+        ArrayList<NGSIBatch> batches = parkedEvents.takeAll();
+
+        try {
+            assertEquals(2, batches.size());
+            assertEquals(1, batches.get(0).getSubBatch("room1").getNumEvents());
+            assertEquals(2, batches.get(1).getSubBatch("room2").getNumEvents());
+            assertFalse(parkedEvents.isParked("room1"));
+            assertFalse(parkedEvents.isParked("room2"));
+            assertEquals(0, parkedEvents.getNumBytes());
+            System.out.println(getTestTraceHead("[ParkedEvents.takeAll]")
+                    + "-  OK  - All the parked events were taken");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[ParkedEvents.takeAll]")
+                    + "- FAIL - Not all the parked events were taken");
+            throw e;
+        } // try catch
+    } // testTakeAll
+
+    private NGSIEvent createEvent(String body) {
+        return new NGSIEvent(new HashMap<String, String>(), body.getBytes(), null, null);
+    } // createEvent
+
+} // ParkedEventsTest
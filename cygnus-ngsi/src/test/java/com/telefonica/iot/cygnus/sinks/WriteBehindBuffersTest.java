@@ -0,0 +1,107 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.HashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class WriteBehindBuffersTest {
+
+    /**
+     * [WriteBehindBuffers.takeReady] -------- The sub-batches of several batches are coalesced per destination, and a
+     * destination is flushed once reaching the maximum number of events or the maximum age.
+     */
+    @Test
+    public void testTakeReady() {
+        System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                + "-------- The sub-batches of several batches are coalesced per destination, and a destination is "
+                + "flushed once reaching the maximum number of events or the maximum age");
+        WriteBehindBuffers buffers = new WriteBehindBuffers(3, 1000, -1);
+        NGSIBatch batch1 = new NGSIBatch();
+        batch1.addEvent("busy", createEvent("{}"));
+        batch1.addEvent("busy", createEvent("{}"));
+        batch1.addEvent("quiet", createEvent("{}"));
+        buffers.add(batch1, 0);
+        NGSIBatch batch2 = new NGSIBatch();
+        batch2.addEvent("busy", createEvent("{}"));
+        buffers.add(batch2, 100);
+        NGSIBatch bySize = buffers.takeReady(100);
+        NGSIBatch tooEarly = buffers.takeReady(500);
+        NGSIBatch byAge = buffers.takeReady(1000);
+
+        try {
+            assertEquals(1, bySize.getNumDestinations());
+            assertEquals(3, bySize.getSubBatch("busy").getNumEvents());
+            assertNull(tooEarly);
+            assertEquals(1, byAge.getNumDestinations());
+            assertEquals(1, byAge.getSubBatch("quiet").getNumEvents());
+            assertEquals(0, buffers.getNumEvents());
+            assertEquals(0, buffers.getNumBytes());
+            System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                    + "-  OK  - The destinations were coalesced and flushed as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                    + "- FAIL - The destinations were not coalesced or flushed as expected");
+            throw e;
+        } // try catch
+    } // testTakeReady
+
+    /**
+     * [WriteBehindBuffers.takeReady] -------- The oldest destinations are flushed while the maximum number of bytes is
+     * exceeded.
+     */
+    @Test
+    public void testTakeReadyMaxBytes() {
+        System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                + "-------- The oldest destinations are flushed while the maximum number of bytes is exceeded");
+        WriteBehindBuffers buffers = new WriteBehindBuffers(100, 100000, 10);
+        NGSIBatch batch1 = new NGSIBatch();
+        batch1.addEvent("old", createEvent("123456"));
+        buffers.add(batch1, 0);
+        NGSIBatch batch2 = new NGSIBatch();
+        batch2.addEvent("new", createEvent("123456"));
+        buffers.add(batch2, 1);
+        NGSIBatch flushed = buffers.takeReady(2);
+
+        try {
+            assertEquals(1, flushed.getNumDestinations());
+            assertEquals(1, flushed.getSubBatch("old").getNumEvents());
+            assertEquals(6, buffers.getNumBytes());
+            assertEquals(1, buffers.getNumDestinations());
+            System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                    + "-  OK  - The oldest destination was flushed");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[WriteBehindBuffers.takeReady]")
+                    + "- FAIL - The oldest destination was not flushed");
+            throw e;
+        } // try catch
+    } // testTakeReadyMaxBytes
+
+    private NGSIEvent createEvent(String body) {
+        return new NGSIEvent(new HashMap<String, String>(), body.getBytes(), null, null);
+    } // createEvent
+
+} // WriteBehindBuffersTest
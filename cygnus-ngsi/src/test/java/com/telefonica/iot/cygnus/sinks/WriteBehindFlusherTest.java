@@ -0,0 +1,113 @@
+/**
+ * Copyright 2017 Telefonica Investigación y Desarrollo, S.A.U
+ *
+ * This file is part of fiware-cygnus (FIWARE project).
+ *
+ * fiware-cygnus is free software: you can redistribute it and/or modify it under the terms of the GNU Affero
+ * General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ * fiware-cygnus is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the
+ * implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License along with fiware-cygnus. If not, see
+ * http://www.gnu.org/licenses/.
+ *
+ * For those usages not covered by the GNU Affero General Public License please contact with iot_support at tid dot es
+ */
+package com.telefonica.iot.cygnus.sinks;
+
+import com.telefonica.iot.cygnus.interceptors.NGSIEvent;
+import static com.telefonica.iot.cygnus.utils.CommonUtilsForTests.getTestTraceHead;
+import java.util.ArrayList;
+import java.util.HashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author frb
+ */
+public class WriteBehindFlusherTest {
+
+    /**
+     * [WriteBehindFlusher.flush] -------- Only the ready buffers are flushed, unless all of them must be flushed, and
+     * the result of the flush is the result of persisting the flushed batch.
+     */
+    @Test
+    public void testFlush() {
+        System.out.println(getTestTraceHead("[WriteBehindFlusher.flush]")
+                + "-------- Only the ready buffers are flushed, unless all of them must be flushed, and the result of "
+                + "the flush is the result of persisting the flushed batch");
+        WriteBehindFlusher writeBehindFlusher = new WriteBehindFlusher("sink", new WriteBehindBuffers(2, 1000, -1));
+        final ArrayList<NGSIBatch> flushed = new ArrayList<>();
+        WriteBehindFlusher.Flusher flusher = new WriteBehindFlusher.Flusher() {
+            @Override
+            public boolean flush(NGSIBatch batch) {
+                flushed.add(batch);
+                return false;
+            } // flush
+        };
+        NGSIBatch batch = new NGSIBatch();
+        batch.addEvent("room", createEvent("{}"));
+        writeBehindFlusher.buffer(batch, 0);
+        boolean notReady = writeBehindFlusher.flush(500, false, flusher);
+        int flushedWhenNotReady = flushed.size();
+        boolean all = writeBehindFlusher.flush(500, true, flusher);
+
+        try {
+            assertTrue(notReady);
+            assertEquals(0, flushedWhenNotReady);
+            assertFalse(all);
+            assertEquals(1, flushed.size());
+            assertEquals(1, flushed.get(0).getSubBatch("room").getNumEvents());
+            assertEquals(0, writeBehindFlusher.getBuffers().getNumEvents());
+            System.out.println(getTestTraceHead("[WriteBehindFlusher.flush]")
+                    + "-  OK  - The buffers were flushed as expected");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[WriteBehindFlusher.flush]")
+                    + "- FAIL - The buffers were not flushed as expected");
+            throw e;
+        } // try catch
+    } // testFlush
+
+    /**
+     * [WriteBehindFlusher.drain] -------- The current accumulation is drained together with all the buffers.
+     */
+    @Test
+    public void testDrain() {
+        System.out.println(getTestTraceHead("[WriteBehindFlusher.drain]")
+                + "-------- The current accumulation is drained together with all the buffers");
+        WriteBehindFlusher writeBehindFlusher = new WriteBehindFlusher("sink",
+                new WriteBehindBuffers(100, 100000, -1));
+        NGSIBatch buffered = new NGSIBatch();
+        buffered.addEvent("room1", createEvent("{}"));
+        writeBehindFlusher.buffer(buffered, 0);
+        NGSIBatch accumulation = new NGSIBatch();
+        accumulation.addEvent("room1", createEvent("{}"));
+        accumulation.addEvent("room2", createEvent("{}"));
+        NGSIBatch drained = writeBehindFlusher.drain(accumulation, 1);
+        NGSIBatch nothing = writeBehindFlusher.drain(null, 2);
+
+        try {
+            assertEquals(2, drained.getNumDestinations());
+            assertEquals(2, drained.getSubBatch("room1").getNumEvents());
+            assertEquals(1, drained.getSubBatch("room2").getNumEvents());
+            assertNull(nothing);
+            System.out.println(getTestTraceHead("[WriteBehindFlusher.drain]")
+                    + "-  OK  - The accumulation and the buffers were drained");
+        } catch (AssertionError e) {
+            System.out.println(getTestTraceHead("[WriteBehindFlusher.drain]")
+                    + "- FAIL - The accumulation and the buffers were not drained");
+            throw e;
+        } // try catch
+    } // testDrain
+
+    private NGSIEvent createEvent(String body) {
+        return new NGSIEvent(new HashMap<String, String>(), body.getBytes(), null, null);
+    } // createEvent
+
+} // WriteBehindFlusherTest